@@ -0,0 +1,77 @@
+package com.gozap.session.cache;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * 异步的缓存引擎接口,所有操作立即返回一个Future,调用线程不会阻塞在网络IO上.
+ * 同步的方法仍然可以通过CacheEngine中定义的方法调用.
+ * 没有原生异步实现的引擎可以使用AsyncCacheEngineAdapter包装.
+ *
+ * @version 1.00 2015-8-3
+ * @since 1.6
+ */
+public interface AsyncCacheEngine extends CacheEngine {
+
+    /**
+     * 异步取得缓存对象.
+     * @param key 缓存对象的key
+     * @return 查询到的缓存的对象,不存在时为null.
+     */
+    public Future<Object> getAsync(String key);
+
+    /**
+     * 异步批量获取缓存中的对象.如果指定的key不存在于缓存中将不会包含在返回的哈希表中.
+     * @param keys 缓存的key列表.
+     * @return 缓存key和值的只读哈希映射表.
+     */
+    public Future<Map<String, Object>> getAsync(String[] keys);
+
+    /**
+     * 异步向缓存中添加对象.
+     * @param key 添加对象的key
+     * @param value 添加的对象
+     * @return 写入完成的通知.
+     */
+    public Future<Void> putAsync(String key, Object value);
+
+    /**
+     * 异步更新缓存中指定key的值.
+     * @param key 缓存key.
+     * @param value 缓存的值.
+     * @param seconds 缓存过期的秒数
+     * @return 写入完成的通知.
+     */
+    public Future<Void> putAsync(String key, Object value, int seconds);
+
+    /**
+     * 异步批量更新缓存中的值.
+     * @param values 缓存key和值的哈希映射表.
+     * @param seconds 缓存过期的秒数,小于等于0表示不过期.
+     * @return 全部写入完成的通知.
+     */
+    public Future<Void> putAsync(Map<String, Object> values, int seconds);
+
+    /**
+     * 异步删除key.
+     * @param key 缓存key.
+     * @return 删除完成的通知.
+     */
+    public Future<Void> delAsync(String key);
+
+    /**
+     * 异步原子增加.
+     * @param key 需要操作的key.
+     * @param magnitude 幅度.
+     * @return 新的值.
+     */
+    public Future<Long> increaseAsync(String key, long magnitude);
+
+    /**
+     * 异步原子减少.
+     * @param key 需要操作的key.
+     * @param magnitude 幅度.
+     * @return 新的值.
+     */
+    public Future<Long> decreaseAsync(String key, long magnitude);
+}
@@ -0,0 +1,277 @@
+package com.gozap.session.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 将任意的同步缓存引擎适配为AsyncCacheEngine.异步操作在独立的线程池中调用被装饰引擎的
+ * 同步方法完成,同步方法直接委托,已有的调用方不受影响.
+ *
+ * 可以直接作为cacheClass配置,被装饰的引擎由delegateCacheClass指定,
+ * 线程池大小由asyncThreads指定,等待执行的操作最多asyncQueueSize个,
+ * 队列满时由调用线程直接执行,调用方因此变慢而不会无限堆积.
+ *
+ * 被装饰的引擎实现了SessionCacheEngine或HashCacheEngine时对应的方法直接委托.
+ * 没有实现SessionCacheEngine时synchronize分别写入两个key;没有实现HashCacheEngine时
+ * 哈希方法抛出UnsupportedOperationException,可以通过isHashSupported判断.
+ * 停止之后的异步调用抛出IllegalStateException.
+ *
+ * @version 1.00 2015-8-3
+ * @since 1.6
+ */
+public class AsyncCacheEngineAdapter extends FilterCacheEngine
+        implements AsyncCacheEngine, SessionCacheEngine, HashCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(AsyncCacheEngineAdapter.class);
+
+    /**
+     * 执行异步操作的线程数量.
+     */
+    public static final String ASYNC_THREADS = "asyncThreads";
+    private static final int DEFAULT_ASYNC_THREADS = 16;
+    /**
+     * 等待执行的异步操作的最大数量.
+     */
+    public static final String ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+
+    private volatile ExecutorService executor;
+    // 线程池是否由当前实例创建,只有自己创建的线程池才在停止时关闭.
+    private boolean ownExecutor;
+
+    public AsyncCacheEngineAdapter() {
+    }
+
+    public AsyncCacheEngineAdapter(CacheEngine cache) {
+        super(cache);
+    }
+
+    /**
+     * 使用外部的线程池构造,线程池的生命周期由调用方管理.
+     * @param cache 被装饰的引擎.
+     * @param executor 执行异步操作的线程池.
+     */
+    public AsyncCacheEngineAdapter(CacheEngine cache, ExecutorService executor) {
+        super(cache);
+        this.executor = executor;
+    }
+
+    /**
+     * 创建一个守护线程组成的固定大小线程池,队列长度为默认的1024.
+     * @param threads 线程数量.
+     * @param name 线程名称前缀.
+     * @return 线程池.
+     */
+    public static ExecutorService newExecutor(int threads, String name) {
+        return newExecutor(threads, DEFAULT_ASYNC_QUEUE_SIZE, name);
+    }
+
+    /**
+     * 创建一个守护线程组成的固定大小线程池.队列满时由提交的线程自己执行,
+     * 线程池关闭后提交的操作抛出RejectedExecutionException,返回的Future总会结束.
+     * @param threads 线程数量.
+     * @param queueSize 等待执行的操作的最大数量.
+     * @param name 线程名称前缀.
+     * @return 线程池.
+     */
+    public static ExecutorService newExecutor(int threads, int queueSize, final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException(name + " executor is shutdown.");
+                        }
+                        r.run();
+                    }
+                });
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        super.doInit(prop, servletContext);
+        if (executor == null) {
+            int threads = DEFAULT_ASYNC_THREADS;
+            String temp = prop.getProperty(ASYNC_THREADS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                threads = Integer.parseInt(temp.trim());
+            }
+            int queueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+            temp = prop.getProperty(ASYNC_QUEUE_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                queueSize = Integer.parseInt(temp.trim());
+            }
+            executor = newExecutor(threads, queueSize, "async-cache");
+            ownExecutor = true;
+            LOGGER.info("Async cache executor created with " + threads + " threads and queue size " + queueSize + ".");
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        ExecutorService current = executor;
+        executor = null;
+        if (ownExecutor) {
+            current.shutdown();
+            ownExecutor = false;
+        }
+        super.doStop();
+    }
+
+    /**
+     * 被装饰的引擎是否支持哈希结构.
+     * @return true被装饰的引擎实现了HashCacheEngine.
+     */
+    public boolean isHashSupported() {
+        return cache instanceof HashCacheEngine;
+    }
+
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        if (cache instanceof SessionCacheEngine) {
+            ((SessionCacheEngine) cache).synchronize(headerKey, header, attributeKey, attributes, seconds);
+            return;
+        }
+        putValue(headerKey, header, seconds);
+        if (attributes != null) {
+            putValue(attributeKey, attributes, seconds);
+        } else if (seconds > 0) {
+            cache.expire(attributeKey, seconds);
+        }
+    }
+
+    public Map<String, Object> getFields(String key) {
+        return hashCache().getFields(key);
+    }
+
+    public Map<String, Object> getWithFields(String[] keys, String fieldsKey) {
+        return hashCache().getWithFields(keys, fieldsKey);
+    }
+
+    public void putFields(String key, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        hashCache().putFields(key, fields, removedFields, seconds);
+    }
+
+    public void synchronizeFields(String headerKey, Object header,
+            String fieldsKey, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        hashCache().synchronizeFields(headerKey, header, fieldsKey, fields, removedFields, seconds);
+    }
+
+    public Future<Object> getAsync(final String key) {
+        return submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return cache.get(key);
+            }
+        });
+    }
+
+    public Future<Map<String, Object>> getAsync(final String[] keys) {
+        return submit(new Callable<Map<String, Object>>() {
+            public Map<String, Object> call() throws Exception {
+                return cache.get(keys);
+            }
+        });
+    }
+
+    public Future<Void> putAsync(final String key, final Object value) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                cache.put(key, value);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> putAsync(final String key, final Object value, final int seconds) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                cache.put(key, value, seconds);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> putAsync(final Map<String, Object> values, final int seconds) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    putValue(entry.getKey(), entry.getValue(), seconds);
+                }
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> delAsync(final String key) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                cache.del(key);
+                return null;
+            }
+        });
+    }
+
+    public Future<Long> increaseAsync(final String key, final long magnitude) {
+        return submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                return cache.increase(key, magnitude);
+            }
+        });
+    }
+
+    public Future<Long> decreaseAsync(final String key, final long magnitude) {
+        return submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                return cache.decrease(key, magnitude);
+            }
+        });
+    }
+
+    private void putValue(String key, Object value, int seconds) {
+        if (seconds > 0) {
+            cache.put(key, value, seconds);
+        } else {
+            cache.put(key, value);
+        }
+    }
+
+    private HashCacheEngine hashCache() {
+        if (!(cache instanceof HashCacheEngine)) {
+            throw new UnsupportedOperationException(
+                    "Cache engine " + cache.getClass().getName() + " does not support hash.");
+        }
+        return (HashCacheEngine) cache;
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        ExecutorService current = executor;
+        if (current == null) {
+            throw new IllegalStateException("Async cache engine is not started or already stopped.");
+        }
+        return current.submit(task);
+    }
+}
@@ -56,6 +56,12 @@ public interface CacheEngine {
      */
     public void del(String key);
 
+    /**
+     * 一次删除多个key,实现应尽量在一次往返中完成.
+     * @param keys 需要删除的key列表.
+     */
+    public void del(String[] keys);
+
     /**
      * 更新缓存中指定key的值
      * @param key 缓存key.
@@ -65,6 +71,14 @@ public interface CacheEngine {
      */
     public void put(String key, Object value, int seconds);
 
+    /**
+     * 重新设置缓存中指定key的过期时间,不改变其值.
+     * @param key 缓存key.
+     * @param seconds 缓存过期的秒数
+     * @return true设置成功,false缓存中不存在此key.
+     */
+    public boolean expire(String key, int seconds);
+
     /**
      * 向缓存中添加对应的对象，并在对应组中登记
      * @param key 缓存的key.
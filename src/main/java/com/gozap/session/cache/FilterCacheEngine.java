@@ -1,5 +1,6 @@
 package com.gozap.session.cache;
 
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.commons.logging.Log;
@@ -9,7 +10,9 @@ import javax.servlet.ServletContext;
 
 /**
  * FilterCacheEngine包含其他一个缓存引擎实现，此接口的子类可以进行一步重写原有引擎的方法 实现。
- * 
+ * 默认所有的操作都直接委托给被装饰的引擎，子类只需要重写关心的方法。
+ * 使用无参数构造时，被装饰的引擎由配置中的delegateCacheClass指定。
+ *
  * @version 1.00 2009.09.29
  * @since 1.5
  * @author Mike
@@ -17,11 +20,24 @@ import javax.servlet.ServletContext;
 public abstract class FilterCacheEngine extends AbstractCacheEngine {
 	private static final Log LOGGER = LogFactory.getLog(FilterCacheEngine.class);
 
+	/**
+	 * 被装饰的引擎类名配置。
+	 */
+	public static final String DELEGATE_CACHE_CLASS = "delegateCacheClass";
+	private static final String DEFAULT_DELEGATE_CACHE_CLASS =
+			"com.gozap.session.cache.support.RedisCacheEngine";
+
 	protected CacheEngine cache;
 
+	/**
+	 * 构造一个缓存引擎的装饰器，被装饰的实现在初始化时根据配置创建。
+	 */
+	protected FilterCacheEngine() {
+	}
+
 	/**
 	 * 构造一个缓存引擎的装备器。并指定被装钸的实现。
-	 * 
+	 *
 	 * @param cache
 	 *            被装钸的引擎实现。
 	 */
@@ -29,15 +45,96 @@ public abstract class FilterCacheEngine extends AbstractCacheEngine {
 		this.cache = cache;
 	}
 
+	/**
+	 * 被装饰的引擎实现。
+	 * @return 引擎实现。
+	 */
+	public CacheEngine getCache() {
+		return cache;
+	}
+
 	@Override
 	protected void doInit(Properties prop, ServletContext servletContext) {
+		if (cache == null) {
+			cache = createDelegate(prop);
+		}
 		cache.init(prop, servletContext);
-		LOGGER.info("GZIP Compression Cache initialization complete loading of plutonium.");
+		LOGGER.info(getClass().getName() + " initialized, delegate to "
+				+ cache.getClass().getName() + ".");
+	}
+
+	@Override
+	protected void doStart() {
+		cache.start();
 	}
 
 	@Override
 	protected void doStop() {
 		cache.stop();
-		LOGGER.info("GZIP compression cache loaded plutonium stops.");
+		LOGGER.info(getClass().getName() + " stopped.");
+	}
+
+	public boolean containsKey(String key) {
+		return cache.containsKey(key);
+	}
+
+	public void put(String key, Object value) {
+		cache.put(key, value);
+	}
+
+	public void del(String key) {
+		cache.del(key);
+	}
+
+	public void del(String[] keys) {
+		cache.del(keys);
+	}
+
+	public void put(String key, Object value, int seconds) {
+		cache.put(key, value, seconds);
+	}
+
+	public boolean expire(String key, int seconds) {
+		return cache.expire(key, seconds);
+	}
+
+	public void put(String key, Object value, String[] group) {
+		cache.put(key, value, group);
+	}
+
+	public Object get(String key) {
+		return cache.get(key);
+	}
+
+	public Map<String, Object> get(String[] keys) {
+		return cache.get(keys);
+	}
+
+	public long increase(String key, long magnitude) {
+		return cache.increase(key, magnitude);
+	}
+
+	public long decrease(String key, long magnitude) {
+		return cache.decrease(key, magnitude);
+	}
+
+	public void remove(String key) {
+		cache.remove(key);
+	}
+
+	public void flushGroup(String group) {
+		cache.flushGroup(group);
+	}
+
+	private static CacheEngine createDelegate(Properties prop) {
+		String className = prop == null ? null : prop.getProperty(DELEGATE_CACHE_CLASS);
+		if (className == null || className.trim().isEmpty()) {
+			className = DEFAULT_DELEGATE_CACHE_CLASS;
+		}
+		try {
+			return (CacheEngine) Class.forName(className.trim()).newInstance();
+		} catch (Exception ex) {
+			throw new IllegalStateException("Can not create delegate cache " + className, ex);
+		}
 	}
 }
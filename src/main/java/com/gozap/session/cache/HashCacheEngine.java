@@ -0,0 +1,57 @@
+package com.gozap.session.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 支持哈希结构的缓存引擎.一个key下保存多个字段,每个字段可以单独写入和删除,
+ * 不需要整体重写.
+ *
+ * @version 1.00 2015-7-20
+ * @since 1.6
+ */
+public interface HashCacheEngine extends CacheEngine {
+
+    /**
+     * 获取哈希中所有的字段.
+     * @param key 哈希的key.
+     * @return 字段名称和值的哈希映射表,可以修改.哈希不存在时返回null.
+     */
+    public Map<String, Object> getFields(String key);
+
+    /**
+     * 在一次操作中批量获取普通的值,同时获取一个哈希的所有字段.
+     * 如果指定的key不存在于缓存中将不会包含在返回的哈希表中.哈希存在时其字段以
+     * fieldsKey为key放入返回的哈希表中,字段表可以修改.
+     * 总是会返回一个只读的Map的实例.
+     *
+     * @param keys 普通缓存的key列表.
+     * @param fieldsKey 哈希的key.
+     * @return 缓存key和值的哈希映射表.
+     */
+    public Map<String, Object> getWithFields(String[] keys, String fieldsKey);
+
+    /**
+     * 更新哈希中的部分字段,并重新设置哈希的过期时间.
+     * @param key 哈希的key.
+     * @param fields 需要写入的字段.
+     * @param removedFields 需要删除的字段名称.
+     * @param seconds 缓存过期的秒数,小于等于0表示不过期.
+     */
+    public void putFields(String key, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds);
+
+    /**
+     * 写入会话头信息,更新以哈希保存的属性中的部分字段,并刷新两个key的过期时间.
+     * 开启attrHashEnable时会话通过此方法同步,同时实现了SessionCacheEngine的引擎需要在一次操作中完成.
+     * @param headerKey 头信息的key.
+     * @param header 头信息.
+     * @param fieldsKey 属性哈希的key.
+     * @param fields 需要写入的字段.
+     * @param removedFields 需要删除的字段名称.
+     * @param seconds 缓存过期的秒数,小于等于0表示不过期.
+     */
+    public void synchronizeFields(String headerKey, Object header,
+            String fieldsKey, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds);
+}
@@ -0,0 +1,37 @@
+package com.gozap.session.cache;
+
+import java.util.Map;
+
+/**
+ * 读取可以发往从库的缓存引擎.从库的数据有复制延迟,本节点在延迟窗口内写入的key由引擎从主库读取,
+ * 判断只依赖本节点的写入记录,不需要访问主库.其他节点在延迟窗口内的写入可能读到旧值,
+ * 需要读己之写的会话应该由同一个节点处理(会话粘滞).从库上没有的key调用方可以使用FromPrimary的方法
+ * 从主库重新读取,比如其他节点刚刚创建的会话.
+ *
+ * @version 1.00 2015-8-10
+ * @since 1.6
+ */
+public interface ReplicaCacheEngine extends CacheEngine {
+
+    /**
+     * 从库的最大复制延迟.本节点在此之内写入的key从主库读取.
+     * @return 毫秒数,没有配置从库时为0.
+     */
+    public long getReplicaLag();
+
+    /**
+     * 从主库批量获取缓存中的对象,与get(String[])相同.
+     * @param keys 缓存的key列表.
+     * @return 缓存key和值的只读哈希映射表.
+     */
+    public Map<String, Object> getFromPrimary(String[] keys);
+
+    /**
+     * 从主库获取普通的值以及一个哈希的所有字段,与HashCacheEngine.getWithFields相同.
+     * 只有同时实现了HashCacheEngine的引擎才支持此方法.
+     * @param keys 普通缓存的key列表.
+     * @param fieldsKey 哈希的key.
+     * @return 缓存key和值的只读哈希映射表.
+     */
+    public Map<String, Object> getWithFieldsFromPrimary(String[] keys, String fieldsKey);
+}
@@ -0,0 +1,23 @@
+package com.gozap.session.cache;
+
+/**
+ * 可以原子同步会话的缓存引擎.会话的头信息和属性分别储存在两个key中,
+ * 实现需要保证两者的写入以及过期时间的刷新在一次操作中完成,
+ * 不会出现属性先于头信息过期的情况.
+ *
+ * @version 1.00 2015-7-22
+ * @since 1.6
+ */
+public interface SessionCacheEngine extends CacheEngine {
+
+    /**
+     * 写入会话头信息,在attributes不为null时写入属性,并刷新两个key的过期时间.
+     * @param headerKey 头信息的key.
+     * @param header 头信息.
+     * @param attributeKey 属性的key.
+     * @param attributes 属性,为null时只刷新过期时间.
+     * @param seconds 缓存过期的秒数,小于等于0表示不过期.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds);
+}
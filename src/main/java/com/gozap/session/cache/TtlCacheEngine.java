@@ -0,0 +1,27 @@
+package com.gozap.session.cache;
+
+import java.util.Map;
+
+/**
+ * 读取值时可以同时读取剩余过期时间的缓存引擎.本地缓存(NearCacheEngine,TieredCacheEngine)
+ * 用它把从远端读到的值在本地保存的时间限制在远端的剩余过期时间之内.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public interface TtlCacheEngine extends CacheEngine {
+
+    /**
+     * 没有过期时间的key的剩余过期时间.
+     */
+    public static final long NO_TTL = -1L;
+
+    /**
+     * 批量获取缓存中的对象以及剩余的过期时间,两者在同一次往返中读取.
+     * @param keys 缓存的key列表.
+     * @param ttls 与keys等长,返回时保存每个key剩余的过期毫秒数,没有过期时间的key为NO_TTL,
+     *             不存在的key为小于NO_TTL的值.
+     * @return 缓存key和值的只读哈希映射表.
+     */
+    public Map<String, Object> getWithTtl(String[] keys, long[] ttls);
+}
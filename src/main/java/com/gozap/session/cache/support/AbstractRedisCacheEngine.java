@@ -0,0 +1,147 @@
+package com.gozap.session.cache.support;
+
+import java.util.Properties;
+
+import redis.clients.util.SafeEncoder;
+
+import com.gozap.session.cache.AbstractCacheEngine;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+
+/**
+ * 以redis保存数据的缓存引擎基类.RedisCacheEngine和RespCacheEngine使用相同的数据格式,
+ * 两者共用的配置项,会话同步脚本,序列化和参数检查由此类完成,两个引擎可以互相替换.
+ *
+ * @version 1.00 2015-8-25
+ * @since 1.6
+ */
+public abstract class AbstractRedisCacheEngine extends AbstractCacheEngine {
+
+    /**
+     * 值序列化策略实现类全限定名的配置项.
+     */
+    public static final String SERIALIZE_STRATEGY = SerializeUtil.SERIALIZE_STRATEGY;
+    /**
+     * 批量获取时每次MGET的最大key数量的配置项.
+     */
+    public static final String MGET_BATCH_SIZE = "mgetBatchSize";
+    private static final int DEFAULT_MGET_BATCH_SIZE = 500;
+    /**
+     * 组在redis中对应的SET的key前缀的配置项.
+     */
+    public static final String GROUP_KEY_PREFIX = "groupKeyPrefix";
+    private static final String DEFAULT_GROUP_KEY_PREFIX = "group-";
+    /**
+     * 清空组时每批SSCAN和删除的key数量的配置项.
+     */
+    public static final String FLUSH_GROUP_BATCH_SIZE = "flushGroupBatchSize";
+    private static final int DEFAULT_FLUSH_GROUP_BATCH_SIZE = 500;
+
+    /**
+     * 优先使用非阻塞的UNLINK删除,redis版本低于4.0时退化为DEL.
+     */
+    static final RedisScript UNLINK_SCRIPT = new RedisScript(
+            "local ok, n = pcall(redis.call, 'UNLINK', unpack(KEYS)) "
+            + "if not ok then n = redis.call('DEL', unpack(KEYS)) end "
+            + "return n");
+    /**
+     * 同步会话.KEYS[1]为头信息,KEYS[2]为属性;ARGV[1]为过期秒数,ARGV[2]为头信息,
+     * ARGV[3]为属性的写入方式:0只刷新过期时间,1整体写入ARGV[4],
+     * 2以哈希写入,ARGV[4]为写入的字段数n,之后为n对字段名和值,剩余的为删除的字段名.
+     */
+    static final RedisScript SYNC_SESSION_SCRIPT = new RedisScript(
+            "local ttl = tonumber(ARGV[1]) "
+            + "local function write(key, value) "
+            + "if ttl > 0 then redis.call('SETEX', key, ttl, value) else redis.call('SET', key, value) end "
+            + "end "
+            + "write(KEYS[1], ARGV[2]) "
+            + "if ARGV[3] == '1' then write(KEYS[2], ARGV[4]) return 1 end "
+            + "if ARGV[3] == '2' then "
+            + "local n = tonumber(ARGV[4]) "
+            + "if n > 0 then redis.call('HMSET', KEYS[2], unpack(ARGV, 5, 4 + n * 2)) end "
+            + "if #ARGV > 4 + n * 2 then redis.call('HDEL', KEYS[2], unpack(ARGV, 5 + n * 2)) end "
+            + "end "
+            + "if ttl > 0 then redis.call('EXPIRE', KEYS[2], ttl) end "
+            + "return 1");
+    static final byte[] SYNC_KEEP = SafeEncoder.encode("0");
+    static final byte[] SYNC_VALUE = SafeEncoder.encode("1");
+    static final byte[] SYNC_FIELDS = SafeEncoder.encode("2");
+
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+    private int mgetBatchSize = DEFAULT_MGET_BATCH_SIZE;
+    private String groupKeyPrefix = DEFAULT_GROUP_KEY_PREFIX;
+    private int flushGroupBatchSize = DEFAULT_FLUSH_GROUP_BATCH_SIZE;
+
+    public SerializeStrategy getSerializeStrategy() {
+        return serializeStrategy;
+    }
+
+    public void setSerializeStrategy(SerializeStrategy serializeStrategy) {
+        this.serializeStrategy = serializeStrategy;
+    }
+
+    /**
+     * 读取serializeStrategy,mgetBatchSize,groupKeyPrefix和flushGroupBatchSize,
+     * 小于等于0的数量使用默认值.
+     * @param properties 配置,可以为null.
+     */
+    protected void initRedisProperties(Properties properties) {
+        if (properties == null) {
+            return;
+        }
+        serializeStrategy = SerializeUtil.load(serializeStrategy, properties);
+        mgetBatchSize = intProperty(properties, MGET_BATCH_SIZE, DEFAULT_MGET_BATCH_SIZE);
+        flushGroupBatchSize = intProperty(properties, FLUSH_GROUP_BATCH_SIZE, DEFAULT_FLUSH_GROUP_BATCH_SIZE);
+        String temp = properties.getProperty(GROUP_KEY_PREFIX);
+        if (temp != null && !temp.trim().isEmpty()) {
+            groupKeyPrefix = temp.trim();
+        }
+    }
+
+    protected int getMgetBatchSize() {
+        return mgetBatchSize;
+    }
+
+    protected int getFlushGroupBatchSize() {
+        return flushGroupBatchSize;
+    }
+
+    protected byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    protected Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    protected String groupKey(String group) {
+        return groupKeyPrefix + group;
+    }
+
+    protected void checkInit() {
+        if (!this.isInitialized()) {
+            throw new IllegalStateException("This client has not properly initialized.");
+        }
+    }
+
+    protected void checkKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Cache key is null or not a length of 0.");
+        }
+    }
+
+    /**
+     * 读取整数配置,没有配置或者不是正数时返回默认值,默认值为0时也接受0.
+     */
+    protected static int intProperty(Properties properties, String name, int defaultValue) {
+        String temp = properties.getProperty(name);
+        if (temp != null && !temp.trim().isEmpty()) {
+            int value = Integer.parseInt(temp.trim());
+            if (value > 0 || (value == 0 && defaultValue == 0)) {
+                return value;
+            }
+        }
+        return defaultValue;
+    }
+}
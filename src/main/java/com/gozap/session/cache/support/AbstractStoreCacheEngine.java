@@ -0,0 +1,298 @@
+package com.gozap.session.cache.support;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.gozap.session.cache.AbstractCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+
+/**
+ * 把序列化后的值保存在进程内字节存储中的缓存引擎基类.
+ * 子类只需要实现按key读写字节,修改过期时间和原子加减计数器,
+ * 序列化,参数检查,组和会话同步由此类完成.组的登记只保存在堆上.
+ * 计数器与redis一样以十进制字符串保存,可以用get读取.
+ *
+ * @version 1.00 2015-8-16
+ * @since 1.6
+ */
+public abstract class AbstractStoreCacheEngine extends AbstractCacheEngine implements SessionCacheEngine {
+
+    /**
+     * key的编码.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ConcurrentMap<String, Set<String>> groups = new ConcurrentHashMap<String, Set<String>>();
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+
+    public SerializeStrategy getSerializeStrategy() {
+        return serializeStrategy;
+    }
+
+    public void setSerializeStrategy(SerializeStrategy serializeStrategy) {
+        this.serializeStrategy = serializeStrategy;
+    }
+
+    /**
+     * 读取值的字节.
+     * @return 值的副本,不存在或者已经过期时返回null.
+     */
+    protected abstract byte[] read(byte[] key, long now);
+
+    /**
+     * @return 是否存在未过期的值,默认读取整个值判断.
+     */
+    protected boolean exists(byte[] key, long now) {
+        return read(key, now) != null;
+    }
+
+    /**
+     * 写入值,覆盖原有的值和过期时间.
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     */
+    protected abstract void write(byte[] key, byte[] value, long expireAt);
+
+    /**
+     * @return true删除成功,false不存在.
+     */
+    protected abstract boolean delete(byte[] key);
+
+    /**
+     * 修改未过期的值的过期时间.
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     * @return true修改成功,false不存在或者已经过期.
+     */
+    protected abstract boolean retime(byte[] key, long expireAt, long now);
+
+    /**
+     * 原子的加减计数器,不存在时从0开始,保留原有的过期时间.
+     * @return 新的值.
+     */
+    protected abstract long add(byte[] key, long delta, long now);
+
+    /**
+     * 删除全部的值,在停止时调用.
+     */
+    protected void clear() {
+        groups.clear();
+    }
+
+    /**
+     * 读取配置中的serializeStrategy.
+     */
+    protected void initSerializeStrategy(Properties prop) {
+        serializeStrategy = SerializeUtil.load(serializeStrategy, prop);
+    }
+
+    public boolean containsKey(String key) {
+        checkInit();
+        checkKey(key);
+        return exists(encode(key), System.currentTimeMillis());
+    }
+
+    public void put(String key, Object value) {
+        checkInit();
+        checkKey(key);
+        write(encode(key), serialize(value), 0);
+    }
+
+    public void put(String key, Object value, int seconds) {
+        checkInit();
+        checkKey(key);
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid expire time " + seconds + " for " + key);
+        }
+        write(encode(key), serialize(value), expireAt(System.currentTimeMillis(), seconds));
+    }
+
+    /**
+     * 与redis的EXPIRE相同,seconds小于等于0时删除key.
+     */
+    public boolean expire(String key, int seconds) {
+        checkInit();
+        checkKey(key);
+        long now = System.currentTimeMillis();
+        byte[] binaryKey = encode(key);
+        if (seconds <= 0) {
+            return exists(binaryKey, now) && delete(binaryKey);
+        }
+        return retime(binaryKey, expireAt(now, seconds), now);
+    }
+
+    public void put(String key, Object value, String[] group) {
+        checkInit();
+        checkKey(key);
+        if (group != null) {
+            for (String name : group) {
+                checkKey(name);
+            }
+        }
+        write(encode(key), serialize(value), 0);
+        if (group != null) {
+            for (String name : group) {
+                members(name).add(key);
+            }
+        }
+    }
+
+    public void del(String key) {
+        checkInit();
+        checkKey(key);
+        delete(encode(key));
+    }
+
+    public void del(String[] keys) {
+        checkInit();
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            checkKey(key);
+        }
+        for (String key : keys) {
+            delete(encode(key));
+        }
+    }
+
+    public void remove(String key) {
+        del(key);
+    }
+
+    public Object get(String key) {
+        checkInit();
+        checkKey(key);
+        return deserialize(read(encode(key), System.currentTimeMillis()));
+    }
+
+    public Map<String, Object> get(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (String key : keys) {
+            checkKey(key);
+            byte[] data = read(encode(key), now);
+            if (data != null) {
+                values.put(key, deserialize(data));
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    public long increase(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return add(encode(key), magnitude, System.currentTimeMillis());
+    }
+
+    public long decrease(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        if (magnitude == Long.MIN_VALUE) {
+            throw new IllegalStateException("Increment or decrement would overflow.");
+        }
+        return add(encode(key), -magnitude, System.currentTimeMillis());
+    }
+
+    public void flushGroup(String group) {
+        checkInit();
+        checkKey(group);
+        Set<String> members = groups.remove(group);
+        if (members != null) {
+            for (String key : members) {
+                delete(encode(key));
+            }
+        }
+    }
+
+    /**
+     * 先写属性再写头信息,头信息存在时属性一定已经写入.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        checkInit();
+        checkKey(headerKey);
+        checkKey(attributeKey);
+        long now = System.currentTimeMillis();
+        long expireAt = seconds > 0 ? expireAt(now, seconds) : 0;
+        byte[] headerData = serialize(header);
+        if (attributes != null) {
+            write(encode(attributeKey), serialize(attributes), expireAt);
+        } else if (seconds > 0) {
+            retime(encode(attributeKey), expireAt, now);
+        }
+        write(encode(headerKey), headerData, expireAt);
+    }
+
+    private Set<String> members(String group) {
+        Set<String> members = groups.get(group);
+        if (members == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            members = groups.putIfAbsent(group, created);
+            if (members == null) {
+                members = created;
+            }
+        }
+        return members;
+    }
+
+    /**
+     * 解析字节数,可以使用k,m,g后缀.
+     */
+    protected static long parseBytes(String value) {
+        String temp = value.trim().toLowerCase();
+        long unit = 1;
+        char suffix = temp.charAt(temp.length() - 1);
+        if (suffix == 'k') {
+            unit = 1L << 10;
+        } else if (suffix == 'm') {
+            unit = 1L << 20;
+        } else if (suffix == 'g') {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            temp = temp.substring(0, temp.length() - 1).trim();
+        }
+        return Long.parseLong(temp) * unit;
+    }
+
+    private static long expireAt(long now, int seconds) {
+        return now + TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    private static byte[] encode(String key) {
+        return key.getBytes(UTF8);
+    }
+
+    private byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    private Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    private void checkInit() {
+        if (!this.isInitialized()) {
+            throw new IllegalStateException("This client has not properly initialized.");
+        }
+    }
+
+    private void checkKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Cache key is null or not a length of 0.");
+        }
+    }
+}
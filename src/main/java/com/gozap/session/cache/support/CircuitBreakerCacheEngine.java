@@ -0,0 +1,943 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.FilterCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.serialize.CanNotBeSerializedException;
+import com.gozap.session.serialize.CanNotBeUnSerializedException;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+
+/**
+ * 熔断缓存引擎.统计最近circuitWindowSize次调用中出错或者慢于circuitSlowCall毫秒的比例,
+ * 达到circuitFailureRate时打开熔断,之后的读写不再访问被装饰的引擎,而是使用本节点的
+ * 有界LRU表,请求线程不会因为redis变慢而堆积.打开circuitOpenTime毫秒后放行一次探测调用,
+ * 成功则关闭熔断,并由后台线程把熔断期间写入本地的值写回被装饰的引擎,写回完成之前
+ * 这些key仍然从本地读取.除increase和decrease外,调用出错时也会退回本地,不会抛出异常.
+ *
+ * 熔断期间只能读到本节点在熔断期间写入的值,其他会话表现为不存在.
+ * 读取没有访问到被装饰引擎的key会被记住,之后对它的写入是基于空值的替身写入,
+ * 写回时只有被装饰引擎中没有这个key才写入,不会用熔断期间新建的空会话覆盖真实的会话,
+ * 被跳过的次数可以通过getSkippedWrites查看.
+ * 本地表满时最早的值会被丢弃,被丢弃的写入不会写回,次数可以通过getDroppedWrites查看.
+ * 删除单独保存,不受本地表大小的限制,注销不会因为本地表满而丢失.
+ * 停止时先尝试把本地的写入写回,写不回的写入记录在错误日志中.
+ * 单次调用的最长时间仍然由被装饰引擎的超时决定,比如jedis连接池的soTimeout.
+ * increase和decrease无法在本地计算,熔断期间抛出IllegalStateException.
+ * 属性不能以哈希保存,使用此引擎时attrHashEnable会被忽略.
+ *
+ * 配置项:circuitWindowSize(默认50),circuitFailureRate(百分比,默认50),
+ * circuitSlowCall(毫秒,默认200),circuitOpenTime(毫秒,默认5000),
+ * circuitLocalSize(本地最多保存的值数量,默认10000),serializeStrategy(本地值的序列化方式).
+ *
+ * @version 1.00 2015-8-13
+ * @since 1.6
+ */
+public class CircuitBreakerCacheEngine extends FilterCacheEngine implements SessionCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(CircuitBreakerCacheEngine.class);
+
+    public static final String CIRCUIT_WINDOW_SIZE = "circuitWindowSize";
+    public static final String CIRCUIT_FAILURE_RATE = "circuitFailureRate";
+    public static final String CIRCUIT_SLOW_CALL = "circuitSlowCall";
+    public static final String CIRCUIT_OPEN_TIME = "circuitOpenTime";
+    public static final String CIRCUIT_LOCAL_SIZE = "circuitLocalSize";
+    private static final int DEFAULT_WINDOW_SIZE = 50;
+    private static final int DEFAULT_FAILURE_RATE = 50;
+    private static final long DEFAULT_SLOW_CALL = 200L;
+    private static final long DEFAULT_OPEN_TIME = 5000L;
+    private static final int DEFAULT_LOCAL_SIZE = 10000;
+    private static final long RECONCILE_INTERVAL = 100L;
+    // 读取失败的记录保留的时间,足够一个请求完成读取到写入,毫秒
+    private static final long UNKNOWN_READ_TTL = 60000L;
+    // 停止时最多写回的轮数
+    private static final int STOP_DRAIN_ROUNDS = 3;
+    // 停止时等待写回线程结束的时间,毫秒
+    private static final long STOP_WAIT = 5000L;
+
+    /**
+     * 熔断状态.
+     */
+    public static enum State {
+        /**
+         * 正常访问被装饰的引擎.
+         */
+        CLOSED,
+        /**
+         * 使用本地表.
+         */
+        OPEN,
+        /**
+         * 一次探测调用正在进行,其他调用使用本地表.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * 本地值的类型.
+     */
+    private static enum Kind {
+        VALUE, EXPIRE, DEL, REMOVE
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private final AtomicLong skippedWrites = new AtomicLong();
+    private final Set<String> flushedGroups = new LinkedHashSet<String>();
+    private volatile long openedAt;
+    private volatile boolean localActive = false;
+    private volatile boolean running = false;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int failureRate = DEFAULT_FAILURE_RATE;
+    private long slowCall = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_CALL);
+    private long openTime = DEFAULT_OPEN_TIME;
+    private int localSize = DEFAULT_LOCAL_SIZE;
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+    private boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowBad;
+    // 本地的值和过期时间刷新,有界LRU
+    private Map<String, LocalWrite> local;
+    // 本地的删除,不会被淘汰,与local使用同一把锁
+    private final Map<String, LocalWrite> deletes = new LinkedHashMap<String, LocalWrite>();
+    // 读取时没有访问到被装饰引擎的key和读取的时间,与local使用同一把锁
+    private Map<String, Long> unknown;
+    private int reconciled = 0;
+    private Thread reconcileThread;
+
+    public CircuitBreakerCacheEngine() {
+    }
+
+    public CircuitBreakerCacheEngine(CacheEngine cache) {
+        super(cache);
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        super.doInit(prop, servletContext);
+        if (prop != null) {
+            String temp = prop.getProperty(CIRCUIT_WINDOW_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                windowSize = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(CIRCUIT_FAILURE_RATE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                failureRate = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(CIRCUIT_SLOW_CALL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                slowCall = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(temp.trim()));
+            }
+            temp = prop.getProperty(CIRCUIT_OPEN_TIME);
+            if (temp != null && !temp.trim().isEmpty()) {
+                openTime = Long.parseLong(temp.trim());
+            }
+            temp = prop.getProperty(CIRCUIT_LOCAL_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                localSize = Integer.parseInt(temp.trim());
+            }
+            serializeStrategy = SerializeUtil.load(serializeStrategy, prop);
+        }
+        if (windowSize <= 0) {
+            windowSize = DEFAULT_WINDOW_SIZE;
+        }
+        window = new boolean[windowSize];
+        final int capacity = localSize;
+        local = new LinkedHashMap<String, LocalWrite>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LocalWrite> eldest) {
+                if (size() > capacity) {
+                    droppedWrites.incrementAndGet();
+                    if (eldest.getValue().standIn) {
+                        // 之后的写入仍然是替身写入
+                        unknown.put(eldest.getKey(), System.currentTimeMillis());
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        unknown = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+        LOGGER.info("Circuit breaker (window=" + windowSize + ", failureRate=" + failureRate
+                + "%, slowCall=" + TimeUnit.NANOSECONDS.toMillis(slowCall) + "ms, openTime=" + openTime
+                + "ms, localSize=" + localSize + ")");
+    }
+
+    @Override
+    protected void doStart() {
+        super.doStart();
+        if (running) {
+            return;
+        }
+        running = true;
+        reconcileThread = new Thread(new Runnable() {
+            public void run() {
+                reconcile();
+            }
+        }, "cache-circuit-reconcile");
+        reconcileThread.setDaemon(true);
+        reconcileThread.start();
+    }
+
+    @Override
+    protected void doStop() {
+        running = false;
+        if (reconcileThread != null) {
+            reconcileThread.interrupt();
+            try {
+                reconcileThread.join(STOP_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reconcileThread = null;
+        }
+        writeBackOnStop();
+        super.doStop();
+    }
+
+    /**
+     * 停止前把本地的写入写回被装饰的引擎,不论熔断状态,出错时停止写回.
+     * 仍然没有写回的写入以错误日志记录.
+     */
+    private void writeBackOnStop() {
+        for (int i = 0; i < STOP_DRAIN_ROUNDS && drain(true); i++) {
+            // 每轮写回期间可能又有新的写入
+        }
+        synchronized (local) {
+            int lost = local.size() + deletes.size() + flushedGroups.size();
+            if (lost > 0) {
+                List<String> keys = new ArrayList<String>(deletes.keySet());
+                keys.addAll(local.keySet());
+                LOGGER.error(lost + " local writes are not written back to the cache and are lost, keys "
+                        + keys + ", flushed groups " + flushedGroups + ".");
+            }
+            local.clear();
+            deletes.clear();
+            unknown.clear();
+            flushedGroups.clear();
+            localActive = false;
+        }
+    }
+
+    /**
+     * @return 当前的熔断状态.
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return 因为本地表已满而丢弃的写入次数.
+     */
+    public long getDroppedWrites() {
+        return droppedWrites.get();
+    }
+
+    /**
+     * @return 因为被装饰的引擎中已经有值而没有写回的替身写入次数.
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        LocalWrite entry = readLocal(key);
+        if (entry != null && entry.kind != Kind.EXPIRE) {
+            return entry.kind == Kind.VALUE;
+        }
+        if (acquire()) {
+            long start = System.nanoTime();
+            try {
+                boolean contains = cache.containsKey(key);
+                succeeded(start);
+                known(key);
+                return contains;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        unknown(key);
+        return false;
+    }
+
+    @Override
+    public Object get(String key) {
+        LocalWrite entry = readLocal(key);
+        if (entry != null && entry.kind != Kind.EXPIRE) {
+            return entry.kind == Kind.VALUE ? deserialize(entry.data) : null;
+        }
+        if (acquire()) {
+            long start = System.nanoTime();
+            try {
+                Object value = cache.get(key);
+                succeeded(start);
+                known(key);
+                return value;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        unknown(key);
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> get(String[] keys) {
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        List<String> remote = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            LocalWrite entry = readLocal(key);
+            if (entry == null || entry.kind == Kind.EXPIRE) {
+                remote.add(key);
+            } else if (entry.kind == Kind.VALUE) {
+                values.put(key, deserialize(entry.data));
+            }
+        }
+        if (remote.isEmpty()) {
+            return values;
+        }
+        String[] remoteKeys = remote.toArray(new String[remote.size()]);
+        if (acquire()) {
+            long start = System.nanoTime();
+            try {
+                values.putAll(cache.get(remoteKeys));
+                succeeded(start);
+                known(remoteKeys);
+                return values;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        unknown(remoteKeys);
+        return values;
+    }
+
+    @Override
+    public void put(String key, Object value) {
+        put(key, value, 0);
+    }
+
+    @Override
+    public void put(String key, Object value, int seconds) {
+        if (!pending(key) && acquire()) {
+            long start = System.nanoTime();
+            try {
+                if (seconds > 0) {
+                    cache.put(key, value, seconds);
+                } else {
+                    cache.put(key, value);
+                }
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        writeLocal(key, Kind.VALUE, serialize(value), expireAt(seconds), null);
+    }
+
+    @Override
+    public void put(String key, Object value, String[] group) {
+        if (!pending(key) && acquire()) {
+            long start = System.nanoTime();
+            try {
+                cache.put(key, value, group);
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        writeLocal(key, Kind.VALUE, serialize(value), 0, group);
+    }
+
+    @Override
+    public boolean expire(String key, int seconds) {
+        if (!pending(key) && acquire()) {
+            long start = System.nanoTime();
+            try {
+                boolean exists = cache.expire(key, seconds);
+                succeeded(start);
+                return exists;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        touchLocal(key, seconds);
+        return true;
+    }
+
+    @Override
+    public void del(String key) {
+        delete(key, Kind.DEL);
+    }
+
+    @Override
+    public void del(String[] keys) {
+        boolean pending = false;
+        for (String key : keys) {
+            pending |= pending(key);
+        }
+        if (!pending && acquire()) {
+            long start = System.nanoTime();
+            try {
+                cache.del(keys);
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        for (String key : keys) {
+            writeLocal(key, Kind.DEL, null, 0, null);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        delete(key, Kind.REMOVE);
+    }
+
+    @Override
+    public long increase(String key, long magnitude) {
+        if (!acquire()) {
+            throw new IllegalStateException("Circuit is open, can not increase " + key);
+        }
+        long start = System.nanoTime();
+        try {
+            long value = cache.increase(key, magnitude);
+            succeeded(start);
+            return value;
+        } catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public long decrease(String key, long magnitude) {
+        if (!acquire()) {
+            throw new IllegalStateException("Circuit is open, can not decrease " + key);
+        }
+        long start = System.nanoTime();
+        try {
+            long value = cache.decrease(key, magnitude);
+            succeeded(start);
+            return value;
+        } catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 熔断期间删除本地属于此组的值,并在熔断关闭后再清空被装饰引擎中的组.
+     */
+    @Override
+    public void flushGroup(String group) {
+        if (acquire()) {
+            long start = System.nanoTime();
+            try {
+                cache.flushGroup(group);
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        synchronized (local) {
+            flushedGroups.add(group);
+            localActive = true;
+            List<String> members = new ArrayList<String>();
+            for (Map.Entry<String, LocalWrite> entry : local.entrySet()) {
+                if (entry.getValue().inGroup(group)) {
+                    members.add(entry.getKey());
+                }
+            }
+            for (String member : members) {
+                writeLocal(member, Kind.DEL, null, 0, null);
+            }
+        }
+    }
+
+    /**
+     * 被装饰的引擎实现了SessionCacheEngine时委托给它,否则分别写入.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        if (!pending(headerKey) && !pending(attributeKey) && acquire()) {
+            long start = System.nanoTime();
+            try {
+                synchronizeDelegate(headerKey, header, attributeKey, attributes, seconds);
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        writeLocal(headerKey, Kind.VALUE, serialize(header), expireAt(seconds), null);
+        if (attributes != null) {
+            writeLocal(attributeKey, Kind.VALUE, serialize(attributes), expireAt(seconds), null);
+        } else {
+            touchLocal(attributeKey, seconds);
+        }
+    }
+
+    private void synchronizeDelegate(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        if (cache instanceof SessionCacheEngine) {
+            ((SessionCacheEngine) cache).synchronize(headerKey, header, attributeKey, attributes, seconds);
+            return;
+        }
+        if (seconds > 0) {
+            cache.put(headerKey, header, seconds);
+        } else {
+            cache.put(headerKey, header);
+        }
+        if (attributes != null) {
+            if (seconds > 0) {
+                cache.put(attributeKey, attributes, seconds);
+            } else {
+                cache.put(attributeKey, attributes);
+            }
+        } else if (seconds > 0) {
+            cache.expire(attributeKey, seconds);
+        }
+    }
+
+    private void delete(String key, Kind kind) {
+        if (!pending(key) && acquire()) {
+            long start = System.nanoTime();
+            try {
+                if (kind == Kind.DEL) {
+                    cache.del(key);
+                } else {
+                    cache.remove(key);
+                }
+                succeeded(start);
+                return;
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+        writeLocal(key, kind, null, 0, null);
+    }
+
+    /**
+     * 判断调用是否可以访问被装饰的引擎.熔断打开超过circuitOpenTime后,
+     * 第一个调用者成为探测调用.
+     */
+    private boolean acquire() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        return current == State.OPEN && System.currentTimeMillis() - openedAt >= openTime
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    private void succeeded(long start) {
+        boolean slow = System.nanoTime() - start > slowCall;
+        if (state.get() == State.HALF_OPEN) {
+            if (slow) {
+                open();
+            } else {
+                close();
+            }
+        } else {
+            record(slow);
+        }
+    }
+
+    /**
+     * 记录一次出错的调用.参数错误等与引擎可用性无关的异常直接抛出.
+     */
+    private void failed(RuntimeException e) {
+        if (!isFailure(e)) {
+            state.compareAndSet(State.HALF_OPEN, State.OPEN);
+            throw e;
+        }
+        LOGGER.debug("Cache call failed, use local values.", e);
+        if (state.get() == State.HALF_OPEN) {
+            open();
+        } else {
+            record(true);
+        }
+    }
+
+    private static boolean isFailure(RuntimeException e) {
+        return !(e instanceof IllegalArgumentException || e instanceof UnsupportedOperationException
+                || e.getCause() instanceof CanNotBeSerializedException
+                || e.getCause() instanceof CanNotBeUnSerializedException);
+    }
+
+    private void record(boolean bad) {
+        boolean trip;
+        synchronized (window) {
+            if (windowCount == window.length) {
+                if (window[windowIndex]) {
+                    windowBad--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = bad;
+            if (bad) {
+                windowBad++;
+            }
+            windowIndex = (windowIndex + 1) % window.length;
+            trip = windowCount == window.length && windowBad * 100 >= failureRate * windowCount;
+        }
+        if (trip && state.get() == State.CLOSED) {
+            open();
+        }
+    }
+
+    private void resetWindow() {
+        synchronized (window) {
+            windowIndex = 0;
+            windowCount = 0;
+            windowBad = 0;
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        State previous = state.getAndSet(State.OPEN);
+        resetWindow();
+        if (previous == State.CLOSED) {
+            LOGGER.warn("Circuit opened, cache calls are served locally for " + openTime + "ms.");
+        }
+    }
+
+    private void close() {
+        if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            resetWindow();
+            LOGGER.warn("Circuit closed, write back local values.");
+        }
+    }
+
+    /**
+     * 熔断关闭时把本地的写入写回被装饰的引擎,包括熔断期间以及调用出错时写入本地的值.
+     */
+    private void reconcile() {
+        while (running) {
+            try {
+                if (state.get() != State.CLOSED || !drain(false)) {
+                    Thread.sleep(RECONCILE_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 写回一轮本地值,先清空组再写入值.写回期间同一个key的新写入仍然写入本地,
+     * 写回后本地的值有变化时留到下一轮.写回的结果和普通调用一样计入熔断统计.
+     * @param stopping 停止时为true,不论熔断状态都写回.
+     * @return true写回了一轮,false没有待写回的值或者写回出错.
+     */
+    private boolean drain(boolean stopping) {
+        List<String> groups;
+        List<String> keys;
+        synchronized (local) {
+            pruneUnknown();
+            if (local.isEmpty() && deletes.isEmpty() && flushedGroups.isEmpty()) {
+                localActive = !unknown.isEmpty();
+                if (reconciled > 0) {
+                    LOGGER.info(reconciled + " local values written back, " + droppedWrites.get()
+                            + " writes dropped and " + skippedWrites.get() + " stand-in writes skipped so far.");
+                    reconciled = 0;
+                }
+                return false;
+            }
+            groups = new ArrayList<String>(flushedGroups);
+            keys = new ArrayList<String>(deletes.keySet());
+            keys.addAll(local.keySet());
+        }
+        for (String group : groups) {
+            long start = System.nanoTime();
+            try {
+                cache.flushGroup(group);
+                succeeded(start);
+            } catch (RuntimeException e) {
+                if (isFailure(e)) {
+                    record(true);
+                    return false;
+                }
+                LOGGER.warn("Can not flush group " + group + ", discarded.", e);
+            }
+            synchronized (local) {
+                flushedGroups.remove(group);
+            }
+        }
+        for (String key : keys) {
+            if (!stopping && (!running || state.get() != State.CLOSED)) {
+                return false;
+            }
+            LocalWrite entry;
+            synchronized (local) {
+                entry = findLocal(key);
+            }
+            if (entry == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                writeBack(key, entry);
+                succeeded(start);
+                reconciled++;
+            } catch (RuntimeException e) {
+                if (isFailure(e)) {
+                    record(true);
+                    return false;
+                }
+                LOGGER.warn("Can not write back " + key + ", discarded.", e);
+            }
+            synchronized (local) {
+                if (local.get(key) == entry) {
+                    local.remove(key);
+                } else if (deletes.get(key) == entry) {
+                    deletes.remove(key);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写回一个本地值.替身写入只在被装饰的引擎中没有这个key时写入,
+     * 先检查再写入之间其他节点写入的值仍然可能被覆盖.
+     */
+    private void writeBack(String key, LocalWrite entry) {
+        int seconds = entry.remainingSeconds();
+        switch (entry.kind) {
+            case VALUE:
+                if (entry.expireAt != 0 && seconds <= 0) {
+                    break;
+                }
+                if (entry.standIn && cache.containsKey(key)) {
+                    skippedWrites.incrementAndGet();
+                    LOGGER.info("Cache already has " + key + ", the local stand-in value is not written back.");
+                    break;
+                }
+                if (entry.group != null) {
+                    cache.put(key, deserialize(entry.data), entry.group);
+                } else if (entry.expireAt == 0) {
+                    cache.put(key, deserialize(entry.data));
+                } else {
+                    cache.put(key, deserialize(entry.data), seconds);
+                }
+                break;
+            case EXPIRE:
+                if (seconds > 0) {
+                    cache.expire(key, seconds);
+                }
+                break;
+            case DEL:
+                cache.del(key);
+                break;
+            default:
+                cache.remove(key);
+                break;
+        }
+    }
+
+    /**
+     * 熔断打开或者有待写回的值时读取本地值.
+     */
+    private LocalWrite readLocal(String key) {
+        if (!localActive && state.get() == State.CLOSED) {
+            return null;
+        }
+        synchronized (local) {
+            LocalWrite entry = findLocal(key);
+            if (entry != null && entry.isExpired()) {
+                local.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * 在持有local的锁时查找本地值或删除.
+     */
+    private LocalWrite findLocal(String key) {
+        LocalWrite entry = local.get(key);
+        return entry != null ? entry : deletes.get(key);
+    }
+
+    /**
+     * 写入本地.key之前的读取没有访问到被装饰的引擎,或者key已经有替身写入时,这次写入也是替身写入.
+     */
+    private void writeLocal(String key, Kind kind, byte[] data, long expireAt, String[] group) {
+        synchronized (local) {
+            LocalWrite previous = findLocal(key);
+            boolean standIn = unknown.remove(key) != null || (previous != null && previous.standIn);
+            if (kind == Kind.VALUE) {
+                deletes.remove(key);
+                local.put(key, new LocalWrite(kind, data, expireAt, group, standIn));
+            } else {
+                // 删除总是写回,不需要替身标记
+                local.remove(key);
+                deletes.put(key, new LocalWrite(kind, data, expireAt, group, false));
+            }
+            localActive = true;
+        }
+    }
+
+    /**
+     * key是否有待写回的本地值,或者之前的读取没有访问到被装饰的引擎.
+     * 此时此key的写入也要写入本地,保证写回的顺序,并以替身写入的方式写回.
+     */
+    private boolean pending(String key) {
+        if (!localActive) {
+            return false;
+        }
+        synchronized (local) {
+            return local.containsKey(key) || deletes.containsKey(key) || unknown.containsKey(key);
+        }
+    }
+
+    /**
+     * 记录读取时没有访问到被装饰引擎的key.
+     */
+    private void unknown(String... keys) {
+        long now = System.currentTimeMillis();
+        synchronized (local) {
+            for (String key : keys) {
+                if (findLocal(key) == null) {
+                    unknown.put(key, now);
+                }
+            }
+            localActive = true;
+        }
+    }
+
+    /**
+     * 从被装饰的引擎读到了key,之后的写入基于真实的值.
+     */
+    private void known(String... keys) {
+        if (!localActive) {
+            return;
+        }
+        synchronized (local) {
+            for (String key : keys) {
+                unknown.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 丢弃过期的读取失败记录,在持有local的锁时调用.
+     */
+    private void pruneUnknown() {
+        long expired = System.currentTimeMillis() - UNKNOWN_READ_TTL;
+        Iterator<Map.Entry<String, Long>> iterator = unknown.entrySet().iterator();
+        while (iterator.hasNext() && iterator.next().getValue() < expired) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 刷新本地值的过期时间,本地没有值时记录一次待写回的过期时间刷新.
+     */
+    private void touchLocal(String key, int seconds) {
+        synchronized (local) {
+            LocalWrite entry = local.get(key);
+            if (entry != null && entry.kind == Kind.VALUE) {
+                local.put(key, new LocalWrite(Kind.VALUE, entry.data, expireAt(seconds), entry.group, entry.standIn));
+            } else if ((entry == null && !deletes.containsKey(key)) || (entry != null && entry.kind == Kind.EXPIRE)) {
+                local.put(key, new LocalWrite(Kind.EXPIRE, null, expireAt(seconds), null, false));
+            }
+            localActive = true;
+        }
+    }
+
+    private static long expireAt(int seconds) {
+        return seconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds) : 0;
+    }
+
+    private byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    private Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    /**
+     * 本地保存的一次写入.
+     */
+    private static class LocalWrite {
+
+        private final Kind kind;
+        private final byte[] data;
+        // 0表示不过期
+        private final long expireAt;
+        private final String[] group;
+        // 基于空值的写入,写回时不覆盖被装饰引擎中已有的值
+        private final boolean standIn;
+
+        LocalWrite(Kind kind, byte[] data, long expireAt, String[] group, boolean standIn) {
+            this.kind = kind;
+            this.data = data;
+            this.expireAt = expireAt;
+            this.group = group;
+            this.standIn = standIn;
+        }
+
+        boolean isExpired() {
+            return expireAt != 0 && expireAt <= System.currentTimeMillis();
+        }
+
+        int remainingSeconds() {
+            long left = expireAt - System.currentTimeMillis();
+            return left <= 0 ? 0 : (int) ((left + 999) / 1000);
+        }
+
+        boolean inGroup(String name) {
+            if (group == null) {
+                return false;
+            }
+            for (String member : group) {
+                if (member.equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
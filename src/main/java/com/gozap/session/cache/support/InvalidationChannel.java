@@ -0,0 +1,251 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+
+import com.gozap.session.cache.CacheEngine;
+
+/**
+ * 通过redis的发布订阅在节点之间传递本地值的失效通知,供NearCacheEngine和TieredCacheEngine使用.
+ * 通知由后台线程以管道批量发布,格式为节点id之后是以换行分隔的key,节点忽略自己发出的通知.
+ * 订阅会一直占用连接池中的一个连接,连接断开后重新订阅,断开期间可能丢失通知,
+ * 所以每次订阅成功和订阅断开时都通知Listener清空全部的本地值.
+ *
+ * @version 1.00 2015-8-19
+ * @since 1.6
+ */
+final class InvalidationChannel {
+
+    private static final Log LOGGER = LogFactory.getLog(InvalidationChannel.class);
+
+    // 清空所有本地值的通知
+    private static final String CLEAR_ALL = "*";
+    private static final char SEPARATOR = '\n';
+    private static final int MAX_PUBLISH_BATCH = 512;
+    private static final long RECONNECT_DELAY = 1000L;
+
+    /**
+     * 收到其他节点的通知时的回调,在订阅线程中执行.
+     */
+    interface Listener {
+
+        void invalidate(String key);
+
+        void invalidateAll();
+    }
+
+    private final String name;
+    private final JedisPool jedisPool;
+    private final String channel;
+    private final Listener listener;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final BlockingQueue<String> invalidations = new LinkedBlockingQueue<String>();
+    private volatile boolean running = false;
+    private volatile JedisPubSub subscriber;
+    private Thread publishThread;
+    private Thread subscribeThread;
+
+    /**
+     * @param name 线程名称的前缀.
+     * @param jedisPool 发布和订阅使用的连接池.
+     * @param channel 频道.
+     * @param listener 收到通知时的回调.
+     */
+    InvalidationChannel(String name, JedisPool jedisPool, String channel, Listener listener) {
+        this.name = name;
+        this.jedisPool = jedisPool;
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    /**
+     * 查找发布订阅使用的连接池:ServletContext中的jedisPool,没有时使用被装饰的RedisCacheEngine的连接池.
+     * @return 连接池,都没有时返回null.
+     */
+    static JedisPool findJedisPool(ServletContext servletContext, CacheEngine cache) {
+        JedisPool jedisPool = null;
+        if (servletContext != null) {
+            jedisPool = (JedisPool) servletContext.getAttribute(RedisCacheEngine.JEDIS_POOL);
+        }
+        if (jedisPool == null && cache instanceof RedisCacheEngine) {
+            jedisPool = ((RedisCacheEngine) cache).jedisPool;
+        }
+        return jedisPool;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        publishThread = new Thread(new Runnable() {
+            public void run() {
+                publish();
+            }
+        }, name + "-publisher");
+        subscribeThread = new Thread(new Runnable() {
+            public void run() {
+                subscribe();
+            }
+        }, name + "-subscriber");
+        publishThread.setDaemon(true);
+        subscribeThread.setDaemon(true);
+        publishThread.start();
+        subscribeThread.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (publishThread != null) {
+            publishThread.interrupt();
+            publishThread = null;
+        }
+        JedisPubSub current = subscriber;
+        if (current != null && current.isSubscribed()) {
+            current.unsubscribe();
+        }
+        if (subscribeThread != null) {
+            subscribeThread.interrupt();
+            subscribeThread = null;
+        }
+    }
+
+    /**
+     * 通知其他节点删除这些key的本地值.
+     */
+    void invalidate(String... keys) {
+        if (!running || keys.length == 0) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        for (String key : keys) {
+            if (message.length() > 0) {
+                message.append(SEPARATOR);
+            }
+            message.append(key);
+        }
+        invalidations.offer(message.toString());
+    }
+
+    /**
+     * 通知其他节点清空全部的本地值.
+     */
+    void invalidateAll() {
+        if (running) {
+            invalidations.offer(CLEAR_ALL);
+        }
+    }
+
+    private void onMessage(String message) {
+        int index = message.indexOf(SEPARATOR);
+        if (index < 0 || message.substring(0, index).equals(nodeId)) {
+            return;
+        }
+        String keys = message.substring(index + 1);
+        if (CLEAR_ALL.equals(keys)) {
+            listener.invalidateAll();
+            return;
+        }
+        int from = 0;
+        while (from <= keys.length()) {
+            int to = keys.indexOf(SEPARATOR, from);
+            if (to < 0) {
+                to = keys.length();
+            }
+            listener.invalidate(keys.substring(from, to));
+            from = to + 1;
+        }
+    }
+
+    /**
+     * 将等待的失效通知批量以管道发布.
+     */
+    private void publish() {
+        List<String> batch = new ArrayList<String>();
+        while (running) {
+            try {
+                batch.add(invalidations.take());
+                invalidations.drainTo(batch, MAX_PUBLISH_BATCH - 1);
+                Jedis jedis = jedisPool.getResource();
+                try {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (String keys : batch) {
+                        pipeline.publish(channel, nodeId + SEPARATOR + keys);
+                    }
+                    pipeline.sync();
+                } finally {
+                    jedis.close();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Publish " + name + " invalidation failed, " + batch.size() + " messages lost.", e);
+                sleep();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 订阅失效通知,连接断开后重新订阅.
+     */
+    private void subscribe() {
+        while (running) {
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                JedisPubSub pubSub = new JedisPubSub() {
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        InvalidationChannel.this.onMessage(message);
+                    }
+
+                    @Override
+                    public void onSubscribe(String channel, int subscribedChannels) {
+                        listener.invalidateAll();
+                    }
+                };
+                subscriber = pubSub;
+                jedis.subscribe(pubSub, channel);
+            } catch (RuntimeException e) {
+                if (running) {
+                    LOGGER.warn(name + " subscription is broken, resubscribe later.", e);
+                    listener.invalidateAll();
+                    sleep();
+                }
+            } finally {
+                subscriber = null;
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(RECONNECT_DELAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
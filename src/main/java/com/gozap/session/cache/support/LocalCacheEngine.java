@@ -0,0 +1,257 @@
+package com.gozap.session.cache.support;
+
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.util.TimingWheel;
+
+/**
+ * 进程内的缓存实现,不需要redis,适合单节点部署,测试和基准测试.
+ * 值以序列化后的字节保存在分段加锁的ConcurrentHashMap中,读取时反序列化,
+ * 调用者拿到的总是副本,行为与redis引擎一致.计数器与redis一样以十进制字符串保存.
+ *
+ * 带过期时间的key登记在分层时间轮中,后台线程每个tick推进一次时间轮并删除到期的key,
+ * 不需要扫描全部的key.读取时也会检查过期时间,所以过期精度不受tick影响.
+ *
+ * 配置项:localTick(时间轮的tick毫秒数,默认100),localConcurrency(map的分段数,默认16),
+ * 以及RedisCacheEngine中的serializeStrategy.
+ * 序列化,组和会话同步见AbstractStoreCacheEngine.
+ *
+ * @version 1.00 2015-8-14
+ * @since 1.6
+ */
+public class LocalCacheEngine extends AbstractStoreCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(LocalCacheEngine.class);
+
+    /**
+     * 时间轮的tick配置,毫秒.
+     */
+    public static final String LOCAL_TICK = "localTick";
+    /**
+     * map的分段数配置.
+     */
+    public static final String LOCAL_CONCURRENCY = "localConcurrency";
+    private static final long DEFAULT_TICK = 100;
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int WHEEL_LEVELS = 5;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ConcurrentMap<String, Entry> entries;
+    private TimingWheel<String> wheel;
+    private volatile boolean running;
+    private Thread expirer;
+
+    /**
+     * @return 当前保存的key数量,包括已经过期但尚未删除的key.
+     */
+    public int size() {
+        return entries == null ? 0 : entries.size();
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        long tick = DEFAULT_TICK;
+        int concurrency = DEFAULT_CONCURRENCY;
+        initSerializeStrategy(prop);
+        if (prop != null) {
+            String temp = prop.getProperty(LOCAL_TICK);
+            if (temp != null && !temp.trim().isEmpty()) {
+                tick = Long.parseLong(temp.trim());
+            }
+            temp = prop.getProperty(LOCAL_CONCURRENCY);
+            if (temp != null && !temp.trim().isEmpty()) {
+                concurrency = Integer.parseInt(temp.trim());
+            }
+        }
+        entries = new ConcurrentHashMap<String, Entry>(1024, 0.75f, concurrency);
+        wheel = new TimingWheel<String>(tick, WHEEL_LEVELS, System.currentTimeMillis());
+        LOGGER.info("localCacheEngine tick: " + tick + "ms, concurrency: " + concurrency);
+    }
+
+    @Override
+    protected synchronized void doStart() {
+        if (running) {
+            return;
+        }
+        running = true;
+        expirer = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(wheel.getTickMillis());
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        expire(System.currentTimeMillis());
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Local cache expiry failed.", e);
+                    }
+                }
+            }
+        }, "local-cache-expiry");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    @Override
+    protected synchronized void doStop() {
+        LOGGER.info("localCacheEngine stop start");
+        running = false;
+        if (expirer != null) {
+            expirer.interrupt();
+            try {
+                expirer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            expirer = null;
+        }
+        clear();
+        LOGGER.info("localCacheEngine stop end");
+    }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        entries.clear();
+    }
+
+    @Override
+    protected byte[] read(byte[] key, long now) {
+        Entry entry = live(decode(key), now);
+        return entry == null ? null : entry.data;
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value, long expireAt) {
+        String name = decode(key);
+        TimingWheel.Timeout<String> timeout = expireAt > 0 ? wheel.schedule(name, expireAt) : null;
+        cancel(entries.put(name, new Entry(value, expireAt, timeout)));
+    }
+
+    @Override
+    protected boolean delete(byte[] key) {
+        Entry entry = entries.remove(decode(key));
+        cancel(entry);
+        return entry != null;
+    }
+
+    @Override
+    protected boolean retime(byte[] key, long expireAt, long now) {
+        String name = decode(key);
+        while (true) {
+            Entry entry = live(name, now);
+            if (entry == null) {
+                return false;
+            }
+            TimingWheel.Timeout<String> timeout = wheel.schedule(name, expireAt);
+            if (entries.replace(name, entry, new Entry(entry.data, expireAt, timeout))) {
+                cancel(entry);
+                return true;
+            }
+            wheel.cancel(timeout);
+        }
+    }
+
+    /**
+     * 以CAS原子的加减计数器,保留原有的过期时间.
+     */
+    @Override
+    protected long add(byte[] key, long delta, long now) {
+        String name = decode(key);
+        while (true) {
+            Entry entry = live(name, now);
+            if (entry == null) {
+                if (entries.putIfAbsent(name, new Entry(encode(delta), 0, null)) == null) {
+                    return delta;
+                }
+                continue;
+            }
+            long current = parse(name, entry.data);
+            long value = current + delta;
+            if (((current ^ value) & (delta ^ value)) < 0) {
+                throw new IllegalStateException("Increment or decrement would overflow.");
+            }
+            if (entries.replace(name, entry, new Entry(encode(value), entry.expireAt, entry.timeout))) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * 推进时间轮并删除到期的key.定时项只删除仍然登记着它的值,
+     * 已经被覆盖或者重新设置过期时间的值不受影响.
+     */
+    private void expire(long now) {
+        for (TimingWheel.Timeout<String> timeout : wheel.advance(now)) {
+            String key = timeout.getPayload();
+            Entry entry = entries.get(key);
+            while (entry != null && entry.timeout == timeout && !entries.remove(key, entry)) {
+                entry = entries.get(key);
+            }
+        }
+    }
+
+    /**
+     * 取得未过期的值,遇到已经过期的值时顺便删除.
+     */
+    private Entry live(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expireAt > 0 && entry.expireAt <= now) {
+            if (entries.remove(key, entry)) {
+                cancel(entry);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    private void cancel(Entry entry) {
+        if (entry != null && entry.timeout != null) {
+            wheel.cancel(entry.timeout);
+        }
+    }
+
+    private static String decode(byte[] key) {
+        return new String(key, UTF8);
+    }
+
+    private static byte[] encode(long value) {
+        return String.valueOf(value).getBytes(ASCII);
+    }
+
+    private static long parse(String key, byte[] data) {
+        try {
+            return Long.parseLong(new String(data, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value of " + key + " is not an integer.", e);
+        }
+    }
+
+    /**
+     * 保存的值.计数器的加减会生成新的Entry但沿用原来的定时项.
+     */
+    private static final class Entry {
+
+        private final byte[] data;
+        private final long expireAt;
+        private final TimingWheel.Timeout<String> timeout;
+
+        Entry(byte[] data, long expireAt, TimingWheel.Timeout<String> timeout) {
+            this.data = data;
+            this.expireAt = expireAt;
+            this.timeout = timeout;
+        }
+    }
+}
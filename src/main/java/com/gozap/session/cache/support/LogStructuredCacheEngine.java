@@ -0,0 +1,206 @@
+package com.gozap.session.cache.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.support.logstore.LogStore;
+
+/**
+ * 把序列化后的值以日志的方式追加到本地磁盘段文件中的缓存实现,用于单机部署和写多读少的会话.
+ * 每次写入,删除和修改过期时间都是一次顺序追加,内存中只保存key到记录位置的索引,
+ * 后台线程定期回收过期的key并在垃圾达到比例时压缩旧的段.存储结构见LogStore.
+ * 组的登记只保存在堆上,重启后不再存在.
+ *
+ * 配置项:logDirectory(段文件目录,默认为java.io.tmpdir下的session-log),
+ * logSegmentSize(单个段的大小,可以使用k,m,g后缀,默认64m),
+ * logCompactInterval(检查压缩的间隔秒数,默认60),
+ * logCompactThreshold(触发压缩的垃圾百分比,默认50,垃圾还需要至少达到四分之一个段),
+ * logSyncInterval(写回磁盘的间隔毫秒数,默认1000,0表示每次写入后写回),
+ * 以及RedisCacheEngine中的serializeStrategy.
+ *
+ * @version 1.00 2015-8-18
+ * @since 1.6
+ */
+public class LogStructuredCacheEngine extends AbstractStoreCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(LogStructuredCacheEngine.class);
+
+    /**
+     * 段文件目录配置.
+     */
+    public static final String LOG_DIRECTORY = "logDirectory";
+    /**
+     * 单个段的大小配置.
+     */
+    public static final String LOG_SEGMENT_SIZE = "logSegmentSize";
+    /**
+     * 检查压缩的间隔配置,秒.
+     */
+    public static final String LOG_COMPACT_INTERVAL = "logCompactInterval";
+    /**
+     * 触发压缩的垃圾百分比配置.
+     */
+    public static final String LOG_COMPACT_THRESHOLD = "logCompactThreshold";
+    /**
+     * 写回磁盘的间隔配置,毫秒.
+     */
+    public static final String LOG_SYNC_INTERVAL = "logSyncInterval";
+    private static final String DEFAULT_DIRECTORY_NAME = "session-log";
+    private static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    private static final int DEFAULT_COMPACT_INTERVAL = 60;
+    private static final int DEFAULT_COMPACT_THRESHOLD = 50;
+    private static final int DEFAULT_SYNC_INTERVAL = 1000;
+
+    private LogStore store;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int compactInterval = DEFAULT_COMPACT_INTERVAL;
+    private int compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    private ScheduledExecutorService compactor;
+
+    public LogStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        String path = null;
+        initSerializeStrategy(prop);
+        if (prop != null) {
+            String temp = prop.getProperty(LOG_DIRECTORY);
+            if (temp != null && !temp.trim().isEmpty()) {
+                path = temp.trim();
+            }
+            temp = prop.getProperty(LOG_SEGMENT_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                segmentSize = parseBytes(temp);
+            }
+            temp = prop.getProperty(LOG_COMPACT_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                compactInterval = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(LOG_COMPACT_THRESHOLD);
+            if (temp != null && !temp.trim().isEmpty()) {
+                compactThreshold = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(LOG_SYNC_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                syncInterval = Integer.parseInt(temp.trim());
+            }
+        }
+        if (compactThreshold <= 0 || compactThreshold >= 100) {
+            throw new IllegalArgumentException("Invalid compact threshold " + compactThreshold + ".");
+        }
+        File directory = path == null ? new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME)
+                : new File(path);
+        long start = System.currentTimeMillis();
+        try {
+            store = new LogStore(directory, segmentSize, syncInterval <= 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not open " + directory, e);
+        }
+        LOGGER.info("logStructuredCacheEngine loaded " + store.size() + " keys from " + store.getSegmentCount()
+                + " segments (" + store.getDiskSize() + " bytes) in " + directory + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    protected synchronized void doStart() {
+        if ((compactInterval <= 0 && syncInterval <= 0) || compactor != null) {
+            return;
+        }
+        compactor = Executors.newScheduledThreadPool(syncInterval > 0 ? 2 : 1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "log-cache-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (compactInterval > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        store.maintain(System.currentTimeMillis(), compactThreshold / 100.0, segmentSize / 4);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Log cache compaction failed.", e);
+                    }
+                }
+            }, compactInterval, compactInterval, TimeUnit.SECONDS);
+        }
+        if (syncInterval > 0) {
+            // 单独的线程,压缩期间也按时写回
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        store.force();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Log cache force failed.", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 停止时写回磁盘并关闭段文件,保存的值留给下一次启动.
+     */
+    @Override
+    protected synchronized void doStop() {
+        LOGGER.info("logStructuredCacheEngine stop start");
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOGGER.error("Can not close " + store.getDirectory(), e);
+        }
+        LOGGER.info("logStructuredCacheEngine stop end");
+    }
+
+    @Override
+    protected byte[] read(byte[] key, long now) {
+        return store.get(key, now);
+    }
+
+    @Override
+    protected boolean exists(byte[] key, long now) {
+        return store.contains(key, now);
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value, long expireAt) {
+        store.put(key, value, expireAt);
+    }
+
+    @Override
+    protected boolean delete(byte[] key) {
+        return store.remove(key);
+    }
+
+    @Override
+    protected boolean retime(byte[] key, long expireAt, long now) {
+        return store.expire(key, expireAt, now);
+    }
+
+    @Override
+    protected long add(byte[] key, long delta, long now) {
+        return store.add(key, delta, now);
+    }
+}
@@ -0,0 +1,205 @@
+package com.gozap.session.cache.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.support.mapped.MappedFileStore;
+
+/**
+ * 把序列化后的值保存在内存映射文件中的进程内缓存实现,用于单机部署.
+ * 重启后重新映射同一个文件,会话不会丢失,也不需要redis.存储结构见MappedFileStore.
+ * 组的登记只保存在堆上,重启后不再存在.
+ *
+ * 配置项:mappedFile(文件路径,默认为java.io.tmpdir下的session-cache.map),
+ * mappedSlots(索引槽数,默认1048576,最多存活其中的3/4),
+ * mappedDataSize(数据区大小,可以使用k,m,g后缀,默认256m,文件总大小不能超过2G),
+ * mappedSweepInterval(回收过期值的间隔秒数,默认60),
+ * mappedForceInterval(写回磁盘的间隔秒数,默认0只在停止时写回),
+ * 以及RedisCacheEngine中的serializeStrategy.已有文件的槽数和数据区大小以文件为准.
+ *
+ * @version 1.00 2015-8-16
+ * @since 1.6
+ */
+public class MappedFileCacheEngine extends AbstractStoreCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(MappedFileCacheEngine.class);
+
+    /**
+     * 文件路径配置.
+     */
+    public static final String MAPPED_FILE = "mappedFile";
+    /**
+     * 索引槽数配置.
+     */
+    public static final String MAPPED_SLOTS = "mappedSlots";
+    /**
+     * 数据区大小配置.
+     */
+    public static final String MAPPED_DATA_SIZE = "mappedDataSize";
+    /**
+     * 回收过期值的间隔配置,秒.
+     */
+    public static final String MAPPED_SWEEP_INTERVAL = "mappedSweepInterval";
+    /**
+     * 写回磁盘的间隔配置,秒.
+     */
+    public static final String MAPPED_FORCE_INTERVAL = "mappedForceInterval";
+    private static final String DEFAULT_FILE_NAME = "session-cache.map";
+    private static final int DEFAULT_SLOTS = 1 << 20;
+    private static final long DEFAULT_DATA_SIZE = 256L << 20;
+    private static final int DEFAULT_SWEEP_INTERVAL = 60;
+
+    private MappedFileStore store;
+    private int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+    private int forceInterval = 0;
+    private ScheduledExecutorService sweeper;
+
+    public MappedFileStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        String path = null;
+        int slots = DEFAULT_SLOTS;
+        long dataSize = DEFAULT_DATA_SIZE;
+        initSerializeStrategy(prop);
+        if (prop != null) {
+            String temp = prop.getProperty(MAPPED_FILE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                path = temp.trim();
+            }
+            temp = prop.getProperty(MAPPED_SLOTS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                slots = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(MAPPED_DATA_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                dataSize = parseBytes(temp);
+            }
+            temp = prop.getProperty(MAPPED_SWEEP_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                sweepInterval = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(MAPPED_FORCE_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                forceInterval = Integer.parseInt(temp.trim());
+            }
+        }
+        File file = path == null ? new File(System.getProperty("java.io.tmpdir"), DEFAULT_FILE_NAME) : new File(path);
+        if (dataSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Data size " + dataSize + " is too large.");
+        }
+        long start = System.currentTimeMillis();
+        try {
+            store = new MappedFileStore(file, slots, (int) dataSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not map " + file, e);
+        }
+        if (store.getSlotCount() < slots || store.getDataSize() != dataSize) {
+            LOGGER.warn("mappedFileCacheEngine " + file + " exists with " + store.getSlotCount() + " slots and "
+                    + store.getDataSize() + " bytes of data, configured values are ignored.");
+        }
+        LOGGER.info("mappedFileCacheEngine mapped " + file + " with " + store.size() + " keys in "
+                + (System.currentTimeMillis() - start) + "ms, slots: " + store.getSlotCount()
+                + ", dataSize: " + store.getDataSize() + ", appended: " + store.getAppended());
+    }
+
+    @Override
+    protected synchronized void doStart() {
+        if ((sweepInterval <= 0 && forceInterval <= 0) || sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mapped-cache-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (sweepInterval > 0) {
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        int reclaimed = store.reclaim(System.currentTimeMillis());
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("mappedFileCacheEngine reclaimed " + reclaimed + " expired values, appended: "
+                                    + store.getAppended() + ", compactions: " + store.getCompactions());
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Mapped cache sweep failed.", e);
+                    }
+                }
+            }, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+        }
+        if (forceInterval > 0) {
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        store.force();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Mapped cache force failed.", e);
+                    }
+                }
+            }, forceInterval, forceInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 停止时写回磁盘并关闭文件,保存的值留给下一次启动.
+     */
+    @Override
+    protected synchronized void doStop() {
+        LOGGER.info("mappedFileCacheEngine stop start");
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOGGER.error("Can not close " + store.getFile(), e);
+        }
+        LOGGER.info("mappedFileCacheEngine stop end");
+    }
+
+    @Override
+    protected byte[] read(byte[] key, long now) {
+        return store.get(key, now);
+    }
+
+    @Override
+    protected boolean exists(byte[] key, long now) {
+        return store.contains(key, now);
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value, long expireAt) {
+        store.put(key, value, expireAt);
+    }
+
+    @Override
+    protected boolean delete(byte[] key) {
+        return store.remove(key);
+    }
+
+    @Override
+    protected boolean retime(byte[] key, long expireAt, long now) {
+        return store.expire(key, expireAt, now);
+    }
+
+    @Override
+    protected long add(byte[] key, long delta, long now) {
+        return store.add(key, delta, now);
+    }
+}
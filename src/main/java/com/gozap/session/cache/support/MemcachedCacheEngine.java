@@ -0,0 +1,434 @@
+package com.gozap.session.cache.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.AbstractCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.cache.support.memcached.MemcachedClient;
+import com.gozap.session.cache.support.memcached.MemcachedFuture;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+
+/**
+ * 使用memcached二进制协议的缓存实现.所有线程共享少量的连接,并发的请求由连接的写线程合并写出.
+ * 批量读取和写入使用静默的GETQ,SETQ等请求,最后跟一个NOOP,一组请求只需要一次往返.
+ * increase和decrease使用memcached原生的INCREMENT和DECREMENT,负的幅度发送相反的命令.
+ * 与memcached一样计数器不会小于0,不存在的key增加时以增量作为初始值,减少时以0作为初始值.
+ * 组以APPEND到groupKeyPrefix加组名的值中的key列表保存.
+ *
+ * 配置项:memcachedHost,memcachedPort(默认11211),memcachedConnections(连接数,默认2),
+ * memcachedTimeout(连接和等待回复的超时毫秒数,默认2000),memcachedBufferSize(读写缓冲区字节数,默认64K),
+ * 以及RedisCacheEngine中的serializeStrategy和groupKeyPrefix.
+ * 也可以在ServletContext中以memcachedClient放入构造好的MemcachedClient.
+ *
+ * @version 1.00 2015-8-17
+ * @since 1.6
+ */
+public class MemcachedCacheEngine extends AbstractCacheEngine implements SessionCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(MemcachedCacheEngine.class);
+
+    public static final String MEMCACHED_CLIENT = "memcachedClient";
+    public static final String MEMCACHED_HOST = "memcachedHost";
+    public static final String MEMCACHED_PORT = "memcachedPort";
+    public static final String MEMCACHED_CONNECTIONS = "memcachedConnections";
+    public static final String MEMCACHED_TIMEOUT = "memcachedTimeout";
+    public static final String MEMCACHED_BUFFER_SIZE = "memcachedBufferSize";
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 11211;
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int DEFAULT_TIMEOUT = 2000;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final String DEFAULT_GROUP_KEY_PREFIX = "group-";
+    private static final int MAX_KEY_LENGTH = 250;
+    // 超过30天的过期时间memcached视为unix时间戳
+    private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+    private static final byte GROUP_SEPARATOR = '\n';
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private MemcachedClient client;
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+    private String groupKeyPrefix = DEFAULT_GROUP_KEY_PREFIX;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    public void setClient(MemcachedClient client) {
+        this.client = client;
+    }
+
+    public SerializeStrategy getSerializeStrategy() {
+        return serializeStrategy;
+    }
+
+    public void setSerializeStrategy(SerializeStrategy serializeStrategy) {
+        this.serializeStrategy = serializeStrategy;
+    }
+
+    @Override
+    protected void doInit(Properties properties, ServletContext servletContext) {
+        LOGGER.info("memcachedCacheEngine init start");
+        if (servletContext != null && servletContext.getAttribute(MEMCACHED_CLIENT) != null) {
+            client = (MemcachedClient) servletContext.getAttribute(MEMCACHED_CLIENT);
+        }
+        if (properties == null) {
+            properties = new Properties();
+        }
+        serializeStrategy = SerializeUtil.load(serializeStrategy, properties);
+        String temp = properties.getProperty(RedisCacheEngine.GROUP_KEY_PREFIX);
+        if (temp != null && !temp.trim().isEmpty()) {
+            groupKeyPrefix = temp.trim();
+        }
+        if (client == null) {
+            String host = properties.getProperty(MEMCACHED_HOST);
+            if (host == null || host.trim().isEmpty()) {
+                host = DEFAULT_HOST;
+            }
+            int port = intProperty(properties, MEMCACHED_PORT, DEFAULT_PORT);
+            int connections = intProperty(properties, MEMCACHED_CONNECTIONS, DEFAULT_CONNECTIONS);
+            client = new MemcachedClient(host.trim(), port, connections,
+                    intProperty(properties, MEMCACHED_TIMEOUT, DEFAULT_TIMEOUT),
+                    intProperty(properties, MEMCACHED_BUFFER_SIZE, DEFAULT_BUFFER_SIZE));
+            LOGGER.info("memcachedCacheEngine connect to " + host + ":" + port + " with " + connections + " connections.");
+        }
+        timeout = client.getTimeout();
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+        LOGGER.info("memcachedCacheEngine stop start");
+        client.close();
+        LOGGER.info("memcachedCacheEngine stop end");
+    }
+
+    public boolean containsKey(String key) {
+        checkInit();
+        checkKey(key);
+        return execute(key, new MemcachedFuture(MemcachedFuture.GET, encode(key), null, null))
+                .check(MemcachedFuture.STATUS_KEY_NOT_FOUND).getStatus() == MemcachedFuture.STATUS_OK;
+    }
+
+    public void put(String key, Object value) {
+        checkInit();
+        checkKey(key);
+        execute(key, store(MemcachedFuture.SET, key, serialize(value), 0)).check();
+    }
+
+    public void put(String key, Object value, int seconds) {
+        checkInit();
+        checkKey(key);
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid expire time " + seconds + " for " + key);
+        }
+        execute(key, store(MemcachedFuture.SET, key, serialize(value), seconds)).check();
+    }
+
+    /**
+     * 使用TOUCH修改过期时间,与redis的EXPIRE相同,seconds小于等于0时删除key.
+     */
+    public boolean expire(String key, int seconds) {
+        checkInit();
+        checkKey(key);
+        MemcachedFuture request;
+        if (seconds <= 0) {
+            request = new MemcachedFuture(MemcachedFuture.DELETE, encode(key), null, null);
+        } else {
+            request = new MemcachedFuture(MemcachedFuture.TOUCH, encode(key), touch(seconds), null);
+        }
+        return execute(key, request).check(MemcachedFuture.STATUS_KEY_NOT_FOUND).getStatus()
+                == MemcachedFuture.STATUS_OK;
+    }
+
+    /**
+     * 写入值的同时把key追加到每个组的key列表中,所有请求一起写出.
+     */
+    public void put(String key, Object value, String[] group) {
+        checkInit();
+        checkKey(key);
+        int groupCount = group == null ? 0 : group.length;
+        for (int i = 0; i < groupCount; i++) {
+            checkKey(groupKey(group[i]));
+        }
+        byte[] binaryKey = encode(key);
+        byte[] member = new byte[binaryKey.length + 1];
+        System.arraycopy(binaryKey, 0, member, 0, binaryKey.length);
+        member[binaryKey.length] = GROUP_SEPARATOR;
+        MemcachedFuture[] requests = new MemcachedFuture[2 + groupCount * 2];
+        requests[0] = store(MemcachedFuture.SETQ, key, serialize(value), 0);
+        for (int i = 0; i < groupCount; i++) {
+            byte[] groupKey = encode(groupKey(group[i]));
+            requests[1 + i * 2] = new MemcachedFuture(MemcachedFuture.ADDQ, groupKey, expiration(0), null);
+            requests[2 + i * 2] = new MemcachedFuture(MemcachedFuture.APPENDQ, groupKey, null, member);
+        }
+        requests[requests.length - 1] = noop();
+        await(key, requests);
+        requests[0].check();
+        for (int i = 0; i < groupCount; i++) {
+            requests[1 + i * 2].check(MemcachedFuture.STATUS_KEY_EXISTS);
+            requests[2 + i * 2].check();
+        }
+    }
+
+    public void del(String key) {
+        checkInit();
+        checkKey(key);
+        execute(key, new MemcachedFuture(MemcachedFuture.DELETE, encode(key), null, null))
+                .check(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+    }
+
+    /**
+     * 以DELETEQ一次删除多个key,只有一次往返.
+     */
+    public void del(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        for (String key : keys) {
+            checkKey(key);
+        }
+        delete(keys[0], keys);
+    }
+
+    public void remove(String key) {
+        del(key);
+    }
+
+    public Object get(String key) {
+        checkInit();
+        checkKey(key);
+        MemcachedFuture reply = execute(key, new MemcachedFuture(MemcachedFuture.GET, encode(key), null, null))
+                .check(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+        return reply.getStatus() == MemcachedFuture.STATUS_OK ? deserialize(reply.getValue()) : null;
+    }
+
+    /**
+     * 以GETQ一次读取多个key,未命中的key服务器不回复,只有一次往返.
+     */
+    public Map<String, Object> get(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        MemcachedFuture[] requests = new MemcachedFuture[keys.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            checkKey(keys[i]);
+            requests[i] = new MemcachedFuture(MemcachedFuture.GETQ, encode(keys[i]), null, null);
+        }
+        requests[keys.length] = noop();
+        await(keys[0], requests);
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (requests[i].check(MemcachedFuture.STATUS_KEY_NOT_FOUND).getStatus() == MemcachedFuture.STATUS_OK) {
+                values.put(keys[i], deserialize(requests[i].getValue()));
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    public long increase(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return add(key, magnitude);
+    }
+
+    public long decrease(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        if (magnitude == Long.MIN_VALUE) {
+            throw new IllegalStateException("Increment or decrement would overflow.");
+        }
+        return add(key, -magnitude);
+    }
+
+    /**
+     * 读取组的key列表,以DELETEQ删除其中的key和列表本身.
+     */
+    public void flushGroup(String group) {
+        checkInit();
+        String groupKey = groupKey(group);
+        checkKey(groupKey);
+        MemcachedFuture reply = execute(groupKey, new MemcachedFuture(MemcachedFuture.GET, encode(groupKey), null, null))
+                .check(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+        Set<String> keys = new LinkedHashSet<String>();
+        if (reply.getStatus() == MemcachedFuture.STATUS_OK && reply.getValue() != null) {
+            byte[] members = reply.getValue();
+            int start = 0;
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == GROUP_SEPARATOR) {
+                    if (i > start) {
+                        keys.add(new String(members, start, i - start, UTF8));
+                    }
+                    start = i + 1;
+                }
+            }
+        }
+        keys.add(groupKey);
+        delete(groupKey, keys.toArray(new String[keys.size()]));
+    }
+
+    /**
+     * 先写属性再写头信息,两个请求和NOOP一起写出.属性为null时以TOUCH刷新属性的过期时间.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        checkInit();
+        checkKey(headerKey);
+        checkKey(attributeKey);
+        int ttl = Math.max(seconds, 0);
+        MemcachedFuture attributeRequest = null;
+        if (attributes != null) {
+            attributeRequest = store(MemcachedFuture.SETQ, attributeKey, serialize(attributes), ttl);
+        } else if (ttl > 0) {
+            attributeRequest = new MemcachedFuture(MemcachedFuture.TOUCH, encode(attributeKey), touch(ttl), null);
+        }
+        MemcachedFuture headerRequest = store(MemcachedFuture.SETQ, headerKey, serialize(header), ttl);
+        if (attributeRequest == null) {
+            await(headerKey, headerRequest, noop());
+        } else {
+            await(headerKey, attributeRequest, headerRequest, noop());
+            attributeRequest.check(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+        }
+        headerRequest.check();
+    }
+
+    /**
+     * 与redis的INCRBY一样接受有符号的增量,负数以DECREMENT发送.
+     * memcached的增量是无符号的,Long.MIN_VALUE无法取反.
+     */
+    private long add(String key, long delta) {
+        if (delta >= 0) {
+            return counter(key, MemcachedFuture.INCREMENT, delta, delta);
+        }
+        if (delta == Long.MIN_VALUE) {
+            throw new IllegalStateException("Increment or decrement would overflow.");
+        }
+        return counter(key, MemcachedFuture.DECREMENT, -delta, 0);
+    }
+
+    private long counter(String key, int opcode, long delta, long initial) {
+        ByteBuffer extras = ByteBuffer.allocate(20);
+        extras.putLong(delta);
+        extras.putLong(initial);
+        extras.putInt(0);
+        MemcachedFuture reply = execute(key, new MemcachedFuture(opcode, encode(key), extras.array(), null)).check();
+        return ByteBuffer.wrap(reply.getValue()).getLong();
+    }
+
+    private void delete(String routeKey, String[] keys) {
+        MemcachedFuture[] requests = new MemcachedFuture[keys.length + 1];
+        for (int i = 0; i < keys.length; i++) {
+            requests[i] = new MemcachedFuture(MemcachedFuture.DELETEQ, encode(keys[i]), null, null);
+        }
+        requests[keys.length] = noop();
+        await(routeKey, requests);
+        for (int i = 0; i < keys.length; i++) {
+            requests[i].check(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+        }
+    }
+
+    private MemcachedFuture store(int opcode, String key, byte[] value, int seconds) {
+        return new MemcachedFuture(opcode, encode(key), expiration(seconds), value);
+    }
+
+    private MemcachedFuture execute(String routeKey, MemcachedFuture request) {
+        return client.execute(routeKey, request);
+    }
+
+    /**
+     * 在同一个连接上写出一组请求,等待最后一个(非静默的)请求的回复,
+     * 此时之前的请求都已经结束.
+     */
+    private void await(String routeKey, MemcachedFuture... requests) {
+        client.send(routeKey, requests);
+        requests[requests.length - 1].getReply(timeout);
+        for (MemcachedFuture request : requests) {
+            request.getReply(timeout);
+        }
+    }
+
+    private static MemcachedFuture noop() {
+        return new MemcachedFuture(MemcachedFuture.NOOP, null, null, null);
+    }
+
+    /**
+     * 存储请求的附加字段:4字节flags和4字节过期时间.
+     */
+    private static byte[] expiration(int seconds) {
+        ByteBuffer extras = ByteBuffer.allocate(8);
+        extras.putInt(0);
+        extras.putInt(exptime(seconds));
+        return extras.array();
+    }
+
+    /**
+     * TOUCH请求的附加字段:4字节过期时间.
+     */
+    private static byte[] touch(int seconds) {
+        ByteBuffer extras = ByteBuffer.allocate(4);
+        extras.putInt(exptime(seconds));
+        return extras.array();
+    }
+
+    private static int exptime(int seconds) {
+        if (seconds > MAX_RELATIVE_EXPIRATION) {
+            return (int) (System.currentTimeMillis() / 1000L + seconds);
+        }
+        return seconds;
+    }
+
+    private byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    private Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    private String groupKey(String group) {
+        checkKey(group);
+        return groupKeyPrefix + group;
+    }
+
+    private void checkInit() {
+        if (!this.isInitialized()) {
+            throw new IllegalStateException("This client has not properly initialized.");
+        }
+    }
+
+    private void checkKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Cache key is null or not a length of 0.");
+        }
+        if (encode(key).length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Cache key is longer than " + MAX_KEY_LENGTH + " bytes.");
+        }
+    }
+
+    private static byte[] encode(String value) {
+        return value.getBytes(UTF8);
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        String temp = properties.getProperty(name);
+        if (temp == null || temp.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(temp.trim());
+    }
+}
@@ -0,0 +1,454 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.JedisPool;
+
+import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.FilterCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.cache.TtlCacheEngine;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+import com.gozap.session.util.StripedLruMap;
+
+/**
+ * 近端缓存.最近读写过的值以序列化后的形式保存在本地按key分段的LRU表中(见StripedLruMap),
+ * 命中时不需要访问远端,不同段上的读取互不阻塞.每次命中都会反序列化出新的对象,
+ * 调用方之间不会共享可变的对象.
+ *
+ * 本节点的写入同时更新本地的值,并通过redis的发布订阅通知其他节点删除各自的本地值.
+ * 通知是异步批量发出的,其他节点在通知到达之前可能读到旧值,本地值最多保存nearCacheTtl秒,
+ * 也不会超过远端的过期时间:写入时按写入的过期时间,从远端读到的值在被装饰的引擎实现了
+ * TtlCacheEngine时按同时读到的剩余过期时间,否则无法得知,只按nearCacheTtl.
+ * 发布订阅使用ServletContext中的jedisPool,没有时使用被装饰的RedisCacheEngine的连接池,
+ * 都没有时只在本地缓存,只适用于单节点.通知的收发见InvalidationChannel.
+ *
+ * 配置项:nearCacheMaxSize(最多保存的值数量,默认10000),nearCacheTtl(秒,默认60),
+ * nearCacheChannel(通知的频道,默认session-near-cache),serializeStrategy(本地值的序列化方式).
+ * 属性不能以哈希保存,使用此引擎时attrHashEnable会被忽略.
+ *
+ * @version 1.00 2015-8-12
+ * @since 1.6
+ */
+public class NearCacheEngine extends FilterCacheEngine implements SessionCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(NearCacheEngine.class);
+
+    public static final String NEAR_CACHE_MAX_SIZE = "nearCacheMaxSize";
+    public static final String NEAR_CACHE_TTL = "nearCacheTtl";
+    public static final String NEAR_CACHE_CHANNEL = "nearCacheChannel";
+    private static final int DEFAULT_MAX_SIZE = 10000;
+    private static final int DEFAULT_TTL = 60;
+    private static final String DEFAULT_CHANNEL = "session-near-cache";
+    private static final int STRIPES = 16;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long ttl = TimeUnit.SECONDS.toMillis(DEFAULT_TTL);
+    private String channel = DEFAULT_CHANNEL;
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+    private StripedLruMap<String, CachedValue> entries;
+    // 与entries的段对应,段内本地值或者失效通知的每次变化都会增加,读取远端期间有变化时不缓存读到的值
+    private AtomicLongArray generations;
+    private JedisPool jedisPool;
+    private InvalidationChannel invalidation;
+
+    public NearCacheEngine() {
+    }
+
+    public NearCacheEngine(CacheEngine cache) {
+        super(cache);
+    }
+
+    public void setJedisPool(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        super.doInit(prop, servletContext);
+        if (prop != null) {
+            String temp = prop.getProperty(NEAR_CACHE_MAX_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                maxSize = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(NEAR_CACHE_TTL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                ttl = TimeUnit.SECONDS.toMillis(Integer.parseInt(temp.trim()));
+            }
+            temp = prop.getProperty(NEAR_CACHE_CHANNEL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                channel = temp.trim();
+            }
+            serializeStrategy = SerializeUtil.load(serializeStrategy, prop);
+        }
+        entries = new StripedLruMap<String, CachedValue>(maxSize, STRIPES);
+        generations = new AtomicLongArray(entries.getStripes());
+        if (jedisPool == null) {
+            jedisPool = InvalidationChannel.findJedisPool(servletContext, cache);
+        }
+        if (jedisPool == null) {
+            LOGGER.warn("No jedis pool for near cache invalidation, it is only safe on a single node.");
+        } else {
+            invalidation = new InvalidationChannel("near-cache", jedisPool, channel,
+                    new InvalidationChannel.Listener() {
+                        public void invalidate(String key) {
+                            removeLocal(key);
+                        }
+
+                        public void invalidateAll() {
+                            clearLocal();
+                        }
+                    });
+        }
+        LOGGER.info("Near cache (maxSize=" + maxSize + ", ttl=" + ttl + "ms, channel=" + channel
+                + ", node=" + (invalidation == null ? null : invalidation.getNodeId()) + ")");
+    }
+
+    @Override
+    protected void doStart() {
+        super.doStart();
+        if (invalidation != null) {
+            invalidation.start();
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        if (invalidation != null) {
+            invalidation.stop();
+        }
+        clearLocal();
+        super.doStop();
+    }
+
+    /**
+     * @return 本地命中的次数.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return 本地没有命中的次数.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        if (readLocal(key) != null) {
+            return true;
+        }
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public Object get(String key) {
+        byte[] data = readLocal(key);
+        if (data != null) {
+            hits.incrementAndGet();
+            return deserialize(data);
+        }
+        misses.incrementAndGet();
+        long start = generations.get(entries.stripe(key));
+        long[] remoteTtls = new long[]{TtlCacheEngine.NO_TTL};
+        Object value;
+        if (cache instanceof TtlCacheEngine) {
+            value = ((TtlCacheEngine) cache).getWithTtl(new String[]{key}, remoteTtls).get(key);
+        } else {
+            value = cache.get(key);
+        }
+        if (value != null) {
+            cacheLoaded(key, value, start, remoteTtls[0]);
+        }
+        return value;
+    }
+
+    /**
+     * 本地没有的key一次批量从远端读取.
+     */
+    @Override
+    public Map<String, Object> get(String[] keys) {
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        List<String> missed = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            byte[] data = readLocal(key);
+            if (data == null) {
+                missed.add(key);
+            } else {
+                values.put(key, deserialize(data));
+            }
+        }
+        hits.addAndGet(keys.length - missed.size());
+        if (!missed.isEmpty()) {
+            misses.addAndGet(missed.size());
+            String[] missedKeys = missed.toArray(new String[missed.size()]);
+            long[] starts = new long[missedKeys.length];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = generations.get(entries.stripe(missedKeys[i]));
+            }
+            long[] remoteTtls = new long[missedKeys.length];
+            Map<String, Object> loaded;
+            if (cache instanceof TtlCacheEngine) {
+                loaded = ((TtlCacheEngine) cache).getWithTtl(missedKeys, remoteTtls);
+            } else {
+                loaded = cache.get(missedKeys);
+                Arrays.fill(remoteTtls, TtlCacheEngine.NO_TTL);
+            }
+            for (int i = 0; i < starts.length; i++) {
+                Object value = loaded.get(missedKeys[i]);
+                if (value != null) {
+                    cacheLoaded(missedKeys[i], value, starts[i], remoteTtls[i]);
+                }
+            }
+            for (Map.Entry<String, Object> value : loaded.entrySet()) {
+                values.put(value.getKey(), value.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public void put(String key, Object value) {
+        cache.put(key, value);
+        writeLocal(key, value, 0);
+        invalidate(key);
+    }
+
+    @Override
+    public void put(String key, Object value, int seconds) {
+        cache.put(key, value, seconds);
+        writeLocal(key, value, seconds);
+        invalidate(key);
+    }
+
+    @Override
+    public void put(String key, Object value, String[] group) {
+        cache.put(key, value, group);
+        writeLocal(key, value, 0);
+        invalidate(key);
+    }
+
+    /**
+     * 远端的过期时间变化后,本地值的过期时间同样不超过它.
+     */
+    @Override
+    public boolean expire(String key, int seconds) {
+        boolean result = cache.expire(key, seconds);
+        if (!result || seconds <= 0) {
+            removeLocal(key);
+        } else {
+            retimeLocal(key, seconds);
+        }
+        invalidate(key);
+        return result;
+    }
+
+    @Override
+    public void del(String key) {
+        removeLocal(key);
+        cache.del(key);
+        invalidate(key);
+    }
+
+    @Override
+    public void del(String[] keys) {
+        for (String key : keys) {
+            removeLocal(key);
+        }
+        cache.del(keys);
+        invalidate(keys);
+    }
+
+    @Override
+    public void remove(String key) {
+        removeLocal(key);
+        cache.remove(key);
+        invalidate(key);
+    }
+
+    @Override
+    public long increase(String key, long magnitude) {
+        removeLocal(key);
+        long value = cache.increase(key, magnitude);
+        invalidate(key);
+        return value;
+    }
+
+    @Override
+    public long decrease(String key, long magnitude) {
+        removeLocal(key);
+        long value = cache.decrease(key, magnitude);
+        invalidate(key);
+        return value;
+    }
+
+    /**
+     * 组中的成员无法逐个找出,清空本地以及所有节点的本地值.
+     */
+    @Override
+    public void flushGroup(String group) {
+        cache.flushGroup(group);
+        clearLocal();
+        if (invalidation != null) {
+            invalidation.invalidateAll();
+        }
+    }
+
+    /**
+     * 被装饰的引擎实现了SessionCacheEngine时委托给它,否则分别写入.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        if (cache instanceof SessionCacheEngine) {
+            ((SessionCacheEngine) cache).synchronize(headerKey, header, attributeKey, attributes, seconds);
+        } else {
+            if (seconds > 0) {
+                cache.put(headerKey, header, seconds);
+            } else {
+                cache.put(headerKey, header);
+            }
+            if (attributes != null) {
+                if (seconds > 0) {
+                    cache.put(attributeKey, attributes, seconds);
+                } else {
+                    cache.put(attributeKey, attributes);
+                }
+            } else if (seconds > 0) {
+                cache.expire(attributeKey, seconds);
+            }
+        }
+        writeLocal(headerKey, header, seconds);
+        if (attributes != null) {
+            writeLocal(attributeKey, attributes, seconds);
+            invalidate(headerKey, attributeKey);
+        } else {
+            invalidate(headerKey);
+        }
+    }
+
+    /**
+     * 只持有key所在段的锁,过期的值按对象移除,不会移除同时写入的新值.
+     */
+    private byte[] readLocal(String key) {
+        CachedValue entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.data;
+    }
+
+    private void writeLocal(String key, Object value, int seconds) {
+        long lifetime = seconds > 0 ? Math.min(ttl, TimeUnit.SECONDS.toMillis(seconds)) : ttl;
+        byte[] data = serialize(value);
+        synchronized (entries.lock(key)) {
+            generations.incrementAndGet(entries.stripe(key));
+            entries.put(key, new CachedValue(data, System.currentTimeMillis() + lifetime));
+        }
+    }
+
+    /**
+     * 缓存从远端读到的值,最多保存到远端过期时.读取期间本地有过写入或者收到过失效通知时不缓存,
+     * 避免旧值覆盖新的值.
+     * @param remoteTtl 远端剩余的过期毫秒数,不知道或者没有过期时间时为TtlCacheEngine.NO_TTL.
+     */
+    private void cacheLoaded(String key, Object value, long start, long remoteTtl) {
+        long lifetime = remoteTtl == TtlCacheEngine.NO_TTL ? ttl : Math.min(ttl, remoteTtl);
+        if (lifetime <= 0) {
+            return;
+        }
+        byte[] data = serialize(value);
+        synchronized (entries.lock(key)) {
+            if (generations.get(entries.stripe(key)) == start) {
+                entries.put(key, new CachedValue(data, System.currentTimeMillis() + lifetime));
+            }
+        }
+    }
+
+    private void retimeLocal(String key, int seconds) {
+        long expireAt = System.currentTimeMillis() + Math.min(ttl, TimeUnit.SECONDS.toMillis(seconds));
+        synchronized (entries.lock(key)) {
+            generations.incrementAndGet(entries.stripe(key));
+            CachedValue entry = entries.get(key);
+            if (entry != null) {
+                entries.put(key, new CachedValue(entry.data, expireAt));
+            }
+        }
+    }
+
+    private void removeLocal(String key) {
+        synchronized (entries.lock(key)) {
+            generations.incrementAndGet(entries.stripe(key));
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * 先增加所有段的版本,再清空,清空之前开始的远端读取都不会被缓存.
+     */
+    private void clearLocal() {
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.getStripes(); i++) {
+            synchronized (entries.stripeLock(i)) {
+                generations.incrementAndGet(i);
+            }
+        }
+        entries.clear();
+    }
+
+    private void invalidate(String... keys) {
+        if (invalidation != null) {
+            invalidation.invalidate(keys);
+        }
+    }
+
+    private byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    private Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    /**
+     * 本地保存的值.
+     */
+    private static class CachedValue {
+
+        private final byte[] data;
+        private final long expireAt;
+
+        CachedValue(byte[] data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.gozap.session.cache.support;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.support.offheap.OffHeapStore;
+import com.gozap.session.cache.support.offheap.SlabAllocator;
+
+/**
+ * 把序列化后的值保存在直接内存中的进程内缓存实现,用于单节点保存大量会话.
+ * 堆上只有索引的long数组,会话数量增长时老年代的对象数量和GC停顿基本不变.
+ * 存储结构见OffHeapStore,内存按slab分配,总量不超过offHeapMaxMemory,
+ * 内存不足时淘汰同样大小的值中最先过期的,没有同样大小的值时把其他大小的一页重新分配给它.
+ *
+ * 配置项:offHeapMaxMemory(最大直接内存,可以使用k,m,g后缀,默认256m,
+ * 需要相应的调整-XX:MaxDirectMemorySize),offHeapPageSize(每页字节数,也是单个值的上限,默认1m),
+ * offHeapSegments(索引段数,默认64),offHeapSweepInterval(回收过期值的间隔秒数,默认60),
+ * 以及RedisCacheEngine中的serializeStrategy.
+ *
+ * @version 1.00 2015-8-15
+ * @since 1.6
+ */
+public class OffHeapCacheEngine extends AbstractStoreCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(OffHeapCacheEngine.class);
+
+    /**
+     * 最大直接内存配置.
+     */
+    public static final String OFF_HEAP_MAX_MEMORY = "offHeapMaxMemory";
+    /**
+     * 每页字节数配置.
+     */
+    public static final String OFF_HEAP_PAGE_SIZE = "offHeapPageSize";
+    /**
+     * 索引段数配置,必须是2的幂.
+     */
+    public static final String OFF_HEAP_SEGMENTS = "offHeapSegments";
+    /**
+     * 回收过期值的间隔配置,秒.
+     */
+    public static final String OFF_HEAP_SWEEP_INTERVAL = "offHeapSweepInterval";
+    private static final long DEFAULT_MAX_MEMORY = 256L << 20;
+    private static final long DEFAULT_PAGE_SIZE = 1L << 20;
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int DEFAULT_SWEEP_INTERVAL = 60;
+    private static final int INITIAL_SEGMENT_CAPACITY = 1024;
+
+    private OffHeapStore store;
+    private int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+    private ScheduledExecutorService sweeper;
+
+    public OffHeapStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        long maxMemory = DEFAULT_MAX_MEMORY;
+        long pageSize = DEFAULT_PAGE_SIZE;
+        int segments = DEFAULT_SEGMENTS;
+        initSerializeStrategy(prop);
+        if (prop != null) {
+            String temp = prop.getProperty(OFF_HEAP_MAX_MEMORY);
+            if (temp != null && !temp.trim().isEmpty()) {
+                maxMemory = parseBytes(temp);
+            }
+            temp = prop.getProperty(OFF_HEAP_PAGE_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                pageSize = parseBytes(temp);
+            }
+            temp = prop.getProperty(OFF_HEAP_SEGMENTS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                segments = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(OFF_HEAP_SWEEP_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                sweepInterval = Integer.parseInt(temp.trim());
+            }
+        }
+        if (pageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Page size " + pageSize + " is too large.");
+        }
+        store = new OffHeapStore(new SlabAllocator(maxMemory, (int) pageSize), segments, INITIAL_SEGMENT_CAPACITY);
+        LOGGER.info("offHeapCacheEngine maxMemory: " + maxMemory + ", pageSize: " + pageSize
+                + ", segments: " + segments + ", sweepInterval: " + sweepInterval + "s");
+    }
+
+    @Override
+    protected synchronized void doStart() {
+        if (sweepInterval <= 0 || sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "offheap-cache-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    int reclaimed = store.reclaim(System.currentTimeMillis());
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("offHeapCacheEngine reclaimed " + reclaimed + " expired values, used: "
+                                + store.getAllocator().getUsedMemory() + ", evictions: " + store.getEvictions()
+                                + ", page moves: " + store.getPageMoves());
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("Off-heap cache sweep failed.", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止后清空全部的值,直接内存在页对象被回收时才会释放.
+     */
+    @Override
+    protected synchronized void doStop() {
+        LOGGER.info("offHeapCacheEngine stop start");
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+        clear();
+        LOGGER.info("offHeapCacheEngine stop end");
+    }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        store.clear();
+    }
+
+    @Override
+    protected byte[] read(byte[] key, long now) {
+        return store.get(key, now);
+    }
+
+    @Override
+    protected boolean exists(byte[] key, long now) {
+        return store.contains(key, now);
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value, long expireAt) {
+        store.put(key, value, expireAt);
+    }
+
+    @Override
+    protected boolean delete(byte[] key) {
+        return store.remove(key);
+    }
+
+    @Override
+    protected boolean retime(byte[] key, long expireAt, long now) {
+        return store.expire(key, expireAt, now);
+    }
+
+    @Override
+    protected long add(byte[] key, long delta, long now) {
+        return store.add(key, delta, now);
+    }
+}
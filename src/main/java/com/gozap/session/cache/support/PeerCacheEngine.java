@@ -0,0 +1,218 @@
+package com.gozap.session.cache.support;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.support.peer.PeerNode;
+
+/**
+ * 节点之间直接通过TCP复制会话的缓存实现,用于不部署redis的2到6个节点的小集群.
+ * 每个节点保存全部的值,读取只访问本地,写入复制到所有在线的节点,可以选择同步或者异步复制.
+ * 成员通过gossip发现,计数器由按会话id一致性哈希负责的节点执行,节点上线时从其他节点补齐值.
+ * 实现见PeerNode.
+ *
+ * 同一个key的并发写入以最后写入者为准,过期时间是绝对时间,节点之间的时钟需要大致同步.
+ * 节点短暂断开但没有超过peerFailureTimeout时,这期间丢失的写入只有在之后再次写入时才会修复.
+ * 组的登记只保存在执行写入的节点上,flushGroup只删除本节点登记的成员.
+ * 建议开启keyHashTagEnable,同一会话的头信息和属性由同一个节点负责.
+ *
+ * 配置项:peerHost(监听和通告的地址,默认127.0.0.1),peerPort(监听的端口,默认7700),
+ * peerSeeds(启动时联系的节点,逗号分隔的host:port,可以包含本节点),
+ * peerReplication(async或者sync,默认async),peerSyncTimeout(同步复制和计数器的超时毫秒数,默认1000),
+ * peerGossipInterval(gossip的间隔毫秒数,默认500),peerFailureTimeout(认为节点离线的毫秒数,默认3000),
+ * peerVirtualNodes(每个节点在哈希环上的虚拟节点数,默认64),
+ * peerTombstoneTtl(删除的墓碑保留的秒数,默认60),以及RedisCacheEngine中的serializeStrategy.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+public class PeerCacheEngine extends AbstractStoreCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(PeerCacheEngine.class);
+
+    /**
+     * 监听和通告的地址配置.
+     */
+    public static final String PEER_HOST = "peerHost";
+    /**
+     * 监听的端口配置.
+     */
+    public static final String PEER_PORT = "peerPort";
+    /**
+     * 种子节点配置,逗号分隔的host:port.
+     */
+    public static final String PEER_SEEDS = "peerSeeds";
+    /**
+     * 复制方式配置,async或者sync.
+     */
+    public static final String PEER_REPLICATION = "peerReplication";
+    /**
+     * 同步复制和计数器的超时配置,毫秒.
+     */
+    public static final String PEER_SYNC_TIMEOUT = "peerSyncTimeout";
+    /**
+     * gossip的间隔配置,毫秒.
+     */
+    public static final String PEER_GOSSIP_INTERVAL = "peerGossipInterval";
+    /**
+     * 认为节点离线的时间配置,毫秒.
+     */
+    public static final String PEER_FAILURE_TIMEOUT = "peerFailureTimeout";
+    /**
+     * 虚拟节点数配置.
+     */
+    public static final String PEER_VIRTUAL_NODES = "peerVirtualNodes";
+    /**
+     * 墓碑保留时间配置,秒.
+     */
+    public static final String PEER_TOMBSTONE_TTL = "peerTombstoneTtl";
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 7700;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PeerNode node;
+
+    public PeerNode getNode() {
+        return node;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        initSerializeStrategy(prop);
+        String host = DEFAULT_HOST;
+        int port = DEFAULT_PORT;
+        List<String> seeds = new ArrayList<String>();
+        if (prop != null) {
+            String temp = prop.getProperty(PEER_HOST);
+            if (temp != null && !temp.trim().isEmpty()) {
+                host = temp.trim();
+            }
+            temp = prop.getProperty(PEER_PORT);
+            if (temp != null && !temp.trim().isEmpty()) {
+                port = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(PEER_SEEDS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                for (String seed : temp.split(",")) {
+                    seed = seed.trim();
+                    if (seed.isEmpty()) {
+                        continue;
+                    }
+                    if (seed.lastIndexOf(':') <= 0) {
+                        throw new IllegalArgumentException("Invalid peer seed " + seed + ", expected host:port.");
+                    }
+                    seeds.add(seed);
+                }
+            }
+        }
+        node = new PeerNode(host, port, seeds);
+        if (prop == null) {
+            return;
+        }
+        String temp = prop.getProperty(PEER_REPLICATION);
+        if (temp != null && !temp.trim().isEmpty()) {
+            if ("sync".equalsIgnoreCase(temp.trim())) {
+                node.setSyncReplication(true);
+            } else if (!"async".equalsIgnoreCase(temp.trim())) {
+                throw new IllegalArgumentException("Invalid peer replication " + temp + ", expected async or sync.");
+            }
+        }
+        temp = prop.getProperty(PEER_SYNC_TIMEOUT);
+        if (temp != null && !temp.trim().isEmpty()) {
+            node.setSyncTimeout(Integer.parseInt(temp.trim()));
+        }
+        temp = prop.getProperty(PEER_GOSSIP_INTERVAL);
+        if (temp != null && !temp.trim().isEmpty()) {
+            node.setGossipInterval(Integer.parseInt(temp.trim()));
+        }
+        temp = prop.getProperty(PEER_FAILURE_TIMEOUT);
+        if (temp != null && !temp.trim().isEmpty()) {
+            node.setFailureTimeout(Integer.parseInt(temp.trim()));
+        }
+        temp = prop.getProperty(PEER_VIRTUAL_NODES);
+        if (temp != null && !temp.trim().isEmpty()) {
+            node.setVirtualNodes(Integer.parseInt(temp.trim()));
+        }
+        temp = prop.getProperty(PEER_TOMBSTONE_TTL);
+        if (temp != null && !temp.trim().isEmpty()) {
+            node.setTombstoneTtl(TimeUnit.SECONDS.toMillis(Integer.parseInt(temp.trim())));
+        }
+    }
+
+    /**
+     * 开始监听并等待从已经在线的节点收到值,最多等待一个失效时间,超时后以空的本地表开始服务.
+     */
+    @Override
+    protected synchronized void doStart() {
+        try {
+            node.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not listen on " + node.getId(), e);
+        }
+        try {
+            if (!node.awaitJoin(node.getFailureTimeout())) {
+                LOGGER.warn("peerCacheEngine " + node.getId() + " started without state from other peers.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("peerCacheEngine " + node.getId() + " started with members " + node.getAliveMembers());
+    }
+
+    @Override
+    protected synchronized void doStop() {
+        LOGGER.info("peerCacheEngine stop start");
+        node.stop();
+        clear();
+        LOGGER.info("peerCacheEngine stop end");
+    }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        node.clear();
+    }
+
+    @Override
+    protected byte[] read(byte[] key, long now) {
+        return node.get(decode(key), now);
+    }
+
+    @Override
+    protected boolean exists(byte[] key, long now) {
+        return node.contains(decode(key), now);
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value, long expireAt) {
+        node.put(decode(key), value, expireAt);
+    }
+
+    @Override
+    protected boolean delete(byte[] key) {
+        return node.delete(decode(key));
+    }
+
+    @Override
+    protected boolean retime(byte[] key, long expireAt, long now) {
+        return node.touch(decode(key), expireAt, now);
+    }
+
+    @Override
+    protected long add(byte[] key, long delta, long now) {
+        return node.add(decode(key), delta, now);
+    }
+
+    private static String decode(byte[] key) {
+        return new String(key, UTF8);
+    }
+}
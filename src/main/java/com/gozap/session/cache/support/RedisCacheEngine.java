@@ -6,193 +6,1139 @@ package com.gozap.session.cache.support;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.serializer.SerializerFeature;
-import com.gozap.session.cache.AbstractCacheEngine;
+import com.gozap.session.cache.AsyncCacheEngine;
+import com.gozap.session.cache.AsyncCacheEngineAdapter;
+import com.gozap.session.cache.HashCacheEngine;
+import com.gozap.session.cache.ReplicaCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.cache.TtlCacheEngine;
+import com.gozap.session.util.RecentKeys;
+import com.gozap.session.util.WindowedHistogram;
 
 import javax.servlet.ServletContext;
 
 /**
  * 基于redis的cache实现
+ * 值通过配置项serializeStrategy指定的SerializeStrategy实现序列化成字节,
+ * 并全部使用jedis的二进制命令读写.默认使用FastJsonSerializeStrategy,与旧版本
+ * 写入的数据兼容.配置了compressThreshold或compressCodec时序列化策略由
+ * CompressSerializeStrategy装饰,较大的值压缩后保存.
+ * 哈希结构使用redis的HASH保存,每个字段的值单独序列化.
+ * 会话的同步由一个lua脚本完成,脚本在引擎启动时预先加载,执行时使用EVALSHA.
+ * 异步操作在引擎自己的线程池中执行,线程数由asyncThreads指定,队列长度由asyncQueueSize指定.
+ * 所有操作都会记录借出连接的等待时间,连接占用时间和命令延迟,见RedisMetrics,
+ * metricsLogInterval大于0时按此间隔(秒)输出到日志.
+ * ServletContext中以jedisReplicaPools放入从库的连接池列表时,读取发往从库,
+ * 本节点在replicaLag毫秒内写入过的key仍然从主库读取.
  *
  * @author chenboxiang
  * @date 2013-6-16 下午9:12:15
  * @since JDK1.6
  */
-public class RedisCacheEngine extends AbstractCacheEngine {
+public class RedisCacheEngine extends AbstractRedisCacheEngine
+        implements HashCacheEngine, SessionCacheEngine, AsyncCacheEngine, ReplicaCacheEngine, TtlCacheEngine {
     private static final Log log = LogFactory.getLog(RedisCacheEngine.class);
     private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
     public static final String JEDIS_POOL = "jedisPool";
+    /**
+     * 从库连接池列表(List&lt;JedisPool&gt;)在ServletContext中的名称.
+     */
+    public static final String JEDIS_REPLICA_POOLS = "jedisReplicaPools";
+    /**
+     * 从库最大复制延迟毫秒数的配置项.
+     */
+    public static final String REPLICA_LAG = "replicaLag";
+    private static final long DEFAULT_REPLICA_LAG = 1000L;
+    /**
+     * 执行异步操作的线程数量的配置项.
+     */
+    public static final String ASYNC_THREADS = AsyncCacheEngineAdapter.ASYNC_THREADS;
+    private static final int DEFAULT_ASYNC_THREADS = 16;
+    public static final String ASYNC_QUEUE_SIZE = AsyncCacheEngineAdapter.ASYNC_QUEUE_SIZE;
+    /**
+     * 输出运行指标到日志的间隔秒数的配置项,默认为0,不输出.
+     */
+    public static final String METRICS_LOG_INTERVAL = "metricsLogInterval";
+    /**
+     * 合并并发的会话写入的窗口,微秒,0表示不合并.
+     */
+    public static final String WRITE_COALESCE_WINDOW = "writeCoalesceWindow";
+    /**
+     * 合并写入时每批最多的写入数量.
+     */
+    public static final String WRITE_COALESCE_BATCH_SIZE = "writeCoalesceBatchSize";
+    private static final int DEFAULT_WRITE_COALESCE_BATCH_SIZE = 128;
+    /**
+     * 对冲读取的延迟取从库读取延迟的此百分位数,0表示不对冲.
+     */
+    public static final String HEDGE_PERCENTILE = "hedgePercentile";
+    // 样本太少时百分位数没有意义,不对冲
+    private static final long MIN_HEDGE_SAMPLES = 100;
+    private static final long MIN_HEDGE_DELAY_MICROS = 100;
+    // 对冲延迟只参考最近10到20秒内的从库读取
+    private static final long HEDGE_WINDOW = 10000L;
 
     protected JedisPool jedisPool;
+    protected List<JedisPool> replicaPools = Collections.emptyList();
+    private long replicaLag = DEFAULT_REPLICA_LAG;
+    // 本节点最近replicaLag毫秒内写入的key,没有从库时为null
+    private RecentKeys recentWrites;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private int asyncThreads = DEFAULT_ASYNC_THREADS;
+    private int asyncQueueSize = AsyncCacheEngineAdapter.DEFAULT_ASYNC_QUEUE_SIZE;
+    private ExecutorService asyncExecutor;
+    private AsyncCacheEngine async;
+    private final RedisMetrics metrics = new RedisMetrics();
+    private int metricsLogInterval = 0;
+    private ScheduledExecutorService metricsLogger;
+    protected long writeCoalesceWindow = 0;
+    private int writeCoalesceBatchSize = DEFAULT_WRITE_COALESCE_BATCH_SIZE;
+    private SessionWriteCoalescer writeCoalescer;
+    private double hedgePercentile = 0;
+    private ExecutorService hedgeExecutor;
+    // 按命令记录第一次从库读取成功的延迟,不包括对冲的读取和退回主库的读取
+    private final ConcurrentMap<String, WindowedHistogram> hedgeLatencies =
+            new ConcurrentHashMap<String, WindowedHistogram>();
 
     public void setJedisPool(JedisPool jedisPool) {
         this.jedisPool = jedisPool;
     }
 
+    public void setReplicaPools(List<JedisPool> replicaPools) {
+        this.replicaPools = replicaPools == null
+                ? Collections.<JedisPool>emptyList() : new ArrayList<JedisPool>(replicaPools);
+    }
+
     @Override
     protected void doStart() {
         try {
-            Jedis jedis = jedisPool.getResource();
-            jedis.close();
+            execute("SCRIPT LOAD", null, new JedisCallback<Void>() {
+                public Void doInRedis(Jedis jedis) {
+                    loadScripts(jedis);
+                    return null;
+                }
+            });
         } catch (JedisException e) {
             log.error("Jedis can not connect to the redis server!");
             throw e;
         }
+        startMetricsLogger();
+        startWriteCoalescer();
+    }
+
+    /**
+     * writeCoalesceWindow大于0时启动合并会话写入的线程.
+     */
+    protected void startWriteCoalescer() {
+        if (writeCoalesceWindow <= 0 || writeCoalescer != null) {
+            return;
+        }
+        writeCoalescer = new SessionWriteCoalescer(this, writeCoalesceWindow, writeCoalesceBatchSize);
+        writeCoalescer.start();
+        log.info("redisCacheEngine coalesce session writes, window " + writeCoalesceWindow
+                + "us, batch size " + writeCoalesceBatchSize);
+    }
+
+    /**
+     * metricsLogInterval大于0时启动定时输出运行指标的守护线程.
+     */
+    protected void startMetricsLogger() {
+        if (metricsLogInterval <= 0 || metricsLogger != null) {
+            return;
+        }
+        metricsLogger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-cache-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        metricsLogger.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    log.info("redisCacheEngine pool[" + getPoolStatus() + "], " + metrics);
+                } catch (RuntimeException e) {
+                    log.warn("Can not log redis metrics.", e);
+                }
+            }
+        }, metricsLogInterval, metricsLogInterval, TimeUnit.SECONDS);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     protected void doInit(Properties properties, ServletContext servletContext) {
         log.info("redisCacheEngine init start");
-        if(servletContext!=null)
+        if(servletContext!=null && servletContext.getAttribute(JEDIS_POOL) != null)
             this.jedisPool = (JedisPool) servletContext.getAttribute(JEDIS_POOL);
+        if (servletContext != null && servletContext.getAttribute(JEDIS_REPLICA_POOLS) != null) {
+            setReplicaPools((List<JedisPool>) servletContext.getAttribute(JEDIS_REPLICA_POOLS));
+        }
+        initRedisProperties(properties);
+        log.info("redisCacheEngine serialize strategy: " + getSerializeStrategy().getClass().getName());
+        if (properties != null) {
+            String temp = properties.getProperty(ASYNC_THREADS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                asyncThreads = Integer.parseInt(temp.trim());
+            }
+            temp = properties.getProperty(ASYNC_QUEUE_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                asyncQueueSize = Integer.parseInt(temp.trim());
+            }
+            temp = properties.getProperty(REPLICA_LAG);
+            if (temp != null && !temp.trim().isEmpty()) {
+                replicaLag = Long.parseLong(temp.trim());
+            }
+            temp = properties.getProperty(METRICS_LOG_INTERVAL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                metricsLogInterval = Integer.parseInt(temp.trim());
+            }
+            temp = properties.getProperty(WRITE_COALESCE_WINDOW);
+            if (temp != null && !temp.trim().isEmpty()) {
+                writeCoalesceWindow = Long.parseLong(temp.trim());
+            }
+            temp = properties.getProperty(WRITE_COALESCE_BATCH_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                writeCoalesceBatchSize = Integer.parseInt(temp.trim());
+            }
+            temp = properties.getProperty(HEDGE_PERCENTILE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                hedgePercentile = Double.parseDouble(temp.trim());
+            }
+        }
+        if (asyncThreads <= 0) {
+            asyncThreads = DEFAULT_ASYNC_THREADS;
+        }
+        if (asyncQueueSize <= 0) {
+            asyncQueueSize = AsyncCacheEngineAdapter.DEFAULT_ASYNC_QUEUE_SIZE;
+        }
+        if (writeCoalesceBatchSize <= 0) {
+            writeCoalesceBatchSize = DEFAULT_WRITE_COALESCE_BATCH_SIZE;
+        }
+        if (!replicaPools.isEmpty() && replicaLag > 0) {
+            recentWrites = new RecentKeys(replicaLag);
+        }
+        if (!replicaPools.isEmpty()) {
+            log.info("redisCacheEngine read from " + replicaPools.size() + " replicas, replica lag " + replicaLag + "ms");
+            if (hedgePercentile > 0) {
+                hedgeExecutor = newHedgeExecutor();
+                log.info("redisCacheEngine hedge replica reads slower than p" + hedgePercentile);
+            }
+        }
+        asyncExecutor = AsyncCacheEngineAdapter.newExecutor(asyncThreads, asyncQueueSize, "redis-cache-async");
+        async = new AsyncCacheEngineAdapter(this, asyncExecutor);
     }
 
     @Override
-    public boolean containsKey(String key) {
+    public boolean containsKey(final String key) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        Boolean result = jedis.exists(key);
-        jedis.close();
-        return result;
+        return executeRead("EXISTS", key, new String[]{key}, false, new JedisCallback<Boolean>() {
+            public Boolean doInRedis(Jedis jedis) {
+                return jedis.exists(key);
+            }
+        });
     }
 
     @Override
-    public void put(String key, Object value) {
+    public void put(final String key, Object value) {
         checkInit();
         checkKey(key);
-        Jedis jedis = jedisPool.getResource();
-        String valueJson;
-        try {
-            valueJson = JSON.toJSONString(value, SerializerFeature.WriteClassName);
-        } catch (Exception e) {
-            jedis.close();
-            throw new RuntimeException(e);
+        final byte[] data = serialize(value);
+        markWritten(key);
+        execute("SET", key, new JedisCallback<String>() {
+            public String doInRedis(Jedis jedis) {
+                return jedis.set(SafeEncoder.encode(key), data);
+            }
+        });
+    }
+
+    @Override
+    public void put(final String key, Object value, final int seconds) {
+        checkInit();
+        checkKey(key);
+        final byte[] data = serialize(value);
+        markWritten(key);
+        execute("SETEX", key, new JedisCallback<String>() {
+            public String doInRedis(Jedis jedis) {
+                return jedis.setex(SafeEncoder.encode(key), seconds, data);
+            }
+        });
+    }
+
+    @Override
+    public boolean expire(final String key, final int seconds) {
+        checkInit();
+        checkKey(key);
+        markWritten(key);
+        return execute("EXPIRE", key, new JedisCallback<Boolean>() {
+            public Boolean doInRedis(Jedis jedis) {
+                return jedis.expire(key, seconds) == 1L;
+            }
+        });
+    }
+
+    /**
+     * 写入值的同时将key登记到每个组对应的SET中,写入和登记在同一个管道中完成.
+     */
+    @Override
+    public void put(final String key, Object value, final String[] group) {
+        checkInit();
+        checkKey(key);
+        if (group != null) {
+            for (String name : group) {
+                checkKey(name);
+            }
         }
-        jedis.set(key, valueJson);
-        jedis.close();
+        final byte[] data = serialize(value);
+        markWritten(key);
+        execute("SET+SADD", key, new JedisCallback<Void>() {
+            public Void doInRedis(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.set(SafeEncoder.encode(key), data);
+                if (group != null) {
+                    for (String name : group) {
+                        pipeline.sadd(groupKey(name), key);
+                    }
+                }
+                pipeline.sync();
+                return null;
+            }
+        });
     }
 
     @Override
-    public void put(String key, Object value, int seconds) {
+    public void del(final String key) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        String valueJson;
-        try {
-            valueJson = JSON.toJSONString(value, SerializerFeature.WriteClassName);
-        } catch (Exception e) {
-            jedis.close();
-            throw new RuntimeException(e);
+        markWritten(key);
+        execute("UNLINK", key, new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return unlink(jedis, Collections.singletonList(key));
+            }
+        });
+    }
+
+    /**
+     * 所有key在一次UNLINK中删除.
+     */
+    @Override
+    public void del(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return;
         }
-        jedis.setex(key, seconds, valueJson);
-        jedis.close();
+        for (String key : keys) {
+            checkKey(key);
+        }
+        markWritten(keys);
+        final List<String> keyList = Arrays.asList(keys);
+        execute("UNLINK", keys[0], new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return unlink(jedis, keyList);
+            }
+        });
     }
 
     @Override
-    public void put(String key, Object value, String[] group) {
-        throw new UnsupportedOperationException("not implement yet");
+    public Object get(final String key) {
+        checkInit();
+        checkKey(key);
+        byte[] data = executeRead("GET", key, new String[]{key}, false, new JedisCallback<byte[]>() {
+            public byte[] doInRedis(Jedis jedis) {
+                return jedis.get(SafeEncoder.encode(key));
+            }
+        });
+        return deserialize(data);
     }
 
+    /**
+     * 使用MGET批量获取.超过mgetBatchSize的key列表会被拆分成多个MGET,并在同一个
+     * 连接上以管道方式一次发出.连接归还连接池之后再进行反序列化,避免解析大量值时
+     * 占用连接.
+     */
     @Override
-    public void del(String key) {
+    public Map<String, Object> get(String[] keys) {
+        return get(keys, false);
+    }
+
+    @Override
+    public Map<String, Object> getFromPrimary(String[] keys) {
+        return get(keys, true);
+    }
+
+    private Map<String, Object> get(String[] keys, boolean primary) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        final byte[][] binaryKeys = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            checkKey(keys[i]);
+            binaryKeys[i] = SafeEncoder.encode(keys[i]);
+        }
+        List<byte[]> datas = executeRead("MGET", keys[0], keys, primary, new JedisCallback<List<byte[]>>() {
+            public List<byte[]> doInRedis(Jedis jedis) {
+                return mget(jedis, binaryKeys);
+            }
+        });
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            byte[] data = datas.get(i);
+            if (data != null) {
+                values.put(keys[i], deserialize(data));
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * 在同一个管道中发出MGET和每个key的PTTL,与get(String[])一样可以发往从库.
+     * 对冲读取时两次读取各自返回结果,使用先返回的一次.
+     */
+    public Map<String, Object> getWithTtl(String[] keys, long[] ttls) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        if (ttls.length < keys.length) {
+            throw new IllegalArgumentException("Ttl array is shorter than keys.");
+        }
+        final byte[][] binaryKeys = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            checkKey(keys[i]);
+            binaryKeys[i] = SafeEncoder.encode(keys[i]);
+        }
+        TtlReply reply = executeRead("MGET+PTTL", keys[0], keys, false, new JedisCallback<TtlReply>() {
+            public TtlReply doInRedis(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<List<byte[]>>> responses = pipelineMget(pipeline, binaryKeys);
+                List<Response<Long>> ttlResponses = new ArrayList<Response<Long>>(binaryKeys.length);
+                for (byte[] binaryKey : binaryKeys) {
+                    ttlResponses.add(pipeline.pttl(binaryKey));
+                }
+                pipeline.sync();
+                TtlReply reply = new TtlReply(binaryKeys.length);
+                for (Response<List<byte[]>> response : responses) {
+                    reply.datas.addAll(response.get());
+                }
+                for (int i = 0; i < binaryKeys.length; i++) {
+                    reply.ttls[i] = ttlResponses.get(i).get();
+                }
+                return reply;
+            }
+        });
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            byte[] data = reply.datas.get(i);
+            if (data != null) {
+                values.put(keys[i], deserialize(data));
+            }
+            ttls[i] = reply.ttls[i];
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public Map<String, Object> getFields(final String key) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        Long ret = 0L;
-        do {
-            ret += jedis.del(key);
-        }while(jedis.exists(key));
-        jedis.close();
+        Map<byte[], byte[]> datas = executeRead("HGETALL", key, new String[]{key}, false,
+                new JedisCallback<Map<byte[], byte[]>>() {
+                    public Map<byte[], byte[]> doInRedis(Jedis jedis) {
+                        return jedis.hgetAll(SafeEncoder.encode(key));
+                    }
+                });
+        return deserializeFields(datas);
+    }
+
+    /**
+     * MGET和HGETALL在同一个管道中发出,只需要一次往返.
+     */
+    @Override
+    public Map<String, Object> getWithFields(String[] keys, String fieldsKey) {
+        return getWithFields(keys, fieldsKey, false);
+    }
+
+    @Override
+    public Map<String, Object> getWithFieldsFromPrimary(String[] keys, String fieldsKey) {
+        return getWithFields(keys, fieldsKey, true);
+    }
+
+    private Map<String, Object> getWithFields(String[] keys, final String fieldsKey, boolean primary) {
+        checkInit();
+        checkKey(fieldsKey);
+        final byte[][] binaryKeys = new byte[keys == null ? 0 : keys.length][];
+        for (int i = 0; i < binaryKeys.length; i++) {
+            checkKey(keys[i]);
+            binaryKeys[i] = SafeEncoder.encode(keys[i]);
+        }
+        String[] readKeys = new String[binaryKeys.length + 1];
+        if (binaryKeys.length > 0) {
+            System.arraycopy(keys, 0, readKeys, 0, binaryKeys.length);
+        }
+        readKeys[binaryKeys.length] = fieldsKey;
+        List<Object> responses = executeRead("MGET+HGETALL", fieldsKey, readKeys, primary,
+                new JedisCallback<List<Object>>() {
+                    public List<Object> doInRedis(Jedis jedis) {
+                        Pipeline pipeline = jedis.pipelined();
+                        if (binaryKeys.length > 0) {
+                            pipeline.mget(binaryKeys);
+                        }
+                        pipeline.hgetAll(SafeEncoder.encode(fieldsKey));
+                        return pipeline.syncAndReturnAll();
+                    }
+                });
+        Map<String, Object> values = new HashMap<String, Object>(binaryKeys.length + 1);
+        if (binaryKeys.length > 0) {
+            @SuppressWarnings("unchecked")
+            List<byte[]> datas = (List<byte[]>) responses.get(0);
+            for (int i = 0; i < binaryKeys.length; i++) {
+                byte[] data = datas.get(i);
+                if (data != null) {
+                    values.put(keys[i], deserialize(data));
+                }
+            }
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> fields = deserializeFields(
+                (Map<byte[], byte[]>) responses.get(responses.size() - 1));
+        if (fields != null) {
+            values.put(fieldsKey, fields);
+        }
+        return Collections.unmodifiableMap(values);
     }
 
+    /**
+     * HMSET,HDEL和EXPIRE在同一个管道中发出.
+     */
     @Override
-    public Object get(String key) {
+    public void putFields(String key, Map<String, Object> fields,
+            Collection<String> removedFields, final int seconds) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        String valueJson = jedis.get(key);
-        jedis.close();
-        try {
-            Object value = JSON.parse(valueJson);
-            return value;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        final byte[] binaryKey = SafeEncoder.encode(key);
+        final Map<byte[], byte[]> datas = new HashMap<byte[], byte[]>();
+        if (fields != null) {
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                datas.put(SafeEncoder.encode(field.getKey()), serialize(field.getValue()));
+            }
+        }
+        final byte[][] removed = new byte[removedFields == null ? 0 : removedFields.size()][];
+        if (removed.length > 0) {
+            int i = 0;
+            for (String name : removedFields) {
+                removed[i++] = SafeEncoder.encode(name);
+            }
         }
+        markWritten(key);
+        execute("HMSET", key, new JedisCallback<Void>() {
+            public Void doInRedis(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                if (!datas.isEmpty()) {
+                    pipeline.hmset(binaryKey, datas);
+                }
+                if (removed.length > 0) {
+                    pipeline.hdel(binaryKey, removed);
+                }
+                if (seconds > 0) {
+                    pipeline.expire(binaryKey, seconds);
+                }
+                pipeline.sync();
+                return null;
+            }
+        });
     }
 
     @Override
-    public Map<String, Object> get(String[] keys) {
-        throw new UnsupportedOperationException("not implement yet");
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        List<byte[]> args = new ArrayList<byte[]>(4);
+        args.add(SafeEncoder.encode(String.valueOf(seconds)));
+        args.add(serialize(header));
+        if (attributes == null) {
+            args.add(SYNC_KEEP);
+        } else {
+            args.add(SYNC_VALUE);
+            args.add(serialize(attributes));
+        }
+        synchronize(headerKey, attributeKey, args);
+    }
+
+    @Override
+    public void synchronizeFields(String headerKey, Object header,
+            String fieldsKey, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        int fieldCount = fields == null ? 0 : fields.size();
+        int removedCount = removedFields == null ? 0 : removedFields.size();
+        List<byte[]> args = new ArrayList<byte[]>(4 + fieldCount * 2 + removedCount);
+        args.add(SafeEncoder.encode(String.valueOf(seconds)));
+        args.add(serialize(header));
+        args.add(SYNC_FIELDS);
+        args.add(SafeEncoder.encode(String.valueOf(fieldCount)));
+        if (fieldCount > 0) {
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                args.add(SafeEncoder.encode(field.getKey()));
+                args.add(serialize(field.getValue()));
+            }
+        }
+        if (removedCount > 0) {
+            for (String name : removedFields) {
+                args.add(SafeEncoder.encode(name));
+            }
+        }
+        synchronize(headerKey, fieldsKey, args);
+    }
+
+    /**
+     * 执行同步会话的脚本.启用了写入合并时与其他线程的写入一起以流水线执行,
+     * 合并线程意外退出后直接执行.
+     * @param headerKey 头信息的key.
+     * @param attributeKey 属性的key.
+     * @param args 脚本参数.
+     */
+    protected void synchronize(String headerKey, String attributeKey, final List<byte[]> args) {
+        checkInit();
+        checkKey(headerKey);
+        checkKey(attributeKey);
+        final List<byte[]> keys = Arrays.asList(SafeEncoder.encode(headerKey), SafeEncoder.encode(attributeKey));
+        markWritten(headerKey, attributeKey);
+        SessionWriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null && coalescer.isRunning()) {
+            coalescer.write(keys, args);
+            return;
+        }
+        execute("EVALSHA", headerKey, new JedisCallback<Object>() {
+            public Object doInRedis(Jedis jedis) {
+                return SYNC_SESSION_SCRIPT.execute(jedis, keys, args);
+            }
+        });
+    }
+
+    /**
+     * 按mgetBatchSize分批执行MGET,返回结果与keys一一对应.
+     * @param jedis 连接.
+     * @param keys 缓存的key列表.
+     * @return 原始的值列表,不存在的key对应null.
+     */
+    protected List<byte[]> mget(Jedis jedis, byte[][] keys) {
+        int mgetBatchSize = getMgetBatchSize();
+        if (keys.length <= mgetBatchSize) {
+            return jedis.mget(keys);
+        }
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<List<byte[]>>> responses = pipelineMget(pipeline, keys);
+        pipeline.sync();
+        List<byte[]> datas = new ArrayList<byte[]>(keys.length);
+        for (Response<List<byte[]>> response : responses) {
+            datas.addAll(response.get());
+        }
+        return datas;
+    }
+
+    /**
+     * 在管道中按mgetBatchSize分批写入MGET.
+     */
+    private List<Response<List<byte[]>>> pipelineMget(Pipeline pipeline, byte[][] keys) {
+        int mgetBatchSize = getMgetBatchSize();
+        List<Response<List<byte[]>>> responses = new ArrayList<Response<List<byte[]>>>();
+        for (int from = 0; from < keys.length; from += mgetBatchSize) {
+            int to = Math.min(from + mgetBatchSize, keys.length);
+            responses.add(pipeline.mget(Arrays.copyOfRange(keys, from, to)));
+        }
+        return responses;
     }
 
     @Override
-    public long increase(String key, long magnitude) {
+    public long increase(final String key, final long magnitude) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        Long value = jedis.incrBy(key, magnitude);
-        jedis.close();
-        return value;
+        markWritten(key);
+        return execute("INCRBY", key, new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return jedis.incrBy(key, magnitude);
+            }
+        });
     }
 
     @Override
-    public long decrease(String key, long magnitude) {
+    public long decrease(final String key, final long magnitude) {
         checkInit();
         checkKey(key);
-        Jedis jedis = null;
-        jedis = jedisPool.getResource();
-        Long value = jedis.decrBy(key, magnitude);
-        jedis.close();
-        return value;
+        markWritten(key);
+        return execute("DECRBY", key, new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return jedis.decrBy(key, magnitude);
+            }
+        });
     }
 
     @Override
-    public void remove(String key) {
+    public void remove(final String key) {
         checkInit();
         checkKey(key);
-        Jedis jedis = jedisPool.getResource();
-        do {
-            jedis.del(key);
-        }while(jedis.exists(key));
-        jedis.close();
+        markWritten(key);
+        execute("UNLINK", key, new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return unlink(jedis, Collections.singletonList(key));
+            }
+        });
     }
 
+    /**
+     * 以SSCAN分批遍历组中的成员,每批使用UNLINK删除,最后删除组本身.
+     * 不会使用KEYS或者一次性的SMEMBERS,避免大组阻塞redis.
+     */
     @Override
     public void flushGroup(String group) {
-        throw new UnsupportedOperationException("not implement yet");
+        checkInit();
+        checkKey(group);
+        final String groupKey = groupKey(group);
+        final int flushGroupBatchSize = getFlushGroupBatchSize();
+        execute("FLUSHGROUP", groupKey, new JedisCallback<Void>() {
+            public Void doInRedis(Jedis jedis) {
+                ScanParams params = new ScanParams().count(flushGroupBatchSize);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                List<String> batch = new ArrayList<String>(flushGroupBatchSize);
+                do {
+                    ScanResult<String> result = jedis.sscan(groupKey, cursor, params);
+                    batch.addAll(result.getResult());
+                    if (batch.size() >= flushGroupBatchSize) {
+                        markWritten(batch.toArray(new String[batch.size()]));
+                        unlink(jedis, batch);
+                        batch.clear();
+                    }
+                    cursor = result.getStringCursor();
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                batch.add(groupKey);
+                markWritten(batch.toArray(new String[batch.size()]));
+                unlink(jedis, batch);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Object> getAsync(String key) {
+        checkInit();
+        return async.getAsync(key);
+    }
+
+    @Override
+    public Future<Map<String, Object>> getAsync(String[] keys) {
+        checkInit();
+        return async.getAsync(keys);
+    }
+
+    @Override
+    public Future<Void> putAsync(String key, Object value) {
+        checkInit();
+        return async.putAsync(key, value);
+    }
+
+    @Override
+    public Future<Void> putAsync(String key, Object value, int seconds) {
+        checkInit();
+        return async.putAsync(key, value, seconds);
+    }
+
+    @Override
+    public Future<Void> putAsync(Map<String, Object> values, int seconds) {
+        checkInit();
+        return async.putAsync(values, seconds);
+    }
+
+    @Override
+    public Future<Void> delAsync(String key) {
+        checkInit();
+        return async.delAsync(key);
+    }
+
+    @Override
+    public Future<Long> increaseAsync(String key, long magnitude) {
+        checkInit();
+        return async.increaseAsync(key, magnitude);
+    }
+
+    @Override
+    public Future<Long> decreaseAsync(String key, long magnitude) {
+        checkInit();
+        return async.decreaseAsync(key, magnitude);
     }
 
     @Override
     protected void doStop() {
         log.info("redisCacheEngine stop start");
+        stopAsync();
+        for (JedisPool replica : replicaPools) {
+            replica.destroy();
+        }
         jedisPool.destroy();
         log.info("redisCacheEngine stop end");
     }
 
-    private void checkInit() {
-        if (!this.isInitialized()) {
-            IllegalStateException ex = new IllegalStateException("This client has not properly initialized.");
-            throw ex;
+    /**
+     * 关闭执行异步操作和对冲读取的线程池,输出指标的线程以及合并写入的线程,
+     * 已经提交的异步操作会执行完成,尚未发送的合并写入会失败.
+     */
+    protected void stopAsync() {
+        if (writeCoalescer != null) {
+            writeCoalescer.stop();
+            writeCoalescer = null;
+        }
+        if (metricsLogger != null) {
+            metricsLogger.shutdown();
+            metricsLogger = null;
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+            async = null;
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+            hedgeExecutor = null;
+        }
+    }
+
+    /**
+     * 在一个redis连接上执行的操作.
+     */
+    protected interface JedisCallback<T> {
+
+        T doInRedis(Jedis jedis);
+    }
+
+    /**
+     * getWithTtl一次读取的原始值和剩余过期毫秒数.
+     */
+    private static final class TtlReply {
+
+        private final List<byte[]> datas;
+        private final long[] ttls;
+
+        TtlReply(int size) {
+            datas = new ArrayList<byte[]>(size);
+            ttls = new long[size];
+        }
+    }
+
+    /**
+     * 获取key所在redis的连接执行操作,执行完成后总是会归还连接.
+     * @param routeKey 决定使用哪个redis的key,为null时使用任意一个.
+     * @param callback 操作.
+     * @return 操作的返回值.
+     */
+    protected <T> T execute(String routeKey, JedisCallback<T> callback) {
+        Jedis jedis = borrow(jedisPool);
+        long borrowed = System.nanoTime();
+        try {
+            return callback.doInRedis(jedis);
+        } finally {
+            release(jedis, borrowed);
+        }
+    }
+
+    /**
+     * 执行操作并记录命令的延迟,延迟包括借出连接的等待时间.
+     * @param command 记录延迟使用的命令名称.
+     * @param routeKey 决定使用哪个redis的key,为null时使用任意一个.
+     * @param callback 操作.
+     * @return 操作的返回值.
+     */
+    protected <T> T execute(String command, String routeKey, JedisCallback<T> callback) {
+        long start = System.nanoTime();
+        try {
+            return execute(routeKey, callback);
+        } finally {
+            metrics.recordCommand(command, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 执行只读的操作.配置了从库时发往从库,如果有key在replicaLag之内被本节点写入过,
+     * 或者从库不可用,则在主库上执行.
+     * @param command 记录延迟使用的命令名称.
+     * @param routeKey 决定使用哪个redis的key.
+     * @param keys 操作读取的所有key.
+     * @param primary true总是在主库上执行.
+     * @param callback 只读的操作.
+     * @return 操作的返回值.
+     */
+    protected <T> T executeRead(String command, String routeKey, String[] keys,
+            boolean primary, JedisCallback<T> callback) {
+        JedisPool replica = primary ? null : selectReplica(keys);
+        if (replica == null) {
+            return execute(command, routeKey, callback);
+        }
+        if (hedgeExecutor != null) {
+            return executeHedged(command, routeKey, replica, callback);
+        }
+        return executeReplica(command, routeKey, replica, callback, null);
+    }
+
+    /**
+     * 在从库上执行只读的操作,从库连接出错时在主库上执行.
+     * @param latency 从库读取成功时记录延迟,为null时不记录.
+     */
+    private <T> T executeReplica(String command, String routeKey, JedisPool replica,
+            JedisCallback<T> callback, WindowedHistogram latency) {
+        long start = System.nanoTime();
+        Jedis jedis = null;
+        try {
+            jedis = borrow(replica);
+            long borrowed = System.nanoTime();
+            T result;
+            try {
+                result = callback.doInRedis(jedis);
+            } finally {
+                release(jedis, borrowed);
+            }
+            if (latency != null) {
+                latency.record(System.nanoTime() - start);
+            }
+            return result;
+        } catch (JedisConnectionException e) {
+            log.debug("Read from replica failed, read from primary.", e);
+            return execute(command, routeKey, callback);
+        } finally {
+            metrics.recordCommand(command + "@replica", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 对冲读取.第一次读取在从库读取延迟的hedgePercentile百分位数之内没有返回时,
+     * 向另一个从库(只有一个从库时向主库)再发出一次读取,使用先返回的结果.
+     * 还没有开始的另一次读取会被取消,已经在执行的无法中断,会执行完成后归还连接.
+     * 延迟的百分位数只来自最近的第一次从库读取,对冲和退回主库的读取不会拉低或者拉高它.
+     */
+    private <T> T executeHedged(final String command, final String routeKey, final JedisPool replica,
+            final JedisCallback<T> callback) {
+        final WindowedHistogram latency = hedgeLatency(command);
+        if (latency.getCount() < MIN_HEDGE_SAMPLES) {
+            return executeReplica(command, routeKey, replica, callback, latency);
+        }
+        long delay = Math.max(latency.getPercentile(hedgePercentile), MIN_HEDGE_DELAY_MICROS);
+        CompletionService<T> reads = new ExecutorCompletionService<T>(hedgeExecutor);
+        List<Future<T>> futures = new ArrayList<Future<T>>(2);
+        futures.add(reads.submit(new Callable<T>() {
+            public T call() {
+                return executeReplica(command, routeKey, replica, callback, latency);
+            }
+        }));
+        try {
+            Future<T> done = reads.poll(delay, TimeUnit.MICROSECONDS);
+            if (done == null) {
+                final JedisPool other = hedgeReplica(replica);
+                futures.add(reads.submit(new Callable<T>() {
+                    public T call() {
+                        if (other == null) {
+                            return execute(command, routeKey, callback);
+                        }
+                        return executeReplica(command, routeKey, other, callback, null);
+                    }
+                }));
+                metrics.recordHedged();
+                done = reads.take();
+            }
+            try {
+                return done.get();
+            } catch (ExecutionException e) {
+                if (futures.size() == 1) {
+                    throw e;
+                }
+                log.debug("Hedged read failed, wait for the other one.", e.getCause());
+                return reads.take().get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new JedisException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Interrupted while waiting for replica read.", e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private WindowedHistogram hedgeLatency(String command) {
+        WindowedHistogram latency = hedgeLatencies.get(command);
+        if (latency == null) {
+            WindowedHistogram created = new WindowedHistogram(HEDGE_WINDOW);
+            latency = hedgeLatencies.putIfAbsent(command, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * 对冲读取使用的另一个从库.
+     * @param replica 第一次读取使用的从库.
+     * @return 下一个从库,只有一个从库时为null,表示使用主库.
+     */
+    private JedisPool hedgeReplica(JedisPool replica) {
+        if (replicaPools.size() < 2) {
+            return null;
+        }
+        int index = replicaPools.indexOf(replica);
+        return replicaPools.get((index + 1) % replicaPools.size());
+    }
+
+    /**
+     * 执行对冲读取的线程池,线程数随并发的读取增长,空闲60秒后回收.
+     */
+    private static ExecutorService newHedgeExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-cache-hedge-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 轮流选择一个从库.
+     * @param keys 读取的key.
+     * @return 从库的连接池,没有从库或者有key刚刚被写入时为null.
+     */
+    protected JedisPool selectReplica(String[] keys) {
+        if (replicaPools.isEmpty()) {
+            return null;
+        }
+        if (recentWrites != null) {
+            long now = System.currentTimeMillis();
+            for (String key : keys) {
+                if (recentWrites.contains(key, now)) {
+                    return null;
+                }
+            }
+        }
+        int index = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicaPools.size();
+        return replicaPools.get(index);
+    }
+
+    /**
+     * 记录本节点写入的key,replicaLag之内(最多2倍replicaLag)这些key从主库读取.
+     * @param keys 写入的key.
+     */
+    protected void markWritten(String... keys) {
+        if (recentWrites == null || replicaPools.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            recentWrites.add(key, now);
+        }
+    }
+
+    @Override
+    public long getReplicaLag() {
+        return replicaPools.isEmpty() ? 0 : replicaLag;
+    }
+
+    /**
+     * 从连接池借出连接,记录等待时间以及连接池耗尽的次数.
+     * @param pool 连接池.
+     * @return 连接.
+     */
+    protected Jedis borrow(JedisPool pool) {
+        long start = System.nanoTime();
+        try {
+            return pool.getResource();
+        } catch (JedisConnectionException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                metrics.recordExhausted();
+            }
+            throw e;
+        } finally {
+            metrics.recordBorrow(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 归还连接并记录占用时间.连接出错时jedis会将其作为损坏的连接归还.
+     * @param jedis 连接.
+     * @param borrowed 借出时的System.nanoTime().
+     */
+    protected void release(Jedis jedis, long borrowed) {
+        metrics.recordHold(System.nanoTime() - borrowed);
+        jedis.close();
+    }
+
+    /**
+     * 运行指标.
+     * @return 指标.
+     */
+    public RedisMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 连接池的当前状态,输出指标时使用.
+     * @return 状态描述.
+     */
+    protected String getPoolStatus() {
+        return "active=" + jedisPool.getNumActive() + ", idle=" + jedisPool.getNumIdle()
+                + ", waiters=" + jedisPool.getNumWaiters();
+    }
+
+    /**
+     * 加载引擎使用的所有脚本.
+     * @param jedis 连接.
+     */
+    protected void loadScripts(Jedis jedis) {
+        UNLINK_SCRIPT.load(jedis);
+        SYNC_SESSION_SCRIPT.load(jedis);
+    }
+
+    protected Map<String, Object> deserializeFields(Map<byte[], byte[]> datas) {
+        if (datas == null || datas.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> fields = new HashMap<String, Object>(datas.size());
+        for (Map.Entry<byte[], byte[]> data : datas.entrySet()) {
+            fields.put(SafeEncoder.encode(data.getKey()), deserialize(data.getValue()));
         }
+        return fields;
     }
 
-    private void checkKey(String key) {
-        if (key == null || key.isEmpty()) {
-            throw new IllegalArgumentException("Cache key is null or not a length of 0.");
+    protected Long unlink(Jedis jedis, List<String> keys) {
+        List<byte[]> binaryKeys = new ArrayList<byte[]>(keys.size());
+        for (String key : keys) {
+            binaryKeys.add(SafeEncoder.encode(key));
         }
+        return (Long) UNLINK_SCRIPT.execute(jedis, binaryKeys, Collections.<byte[]>emptyList());
     }
 
     public static void main(String[] args) {
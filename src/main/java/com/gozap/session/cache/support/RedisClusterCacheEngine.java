@@ -0,0 +1,521 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisClusterMaxRedirectionsException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * 基于redis cluster的cache实现.
+ * 每个操作根据key所在的slot选择节点,遇到MOVED/ASK时刷新slot信息后重试.
+ * 多key的操作按slot拆分,同一节点上的多个slot在一个管道中执行.
+ *
+ * 会话的头信息和属性只有在同一个slot中时才能原子的同步,需要在CacheSessionFilter中
+ * 开启keyHashTagEnable,让会话的key以{id}作为hash tag.没有开启时会退化为分别写入.
+ *
+ * 集群节点通过ServletContext中名为jedisClusterNodes的Set&lt;HostAndPort&gt;,
+ * 或者配置项clusterNodes(host:port,host:port)指定.
+ *
+ * @version 1.00 2015-7-27
+ * @since 1.6
+ */
+public class RedisClusterCacheEngine extends RedisCacheEngine {
+    private static final Log log = LogFactory.getLog(RedisClusterCacheEngine.class);
+    public static final String JEDIS_CLUSTER_NODES = "jedisClusterNodes";
+    /**
+     * 集群节点列表的配置项,格式为host:port,多个以","分隔.
+     */
+    public static final String CLUSTER_NODES = "clusterNodes";
+    /**
+     * 连接超时时间的配置项,单位毫秒.
+     */
+    public static final String CLUSTER_TIMEOUT = "clusterTimeout";
+    private static final int DEFAULT_CLUSTER_TIMEOUT = 2000;
+    /**
+     * 一个操作最多重定向次数的配置项.
+     */
+    public static final String CLUSTER_MAX_REDIRECTIONS = "clusterMaxRedirections";
+    private static final int DEFAULT_CLUSTER_MAX_REDIRECTIONS = 5;
+
+    private Set<HostAndPort> clusterNodes;
+    private GenericObjectPoolConfig poolConfig = new JedisPoolConfig();
+    private int timeout = DEFAULT_CLUSTER_TIMEOUT;
+    private int maxRedirections = DEFAULT_CLUSTER_MAX_REDIRECTIONS;
+    private SlotConnectionHandler connectionHandler;
+
+    public void setClusterNodes(Set<HostAndPort> clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+
+    public void setPoolConfig(GenericObjectPoolConfig poolConfig) {
+        this.poolConfig = poolConfig;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void doInit(Properties properties, ServletContext servletContext) {
+        super.doInit(properties, servletContext);
+        if (servletContext != null && servletContext.getAttribute(JEDIS_CLUSTER_NODES) != null) {
+            clusterNodes = (Set<HostAndPort>) servletContext.getAttribute(JEDIS_CLUSTER_NODES);
+        }
+        if (properties != null) {
+            String temp = properties.getProperty(CLUSTER_NODES);
+            if (temp != null && !temp.trim().isEmpty()) {
+                clusterNodes = parseNodes(temp);
+            }
+            temp = properties.getProperty(CLUSTER_TIMEOUT);
+            if (temp != null && !temp.trim().isEmpty()) {
+                timeout = Integer.parseInt(temp.trim());
+            }
+            temp = properties.getProperty(CLUSTER_MAX_REDIRECTIONS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                maxRedirections = Integer.parseInt(temp.trim());
+            }
+        }
+        if (clusterNodes == null || clusterNodes.isEmpty()) {
+            throw new IllegalArgumentException("Redis cluster nodes are not specified.");
+        }
+        if (!replicaPools.isEmpty()) {
+            log.warn("Replica pools are ignored by redisClusterCacheEngine, reads go to the slot masters.");
+            replicaPools = Collections.emptyList();
+        }
+        if (writeCoalesceWindow > 0) {
+            log.warn("Session writes are not coalesced by redisClusterCacheEngine, keys live on different nodes.");
+            writeCoalesceWindow = 0;
+        }
+        connectionHandler = new SlotConnectionHandler(clusterNodes, poolConfig, timeout);
+        log.info("redisClusterCacheEngine init with nodes " + clusterNodes);
+    }
+
+    /**
+     * 脚本需要在每个节点上加载.
+     */
+    @Override
+    protected void doStart() {
+        for (Map.Entry<String, JedisPool> node : connectionHandler.getNodes().entrySet()) {
+            Jedis jedis = null;
+            try {
+                jedis = node.getValue().getResource();
+                loadScripts(jedis);
+            } catch (JedisException e) {
+                log.warn("Can not load scripts on redis node " + node.getKey(), e);
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+        startMetricsLogger();
+    }
+
+    @Override
+    protected void doStop() {
+        log.info("redisClusterCacheEngine stop start");
+        stopAsync();
+        for (JedisPool pool : connectionHandler.getNodes().values()) {
+            pool.destroy();
+        }
+        log.info("redisClusterCacheEngine stop end");
+    }
+
+    /**
+     * 在routeKey所在的节点上执行.MOVED时刷新slot信息后重试,ASK时在目标节点上先发送ASKING再执行.
+     */
+    @Override
+    protected <T> T execute(String routeKey, JedisCallback<T> callback) {
+        HostAndPort askNode = null;
+        for (int attempt = 0; attempt <= maxRedirections; attempt++) {
+            Jedis jedis = null;
+            long borrowed = 0;
+            try {
+                if (askNode == null) {
+                    jedis = getResource(routeKey);
+                    borrowed = System.nanoTime();
+                } else {
+                    jedis = connectionHandler.getConnectionFromNode(askNode);
+                    borrowed = System.nanoTime();
+                    jedis.asking();
+                    askNode = null;
+                }
+                return callback.doInRedis(jedis);
+            } catch (JedisMovedDataException e) {
+                connectionHandler.renewSlotCache();
+            } catch (JedisAskDataException e) {
+                askNode = e.getTargetNode();
+            } catch (JedisConnectionException e) {
+                if (attempt >= maxRedirections) {
+                    throw e;
+                }
+                connectionHandler.renewSlotCache();
+            } finally {
+                if (jedis != null) {
+                    release(jedis, borrowed);
+                }
+            }
+        }
+        throw new JedisClusterMaxRedirectionsException("Too many Cluster redirections for key " + routeKey);
+    }
+
+    /**
+     * 按slot拆分后,同一节点上所有slot的MGET在一个管道中执行.
+     * 管道中出现重定向时,刷新slot信息,此节点上的key改为逐个slot执行.
+     */
+    @Override
+    public Map<String, Object> get(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        Map<JedisPool, Map<Integer, List<String>>> nodes = new LinkedHashMap<JedisPool, Map<Integer, List<String>>>();
+        List<List<String>> unknownSlots = new ArrayList<List<String>>();
+        for (Map.Entry<Integer, List<String>> slot : groupBySlot(keys).entrySet()) {
+            JedisPool pool = connectionHandler.getSlotPool(slot.getKey());
+            if (pool == null) {
+                unknownSlots.add(slot.getValue());
+                continue;
+            }
+            Map<Integer, List<String>> slots = nodes.get(pool);
+            if (slots == null) {
+                slots = new LinkedHashMap<Integer, List<String>>();
+                nodes.put(pool, slots);
+            }
+            slots.put(slot.getKey(), slot.getValue());
+        }
+
+        Map<String, byte[]> datas = new HashMap<String, byte[]>(keys.length);
+        for (Map.Entry<JedisPool, Map<Integer, List<String>>> node : nodes.entrySet()) {
+            try {
+                mgetFromNode(node.getKey(), node.getValue().values(), datas);
+            } catch (JedisException e) {
+                log.debug("Batch get from redis node failed, retry by slot.", e);
+                connectionHandler.renewSlotCache();
+                unknownSlots.addAll(node.getValue().values());
+            }
+        }
+        for (List<String> slotKeys : unknownSlots) {
+            mgetFromSlot(slotKeys, datas);
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        for (Map.Entry<String, byte[]> data : datas.entrySet()) {
+            if (data.getValue() != null) {
+                values.put(data.getKey(), deserialize(data.getValue()));
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * 总是从slot所在的主节点读取.
+     */
+    @Override
+    public Map<String, Object> getFromPrimary(String[] keys) {
+        return get(keys);
+    }
+
+    /**
+     * 总是从slot所在的主节点读取.
+     */
+    @Override
+    public Map<String, Object> getWithFieldsFromPrimary(String[] keys, String fieldsKey) {
+        return getWithFields(keys, fieldsKey);
+    }
+
+    /**
+     * 会话的key不在同一个slot时分别读取.
+     */
+    @Override
+    public Map<String, Object> getWithFields(String[] keys, String fieldsKey) {
+        if (sameSlot(fieldsKey, keys)) {
+            return super.getWithFields(keys, fieldsKey);
+        }
+        Map<String, Object> values = new HashMap<String, Object>(get(keys));
+        Map<String, Object> fields = getFields(fieldsKey);
+        if (fields != null) {
+            values.put(fieldsKey, fields);
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * 值和组不在同一个slot,写入值之后再分别登记到各个组中.
+     */
+    @Override
+    public void put(final String key, Object value, String[] group) {
+        put(key, value);
+        if (group != null) {
+            for (String name : group) {
+                checkKey(name);
+                final String groupKey = groupKey(name);
+                execute("SADD", groupKey, new JedisCallback<Long>() {
+                    public Long doInRedis(Jedis jedis) {
+                        return jedis.sadd(groupKey, key);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * 按slot拆分后分别UNLINK,会话的key在同一个slot时只有一次往返.
+     */
+    @Override
+    public void del(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        for (String key : keys) {
+            checkKey(key);
+        }
+        for (final List<String> slotKeys : groupBySlot(keys).values()) {
+            execute("UNLINK", slotKeys.get(0), new JedisCallback<Long>() {
+                public Long doInRedis(Jedis jedis) {
+                    return unlink(jedis, slotKeys);
+                }
+            });
+        }
+    }
+
+    /**
+     * 组的成员分布在不同的slot中,每批成员按slot拆分后分别UNLINK.
+     */
+    @Override
+    public void flushGroup(String group) {
+        checkInit();
+        checkKey(group);
+        final String groupKey = groupKey(group);
+        final int batchSize = getFlushGroupBatchSize();
+        final ScanParams params = new ScanParams().count(batchSize);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            final String current = cursor;
+            ScanResult<String> result = execute("SSCAN", groupKey, new JedisCallback<ScanResult<String>>() {
+                public ScanResult<String> doInRedis(Jedis jedis) {
+                    return jedis.sscan(groupKey, current, params);
+                }
+            });
+            List<String> members = result.getResult();
+            if (!members.isEmpty()) {
+                for (final List<String> slotKeys : groupBySlot(members.toArray(new String[members.size()])).values()) {
+                    execute("UNLINK", slotKeys.get(0), new JedisCallback<Long>() {
+                        public Long doInRedis(Jedis jedis) {
+                            return unlink(jedis, slotKeys);
+                        }
+                    });
+                }
+            }
+            cursor = result.getStringCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        execute("UNLINK", groupKey, new JedisCallback<Long>() {
+            public Long doInRedis(Jedis jedis) {
+                return unlink(jedis, Collections.singletonList(groupKey));
+            }
+        });
+    }
+
+    /**
+     * 头信息和属性不在同一个slot时无法使用脚本,退化为分别写入.
+     */
+    @Override
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        if (sameSlot(headerKey, attributeKey)) {
+            super.synchronize(headerKey, header, attributeKey, attributes, seconds);
+            return;
+        }
+        write(headerKey, header, seconds);
+        if (attributes != null) {
+            write(attributeKey, attributes, seconds);
+        } else if (seconds > 0) {
+            expire(attributeKey, seconds);
+        }
+    }
+
+    /**
+     * 头信息和属性不在同一个slot时无法使用脚本,退化为分别写入.
+     */
+    @Override
+    public void synchronizeFields(String headerKey, Object header,
+            String fieldsKey, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        if (sameSlot(headerKey, fieldsKey)) {
+            super.synchronizeFields(headerKey, header, fieldsKey, fields, removedFields, seconds);
+            return;
+        }
+        write(headerKey, header, seconds);
+        putFields(fieldsKey, fields, removedFields, seconds);
+    }
+
+    private void write(String key, Object value, int seconds) {
+        if (seconds > 0) {
+            put(key, value, seconds);
+        } else {
+            put(key, value);
+        }
+    }
+
+    private void mgetFromNode(JedisPool pool, Collection<List<String>> slots, Map<String, byte[]> datas) {
+        List<List<String>> slotKeys = new ArrayList<List<String>>(slots);
+        List<Response<List<byte[]>>> responses = new ArrayList<Response<List<byte[]>>>(slotKeys.size());
+        long start = System.nanoTime();
+        Jedis jedis = borrow(pool);
+        long borrowed = System.nanoTime();
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (List<String> keys : slotKeys) {
+                responses.add(pipeline.mget(encode(keys)));
+            }
+            pipeline.sync();
+        } finally {
+            release(jedis, borrowed);
+            getMetrics().recordCommand("MGET", System.nanoTime() - start);
+        }
+        for (int i = 0; i < slotKeys.size(); i++) {
+            List<byte[]> values = responses.get(i).get();
+            List<String> keys = slotKeys.get(i);
+            for (int j = 0; j < keys.size(); j++) {
+                datas.put(keys.get(j), values.get(j));
+            }
+        }
+    }
+
+    private void mgetFromSlot(List<String> keys, Map<String, byte[]> datas) {
+        final byte[][] binaryKeys = encode(keys);
+        List<byte[]> values = execute("MGET", keys.get(0), new JedisCallback<List<byte[]>>() {
+            public List<byte[]> doInRedis(Jedis jedis) {
+                return mget(jedis, binaryKeys);
+            }
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            datas.put(keys.get(i), values.get(i));
+        }
+    }
+
+    private Jedis getResource(String routeKey) {
+        JedisPool pool = routeKey == null ? null
+                : connectionHandler.getSlotPool(JedisClusterCRC16.getSlot(routeKey));
+        if (pool != null) {
+            return borrow(pool);
+        }
+        long start = System.nanoTime();
+        try {
+            return routeKey == null ? connectionHandler.getConnection()
+                    : connectionHandler.getConnectionFromSlot(JedisClusterCRC16.getSlot(routeKey));
+        } finally {
+            getMetrics().recordBorrow(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 每个节点连接池的当前状态.
+     */
+    @Override
+    protected String getPoolStatus() {
+        StringBuilder buff = new StringBuilder();
+        for (Map.Entry<String, JedisPool> node : connectionHandler.getNodes().entrySet()) {
+            if (buff.length() > 0) {
+                buff.append("; ");
+            }
+            JedisPool pool = node.getValue();
+            buff.append(node.getKey()).append(": active=").append(pool.getNumActive())
+                    .append(", idle=").append(pool.getNumIdle())
+                    .append(", waiters=").append(pool.getNumWaiters());
+        }
+        return buff.toString();
+    }
+
+    private Map<Integer, List<String>> groupBySlot(String[] keys) {
+        Map<Integer, List<String>> slots = new LinkedHashMap<Integer, List<String>>();
+        for (String key : keys) {
+            checkKey(key);
+            Integer slot = JedisClusterCRC16.getSlot(key);
+            List<String> slotKeys = slots.get(slot);
+            if (slotKeys == null) {
+                slotKeys = new ArrayList<String>();
+                slots.put(slot, slotKeys);
+            }
+            slotKeys.add(key);
+        }
+        return slots;
+    }
+
+    private boolean sameSlot(String key, String... others) {
+        int slot = JedisClusterCRC16.getSlot(key);
+        if (others != null) {
+            for (String other : others) {
+                if (JedisClusterCRC16.getSlot(other) != slot) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[][] encode(List<String> keys) {
+        byte[][] binaryKeys = new byte[keys.size()][];
+        for (int i = 0; i < binaryKeys.length; i++) {
+            binaryKeys[i] = SafeEncoder.encode(keys.get(i));
+        }
+        return binaryKeys;
+    }
+
+    private static Set<HostAndPort> parseNodes(String nodes) {
+        Set<HostAndPort> result = new HashSet<HostAndPort>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            int index = node.lastIndexOf(':');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Illegal redis cluster node " + node);
+            }
+            result.add(new HostAndPort(node.substring(0, index), Integer.parseInt(node.substring(index + 1))));
+        }
+        return result;
+    }
+
+    /**
+     * 暴露slot所在节点的连接池.
+     */
+    private static class SlotConnectionHandler extends JedisSlotBasedConnectionHandler {
+
+        SlotConnectionHandler(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig, int timeout) {
+            super(nodes, poolConfig, timeout);
+        }
+
+        JedisPool getSlotPool(int slot) {
+            return cache.getSlotPool(slot);
+        }
+    }
+}
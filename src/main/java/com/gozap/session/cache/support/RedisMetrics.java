@@ -0,0 +1,112 @@
+package com.gozap.session.cache.support;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gozap.session.util.LatencyHistogram;
+
+/**
+ * redis缓存引擎的运行指标.
+ * 记录从连接池借出连接的等待时间,连接被占用的时间,连接池耗尽的次数以及每种命令的延迟,
+ * 借出等待时间和耗尽次数的上升通常先于请求的阻塞出现.启用对冲读取时还记录发出对冲读取的次数.
+ *
+ * @version 1.00 2015-8-7
+ * @since 1.6
+ */
+public class RedisMetrics {
+
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LatencyHistogram hold = new LatencyHistogram();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final ConcurrentMap<String, LatencyHistogram> commands =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * @return 借出连接的等待时间.
+     */
+    public LatencyHistogram getBorrowWait() {
+        return borrowWait;
+    }
+
+    /**
+     * @return 连接从借出到归还的时间.
+     */
+    public LatencyHistogram getHold() {
+        return hold;
+    }
+
+    /**
+     * @return 连接池中没有可用连接导致借出失败的次数.
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return 第一次读取在对冲延迟内没有返回,又发出第二次读取的次数.
+     */
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * 一种命令的延迟.
+     * @param command 命令名称.
+     * @return 延迟,没有执行过此命令时为null.
+     */
+    public LatencyHistogram getCommand(String command) {
+        return commands.get(command);
+    }
+
+    /**
+     * @return 命令名称和延迟的只读映射表.
+     */
+    public Map<String, LatencyHistogram> getCommands() {
+        return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(commands));
+    }
+
+    void recordBorrow(long nanos) {
+        borrowWait.record(nanos);
+    }
+
+    void recordHold(long nanos) {
+        hold.record(nanos);
+    }
+
+    void recordExhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    void recordHedged() {
+        hedged.incrementAndGet();
+    }
+
+    void recordCommand(String command, long nanos) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = commands.putIfAbsent(command, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        buff.append("borrow[").append(borrowWait).append("], hold[").append(hold)
+                .append("], exhausted=").append(getExhausted())
+                .append(", hedged=").append(getHedged());
+        for (Map.Entry<String, LatencyHistogram> command : getCommands().entrySet()) {
+            buff.append(", ").append(command.getKey()).append('[').append(command.getValue()).append(']');
+        }
+        return buff.toString();
+    }
+}
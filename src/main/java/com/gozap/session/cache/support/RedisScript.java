@@ -0,0 +1,106 @@
+package com.gozap.session.cache.support;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * redis的lua脚本.SHA1摘要在本地计算,执行时使用EVALSHA,只传输摘要.
+ * 如果服务器上没有此脚本(比如重启或者主从切换之后),会重新加载后再执行一次.
+ *
+ * @version 1.00 2015-7-22
+ * @since 1.6
+ */
+public class RedisScript {
+
+    private final String script;
+    private final byte[] sha;
+
+    public RedisScript(String script) {
+        this.script = script;
+        this.sha = SafeEncoder.encode(sha1Hex(script));
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getSha() {
+        return SafeEncoder.encode(sha);
+    }
+
+    /**
+     * 加载脚本到redis服务器.
+     * @param jedis 连接.
+     */
+    public void load(Jedis jedis) {
+        jedis.scriptLoad(SafeEncoder.encode(script));
+    }
+
+    /**
+     * 执行脚本.
+     * @param jedis 连接.
+     * @param keys 脚本中的KEYS.
+     * @param args 脚本中的ARGV.
+     * @return 脚本的返回值.
+     */
+    public Object execute(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            load(jedis);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * 在连接上发送EVALSHA但不读取回复,用于流水线批量执行.回复需要调用方通过
+     * jedis.getClient().getAll()读取,服务器上没有此脚本时回复为NOSCRIPT错误.
+     * @param jedis 连接.
+     * @param keys 脚本中的KEYS.
+     * @param args 脚本中的ARGV.
+     */
+    public void send(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        byte[][] params = new byte[keys.size() + args.size()][];
+        int index = 0;
+        for (byte[] key : keys) {
+            params[index++] = key;
+        }
+        for (byte[] arg : args) {
+            params[index++] = arg;
+        }
+        jedis.getClient().evalsha(sha, keys.size(), params);
+    }
+
+    /**
+     * 是否是服务器上没有脚本的错误.
+     * @param e 执行脚本时的错误.
+     * @return true是NOSCRIPT错误.
+     */
+    public static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    private static String sha1Hex(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(SafeEncoder.encode(source));
+        StringBuilder buff = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buff.append(Character.forDigit((b >> 4) & 0xF, 16));
+            buff.append(Character.forDigit(b & 0xF, 16));
+        }
+        return buff.toString();
+    }
+}
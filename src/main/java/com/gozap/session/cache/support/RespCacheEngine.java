@@ -0,0 +1,647 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import redis.clients.util.SafeEncoder;
+
+import com.gozap.session.cache.AsyncCacheEngine;
+import com.gozap.session.cache.HashCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.cache.TtlCacheEngine;
+import com.gozap.session.cache.support.resp.RespClient;
+import com.gozap.session.cache.support.resp.RespException;
+import com.gozap.session.cache.support.resp.RespFuture;
+
+/**
+ * 使用内置的NIO RESP客户端的redis缓存实现.
+ * 所有线程共享少量的连接,并发的命令由连接的写线程自动合并成管道写出,
+ * 不需要按容器线程数配置连接池,也没有借出和归还连接的开销.
+ * 数据格式,会话同步脚本与RedisCacheEngine相同,两者可以互相替换.
+ *
+ * 配置项:respHost,respPort,respPassword,respDatabase,respConnections(连接数,默认2),
+ * respTimeout(连接和等待回复的超时毫秒数,默认2000),respBufferSize(读写缓冲区字节数,默认64K),
+ * 以及AbstractRedisCacheEngine中的serializeStrategy,mgetBatchSize,groupKeyPrefix和flushGroupBatchSize.
+ * 也可以在ServletContext中以respClient放入构造好的RespClient.
+ *
+ * @version 1.00 2015-8-5
+ * @since 1.6
+ */
+public class RespCacheEngine extends AbstractRedisCacheEngine
+        implements HashCacheEngine, SessionCacheEngine, AsyncCacheEngine, TtlCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(RespCacheEngine.class);
+
+    public static final String RESP_CLIENT = "respClient";
+    public static final String RESP_HOST = "respHost";
+    public static final String RESP_PORT = "respPort";
+    public static final String RESP_PASSWORD = "respPassword";
+    public static final String RESP_DATABASE = "respDatabase";
+    public static final String RESP_CONNECTIONS = "respConnections";
+    public static final String RESP_TIMEOUT = "respTimeout";
+    public static final String RESP_BUFFER_SIZE = "respBufferSize";
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 6379;
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int DEFAULT_TIMEOUT = 2000;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] GET = SafeEncoder.encode("GET");
+    private static final byte[] SET = SafeEncoder.encode("SET");
+    private static final byte[] SETEX = SafeEncoder.encode("SETEX");
+    private static final byte[] MGET = SafeEncoder.encode("MGET");
+    private static final byte[] DEL = SafeEncoder.encode("DEL");
+    private static final byte[] EXISTS = SafeEncoder.encode("EXISTS");
+    private static final byte[] EXPIRE = SafeEncoder.encode("EXPIRE");
+    private static final byte[] PTTL = SafeEncoder.encode("PTTL");
+    private static final byte[] INCRBY = SafeEncoder.encode("INCRBY");
+    private static final byte[] DECRBY = SafeEncoder.encode("DECRBY");
+    private static final byte[] SADD = SafeEncoder.encode("SADD");
+    private static final byte[] SSCAN = SafeEncoder.encode("SSCAN");
+    private static final byte[] COUNT = SafeEncoder.encode("COUNT");
+    private static final byte[] HGETALL = SafeEncoder.encode("HGETALL");
+    private static final byte[] HMSET = SafeEncoder.encode("HMSET");
+    private static final byte[] HDEL = SafeEncoder.encode("HDEL");
+    private static final byte[] EVAL = SafeEncoder.encode("EVAL");
+    private static final byte[] EVALSHA = SafeEncoder.encode("EVALSHA");
+    private static final byte[] SCRIPT = SafeEncoder.encode("SCRIPT");
+    private static final byte[] LOAD = SafeEncoder.encode("LOAD");
+    private static final byte[] SCAN_START = SafeEncoder.encode("0");
+
+    private RespClient client;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    public void setClient(RespClient client) {
+        this.client = client;
+    }
+
+    @Override
+    protected void doInit(Properties properties, ServletContext servletContext) {
+        LOGGER.info("respCacheEngine init start");
+        if (servletContext != null && servletContext.getAttribute(RESP_CLIENT) != null) {
+            client = (RespClient) servletContext.getAttribute(RESP_CLIENT);
+        }
+        if (properties == null) {
+            properties = new Properties();
+        }
+        initRedisProperties(properties);
+        if (client == null) {
+            String host = properties.getProperty(RESP_HOST);
+            if (host == null || host.trim().isEmpty()) {
+                host = DEFAULT_HOST;
+            }
+            String password = properties.getProperty(RESP_PASSWORD);
+            if (password != null && password.isEmpty()) {
+                password = null;
+            }
+            int port = intProperty(properties, RESP_PORT, DEFAULT_PORT);
+            int connections = intProperty(properties, RESP_CONNECTIONS, DEFAULT_CONNECTIONS);
+            int bufferSize = intProperty(properties, RESP_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+            int database = intProperty(properties, RESP_DATABASE, 0);
+            client = new RespClient(host.trim(), port, connections,
+                    intProperty(properties, RESP_TIMEOUT, DEFAULT_TIMEOUT), password, database, bufferSize);
+            LOGGER.info("respCacheEngine connect to " + host + ":" + port + " with " + connections + " connections.");
+        }
+        timeout = client.getTimeout();
+    }
+
+    @Override
+    protected void doStart() {
+        loadScript(UNLINK_SCRIPT);
+        loadScript(SYNC_SESSION_SCRIPT);
+    }
+
+    @Override
+    protected void doStop() {
+        LOGGER.info("respCacheEngine stop start");
+        client.close();
+        LOGGER.info("respCacheEngine stop end");
+    }
+
+    public boolean containsKey(String key) {
+        checkInit();
+        checkKey(key);
+        return Long.valueOf(1L).equals(client.execute(key, EXISTS, encode(key)));
+    }
+
+    public void put(String key, Object value) {
+        checkInit();
+        checkKey(key);
+        client.execute(key, SET, encode(key), serialize(value));
+    }
+
+    public void put(String key, Object value, int seconds) {
+        checkInit();
+        checkKey(key);
+        client.execute(key, SETEX, encode(key), encode(seconds), serialize(value));
+    }
+
+    public boolean expire(String key, int seconds) {
+        checkInit();
+        checkKey(key);
+        return Long.valueOf(1L).equals(client.execute(key, EXPIRE, encode(key), encode(seconds)));
+    }
+
+    /**
+     * 写入值的同时将key登记到每个组对应的SET中,所有命令在同一个连接上一起写出.
+     */
+    public void put(String key, Object value, String[] group) {
+        checkInit();
+        checkKey(key);
+        if (group != null) {
+            for (String name : group) {
+                checkKey(name);
+            }
+        }
+        List<RespFuture> futures = new ArrayList<RespFuture>();
+        futures.add(client.send(key, SET, encode(key), serialize(value)));
+        if (group != null) {
+            for (String name : group) {
+                futures.add(client.send(key, SADD, encode(groupKey(name)), encode(key)));
+            }
+        }
+        await(futures);
+    }
+
+    public void del(String key) {
+        checkInit();
+        checkKey(key);
+        evalsha(key, UNLINK_SCRIPT, Collections.singletonList(encode(key)),
+                Collections.<byte[]>emptyList());
+    }
+
+    public void del(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+        List<byte[]> binaryKeys = new ArrayList<byte[]>(keys.length);
+        for (String key : keys) {
+            checkKey(key);
+            binaryKeys.add(encode(key));
+        }
+        evalsha(keys[0], UNLINK_SCRIPT, binaryKeys, Collections.<byte[]>emptyList());
+    }
+
+    public void remove(String key) {
+        del(key);
+    }
+
+    public Object get(String key) {
+        checkInit();
+        checkKey(key);
+        return deserialize((byte[]) client.execute(key, GET, encode(key)));
+    }
+
+    public Map<String, Object> get(String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        return toValues(keys, await(sendMget(keys)));
+    }
+
+    /**
+     * MGET和每个key的PTTL一起写出,在同一次往返中返回.
+     */
+    public Map<String, Object> getWithTtl(String[] keys, long[] ttls) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        if (ttls.length < keys.length) {
+            throw new IllegalArgumentException("Ttl array is shorter than keys.");
+        }
+        List<RespFuture> mgets = sendMget(keys);
+        List<RespFuture> pttls = new ArrayList<RespFuture>(keys.length);
+        for (String key : keys) {
+            pttls.add(client.send(key, PTTL, encode(key)));
+        }
+        Map<String, Object> values = toValues(keys, await(mgets));
+        List<Object> replies = await(pttls);
+        for (int i = 0; i < keys.length; i++) {
+            ttls[i] = (Long) replies.get(i);
+        }
+        return values;
+    }
+
+    public long increase(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return (Long) client.execute(key, INCRBY, encode(key), encode(magnitude));
+    }
+
+    public long decrease(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return (Long) client.execute(key, DECRBY, encode(key), encode(magnitude));
+    }
+
+    /**
+     * 以SSCAN分批遍历组中的成员,每批使用UNLINK删除,最后删除组本身.
+     */
+    public void flushGroup(String group) {
+        checkInit();
+        checkKey(group);
+        String groupKey = groupKey(group);
+        byte[] binaryGroupKey = encode(groupKey);
+        int flushGroupBatchSize = getFlushGroupBatchSize();
+        byte[] count = encode(flushGroupBatchSize);
+        byte[] cursor = SCAN_START;
+        List<byte[]> batch = new ArrayList<byte[]>(flushGroupBatchSize);
+        do {
+            List<?> result = (List<?>) client.execute(groupKey, SSCAN, binaryGroupKey, cursor, COUNT, count);
+            cursor = (byte[]) result.get(0);
+            for (Object member : (List<?>) result.get(1)) {
+                batch.add((byte[]) member);
+            }
+            if (batch.size() >= flushGroupBatchSize) {
+                evalsha(groupKey, UNLINK_SCRIPT, batch, Collections.<byte[]>emptyList());
+                batch.clear();
+            }
+        } while (!Arrays.equals(SCAN_START, cursor));
+        batch.add(binaryGroupKey);
+        evalsha(groupKey, UNLINK_SCRIPT, batch, Collections.<byte[]>emptyList());
+    }
+
+    public Map<String, Object> getFields(String key) {
+        checkInit();
+        checkKey(key);
+        return toFields((List<?>) client.execute(key, HGETALL, encode(key)));
+    }
+
+    /**
+     * MGET和HGETALL在同一个连接上一起写出,只需要一次往返.
+     */
+    public Map<String, Object> getWithFields(String[] keys, String fieldsKey) {
+        checkInit();
+        checkKey(fieldsKey);
+        RespFuture values = null;
+        if (keys != null && keys.length > 0) {
+            byte[][] command = new byte[keys.length + 1][];
+            command[0] = MGET;
+            for (int i = 0; i < keys.length; i++) {
+                checkKey(keys[i]);
+                command[i + 1] = encode(keys[i]);
+            }
+            values = client.send(fieldsKey, command);
+        }
+        RespFuture fields = client.send(fieldsKey, HGETALL, encode(fieldsKey));
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (values != null) {
+            result.putAll(toValues(keys, Collections.singletonList(values.getReply(timeout))));
+        }
+        Map<String, Object> fieldValues = toFields((List<?>) fields.getReply(timeout));
+        if (fieldValues != null) {
+            result.put(fieldsKey, fieldValues);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * HMSET,HDEL和EXPIRE在同一个连接上一起写出.
+     */
+    public void putFields(String key, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        checkInit();
+        checkKey(key);
+        byte[] binaryKey = encode(key);
+        List<RespFuture> futures = new ArrayList<RespFuture>(3);
+        if (fields != null && !fields.isEmpty()) {
+            byte[][] command = new byte[fields.size() * 2 + 2][];
+            command[0] = HMSET;
+            command[1] = binaryKey;
+            int i = 2;
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                command[i++] = encode(field.getKey());
+                command[i++] = serialize(field.getValue());
+            }
+            futures.add(client.send(key, command));
+        }
+        if (removedFields != null && !removedFields.isEmpty()) {
+            byte[][] command = new byte[removedFields.size() + 2][];
+            command[0] = HDEL;
+            command[1] = binaryKey;
+            int i = 2;
+            for (String name : removedFields) {
+                command[i++] = encode(name);
+            }
+            futures.add(client.send(key, command));
+        }
+        if (seconds > 0) {
+            futures.add(client.send(key, EXPIRE, binaryKey, encode(seconds)));
+        }
+        await(futures);
+    }
+
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        List<byte[]> args = new ArrayList<byte[]>(4);
+        args.add(encode(seconds));
+        args.add(serialize(header));
+        if (attributes == null) {
+            args.add(SYNC_KEEP);
+        } else {
+            args.add(SYNC_VALUE);
+            args.add(serialize(attributes));
+        }
+        synchronize(headerKey, attributeKey, args);
+    }
+
+    public void synchronizeFields(String headerKey, Object header,
+            String fieldsKey, Map<String, Object> fields,
+            Collection<String> removedFields, int seconds) {
+        int fieldCount = fields == null ? 0 : fields.size();
+        int removedCount = removedFields == null ? 0 : removedFields.size();
+        List<byte[]> args = new ArrayList<byte[]>(4 + fieldCount * 2 + removedCount);
+        args.add(encode(seconds));
+        args.add(serialize(header));
+        args.add(SYNC_FIELDS);
+        args.add(encode(fieldCount));
+        if (fieldCount > 0) {
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                args.add(encode(field.getKey()));
+                args.add(serialize(field.getValue()));
+            }
+        }
+        if (removedCount > 0) {
+            for (String name : removedFields) {
+                args.add(encode(name));
+            }
+        }
+        synchronize(headerKey, fieldsKey, args);
+    }
+
+    private void synchronize(String headerKey, String attributeKey, List<byte[]> args) {
+        checkInit();
+        checkKey(headerKey);
+        checkKey(attributeKey);
+        evalsha(headerKey, SYNC_SESSION_SCRIPT,
+                Arrays.asList(encode(headerKey), encode(attributeKey)), args);
+    }
+
+    public Future<Object> getAsync(String key) {
+        checkInit();
+        checkKey(key);
+        return new ReplyFuture<Object>(client.send(key, GET, encode(key))) {
+            @Override
+            protected Object convert(List<Object> replies) {
+                return deserialize((byte[]) replies.get(0));
+            }
+        };
+    }
+
+    public Future<Map<String, Object>> getAsync(final String[] keys) {
+        checkInit();
+        if (keys == null || keys.length == 0) {
+            return new ReplyFuture<Map<String, Object>>(Collections.<RespFuture>emptyList()) {
+                @Override
+                protected Map<String, Object> convert(List<Object> replies) {
+                    return Collections.emptyMap();
+                }
+            };
+        }
+        return new ReplyFuture<Map<String, Object>>(sendMget(keys)) {
+            @Override
+            protected Map<String, Object> convert(List<Object> replies) {
+                return toValues(keys, replies);
+            }
+        };
+    }
+
+    public Future<Void> putAsync(String key, Object value) {
+        checkInit();
+        checkKey(key);
+        return new VoidFuture(Collections.singletonList(client.send(key, SET, encode(key), serialize(value))));
+    }
+
+    public Future<Void> putAsync(String key, Object value, int seconds) {
+        checkInit();
+        checkKey(key);
+        return new VoidFuture(Collections.singletonList(
+                client.send(key, SETEX, encode(key), encode(seconds), serialize(value))));
+    }
+
+    public Future<Void> putAsync(Map<String, Object> values, int seconds) {
+        checkInit();
+        List<RespFuture> futures = new ArrayList<RespFuture>(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            String key = entry.getKey();
+            checkKey(key);
+            if (seconds > 0) {
+                futures.add(client.send(key, SETEX, encode(key), encode(seconds), serialize(entry.getValue())));
+            } else {
+                futures.add(client.send(key, SET, encode(key), serialize(entry.getValue())));
+            }
+        }
+        return new VoidFuture(futures);
+    }
+
+    public Future<Void> delAsync(String key) {
+        checkInit();
+        checkKey(key);
+        return new VoidFuture(Collections.singletonList(client.send(key, DEL, encode(key))));
+    }
+
+    public Future<Long> increaseAsync(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return new LongFuture(client.send(key, INCRBY, encode(key), encode(magnitude)));
+    }
+
+    public Future<Long> decreaseAsync(String key, long magnitude) {
+        checkInit();
+        checkKey(key);
+        return new LongFuture(client.send(key, DECRBY, encode(key), encode(magnitude)));
+    }
+
+    /**
+     * 按mgetBatchSize拆分成多个MGET,同时写出.
+     */
+    private List<RespFuture> sendMget(String[] keys) {
+        int mgetBatchSize = getMgetBatchSize();
+        List<RespFuture> futures = new ArrayList<RespFuture>(keys.length / mgetBatchSize + 1);
+        for (int from = 0; from < keys.length; from += mgetBatchSize) {
+            int to = Math.min(from + mgetBatchSize, keys.length);
+            byte[][] command = new byte[to - from + 1][];
+            command[0] = MGET;
+            for (int i = from; i < to; i++) {
+                checkKey(keys[i]);
+                command[i - from + 1] = encode(keys[i]);
+            }
+            futures.add(client.send(keys[0], command));
+        }
+        return futures;
+    }
+
+    private Map<String, Object> toValues(String[] keys, List<Object> replies) {
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        int i = 0;
+        for (Object reply : replies) {
+            for (Object data : (List<?>) reply) {
+                if (data != null) {
+                    values.put(keys[i], deserialize((byte[]) data));
+                }
+                i++;
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    private Map<String, Object> toFields(List<?> reply) {
+        if (reply == null || reply.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> fields = new HashMap<String, Object>(reply.size() / 2);
+        for (int i = 0; i + 1 < reply.size(); i += 2) {
+            fields.put(SafeEncoder.encode((byte[]) reply.get(i)), deserialize((byte[]) reply.get(i + 1)));
+        }
+        return fields;
+    }
+
+    /**
+     * 使用EVALSHA执行脚本,服务器上没有此脚本时以EVAL执行,同时会加载脚本.
+     */
+    private Object evalsha(String routeKey, RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        byte[][] command = new byte[keys.size() + args.size() + 3][];
+        command[1] = SafeEncoder.encode(script.getSha());
+        command[2] = encode(keys.size());
+        int i = 3;
+        for (byte[] key : keys) {
+            command[i++] = key;
+        }
+        for (byte[] arg : args) {
+            command[i++] = arg;
+        }
+        command[0] = EVALSHA;
+        try {
+            return client.execute(routeKey, command);
+        } catch (RespException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            command[0] = EVAL;
+            command[1] = SafeEncoder.encode(script.getScript());
+            return client.execute(routeKey, command);
+        }
+    }
+
+    private void loadScript(RedisScript script) {
+        client.execute(null, SCRIPT, LOAD, SafeEncoder.encode(script.getScript()));
+    }
+
+    private List<Object> await(List<RespFuture> futures) {
+        List<Object> replies = new ArrayList<Object>(futures.size());
+        for (RespFuture future : futures) {
+            replies.add(future.getReply(timeout));
+        }
+        return replies;
+    }
+
+    private static byte[] encode(String value) {
+        return SafeEncoder.encode(value);
+    }
+
+    private static byte[] encode(long value) {
+        return SafeEncoder.encode(String.valueOf(value));
+    }
+
+    /**
+     * 等待一组命令的回复,再将回复转换成结果.
+     */
+    private abstract static class ReplyFuture<T> implements Future<T> {
+
+        private final List<RespFuture> futures;
+
+        ReplyFuture(RespFuture future) {
+            this(Collections.singletonList(future));
+        }
+
+        ReplyFuture(List<RespFuture> futures) {
+            this.futures = futures;
+        }
+
+        protected abstract T convert(List<Object> replies);
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            for (RespFuture future : futures) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public T get() throws InterruptedException, ExecutionException {
+            List<Object> replies = new ArrayList<Object>(futures.size());
+            for (RespFuture future : futures) {
+                replies.add(future.get());
+            }
+            return convertReplies(replies);
+        }
+
+        public T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            List<Object> replies = new ArrayList<Object>(futures.size());
+            for (RespFuture future : futures) {
+                replies.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+            return convertReplies(replies);
+        }
+
+        private T convertReplies(List<Object> replies) throws ExecutionException {
+            try {
+                return convert(replies);
+            } catch (RuntimeException e) {
+                throw new ExecutionException(e);
+            }
+        }
+    }
+
+    private static class VoidFuture extends ReplyFuture<Void> {
+
+        VoidFuture(List<RespFuture> futures) {
+            super(futures);
+        }
+
+        @Override
+        protected Void convert(List<Object> replies) {
+            return null;
+        }
+    }
+
+    private static class LongFuture extends ReplyFuture<Long> {
+
+        LongFuture(RespFuture future) {
+            super(future);
+        }
+
+        @Override
+        protected Long convert(List<Object> replies) {
+            return (Long) replies.get(0);
+        }
+    }
+}
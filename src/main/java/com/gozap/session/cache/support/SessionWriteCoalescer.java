@@ -0,0 +1,228 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * 合并多个请求线程的会话写入.写入线程把同步会话的脚本参数放入队列后等待,
+ * 后台线程取出第一个写入后最多再等待一个很短的窗口收集其他写入,
+ * 然后在一个连接上以流水线发送全部EVALSHA,收到回复后唤醒各自的写入线程.
+ * 每个写入线程多付出最多一个窗口的延迟,换来每批只有一次网络往返.
+ *
+ * @version 1.00 2015-8-12
+ * @since 1.6
+ */
+class SessionWriteCoalescer implements Runnable {
+
+    private static final Log log = LogFactory.getLog(SessionWriteCoalescer.class);
+
+    private final RedisCacheEngine engine;
+    private final long windowNanos;
+    private final int batchSize;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param engine 执行写入的引擎.
+     * @param windowMicros 收集写入的窗口,微秒.
+     * @param batchSize 每批最多的写入数量.
+     */
+    SessionWriteCoalescer(RedisCacheEngine engine, long windowMicros, int batchSize) {
+        this.engine = engine;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.batchSize = batchSize;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "redis-session-coalescer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止后台线程,尚未发送的写入以IllegalStateException失败.
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        failPending();
+    }
+
+    /**
+     * 提交一次会话同步并等待所在的批次执行完成.
+     * @param keys 脚本的KEYS.
+     * @param args 脚本的ARGV.
+     */
+    void write(List<byte[]> keys, List<byte[]> args) {
+        if (!running) {
+            throw new IllegalStateException("Session write coalescer is stopped.");
+        }
+        Write write = new Write(keys, args);
+        queue.add(write);
+        write.await();
+    }
+
+    /**
+     * @return 后台线程是否在运行,线程意外退出后为false.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 后台线程无论以何种方式退出(包括Error),都标记为停止并让正在执行和等待中的写入失败,
+     * 不会有写入线程一直等待.
+     */
+    public void run() {
+        List<Write> batch = new ArrayList<Write>(batchSize);
+        try {
+            while (running) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long left = deadline - System.nanoTime();
+                        if (batch.size() >= batchSize || left <= 0) {
+                            break;
+                        }
+                        Write next = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    flush(batch);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    log.error("Session write batch failed.", e);
+                    for (Write write : batch) {
+                        write.fail(e);
+                    }
+                }
+                batch.clear();
+            }
+        } finally {
+            if (running) {
+                running = false;
+                log.error("Session write coalescer stopped unexpectedly, writes go to redis directly.");
+            }
+            for (Write write : batch) {
+                write.fail(new IllegalStateException("Session write coalescer is stopped."));
+            }
+            failPending();
+        }
+    }
+
+    private void flush(final List<Write> batch) {
+        engine.execute("EVALSHA_BATCH", null, new RedisCacheEngine.JedisCallback<Void>() {
+            public Void doInRedis(Jedis jedis) {
+                for (Write write : batch) {
+                    RedisCacheEngine.SYNC_SESSION_SCRIPT.send(jedis, write.keys, write.args);
+                }
+                List<Object> replies = jedis.getClient().getAll();
+                for (int i = 0; i < batch.size(); i++) {
+                    Write write = batch.get(i);
+                    Object reply = replies.get(i);
+                    if (!(reply instanceof JedisDataException)) {
+                        write.complete();
+                    } else if (RedisScript.isNoScript((JedisDataException) reply)) {
+                        try {
+                            RedisCacheEngine.SYNC_SESSION_SCRIPT.execute(jedis, write.keys, write.args);
+                            write.complete();
+                        } catch (RuntimeException e) {
+                            write.fail(e);
+                        }
+                    } else {
+                        write.fail((JedisDataException) reply);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void failPending() {
+        Write write;
+        while ((write = queue.poll()) != null) {
+            write.fail(new IllegalStateException("Session write coalescer is stopped."));
+        }
+    }
+
+    /**
+     * 一次等待执行的会话同步.
+     */
+    private final class Write {
+
+        private final List<byte[]> keys;
+        private final List<byte[]> args;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile RuntimeException error;
+
+        Write(List<byte[]> keys, List<byte[]> args) {
+            this.keys = keys;
+            this.args = args;
+        }
+
+        void complete() {
+            done.countDown();
+        }
+
+        void fail(RuntimeException e) {
+            if (done.getCount() > 0) {
+                error = e;
+                done.countDown();
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        if (done.await(1, TimeUnit.SECONDS)) {
+                            break;
+                        }
+                        if (!running && queue.remove(this)) {
+                            throw new IllegalStateException("Session write coalescer is stopped.");
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
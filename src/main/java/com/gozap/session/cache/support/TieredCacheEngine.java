@@ -0,0 +1,792 @@
+package com.gozap.session.cache.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.JedisPool;
+
+import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.FilterCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.cache.TtlCacheEngine;
+import com.gozap.session.cache.support.offheap.OffHeapStore;
+import com.gozap.session.cache.support.offheap.SlabAllocator;
+import com.gozap.session.serialize.FastJsonSerializeStrategy;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+import com.gozap.session.util.FrequencySketch;
+import com.gozap.session.util.StripedLruMap;
+
+/**
+ * 分层缓存.被装饰的引擎(默认RedisCacheEngine)是冷层,始终保存全部的值,是唯一可信的数据;
+ * 本地有两层:堆上的热层是容量为tierHotSize的按key分段的LRU表(见StripedLruMap),
+ * 堆外的温层是OffHeapStore.两层都保存序列化后的值,每次命中都会反序列化出新的对象.
+ * 读取只持有热层中key所在段的锁;同一段上的修改由该段的修改锁串行,
+ * 温层的写入在修改锁内,不在热层的锁内,不会阻塞热层的读取.
+ *
+ * 从冷层读到的值和本节点写入的值先进入温层,按准入策略晋升到热层:
+ * frequency策略下以计数最小草图估计的最近访问次数达到tierPromoteHits时晋升,
+ * always策略下每次访问都进入热层.热层按最近访问淘汰,被淘汰的值降级到温层,
+ * 温层内存不足时淘汰最先过期的值.
+ *
+ * 写入默认同步写入冷层(through),tierWriteMode为behind时先写本地,由后台线程
+ * 每隔tierWriteBehindDelay毫秒合并写入冷层,尚未写入的值本节点总能读到,
+ * 进程崩溃时会丢失最后一个间隔的写入.increase,decrease,expire和flushGroup
+ * 总是先写入等待的值再直接访问冷层.
+ *
+ * 本地的值最多保存tierTtl秒,也不会超过冷层的过期时间,从冷层读到的值的处理与NearCacheEngine相同.
+ * 与NearCacheEngine一样,写入冷层之后通过redis的发布订阅
+ * 通知其他节点删除各自的本地值(见InvalidationChannel),延迟写入时在后台线程写入冷层之后才通知.
+ * 找不到发布订阅使用的jedisPool时拒绝启动,除非以tierStickySessions声明会话是粘滞的,
+ * 同一个会话总是由同一个节点处理,此时不发送通知.
+ *
+ * 配置项:tierHotSize(热层最多的值数量,默认1000),tierWarmMaxMemory(温层内存,可以使用k,m,g后缀,默认64m),
+ * tierWarmPageSize(温层页大小,也是最大的值,默认1m),tierTtl(秒,默认60),
+ * tierAdmission(frequency或always,默认frequency),tierPromoteHits(默认2),
+ * tierWriteMode(through或behind,默认through),tierWriteBehindDelay(毫秒,默认100),
+ * tierWriteBehindMaxPending(默认10000),tierInvalidationChannel(通知的频道,默认session-tiered-cache),
+ * tierStickySessions(默认false),serializeStrategy(本地值的序列化方式).
+ * 属性不能以哈希保存,使用此引擎时attrHashEnable会被忽略.
+ *
+ * @version 1.00 2015-8-19
+ * @since 1.6
+ */
+public class TieredCacheEngine extends FilterCacheEngine implements SessionCacheEngine {
+
+    private static final Log LOGGER = LogFactory.getLog(TieredCacheEngine.class);
+
+    public static final String TIER_HOT_SIZE = "tierHotSize";
+    public static final String TIER_WARM_MAX_MEMORY = "tierWarmMaxMemory";
+    public static final String TIER_WARM_PAGE_SIZE = "tierWarmPageSize";
+    public static final String TIER_TTL = "tierTtl";
+    public static final String TIER_ADMISSION = "tierAdmission";
+    public static final String TIER_PROMOTE_HITS = "tierPromoteHits";
+    public static final String TIER_WRITE_MODE = "tierWriteMode";
+    public static final String TIER_WRITE_BEHIND_DELAY = "tierWriteBehindDelay";
+    public static final String TIER_WRITE_BEHIND_MAX_PENDING = "tierWriteBehindMaxPending";
+    public static final String TIER_INVALIDATION_CHANNEL = "tierInvalidationChannel";
+    public static final String TIER_STICKY_SESSIONS = "tierStickySessions";
+    private static final int DEFAULT_HOT_SIZE = 1000;
+    private static final long DEFAULT_WARM_MAX_MEMORY = 64L << 20;
+    private static final long DEFAULT_WARM_PAGE_SIZE = 1L << 20;
+    private static final int DEFAULT_TTL = 60;
+    private static final int DEFAULT_PROMOTE_HITS = 2;
+    private static final long DEFAULT_WRITE_BEHIND_DELAY = 100L;
+    private static final int DEFAULT_WRITE_BEHIND_MAX_PENDING = 10000;
+    private static final String DEFAULT_INVALIDATION_CHANNEL = "session-tiered-cache";
+    private static final int WARM_SEGMENTS = 16;
+    private static final int WARM_SEGMENT_CAPACITY = 1024;
+    // 草图的宽度是热层容量的倍数,足以区分热层之外的候选者
+    private static final int SKETCH_MULTIPLIER = 8;
+    private static final int HOT_STRIPES = 16;
+    // 温层的值之前保存8字节的本地过期时间,晋升时沿用
+    private static final int WARM_HEADER_SIZE = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * 热层的准入策略.
+     */
+    public static enum Admission {
+        /**
+         * 最近访问次数达到tierPromoteHits时晋升.
+         */
+        FREQUENCY,
+        /**
+         * 每次访问都晋升.
+         */
+        ALWAYS
+    }
+
+    /**
+     * 写入冷层的方式.
+     */
+    public static enum WriteMode {
+        /**
+         * 同步写入.
+         */
+        THROUGH,
+        /**
+         * 后台合并写入.
+         */
+        BEHIND
+    }
+
+    private final AtomicLong hotHits = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong demotions = new AtomicLong();
+    private int hotSize = DEFAULT_HOT_SIZE;
+    private long warmMaxMemory = DEFAULT_WARM_MAX_MEMORY;
+    private long warmPageSize = DEFAULT_WARM_PAGE_SIZE;
+    private long ttl = TimeUnit.SECONDS.toMillis(DEFAULT_TTL);
+    private Admission admission = Admission.FREQUENCY;
+    private int promoteHits = DEFAULT_PROMOTE_HITS;
+    private WriteMode writeMode = WriteMode.THROUGH;
+    private long writeBehindDelay = DEFAULT_WRITE_BEHIND_DELAY;
+    private int writeBehindMaxPending = DEFAULT_WRITE_BEHIND_MAX_PENDING;
+    private String channel = DEFAULT_INVALIDATION_CHANNEL;
+    private boolean stickySessions = false;
+    private SerializeStrategy serializeStrategy = new FastJsonSerializeStrategy();
+    // 热层,它的修改锁同时是本地两层对同一段key的所有修改的锁
+    private StripedLruMap<String, CachedValue> hot;
+    // 与热层的段对应,段内本地值的每次变化都会增加,读取冷层期间有变化时不缓存读到的值
+    private AtomicLongArray generations;
+    private OffHeapStore warm;
+    private FrequencySketch sketch;
+    private TieredWriteBehind writeBehind;
+    private JedisPool jedisPool;
+    private InvalidationChannel invalidation;
+
+    public TieredCacheEngine() {
+    }
+
+    public TieredCacheEngine(CacheEngine cache) {
+        super(cache);
+    }
+
+    public void setJedisPool(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+        super.doInit(prop, servletContext);
+        if (prop != null) {
+            String temp = prop.getProperty(TIER_HOT_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                hotSize = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(TIER_WARM_MAX_MEMORY);
+            if (temp != null && !temp.trim().isEmpty()) {
+                warmMaxMemory = AbstractStoreCacheEngine.parseBytes(temp);
+            }
+            temp = prop.getProperty(TIER_WARM_PAGE_SIZE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                warmPageSize = AbstractStoreCacheEngine.parseBytes(temp);
+            }
+            temp = prop.getProperty(TIER_TTL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                ttl = TimeUnit.SECONDS.toMillis(Integer.parseInt(temp.trim()));
+            }
+            temp = prop.getProperty(TIER_ADMISSION);
+            if (temp != null && !temp.trim().isEmpty()) {
+                admission = Admission.valueOf(temp.trim().toUpperCase());
+            }
+            temp = prop.getProperty(TIER_PROMOTE_HITS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                promoteHits = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(TIER_WRITE_MODE);
+            if (temp != null && !temp.trim().isEmpty()) {
+                writeMode = WriteMode.valueOf(temp.trim().toUpperCase());
+            }
+            temp = prop.getProperty(TIER_WRITE_BEHIND_DELAY);
+            if (temp != null && !temp.trim().isEmpty()) {
+                writeBehindDelay = Long.parseLong(temp.trim());
+            }
+            temp = prop.getProperty(TIER_WRITE_BEHIND_MAX_PENDING);
+            if (temp != null && !temp.trim().isEmpty()) {
+                writeBehindMaxPending = Integer.parseInt(temp.trim());
+            }
+            temp = prop.getProperty(TIER_INVALIDATION_CHANNEL);
+            if (temp != null && !temp.trim().isEmpty()) {
+                channel = temp.trim();
+            }
+            temp = prop.getProperty(TIER_STICKY_SESSIONS);
+            if (temp != null && !temp.trim().isEmpty()) {
+                stickySessions = Boolean.parseBoolean(temp.trim());
+            }
+            serializeStrategy = SerializeUtil.load(serializeStrategy, prop);
+        }
+        if (warmPageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Warm tier page size " + warmPageSize + " is too large.");
+        }
+        hot = new StripedLruMap<String, CachedValue>(hotSize, HOT_STRIPES);
+        generations = new AtomicLongArray(hot.getStripes());
+        warm = new OffHeapStore(new SlabAllocator(warmMaxMemory, (int) warmPageSize),
+                WARM_SEGMENTS, WARM_SEGMENT_CAPACITY);
+        sketch = new FrequencySketch(Math.max(hotSize, 1) * SKETCH_MULTIPLIER);
+        if (!stickySessions) {
+            if (jedisPool == null) {
+                jedisPool = InvalidationChannel.findJedisPool(servletContext, cache);
+            }
+            if (jedisPool == null) {
+                throw new IllegalArgumentException("No jedis pool for tiered cache invalidation, "
+                        + "set " + TIER_STICKY_SESSIONS + "=true if every session is served by one node.");
+            }
+            invalidation = new InvalidationChannel("tiered-cache", jedisPool, channel,
+                    new InvalidationChannel.Listener() {
+                        public void invalidate(String key) {
+                            removeLocal(key);
+                        }
+
+                        public void invalidateAll() {
+                            clearLocal();
+                        }
+                    });
+        }
+        if (writeMode == WriteMode.BEHIND) {
+            writeBehind = new TieredWriteBehind(cache, serializeStrategy, writeBehindDelay, writeBehindMaxPending,
+                    invalidation);
+        }
+        LOGGER.info("Tiered cache (hotSize=" + hotSize + ", warmMaxMemory=" + warmMaxMemory + ", ttl=" + ttl
+                + "ms, admission=" + admission + ", promoteHits=" + promoteHits + ", writeMode=" + writeMode
+                + ", channel=" + (invalidation == null ? null : channel) + ")");
+    }
+
+    @Override
+    protected void doStart() {
+        super.doStart();
+        if (invalidation != null) {
+            invalidation.start();
+        }
+        if (writeBehind != null) {
+            writeBehind.start();
+        }
+    }
+
+    /**
+     * 先写入所有等待的值,再停止通知和冷层.
+     */
+    @Override
+    protected void doStop() {
+        if (writeBehind != null) {
+            writeBehind.stop();
+        }
+        if (invalidation != null) {
+            invalidation.stop();
+        }
+        clearLocal();
+        super.doStop();
+    }
+
+    /**
+     * @return 热层命中的次数.
+     */
+    public long getHotHits() {
+        return hotHits.get();
+    }
+
+    /**
+     * @return 温层命中的次数.
+     */
+    public long getWarmHits() {
+        return warmHits.get();
+    }
+
+    /**
+     * @return 本地没有命中,读取冷层的次数.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return 从温层晋升到热层的次数.
+     */
+    public long getPromotions() {
+        return promotions.get();
+    }
+
+    /**
+     * @return 从热层降级到温层的次数.
+     */
+    public long getDemotions() {
+        return demotions.get();
+    }
+
+    /**
+     * @return 热层的值数量.
+     */
+    public int getHotSize() {
+        return hot.size();
+    }
+
+    /**
+     * @return 温层的值数量,包括已经过期但尚未回收的值.
+     */
+    public int getWarmSize() {
+        return warm.size();
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        if (writeBehind != null) {
+            byte[] pending = writeBehind.pending(key);
+            if (pending != null) {
+                return pending != TieredWriteBehind.DELETED;
+            }
+        }
+        long now = System.currentTimeMillis();
+        CachedValue entry = hot.get(key);
+        if (entry != null && entry.expireAt > now) {
+            return true;
+        }
+        if (warm.contains(encode(key), now)) {
+            return true;
+        }
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public Object get(String key) {
+        if (writeBehind != null) {
+            byte[] pending = writeBehind.pending(key);
+            if (pending != null) {
+                return pending == TieredWriteBehind.DELETED ? null : deserialize(pending);
+            }
+        }
+        byte[] data = readLocal(key);
+        if (data != null) {
+            return deserialize(data);
+        }
+        misses.incrementAndGet();
+        long start = generations.get(hot.stripe(key));
+        long[] remoteTtls = new long[]{TtlCacheEngine.NO_TTL};
+        Object value;
+        if (cache instanceof TtlCacheEngine) {
+            value = ((TtlCacheEngine) cache).getWithTtl(new String[]{key}, remoteTtls).get(key);
+        } else {
+            value = cache.get(key);
+        }
+        if (value != null) {
+            cacheLoaded(key, value, start, remoteTtls[0]);
+        }
+        return value;
+    }
+
+    /**
+     * 本地没有的key一次批量从冷层读取.
+     */
+    @Override
+    public Map<String, Object> get(String[] keys) {
+        if (keys == null || keys.length == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> values = new HashMap<String, Object>(keys.length);
+        List<String> missed = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            byte[] data = writeBehind == null ? null : writeBehind.pending(key);
+            if (data == TieredWriteBehind.DELETED) {
+                continue;
+            }
+            if (data == null) {
+                data = readLocal(key);
+            }
+            if (data == null) {
+                missed.add(key);
+            } else {
+                values.put(key, deserialize(data));
+            }
+        }
+        if (!missed.isEmpty()) {
+            misses.addAndGet(missed.size());
+            String[] missedKeys = missed.toArray(new String[missed.size()]);
+            long[] starts = new long[missedKeys.length];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = generations.get(hot.stripe(missedKeys[i]));
+            }
+            long[] remoteTtls = new long[missedKeys.length];
+            Map<String, Object> loaded;
+            if (cache instanceof TtlCacheEngine) {
+                loaded = ((TtlCacheEngine) cache).getWithTtl(missedKeys, remoteTtls);
+            } else {
+                loaded = cache.get(missedKeys);
+                Arrays.fill(remoteTtls, TtlCacheEngine.NO_TTL);
+            }
+            for (int i = 0; i < starts.length; i++) {
+                Object value = loaded.get(missedKeys[i]);
+                if (value != null) {
+                    cacheLoaded(missedKeys[i], value, starts[i], remoteTtls[i]);
+                    values.put(missedKeys[i], value);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public void put(String key, Object value) {
+        byte[] data = serialize(value);
+        if (writeBehind == null) {
+            cache.put(key, value);
+            writeLocal(key, data, 0);
+            invalidate(key);
+        } else {
+            writeLocal(key, data, 0);
+            writeBehind.put(key, data, 0);
+        }
+    }
+
+    @Override
+    public void put(String key, Object value, int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid expire time " + seconds + " for " + key);
+        }
+        byte[] data = serialize(value);
+        if (writeBehind == null) {
+            cache.put(key, value, seconds);
+            writeLocal(key, data, seconds);
+            invalidate(key);
+        } else {
+            writeLocal(key, data, seconds);
+            writeBehind.put(key, data, seconds);
+        }
+    }
+
+    @Override
+    public void put(String key, Object value, String[] group) {
+        byte[] data = serialize(value);
+        if (writeBehind == null) {
+            cache.put(key, value, group);
+            writeLocal(key, data, 0);
+            invalidate(key);
+        } else {
+            writeLocal(key, data, 0);
+            writeBehind.put(key, data, group);
+        }
+    }
+
+    @Override
+    public boolean expire(String key, int seconds) {
+        if (writeBehind != null) {
+            writeBehind.flush(key);
+        }
+        boolean result = cache.expire(key, seconds);
+        if (!result || seconds <= 0) {
+            removeLocal(key);
+        } else {
+            retimeLocal(key, seconds);
+        }
+        invalidate(key);
+        return result;
+    }
+
+    @Override
+    public void del(String key) {
+        removeLocal(key);
+        if (writeBehind == null) {
+            cache.del(key);
+            invalidate(key);
+        } else {
+            writeBehind.del(key);
+        }
+    }
+
+    @Override
+    public void del(String[] keys) {
+        for (String key : keys) {
+            removeLocal(key);
+            if (writeBehind != null) {
+                writeBehind.del(key);
+            }
+        }
+        if (writeBehind == null) {
+            cache.del(keys);
+            invalidate(keys);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        removeLocal(key);
+        if (writeBehind == null) {
+            cache.remove(key);
+            invalidate(key);
+        } else {
+            writeBehind.remove(key);
+        }
+    }
+
+    @Override
+    public long increase(String key, long magnitude) {
+        if (writeBehind != null) {
+            writeBehind.flush(key);
+        }
+        removeLocal(key);
+        long value = cache.increase(key, magnitude);
+        invalidate(key);
+        return value;
+    }
+
+    @Override
+    public long decrease(String key, long magnitude) {
+        if (writeBehind != null) {
+            writeBehind.flush(key);
+        }
+        removeLocal(key);
+        long value = cache.decrease(key, magnitude);
+        invalidate(key);
+        return value;
+    }
+
+    /**
+     * 组中的成员无法逐个找出,写入所有等待的值后清空本地以及所有节点的本地两层.
+     */
+    @Override
+    public void flushGroup(String group) {
+        if (writeBehind != null && !writeBehind.flush()) {
+            throw new IllegalStateException("Can not write pending values before flushing group " + group + ".");
+        }
+        cache.flushGroup(group);
+        clearLocal();
+        if (invalidation != null) {
+            invalidation.invalidateAll();
+        }
+    }
+
+    /**
+     * 同步写入时,被装饰的引擎实现了SessionCacheEngine时委托给它,否则分别写入;
+     * 延迟写入时头信息和属性作为一次写入合并.
+     */
+    public void synchronize(String headerKey, Object header,
+            String attributeKey, Object attributes, int seconds) {
+        byte[] headerData = serialize(header);
+        byte[] attributeData = attributes == null ? null : serialize(attributes);
+        if (writeBehind != null) {
+            writeLocal(headerKey, headerData, seconds);
+            if (attributeData != null) {
+                writeLocal(attributeKey, attributeData, seconds);
+            }
+            writeBehind.synchronize(headerKey, headerData, attributeKey, attributeData, seconds);
+            return;
+        }
+        if (cache instanceof SessionCacheEngine) {
+            ((SessionCacheEngine) cache).synchronize(headerKey, header, attributeKey, attributes, seconds);
+        } else {
+            if (seconds > 0) {
+                cache.put(headerKey, header, seconds);
+            } else {
+                cache.put(headerKey, header);
+            }
+            if (attributes != null) {
+                if (seconds > 0) {
+                    cache.put(attributeKey, attributes, seconds);
+                } else {
+                    cache.put(attributeKey, attributes);
+                }
+            } else if (seconds > 0) {
+                cache.expire(attributeKey, seconds);
+            }
+        }
+        writeLocal(headerKey, headerData, seconds);
+        if (attributeData != null) {
+            writeLocal(attributeKey, attributeData, seconds);
+            invalidate(headerKey, attributeKey);
+        } else {
+            invalidate(headerKey);
+        }
+    }
+
+    /**
+     * 依次读取热层和温层,温层命中的值满足准入策略时晋升到热层.
+     * 热层的读取只持有key所在段的锁,晋升时才需要修改锁.
+     */
+    private byte[] readLocal(String key) {
+        long now = System.currentTimeMillis();
+        int frequency = sketch.increment(key);
+        CachedValue entry = hot.get(key);
+        if (entry != null) {
+            if (entry.expireAt > now) {
+                hotHits.incrementAndGet();
+                return entry.data;
+            }
+            hot.remove(key, entry);
+        }
+        byte[] binaryKey = encode(key);
+        byte[] stored = warm.get(binaryKey, now);
+        if (stored == null) {
+            return null;
+        }
+        warmHits.incrementAndGet();
+        if (hotSize > 0 && admit(frequency)) {
+            synchronized (hot.lock(key)) {
+                // 重新读取,读取之后可能有新的写入
+                stored = warm.get(binaryKey, now);
+                if (stored == null) {
+                    return null;
+                }
+                entry = unwrap(stored);
+                // 先放入热层再从温层移除,同时读取的线程不会两层都读不到
+                Map.Entry<String, CachedValue> evicted = hot.put(key, entry);
+                warm.remove(binaryKey);
+                promotions.incrementAndGet();
+                demote(evicted);
+                return entry.data;
+            }
+        }
+        return unwrap(stored).data;
+    }
+
+    private void writeLocal(String key, byte[] data, int seconds) {
+        long lifetime = seconds > 0 ? Math.min(ttl, TimeUnit.SECONDS.toMillis(seconds)) : ttl;
+        CachedValue entry = new CachedValue(data, System.currentTimeMillis() + lifetime);
+        int frequency = sketch.increment(key);
+        synchronized (hot.lock(key)) {
+            generations.incrementAndGet(hot.stripe(key));
+            place(key, entry, frequency);
+        }
+    }
+
+    /**
+     * 缓存从冷层读到的值,最多保存到冷层过期时.读取期间本地有过写入时不缓存,避免旧值覆盖新的值.
+     * @param remoteTtl 冷层剩余的过期毫秒数,不知道或者没有过期时间时为TtlCacheEngine.NO_TTL.
+     */
+    private void cacheLoaded(String key, Object value, long start, long remoteTtl) {
+        long lifetime = remoteTtl == TtlCacheEngine.NO_TTL ? ttl : Math.min(ttl, remoteTtl);
+        if (lifetime <= 0) {
+            return;
+        }
+        CachedValue entry = new CachedValue(serialize(value), System.currentTimeMillis() + lifetime);
+        int frequency = sketch.frequency(key);
+        synchronized (hot.lock(key)) {
+            if (generations.get(hot.stripe(key)) == start) {
+                place(key, entry, frequency);
+            }
+        }
+    }
+
+    /**
+     * 按准入策略放入热层或者温层,并从另一层移除.调用者持有key的修改锁.
+     */
+    private void place(String key, CachedValue entry, int frequency) {
+        if (hotSize > 0 && (admit(frequency) || hot.get(key) != null)) {
+            Map.Entry<String, CachedValue> evicted = hot.put(key, entry);
+            warm.remove(encode(key));
+            demote(evicted);
+        } else {
+            hot.remove(key);
+            putWarm(key, entry);
+        }
+    }
+
+    private void retimeLocal(String key, int seconds) {
+        long expireAt = System.currentTimeMillis() + Math.min(ttl, TimeUnit.SECONDS.toMillis(seconds));
+        byte[] binaryKey = encode(key);
+        synchronized (hot.lock(key)) {
+            generations.incrementAndGet(hot.stripe(key));
+            CachedValue entry = hot.get(key);
+            if (entry != null) {
+                demote(hot.put(key, new CachedValue(entry.data, expireAt)));
+                return;
+            }
+            byte[] stored = warm.get(binaryKey, System.currentTimeMillis());
+            if (stored != null) {
+                putWarm(key, new CachedValue(unwrap(stored).data, expireAt));
+            }
+        }
+    }
+
+    private void removeLocal(String key) {
+        synchronized (hot.lock(key)) {
+            generations.incrementAndGet(hot.stripe(key));
+            hot.remove(key);
+            warm.remove(encode(key));
+        }
+    }
+
+    /**
+     * 先增加所有段的版本,再清空两层,清空之前开始的冷层读取都不会被缓存.
+     */
+    private void clearLocal() {
+        if (hot == null) {
+            return;
+        }
+        for (int i = 0; i < hot.getStripes(); i++) {
+            synchronized (hot.stripeLock(i)) {
+                generations.incrementAndGet(i);
+            }
+        }
+        hot.clear();
+        warm.clear();
+    }
+
+    /**
+     * 热层淘汰的值降级到温层.被淘汰的key与写入的key在同一段,调用者持有它的修改锁.
+     * @param evicted 热层写入时淘汰的值,可以为null.
+     */
+    private void demote(Map.Entry<String, CachedValue> evicted) {
+        if (evicted != null && evicted.getValue().expireAt > System.currentTimeMillis()) {
+            putWarm(evicted.getKey(), evicted.getValue());
+            demotions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 温层写入失败(值大于页或者内存不足)时移除旧的值,之后从冷层读取.
+     */
+    private void putWarm(String key, CachedValue entry) {
+        byte[] binaryKey = encode(key);
+        ByteBuffer stored = ByteBuffer.allocate(WARM_HEADER_SIZE + entry.data.length);
+        stored.putLong(entry.expireAt);
+        stored.put(entry.data);
+        try {
+            warm.put(binaryKey, stored.array(), entry.expireAt);
+        } catch (RuntimeException e) {
+            warm.remove(binaryKey);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Can not put " + key + " into the warm tier.", e);
+            }
+        }
+    }
+
+    private void invalidate(String... keys) {
+        if (invalidation != null) {
+            invalidation.invalidate(keys);
+        }
+    }
+
+    private boolean admit(int frequency) {
+        return admission == Admission.ALWAYS || frequency >= promoteHits;
+    }
+
+    private static CachedValue unwrap(byte[] stored) {
+        ByteBuffer buffer = ByteBuffer.wrap(stored);
+        long expireAt = buffer.getLong();
+        byte[] data = new byte[stored.length - WARM_HEADER_SIZE];
+        buffer.get(data);
+        return new CachedValue(data, expireAt);
+    }
+
+    private static byte[] encode(String key) {
+        return key.getBytes(UTF8);
+    }
+
+    private byte[] serialize(Object value) {
+        return SerializeUtil.serialize(serializeStrategy, value);
+    }
+
+    private Object deserialize(byte[] data) {
+        return SerializeUtil.deserialize(serializeStrategy, data);
+    }
+
+    /**
+     * 本地保存的值.
+     */
+    private static class CachedValue {
+
+        private final byte[] data;
+        private final long expireAt;
+
+        CachedValue(byte[] data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+}
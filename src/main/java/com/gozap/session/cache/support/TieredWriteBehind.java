@@ -0,0 +1,360 @@
+package com.gozap.session.cache.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+import com.gozap.session.serialize.SerializeStrategy;
+import com.gozap.session.serialize.SerializeUtil;
+
+/**
+ * TieredCacheEngine的延迟写入.写入先记录在按key合并的有序表中,后台线程每隔delay毫秒
+ * 按最后一次修改的顺序把它们写入冷层,同一个key在一个间隔内的多次写入只写最后一次.
+ * 值以序列化后的形式保存,调用方之后修改对象不会影响写入的内容.
+ * 尚未写入的值可以通过pending读取,保证本节点读到自己的写入.
+ * 写入冷层之后再通知其他节点删除本地值,避免它们在写入之前重新读到旧值.
+ *
+ * 不能合并的写入(例如带组的写入之后的普通写入)按顺序链在一起,写入时先写较早的.
+ * 写入失败时这一批中剩余的写入放回表中,下一个间隔重试.
+ * 等待的key超过maxPending时由写入线程自己写入,作为背压.
+ *
+ * @version 1.00 2015-8-19
+ * @since 1.6
+ */
+class TieredWriteBehind implements Runnable {
+
+    private static final Log LOGGER = LogFactory.getLog(TieredWriteBehind.class);
+
+    /**
+     * pending返回的表示已经删除的值.
+     */
+    static final byte[] DELETED = new byte[0];
+
+    /**
+     * 写入的类型.
+     */
+    static enum Kind {
+        PUT, PUT_GROUP, DEL, REMOVE, SYNC
+    }
+
+    private final CacheEngine cache;
+    private final SerializeStrategy serializeStrategy;
+    private final long delay;
+    private final int maxPending;
+    private final InvalidationChannel invalidation;
+    // 尚未写入冷层的最新值
+    private final ConcurrentMap<String, byte[]> pendingValues = new ConcurrentHashMap<String, byte[]>();
+    // 同一时间只有一个线程写入冷层,保证同一个key的写入顺序
+    private final Object flushLock = new Object();
+    private Map<String, Write> writes = new LinkedHashMap<String, Write>();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param cache 冷层.
+     * @param serializeStrategy 值的序列化方式.
+     * @param delay 写入的间隔,毫秒.
+     * @param maxPending 最多等待写入的key数量.
+     * @param invalidation 写入后通知其他节点,会话粘滞时为null.
+     */
+    TieredWriteBehind(CacheEngine cache, SerializeStrategy serializeStrategy, long delay, int maxPending,
+            InvalidationChannel invalidation) {
+        this.cache = cache;
+        this.serializeStrategy = serializeStrategy;
+        this.delay = delay;
+        this.maxPending = maxPending;
+        this.invalidation = invalidation;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "tiered-cache-write-behind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止后台线程并写入所有等待的值.
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        if (!flush()) {
+            LOGGER.error(pendingCount() + " writes are not written to the cold tier.");
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * @return 尚未写入的值,DELETED表示已经删除,null表示没有等待的写入.
+     */
+    byte[] pending(String key) {
+        return pendingValues.get(key);
+    }
+
+    synchronized int pendingCount() {
+        return writes.size();
+    }
+
+    void put(String key, byte[] data, int seconds) {
+        submit(new Write(Kind.PUT, key, data, seconds, null, null, null));
+    }
+
+    void put(String key, byte[] data, String[] group) {
+        submit(new Write(Kind.PUT_GROUP, key, data, 0, group, null, null));
+    }
+
+    void del(String key) {
+        submit(new Write(Kind.DEL, key, DELETED, 0, null, null, null));
+    }
+
+    void remove(String key) {
+        submit(new Write(Kind.REMOVE, key, DELETED, 0, null, null, null));
+    }
+
+    void synchronize(String headerKey, byte[] header, String attributeKey, byte[] attributes, int seconds) {
+        submit(new Write(Kind.SYNC, headerKey, header, seconds, null, attributeKey, attributes));
+    }
+
+    /**
+     * 立即写入一个key等待的写入,用于不能延迟的操作之前,比如计数器和修改过期时间.
+     */
+    void flush(String key) {
+        synchronized (flushLock) {
+            Write write;
+            synchronized (this) {
+                write = writes.remove(key);
+            }
+            if (write != null) {
+                execute(write);
+            }
+        }
+    }
+
+    /**
+     * 写入所有等待的写入.
+     * @return 是否全部写入成功.
+     */
+    boolean flush() {
+        synchronized (flushLock) {
+            Map<String, Write> batch;
+            synchronized (this) {
+                if (writes.isEmpty()) {
+                    return true;
+                }
+                batch = writes;
+                writes = new LinkedHashMap<String, Write>();
+            }
+            List<Write> remaining = new ArrayList<Write>(batch.values());
+            for (int i = 0; i < remaining.size(); i++) {
+                try {
+                    execute(remaining.get(i));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Write behind to the cold tier failed, " + (remaining.size() - i)
+                            + " writes will be retried.", e);
+                    requeue(remaining.subList(i, remaining.size()));
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void submit(Write write) {
+        boolean full;
+        synchronized (this) {
+            Write previous = writes.remove(write.key);
+            if (previous != null) {
+                merge(previous, write);
+            }
+            writes.put(write.key, write);
+            pendingValues.put(write.key, write.data);
+            if (write.attributes != null) {
+                pendingValues.put(write.attributeKey, write.attributes);
+            }
+            full = writes.size() > maxPending;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * 新的写入覆盖较早的写入.较早的写入带有组或者是不同属性key的会话同步时不能覆盖,
+     * 链在新的写入之前.属性为null的会话同步沿用较早写入的属性.
+     */
+    private static void merge(Write previous, Write write) {
+        if (previous.kind == Kind.PUT || previous.kind == Kind.DEL || previous.kind == Kind.REMOVE) {
+            write.previous = previous.previous;
+        } else if (previous.kind == Kind.SYNC && write.kind == Kind.SYNC
+                && previous.attributeKey.equals(write.attributeKey)) {
+            if (write.attributes == null) {
+                write.attributes = previous.attributes;
+            }
+            write.previous = previous.previous;
+        } else {
+            write.previous = previous;
+        }
+    }
+
+    /**
+     * 失败的写入放回表中,同一个key有更新的写入时链在它之前.
+     */
+    private synchronized void requeue(List<Write> failed) {
+        Map<String, Write> merged = new LinkedHashMap<String, Write>();
+        for (Write write : failed) {
+            Write newer = writes.remove(write.key);
+            if (newer == null) {
+                merged.put(write.key, write);
+            } else {
+                Write oldest = newer;
+                while (oldest.previous != null) {
+                    oldest = oldest.previous;
+                }
+                oldest.previous = write;
+                merged.put(write.key, newer);
+            }
+        }
+        merged.putAll(writes);
+        writes = merged;
+    }
+
+    /**
+     * 先写链上较早的写入.写入成功后,如果等待的值没有被更新的写入替换就移除.
+     * 无法反序列化或者参数错误的写入重试也不会成功,记录错误后丢弃,不阻塞之后的写入.
+     */
+    private void execute(Write write) {
+        if (write.previous != null) {
+            execute(write.previous);
+            write.previous = null;
+        }
+        try {
+            write(write);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Drop the write of " + write.key + " which can not be written to the cold tier.", e);
+        }
+        pendingValues.remove(write.key, write.data);
+        if (write.attributes != null) {
+            pendingValues.remove(write.attributeKey, write.attributes);
+        }
+        if (invalidation != null) {
+            if (write.attributes != null) {
+                invalidation.invalidate(write.key, write.attributeKey);
+            } else {
+                invalidation.invalidate(write.key);
+            }
+        }
+    }
+
+    private void write(Write write) {
+        switch (write.kind) {
+        case PUT:
+            if (write.seconds > 0) {
+                cache.put(write.key, deserialize(write.data), write.seconds);
+            } else {
+                cache.put(write.key, deserialize(write.data));
+            }
+            break;
+        case PUT_GROUP:
+            cache.put(write.key, deserialize(write.data), write.group);
+            break;
+        case DEL:
+            cache.del(write.key);
+            break;
+        case REMOVE:
+            cache.remove(write.key);
+            break;
+        default:
+            synchronizeCold(write);
+            break;
+        }
+    }
+
+    private void synchronizeCold(Write write) {
+        Object header = deserialize(write.data);
+        Object attributes = write.attributes == null ? null : deserialize(write.attributes);
+        if (cache instanceof SessionCacheEngine) {
+            ((SessionCacheEngine) cache).synchronize(write.key, header, write.attributeKey, attributes, write.seconds);
+            return;
+        }
+        if (write.seconds > 0) {
+            cache.put(write.key, header, write.seconds);
+        } else {
+            cache.put(write.key, header);
+        }
+        if (attributes != null) {
+            if (write.seconds > 0) {
+                cache.put(write.attributeKey, attributes, write.seconds);
+            } else {
+                cache.put(write.attributeKey, attributes);
+            }
+        } else if (write.seconds > 0) {
+            cache.expire(write.attributeKey, write.seconds);
+        }
+    }
+
+    private Object deserialize(byte[] data) {
+        try {
+            return SerializeUtil.deserialize(serializeStrategy, data);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 一次等待的写入.
+     */
+    private static class Write {
+
+        private final Kind kind;
+        private final String key;
+        private final byte[] data;
+        private final int seconds;
+        private final String[] group;
+        private final String attributeKey;
+        private byte[] attributes;
+        private Write previous;
+
+        Write(Kind kind, String key, byte[] data, int seconds, String[] group,
+                String attributeKey, byte[] attributes) {
+            this.kind = kind;
+            this.key = key;
+            this.data = data;
+            this.seconds = seconds;
+            this.group = group;
+            this.attributeKey = attributeKey;
+            this.attributes = attributes;
+        }
+    }
+}
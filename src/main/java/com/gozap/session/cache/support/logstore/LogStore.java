@@ -0,0 +1,673 @@
+package com.gozap.session.cache.support.logstore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 日志结构的磁盘字节键值表.所有的写入,删除和过期时间修改都以记录追加到目录中当前的段文件末尾,
+ * 段文件达到指定大小后开始新的段,磁盘上只有顺序写.内存中的哈希索引保存每个key最新记录的位置,
+ * 读取按索引一次定位读取.
+ *
+ * 记录格式:crc32(4字节,校验其后的全部内容),类型(1字节,写入,删除或修改过期时间),
+ * 过期时间(8字节,毫秒,0不过期),key长度(2字节),值长度(4字节),key,值.
+ * 启动时按段的编号顺序重放全部记录重建索引,段末尾不完整或者校验失败的记录被截掉.
+ *
+ * 被覆盖,删除或者过期的记录成为垃圾,垃圾达到比例后由compact把旧段中仍然有效的记录复制到当前段的末尾,
+ * 然后删除旧段.复制期间读写照常进行.
+ *
+ * @version 1.00 2015-8-18
+ * @since 1.6
+ */
+public class LogStore {
+
+    private static final Log LOGGER = LogFactory.getLog(LogStore.class);
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte TOUCH = 3;
+
+    private static final int RECORD_CRC = 0;
+    private static final int RECORD_TYPE = 4;
+    private static final int RECORD_EXPIRE = 5;
+    private static final int RECORD_KEY_LENGTH = 13;
+    private static final int RECORD_VALUE_LENGTH = 15;
+    private static final int RECORD_HEADER_SIZE = 19;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final byte[] EMPTY = new byte[0];
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File directory;
+    private final long segmentSize;
+    private final boolean syncEveryWrite;
+    private final ConcurrentMap<Key, Entry> index = new ConcurrentHashMap<Key, Entry>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    // 删除段文件时持有写锁,其他操作持有读锁
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    // 保护追加和索引的修改
+    private final Object writeLock = new Object();
+    // 同一时间只有一个压缩
+    private final Object compactLock = new Object();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+    private volatile Segment active;
+    private volatile boolean closed = false;
+
+    /**
+     * 打开目录中已有的段并重建索引,目录不存在时创建.
+     * @param directory 目录.
+     * @param segmentSize 单个段的大小,超过后开始新的段.
+     * @param syncEveryWrite 每次追加后是否写回磁盘.
+     * @throws IOException 读取失败.
+     */
+    public LogStore(File directory, long segmentSize, boolean syncEveryWrite) throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncEveryWrite = syncEveryWrite;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    int id = Integer.parseInt(matcher.group(1));
+                    segments.put(id, new Segment(id, file));
+                }
+            }
+        }
+        try {
+            for (Segment segment : segments.values()) {
+                replay(segment);
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Key, Entry> entry : index.entrySet()) {
+                if (entry.getValue().isExpired(now)) {
+                    index.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            if (segments.isEmpty()) {
+                active = new Segment(1, segmentFile(1));
+                segments.put(active.id, active);
+            } else {
+                active = segments.lastEntry().getValue();
+            }
+        } catch (IOException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return 索引中key的数量,可能包含还没有回收的过期key.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return 全部段文件的字节数.
+     */
+    public long getDiskSize() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return 压缩时复制的记录数量.
+     */
+    public long getCopied() {
+        return copied.get();
+    }
+
+    /**
+     * @return 值的副本,不存在或者已经过期时返回null.
+     */
+    public byte[] get(byte[] key, long now) {
+        segmentLock.readLock().lock();
+        try {
+            Entry entry = index.get(new Key(key));
+            if (entry == null || entry.isExpired(now)) {
+                return null;
+            }
+            return readValue(entry);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(byte[] key, long now) {
+        Entry entry = index.get(new Key(key));
+        return entry != null && !entry.isExpired(now);
+    }
+
+    /**
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     */
+    public void put(byte[] key, byte[] value, long expireAt) {
+        checkKey(key);
+        Key k = new Key(key);
+        segmentLock.readLock().lock();
+        try {
+            synchronized (writeLock) {
+                index.put(k, append(PUT, key, value, expireAt));
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true删除成功,false不存在或者已经过期.
+     */
+    public boolean remove(byte[] key) {
+        checkKey(key);
+        Key k = new Key(key);
+        segmentLock.readLock().lock();
+        try {
+            synchronized (writeLock) {
+                Entry entry = index.get(k);
+                if (entry == null) {
+                    return false;
+                }
+                append(DELETE, key, EMPTY, 0);
+                index.remove(k);
+                return !entry.isExpired(System.currentTimeMillis());
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 追加一条只有过期时间的记录,不重写值.
+     * @return true修改成功,false不存在或者已经过期.
+     */
+    public boolean expire(byte[] key, long expireAt, long now) {
+        checkKey(key);
+        Key k = new Key(key);
+        segmentLock.readLock().lock();
+        try {
+            synchronized (writeLock) {
+                Entry entry = index.get(k);
+                if (entry == null || entry.isExpired(now)) {
+                    return false;
+                }
+                append(TOUCH, key, EMPTY, expireAt);
+                index.put(k, entry.retime(expireAt));
+                return true;
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 原子的加减以十进制字符串保存的计数器,不存在时从0开始,保留原有的过期时间.
+     * @return 新的值.
+     */
+    public long add(byte[] key, long delta, long now) {
+        checkKey(key);
+        Key k = new Key(key);
+        segmentLock.readLock().lock();
+        try {
+            synchronized (writeLock) {
+                Entry entry = index.get(k);
+                long current = 0;
+                long expireAt = 0;
+                if (entry != null && !entry.isExpired(now)) {
+                    current = parse(readValue(entry));
+                    expireAt = entry.expireAt;
+                }
+                long value = current + delta;
+                if (((current ^ value) & (delta ^ value)) < 0) {
+                    throw new IllegalStateException("Increment or decrement would overflow.");
+                }
+                index.put(k, append(PUT, key, String.valueOf(value).getBytes(ASCII), expireAt));
+                return value;
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把当前段写回磁盘.
+     */
+    public void force() {
+        segmentLock.readLock().lock();
+        try {
+            if (!closed) {
+                active.channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not force " + active.file, e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从索引中移除已经过期的key,统计存活记录的字节数,
+     * 垃圾不少于minGarbage字节并且占全部字节的比例不低于threshold时压缩.
+     * @param threshold 垃圾比例,0到1之间.
+     * @param minGarbage 最少的垃圾字节数.
+     * @return 是否进行了压缩.
+     */
+    public boolean maintain(long now, double threshold, long minGarbage) {
+        long live = 0;
+        for (Map.Entry<Key, Entry> item : index.entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.isExpired(now)) {
+                // 不需要删除记录,重放时过期的记录被丢弃
+                index.remove(item.getKey(), entry);
+            } else {
+                live += entry.recordLength();
+            }
+        }
+        long total = getDiskSize();
+        long garbage = total - live;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("logStore " + directory + " keys: " + index.size() + ", segments: " + segments.size()
+                    + ", bytes: " + total + ", live bytes: " + live);
+        }
+        if (garbage < minGarbage || garbage < total * threshold) {
+            return false;
+        }
+        compact(now);
+        return true;
+    }
+
+    /**
+     * 开始新的段,把之前所有的段中仍然有效的记录复制到新段,然后删除这些段.
+     * 复制逐条持有写入锁,期间的写入不会被阻塞太久.
+     * 因为被压缩的总是编号最小的全部段,其中的删除和修改过期时间的记录可以直接丢弃.
+     */
+    public void compact(long now) {
+        synchronized (compactLock) {
+            List<Segment> sealed;
+            segmentLock.readLock().lock();
+            try {
+                checkOpen();
+                synchronized (writeLock) {
+                    if (active.size > 0) {
+                        roll();
+                    }
+                    sealed = new ArrayList<Segment>(segments.headMap(active.id).values());
+                }
+                if (sealed.isEmpty()) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                long count = 0;
+                for (Segment segment : sealed) {
+                    count += copyLive(segment, now);
+                }
+                active.channel.force(false);
+                LOGGER.info("logStore " + directory + " compacted " + sealed.size() + " segments, copied " + count
+                        + " records in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not compact " + directory, e);
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+            segmentLock.writeLock().lock();
+            try {
+                for (Segment segment : sealed) {
+                    segments.remove(segment.id);
+                    segment.close();
+                    if (!segment.file.delete()) {
+                        LOGGER.warn("Can not delete " + segment.file);
+                    }
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            compactions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 把当前段写回磁盘并关闭所有的段文件,记录留给下一次打开.
+     */
+    public void close() throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.channel.force(true);
+            closeSegments();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private long copyLive(final Segment segment, final long now) throws IOException {
+        final long[] count = new long[1];
+        scan(segment, new RecordVisitor() {
+            public void visit(byte type, byte[] key, byte[] value, long expireAt, long position) throws IOException {
+                if (type != PUT) {
+                    return;
+                }
+                Key k = new Key(key);
+                synchronized (writeLock) {
+                    Entry entry = index.get(k);
+                    if (entry == null || entry.segment != segment || entry.position != position) {
+                        return;
+                    }
+                    if (entry.isExpired(now)) {
+                        index.remove(k, entry);
+                    } else {
+                        index.put(k, append(PUT, key, value, entry.expireAt));
+                        count[0]++;
+                    }
+                }
+            }
+        });
+        copied.addAndGet(count[0]);
+        return count[0];
+    }
+
+    private void replay(final Segment segment) throws IOException {
+        long valid = scan(segment, new RecordVisitor() {
+            public void visit(byte type, byte[] key, byte[] value, long expireAt, long position) {
+                Key k = new Key(key);
+                if (type == PUT) {
+                    index.put(k, new Entry(segment, position, key.length, value.length, expireAt));
+                } else if (type == DELETE) {
+                    index.remove(k);
+                } else {
+                    Entry entry = index.get(k);
+                    if (entry != null) {
+                        index.put(k, entry.retime(expireAt));
+                    }
+                }
+            }
+        });
+        if (valid < segment.size) {
+            LOGGER.warn("logStore truncate " + segment.file + " from " + segment.size + " to " + valid
+                    + " bytes, the tail is incomplete or corrupted.");
+            segment.channel.truncate(valid);
+            segment.size = valid;
+        }
+    }
+
+    /**
+     * 顺序读取段中的记录,遇到不完整或者校验失败的记录时停止.
+     * @return 最后一条完整记录的结束位置.
+     */
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long size = segment.size;
+        long position = 0;
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file), SCAN_BUFFER_SIZE));
+        try {
+            CRC32 crc = new CRC32();
+            while (position + RECORD_HEADER_SIZE <= size) {
+                in.readFully(header);
+                ByteBuffer view = ByteBuffer.wrap(header);
+                byte type = view.get(RECORD_TYPE);
+                long expireAt = view.getLong(RECORD_EXPIRE);
+                int keyLength = view.getShort(RECORD_KEY_LENGTH) & 0xFFFF;
+                int valueLength = view.getInt(RECORD_VALUE_LENGTH);
+                if (type < PUT || type > TOUCH || valueLength < 0
+                        || position + RECORD_HEADER_SIZE + keyLength + valueLength > size) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                byte[] value = valueLength == 0 ? EMPTY : new byte[valueLength];
+                in.readFully(key);
+                in.readFully(value);
+                crc.reset();
+                crc.update(header, RECORD_TYPE, RECORD_HEADER_SIZE - RECORD_TYPE);
+                crc.update(key);
+                crc.update(value);
+                if ((int) crc.getValue() != view.getInt(RECORD_CRC)) {
+                    break;
+                }
+                visitor.visit(type, key, value, expireAt, position);
+                position += RECORD_HEADER_SIZE + keyLength + valueLength;
+            }
+        } catch (EOFException e) {
+            // 文件比记录的大小短,以已经读取的位置为准
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    /**
+     * 在当前段末尾追加一条记录,调用者持有writeLock.
+     */
+    private Entry append(byte type, byte[] key, byte[] value, long expireAt) {
+        checkOpen();
+        int length = RECORD_HEADER_SIZE + key.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.position(RECORD_TYPE);
+        record.put(type);
+        record.putLong(expireAt);
+        record.putShort((short) key.length);
+        record.putInt(value.length);
+        record.put(key);
+        record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_TYPE, length - RECORD_TYPE);
+        record.putInt(RECORD_CRC, (int) crc.getValue());
+        record.flip();
+        try {
+            if (active.size > 0 && active.size + length > segmentSize) {
+                roll();
+            }
+            Segment segment = active;
+            long position = segment.size;
+            while (record.hasRemaining()) {
+                segment.channel.write(record, position + record.position());
+            }
+            segment.size = position + length;
+            if (syncEveryWrite) {
+                segment.channel.force(false);
+            }
+            return new Entry(segment, position, key.length, value.length, expireAt);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not append to " + active.file, e);
+        }
+    }
+
+    /**
+     * 写回当前段并开始新的段,调用者持有writeLock.
+     */
+    private void roll() throws IOException {
+        active.channel.force(false);
+        int id = active.id + 1;
+        Segment segment = new Segment(id, segmentFile(id));
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    private byte[] readValue(Entry entry) {
+        byte[] value = new byte[entry.valueLength];
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        long position = entry.position + RECORD_HEADER_SIZE + entry.keyLength;
+        try {
+            while (buffer.hasRemaining()) {
+                if (entry.segment.channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of " + entry.segment.file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read " + entry.segment.file, e);
+        }
+        return value;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX);
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Log store " + directory + " is closed.");
+        }
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key is longer than " + MAX_KEY_LENGTH + " bytes.");
+        }
+    }
+
+    private static long parse(byte[] value) {
+        try {
+            return Long.parseLong(new String(value, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value is not an integer.", e);
+        }
+    }
+
+    /**
+     * 顺序读取时对每条完整记录的回调.
+     */
+    private interface RecordVisitor {
+
+        void visit(byte type, byte[] key, byte[] value, long expireAt, long position) throws IOException;
+    }
+
+    /**
+     * 一个段文件.
+     */
+    private static final class Segment {
+
+        private final int id;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private volatile long size;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOGGER.warn("Can not close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * 索引中一个key最新的写入记录的位置.修改过期时间时替换为新的Entry,位置不变.
+     */
+    private static final class Entry {
+
+        private final Segment segment;
+        private final long position;
+        private final int keyLength;
+        private final int valueLength;
+        private final long expireAt;
+
+        Entry(Segment segment, long position, int keyLength, int valueLength, long expireAt) {
+            this.segment = segment;
+            this.position = position;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.expireAt = expireAt;
+        }
+
+        Entry retime(long newExpireAt) {
+            return new Entry(segment, position, keyLength, valueLength, newExpireAt);
+        }
+
+        boolean isExpired(long now) {
+            return expireAt != 0 && expireAt <= now;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * 以内容比较的key.
+     */
+    private static final class Key {
+
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+        }
+    }
+}
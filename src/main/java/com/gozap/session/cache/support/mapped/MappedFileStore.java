@@ -0,0 +1,633 @@
+package com.gozap.session.cache.support.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 保存在内存映射文件中的字节键值表,进程重启后重新映射同一个文件即可继续使用.
+ *
+ * 文件由三部分组成:64字节的文件头(魔数,版本,槽数,数据区大小,追加位置),
+ * 固定数量的索引槽(每槽24字节:状态,key哈希,记录位置,保留,过期时间),
+ * 以及只追加的数据区(每条记录:key长度2字节,值长度4字节,key,值).
+ * 索引是开放寻址(线性探测)的哈希表,删除只把槽标记为已删除.
+ * 写入总是追加新的记录再修改索引槽,旧的记录成为垃圾,数据区或者索引写满时
+ * 把存活的记录复制到新文件中并替换原文件(压缩),压缩期间阻塞所有的读写.
+ *
+ * 读写直接在映射的缓冲区上进行,不经过文件读写调用.写入进入操作系统的页缓存,
+ * 进程崩溃不会丢失数据,掉电时只保证最近一次force之前的数据.
+ * 单个文件最大2G.
+ *
+ * @version 1.00 2015-8-16
+ * @since 1.6
+ */
+public class MappedFileStore {
+
+    private static final int MAGIC = 0x53455353;
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int DATA_SIZE_OFFSET = 12;
+    private static final int APPEND_OFFSET = 16;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_STATE = 0;
+    private static final int SLOT_HASH = 4;
+    private static final int SLOT_RECORD = 8;
+    private static final int SLOT_EXPIRE = 16;
+    private static final int EMPTY = 0;
+    private static final int LIVE = 1;
+    private static final int DELETED = 2;
+
+    private static final int RECORD_KEY_LENGTH = 0;
+    private static final int RECORD_VALUE_LENGTH = 2;
+    private static final int RECORD_HEADER_SIZE = 6;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final int MAX_SLOTS = 1 << 26;
+    private static final int SWEEP_BATCH = 4096;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    // 压缩时替换映射,读写持有读锁,压缩持有写锁
+    private final ReadWriteLock mapLock = new ReentrantReadWriteLock();
+    // 保护索引槽的修改
+    private final Object indexLock = new Object();
+    private final AtomicInteger appendPosition = new AtomicInteger();
+    private final AtomicLong compactions = new AtomicLong();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private int dataSize;
+    private int dataStart;
+    private int fileSize;
+    private int live;
+    private int used;
+
+    /**
+     * 打开已有的文件,文件不存在时按指定的大小创建.
+     * 已有文件的槽数和数据区大小以文件头为准.
+     * @param file 文件.
+     * @param slots 索引槽数,向上取整为2的幂.
+     * @param dataSize 数据区字节数.
+     * @throws IOException 文件不能创建或者映射,或者不是此类创建的文件.
+     */
+    public MappedFileStore(File file, int slots, int dataSize) throws IOException {
+        if (slots <= 0 || slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Slots must be between 1 and " + MAX_SLOTS + ".");
+        }
+        this.file = file;
+        if (file.exists() && file.length() > 0) {
+            open();
+        } else {
+            create(tableSize(slots), dataSize);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return 数据区中已经追加的字节数,包括垃圾.
+     */
+    public int getAppended() {
+        return appendPosition.get() - dataStart;
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return 存活的key数量,包括已经过期但尚未回收的key.
+     */
+    public int size() {
+        synchronized (indexLock) {
+            return live;
+        }
+    }
+
+    /**
+     * @return 值的副本,不存在或者已经过期时返回null.
+     */
+    public byte[] get(byte[] key, long now) {
+        int hash = hash(key);
+        mapLock.readLock().lock();
+        try {
+            int record;
+            synchronized (indexLock) {
+                int slot = findLive(key, hash, now);
+                if (slot < 0) {
+                    return null;
+                }
+                record = buffer.getInt(slotPosition(slot) + SLOT_RECORD);
+            }
+            return readValue(record);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(byte[] key, long now) {
+        int hash = hash(key);
+        mapLock.readLock().lock();
+        try {
+            synchronized (indexLock) {
+                return findLive(key, hash, now) >= 0;
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 追加记录并修改索引,空间不足时压缩后重试.
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     * @throws IllegalStateException 压缩后仍然没有足够的空间.
+     */
+    public void put(byte[] key, byte[] value, long expireAt) {
+        checkKey(key);
+        int hash = hash(key);
+        int size = RECORD_HEADER_SIZE + key.length + value.length;
+        if (size > dataSize) {
+            throw new IllegalArgumentException("Record of " + size + " bytes is larger than data size " + dataSize + ".");
+        }
+        while (true) {
+            mapLock.readLock().lock();
+            try {
+                int record = reserve(size);
+                if (record >= 0) {
+                    writeRecord(record, key, value);
+                    synchronized (indexLock) {
+                        if (link(key, hash, record, size, expireAt)) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+            compact(size);
+        }
+    }
+
+    /**
+     * @return true删除成功,false不存在.
+     */
+    public boolean remove(byte[] key) {
+        int hash = hash(key);
+        mapLock.readLock().lock();
+        try {
+            synchronized (indexLock) {
+                int slot = find(key, hash);
+                if (slot < 0) {
+                    return false;
+                }
+                unlink(slot);
+                return true;
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 修改过期时间,不改变值.
+     * @return true修改成功,false不存在或者已经过期.
+     */
+    public boolean expire(byte[] key, long expireAt, long now) {
+        int hash = hash(key);
+        mapLock.readLock().lock();
+        try {
+            synchronized (indexLock) {
+                int slot = findLive(key, hash, now);
+                if (slot < 0) {
+                    return false;
+                }
+                buffer.putLong(slotPosition(slot) + SLOT_EXPIRE, expireAt);
+                return true;
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 原子的加减以十进制字符串保存的计数器,保留原有的过期时间.
+     * @return 新的值.
+     * @throws IllegalStateException 原有的值不是整数,或者结果溢出.
+     */
+    public long add(byte[] key, long delta, long now) {
+        checkKey(key);
+        int hash = hash(key);
+        while (true) {
+            int size;
+            mapLock.readLock().lock();
+            try {
+                synchronized (indexLock) {
+                    int slot = findLive(key, hash, now);
+                    long current = 0;
+                    long expireAt = 0;
+                    if (slot >= 0) {
+                        current = parse(readValue(buffer.getInt(slotPosition(slot) + SLOT_RECORD)));
+                        expireAt = buffer.getLong(slotPosition(slot) + SLOT_EXPIRE);
+                    }
+                    long value = current + delta;
+                    if (((current ^ value) & (delta ^ value)) < 0) {
+                        throw new IllegalStateException("Increment or decrement would overflow.");
+                    }
+                    byte[] digits = String.valueOf(value).getBytes(ASCII);
+                    size = RECORD_HEADER_SIZE + key.length + digits.length;
+                    int record = reserve(size);
+                    if (record >= 0) {
+                        writeRecord(record, key, digits);
+                        if (link(key, hash, record, size, expireAt)) {
+                            return value;
+                        }
+                    }
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+            compact(size);
+        }
+    }
+
+    /**
+     * 分批把已经过期的槽标记为删除,每批之间释放锁.
+     * @return 回收的数量.
+     */
+    public int reclaim(long now) {
+        int reclaimed = 0;
+        for (int start = 0; start < slotCount; start += SWEEP_BATCH) {
+            mapLock.readLock().lock();
+            try {
+                synchronized (indexLock) {
+                    int end = Math.min(start + SWEEP_BATCH, slotCount);
+                    for (int slot = start; slot < end; slot++) {
+                        int position = slotPosition(slot);
+                        if (buffer.getInt(position + SLOT_STATE) == LIVE && isExpired(position, now)) {
+                            unlink(slot);
+                            reclaimed++;
+                        }
+                    }
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 把映射的内容写回磁盘.
+     */
+    public void force() {
+        mapLock.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写回磁盘并关闭文件,映射在缓冲区对象被回收时才会解除.
+     */
+    public void close() throws IOException {
+        mapLock.writeLock().lock();
+        try {
+            buffer.force();
+            randomAccessFile.close();
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    private void create(int slots, int dataSize) throws IOException {
+        long size = (long) HEADER_SIZE + (long) slots * SLOT_SIZE + dataSize;
+        if (dataSize <= 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped file of " + size + " bytes is not supported.");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer map;
+        try {
+            raf.setLength(size);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        writeHeader(map, slots, dataSize, HEADER_SIZE + slots * SLOT_SIZE);
+        map.force();
+        attach(raf, map);
+    }
+
+    private void open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a session mapped file.");
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int slots = map.getInt(SLOTS_OFFSET);
+            int size = map.getInt(DATA_SIZE_OFFSET);
+            if (map.getInt(MAGIC_OFFSET) != MAGIC || map.getInt(VERSION_OFFSET) != VERSION
+                    || slots <= 0 || Integer.bitCount(slots) != 1 || size <= 0
+                    || (long) HEADER_SIZE + (long) slots * SLOT_SIZE + size != length) {
+                throw new IOException(file + " is not a session mapped file of version " + VERSION + ".");
+            }
+            attach(raf, map);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 使用新的映射,从文件头和索引中恢复追加位置和计数.
+     */
+    private void attach(RandomAccessFile raf, MappedByteBuffer map) {
+        randomAccessFile = raf;
+        buffer = map;
+        slotCount = map.getInt(SLOTS_OFFSET);
+        dataSize = map.getInt(DATA_SIZE_OFFSET);
+        dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        fileSize = dataStart + dataSize;
+        appendPosition.set(map.getInt(APPEND_OFFSET));
+        live = 0;
+        used = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            int state = map.getInt(slotPosition(slot) + SLOT_STATE);
+            if (state != EMPTY) {
+                used++;
+                if (state == LIVE) {
+                    live++;
+                }
+            }
+        }
+    }
+
+    private static void writeHeader(ByteBuffer map, int slots, int dataSize, int append) {
+        map.putInt(MAGIC_OFFSET, MAGIC);
+        map.putInt(VERSION_OFFSET, VERSION);
+        map.putInt(SLOTS_OFFSET, slots);
+        map.putInt(DATA_SIZE_OFFSET, dataSize);
+        map.putInt(APPEND_OFFSET, append);
+    }
+
+    /**
+     * 在数据区中预留空间.
+     * @return 记录的位置,空间不足时返回-1.
+     */
+    private int reserve(int size) {
+        while (true) {
+            int position = appendPosition.get();
+            if ((long) position + size > fileSize) {
+                return -1;
+            }
+            if (appendPosition.compareAndSet(position, position + size)) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * 把压缩以外的写入都不能完成的情况交给压缩,其他线程已经压缩过时直接返回.
+     */
+    private void compact(int size) {
+        mapLock.writeLock().lock();
+        try {
+            if ((long) appendPosition.get() + size <= fileSize && (used + 1) * 4L <= slotCount * 3L) {
+                return;
+            }
+            rewrite();
+            if ((long) appendPosition.get() + size > fileSize) {
+                throw new IllegalStateException("Mapped file " + file + " is full.");
+            }
+            if ((live + 1) * 4L > slotCount * 3L) {
+                throw new IllegalStateException("Index of mapped file " + file + " is full.");
+            }
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把存活的记录复制到新文件中并替换原文件.
+     */
+    private void rewrite() {
+        File temp = new File(file.getPath() + ".compact");
+        long now = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            raf.setLength(0);
+            raf.setLength(fileSize);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            int append = dataStart;
+            int mask = slotCount - 1;
+            for (int slot = 0; slot < slotCount; slot++) {
+                int position = slotPosition(slot);
+                if (buffer.getInt(position + SLOT_STATE) != LIVE || isExpired(position, now)) {
+                    continue;
+                }
+                int record = buffer.getInt(position + SLOT_RECORD);
+                int length = recordLength(record);
+                ByteBuffer source = buffer.duplicate();
+                source.limit(record + length);
+                source.position(record);
+                ByteBuffer target = map.duplicate();
+                target.position(append);
+                target.put(source);
+                int hash = buffer.getInt(position + SLOT_HASH);
+                int index = hash & mask;
+                while (map.getInt(slotPosition(index) + SLOT_STATE) != EMPTY) {
+                    index = (index + 1) & mask;
+                }
+                int targetPosition = slotPosition(index);
+                map.putInt(targetPosition + SLOT_HASH, hash);
+                map.putInt(targetPosition + SLOT_RECORD, append);
+                map.putLong(targetPosition + SLOT_EXPIRE, buffer.getLong(position + SLOT_EXPIRE));
+                map.putInt(targetPosition + SLOT_STATE, LIVE);
+                append += length;
+            }
+            writeHeader(map, slotCount, dataSize, append);
+            map.force();
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Can not rename " + temp + " to " + file);
+            }
+            randomAccessFile.close();
+            attach(raf, map);
+            raf = null;
+            compactions.incrementAndGet();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not compact mapped file " + file, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // 压缩已经失败,忽略关闭时的异常
+                }
+            }
+        }
+    }
+
+    private int find(byte[] key, int hash) {
+        int mask = slotCount - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            int state = buffer.getInt(position + SLOT_STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && buffer.getInt(position + SLOT_HASH) == hash
+                    && keyEquals(buffer.getInt(position + SLOT_RECORD), key)) {
+                return slot;
+            }
+        }
+    }
+
+    private int findLive(byte[] key, int hash, long now) {
+        int slot = find(key, hash);
+        if (slot >= 0 && isExpired(slotPosition(slot), now)) {
+            unlink(slot);
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * 让key指向新的记录,状态最后写入,崩溃时不会留下指向未写完记录的槽.
+     * @return false索引已满,需要压缩.
+     */
+    private boolean link(byte[] key, int hash, int record, int size, long expireAt) {
+        int slot = find(key, hash);
+        if (slot < 0) {
+            if ((used + 1) * 4L > slotCount * 3L) {
+                return false;
+            }
+            int mask = slotCount - 1;
+            slot = hash & mask;
+            while (buffer.getInt(slotPosition(slot) + SLOT_STATE) == LIVE) {
+                slot = (slot + 1) & mask;
+            }
+            if (buffer.getInt(slotPosition(slot) + SLOT_STATE) == EMPTY) {
+                used++;
+            }
+            live++;
+        }
+        int position = slotPosition(slot);
+        buffer.putInt(position + SLOT_HASH, hash);
+        buffer.putInt(position + SLOT_RECORD, record);
+        buffer.putLong(position + SLOT_EXPIRE, expireAt);
+        buffer.putInt(position + SLOT_STATE, LIVE);
+        if (buffer.getInt(APPEND_OFFSET) < record + size) {
+            buffer.putInt(APPEND_OFFSET, record + size);
+        }
+        return true;
+    }
+
+    private void unlink(int slot) {
+        buffer.putInt(slotPosition(slot) + SLOT_STATE, DELETED);
+        live--;
+    }
+
+    private void writeRecord(int record, byte[] key, byte[] value) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(record);
+        target.putShort((short) key.length);
+        target.putInt(value.length);
+        target.put(key);
+        target.put(value);
+    }
+
+    private byte[] readValue(int record) {
+        int keyLength = buffer.getShort(record + RECORD_KEY_LENGTH) & 0xFFFF;
+        byte[] value = new byte[buffer.getInt(record + RECORD_VALUE_LENGTH)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(record + RECORD_HEADER_SIZE + keyLength);
+        source.get(value);
+        return value;
+    }
+
+    private int recordLength(int record) {
+        return RECORD_HEADER_SIZE + (buffer.getShort(record + RECORD_KEY_LENGTH) & 0xFFFF)
+                + buffer.getInt(record + RECORD_VALUE_LENGTH);
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+        if ((buffer.getShort(record + RECORD_KEY_LENGTH) & 0xFFFF) != key.length) {
+            return false;
+        }
+        int offset = record + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isExpired(int slotPosition, long now) {
+        long expireAt = buffer.getLong(slotPosition + SLOT_EXPIRE);
+        return expireAt > 0 && expireAt <= now;
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key of " + key.length + " bytes is too long.");
+        }
+    }
+
+    private static long parse(byte[] value) {
+        try {
+            return Long.parseLong(new String(value, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value is not an integer.", e);
+        }
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int tableSize(int slots) {
+        int size = 16;
+        while (size < slots) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,109 @@
+package com.gozap.session.cache.support.memcached;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gozap.session.util.ByteBufferPool;
+
+/**
+ * 在少量MemcachedConnection上复用所有线程的memcached客户端.
+ * 带有路由key的请求总是发往同一个连接,同一个key上的请求按提交的顺序执行;
+ * 没有路由key的请求轮流使用各个连接.断开的连接在下一次使用时重新建立.
+ *
+ * @version 1.00 2015-8-17
+ * @since 1.6
+ */
+public class MemcachedClient {
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final ByteBufferPool bufferPool;
+    private final MemcachedConnection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * @param host 主机.
+     * @param port 端口.
+     * @param connectionCount 连接数量.
+     * @param timeout 连接以及同步等待回复的超时毫秒数.
+     * @param bufferSize 每个读写缓冲区的字节数.
+     */
+    public MemcachedClient(String host, int port, int connectionCount, int timeout, int bufferSize) {
+        if (connectionCount <= 0) {
+            throw new IllegalArgumentException("Connection count must be positive.");
+        }
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.connections = new MemcachedConnection[connectionCount];
+        // 每个连接一个读缓冲区一个写缓冲区
+        this.bufferPool = new ByteBufferPool(bufferSize, connectionCount * 2);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 在同一个连接上提交一组请求,不会等待回复.
+     * @param routeKey 路由key,为null时使用任意一个连接.
+     * @param requests 请求.
+     */
+    public void send(String routeKey, MemcachedFuture... requests) {
+        int index;
+        if (routeKey == null) {
+            index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        } else {
+            index = (routeKey.hashCode() & Integer.MAX_VALUE) % connections.length;
+        }
+        connection(index).send(requests);
+    }
+
+    /**
+     * 提交一个请求并同步等待回复.
+     * @param routeKey 路由key,为null时使用任意一个连接.
+     * @param request 请求.
+     * @return 已经收到回复的请求.
+     */
+    public MemcachedFuture execute(String routeKey, MemcachedFuture request) {
+        send(routeKey, request);
+        return request.getReply(timeout);
+    }
+
+    /**
+     * 关闭所有的连接.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+
+    private MemcachedConnection connection(int index) {
+        MemcachedConnection connection = connections[index];
+        if (connection != null && !connection.isBroken()) {
+            return connection;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new MemcachedException("Client is closed.");
+            }
+            connection = connections[index];
+            if (connection == null || connection.isBroken()) {
+                try {
+                    connection = new MemcachedConnection(host, port, timeout, bufferPool);
+                } catch (IOException e) {
+                    throw new MemcachedException("Can not connect to " + host + ":" + port + ".", e);
+                }
+                connections[index] = connection;
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.gozap.session.cache.support.memcached;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.util.ByteBufferPool;
+
+/**
+ * 一个到memcached的二进制协议连接,由任意多个线程共享.
+ * 写线程每次取出队列中所有等待的请求,按写出的顺序分配opaque,编码到同一个缓冲区后一次写出;
+ * 读线程按回复中的opaque找到对应的请求,排在它之前仍未回复的静默请求按默认结果结束.
+ *
+ * 连接断开后不会重连,所有未完成的请求以MemcachedException结束,由MemcachedClient建立新的连接.
+ *
+ * @version 1.00 2015-8-17
+ * @since 1.6
+ */
+public class MemcachedConnection {
+
+    private static final Log LOGGER = LogFactory.getLog(MemcachedConnection.class);
+    private static final byte REQUEST_MAGIC = (byte) 0x80;
+    private static final byte RESPONSE_MAGIC = (byte) 0x81;
+    private static final int HEADER_SIZE = 24;
+    // 每次写出最多合并的请求数量
+    private static final int MAX_BATCH = 1024;
+
+    private final String name;
+    private final ByteBufferPool bufferPool;
+    private final BlockingQueue<MemcachedFuture> queue = new LinkedBlockingQueue<MemcachedFuture>();
+    // 已经写出等待回复的请求,顺序与opaque一致
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+    private final SocketChannel channel;
+    private final Thread writer;
+    private final Thread reader;
+    private int nextOpaque;
+    private volatile boolean broken = false;
+
+    /**
+     * 建立连接并启动读写线程.
+     * @param host 主机.
+     * @param port 端口.
+     * @param connectTimeout 连接超时毫秒数.
+     * @param bufferPool 读写缓冲区池.
+     * @throws IOException 连接失败.
+     */
+    public MemcachedConnection(String host, int port, int connectTimeout, ByteBufferPool bufferPool)
+            throws IOException {
+        this.name = host + ":" + port;
+        this.bufferPool = bufferPool;
+        this.channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "memcached-writer-" + name);
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "memcached-reader-" + name);
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * 提交一组请求,不会阻塞.同一组的请求按顺序写出,但可能与其他线程的请求交错.
+     * @param requests 请求.
+     */
+    public void send(MemcachedFuture... requests) {
+        if (broken) {
+            for (MemcachedFuture request : requests) {
+                request.fail(new MemcachedException("Connection " + name + " is broken."));
+            }
+            return;
+        }
+        for (MemcachedFuture request : requests) {
+            queue.offer(request);
+        }
+        if (broken) {
+            failAll(new MemcachedException("Connection " + name + " is broken."));
+        }
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * 关闭连接,未完成的请求以MemcachedException结束.
+     */
+    public void close() {
+        shutdown(new MemcachedException("Connection " + name + " is closed."));
+    }
+
+    private void shutdown(MemcachedException cause) {
+        broken = true;
+        writer.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Close connection " + name + " failed.", e);
+        }
+        failAll(cause);
+    }
+
+    private void failAll(MemcachedException cause) {
+        Pending entry;
+        while ((entry = pending.poll()) != null) {
+            entry.future.fail(cause);
+        }
+        MemcachedFuture future;
+        while ((future = queue.poll()) != null) {
+            future.fail(cause);
+        }
+    }
+
+    private void write() {
+        ByteBuffer buffer = bufferPool.acquire();
+        List<MemcachedFuture> batch = new ArrayList<MemcachedFuture>();
+        try {
+            while (!broken) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (MemcachedFuture future : batch) {
+                    int opaque = nextOpaque++;
+                    // 必须在写出之前登记,读线程可能马上收到回复
+                    pending.offer(new Pending(opaque, future));
+                    encode(buffer, future, opaque);
+                }
+                flush(buffer);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // 连接关闭
+        } catch (IOException e) {
+            if (!broken) {
+                LOGGER.warn("Write to " + name + " failed.", e);
+                shutdown(new MemcachedException("Write to " + name + " failed.", e));
+            }
+        } finally {
+            for (MemcachedFuture future : batch) {
+                future.fail(new MemcachedException("Connection " + name + " is broken."));
+            }
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void read() {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.flip();
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            while (!broken) {
+                readFully(buffer, header);
+                ByteBuffer view = ByteBuffer.wrap(header);
+                if (view.get(0) != RESPONSE_MAGIC) {
+                    throw new IOException("Bad response magic " + view.get(0) + " from " + name + ".");
+                }
+                int keyLength = view.getShort(2) & 0xFFFF;
+                int extrasLength = view.get(4) & 0xFF;
+                int status = view.getShort(6) & 0xFFFF;
+                int bodyLength = view.getInt(8);
+                int opaque = view.getInt(12);
+                byte[] body = new byte[bodyLength];
+                readFully(buffer, body);
+                int valueOffset = extrasLength + keyLength;
+                byte[] value = null;
+                if (bodyLength > valueOffset) {
+                    value = new byte[bodyLength - valueOffset];
+                    System.arraycopy(body, valueOffset, value, 0, value.length);
+                }
+                Pending entry;
+                while ((entry = pending.poll()) != null && entry.opaque != opaque) {
+                    if (!entry.future.isQuiet()) {
+                        throw new IOException("Missing reply of opaque " + entry.opaque + " from " + name + ".");
+                    }
+                    entry.future.completeSilently();
+                }
+                if (entry == null) {
+                    throw new IOException("Unexpected reply of opaque " + opaque + " from " + name + ".");
+                }
+                entry.future.complete(status, value);
+            }
+        } catch (IOException e) {
+            if (!broken) {
+                LOGGER.warn("Read from " + name + " failed.", e);
+                shutdown(new MemcachedException("Read from " + name + " failed.", e));
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void encode(ByteBuffer buffer, MemcachedFuture future, int opaque) throws IOException {
+        byte[] key = future.getKey();
+        byte[] extras = future.getExtras();
+        byte[] value = future.getRequestValue();
+        if (buffer.remaining() < HEADER_SIZE) {
+            flush(buffer);
+        }
+        buffer.put(REQUEST_MAGIC);
+        buffer.put((byte) future.getOpcode());
+        buffer.putShort((short) key.length);
+        buffer.put((byte) extras.length);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(extras.length + key.length + value.length);
+        buffer.putInt(opaque);
+        buffer.putLong(0L);
+        put(buffer, extras);
+        put(buffer, key);
+        put(buffer, value);
+    }
+
+    /**
+     * 大于缓冲区剩余空间的值分段写出,不会为大值分配新的缓冲区.
+     */
+    private void put(ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush(buffer);
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void readFully(ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read;
+                do {
+                    read = channel.read(buffer);
+                } while (read == 0);
+                buffer.flip();
+                if (read < 0) {
+                    throw new EOFException("Connection " + name + " closed by server.");
+                }
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * 已经写出的请求和它的opaque.
+     */
+    private static final class Pending {
+
+        private final int opaque;
+        private final MemcachedFuture future;
+
+        Pending(int opaque, MemcachedFuture future) {
+            this.opaque = opaque;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.gozap.session.cache.support.memcached;
+
+/**
+ * memcached客户端的异常,包括服务器返回的错误状态,连接失败以及等待回复超时.
+ *
+ * @version 1.00 2015-8-17
+ * @since 1.6
+ */
+public class MemcachedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public MemcachedException(String message) {
+        this(message, -1);
+    }
+
+    public MemcachedException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    public MemcachedException(String message, Throwable cause) {
+        super(message, cause);
+        this.status = -1;
+    }
+
+    /**
+     * @return 服务器返回的状态码,不是服务器返回的错误时为-1.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,161 @@
+package com.gozap.session.cache.support.memcached;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个memcached二进制协议的请求以及它的回复.
+ * 静默(quiet)请求在成功(取值请求在未命中)时服务器不回复,
+ * 之后的请求收到回复时由连接以默认结果结束它,所以一组静默请求之后总要跟一个非静默的请求,
+ * 通常是NOOP.
+ *
+ * @version 1.00 2015-8-17
+ * @since 1.6
+ */
+public class MemcachedFuture {
+
+    public static final int GET = 0x00;
+    public static final int SET = 0x01;
+    public static final int ADD = 0x02;
+    public static final int DELETE = 0x04;
+    public static final int INCREMENT = 0x05;
+    public static final int DECREMENT = 0x06;
+    public static final int GETQ = 0x09;
+    public static final int NOOP = 0x0a;
+    public static final int APPEND = 0x0e;
+    public static final int SETQ = 0x11;
+    public static final int ADDQ = 0x12;
+    public static final int DELETEQ = 0x14;
+    public static final int APPENDQ = 0x19;
+    public static final int TOUCH = 0x1c;
+
+    public static final int STATUS_OK = 0x00;
+    public static final int STATUS_KEY_NOT_FOUND = 0x01;
+    public static final int STATUS_KEY_EXISTS = 0x02;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int opcode;
+    private final byte[] key;
+    private final byte[] extras;
+    private final byte[] value;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile int status;
+    private volatile byte[] reply;
+    private volatile MemcachedException error;
+
+    /**
+     * @param opcode 操作码.
+     * @param key key,可以为null.
+     * @param extras 附加字段,可以为null.
+     * @param value 值,可以为null.
+     */
+    public MemcachedFuture(int opcode, byte[] key, byte[] extras, byte[] value) {
+        this.opcode = opcode;
+        this.key = key == null ? EMPTY : key;
+        this.extras = extras == null ? EMPTY : extras;
+        this.value = value == null ? EMPTY : value;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    byte[] getExtras() {
+        return extras;
+    }
+
+    byte[] getRequestValue() {
+        return value;
+    }
+
+    boolean isQuiet() {
+        return opcode == GETQ || opcode == SETQ || opcode == ADDQ || opcode == DELETEQ || opcode == APPENDQ;
+    }
+
+    /**
+     * 以服务器的回复结束.
+     */
+    void complete(int status, byte[] reply) {
+        if (completed.compareAndSet(false, true)) {
+            this.status = status;
+            this.reply = reply;
+            latch.countDown();
+        }
+    }
+
+    /**
+     * 之后的请求已经收到回复而此静默请求没有回复,以默认结果结束.
+     */
+    void completeSilently() {
+        complete(opcode == GETQ ? STATUS_KEY_NOT_FOUND : STATUS_OK, null);
+    }
+
+    void fail(MemcachedException cause) {
+        if (completed.compareAndSet(false, true)) {
+            error = cause;
+            latch.countDown();
+        }
+    }
+
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * 同步等待回复,超时和连接的失败以MemcachedException抛出,服务器返回的错误状态不会抛出.
+     * @param timeoutMillis 最长等待的毫秒数.
+     * @return 此请求.
+     */
+    public MemcachedFuture getReply(long timeoutMillis) {
+        try {
+            if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new MemcachedException("Wait for the reply timeout after " + timeoutMillis + "ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MemcachedException("Interrupted while waiting for the reply.", e);
+        }
+        if (error != null) {
+            throw new MemcachedException(error.getMessage(), error);
+        }
+        return this;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return 回复的值,没有值时为null.
+     */
+    public byte[] getValue() {
+        return reply;
+    }
+
+    /**
+     * 回复的状态不在允许的范围内时抛出MemcachedException.
+     * @param allowed 除了成功以外允许的状态.
+     * @return 此请求.
+     */
+    public MemcachedFuture check(int... allowed) {
+        if (status == STATUS_OK) {
+            return this;
+        }
+        for (int s : allowed) {
+            if (status == s) {
+                return this;
+            }
+        }
+        String message = reply == null ? "" : new String(reply, UTF8);
+        throw new MemcachedException("Memcached returned status " + status + " " + message, status);
+    }
+}
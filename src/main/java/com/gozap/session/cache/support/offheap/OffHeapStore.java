@@ -0,0 +1,578 @@
+package com.gozap.session.cache.support.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 保存在直接内存中的字节键值表.每个值连同key和过期时间写入SlabAllocator分配的一个块中,
+ * 块的布局为:过期时间(8字节,0表示不过期),key长度(2字节),值长度(4字节),key,值.
+ *
+ * 索引按key哈希的高位分成多个段,每段是一个开放寻址(线性探测)的long数组,
+ * 高32位保存key的哈希,低32位保存块地址加1,0表示空槽.堆上只有这些long数组,
+ * 与保存的key数量无关的对象数量使GC的代价不会随着会话数增长.
+ * 段内的读写都持有段的锁,块只在持有所在段的锁时释放,所以读取时块不会被复用.
+ *
+ * 过期的值在读取时或者reclaim时回收.内存不足时在同一大小级别的值中抽样,
+ * 淘汰最先过期的一个(不过期的值最后淘汰).每段记录各个大小级别的值的数量,
+ * 抽样跳过没有这个级别的段,每次淘汰最多检查EVICTION_PROBES个槽.
+ * 检查完仍然没有找到时(这个级别的值很少),从其他级别中选出使用率最低的一页,
+ * 按页中的块逐个淘汰其中的值后把整页交给这个级别,只检查这一页的块,与索引的大小无关;
+ * 没有其他级别的页时才不限次数地检查.
+ *
+ * @version 1.00 2015-8-15
+ * @since 1.6
+ */
+public class OffHeapStore {
+
+    private static final int EXPIRE_OFFSET = 0;
+    private static final int KEY_LENGTH_OFFSET = 8;
+    private static final int VALUE_LENGTH_OFFSET = 10;
+    private static final int HEADER_SIZE = 14;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final long TOMBSTONE = 0xFFFFFFFF00000000L;
+    private static final int MIN_CAPACITY = 16;
+    // 计数器按最长的long预留空间,加减时可以原地改写
+    private static final int COUNTER_DIGITS = 20;
+    private static final int EVICTION_SAMPLES = 5;
+    private static final int MAX_EVICTIONS = 64;
+    // 一次淘汰在所有段中最多检查的槽数
+    private static final int EVICTION_PROBES = 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SlabAllocator allocator;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong pageMoves = new AtomicLong();
+
+    /**
+     * @param allocator 块分配器.
+     * @param segmentCount 索引的段数,必须是2的幂.
+     * @param initialCapacity 每段索引的初始槽数.
+     */
+    public OffHeapStore(SlabAllocator allocator, int segmentCount, int initialCapacity) {
+        if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of 2.");
+        }
+        this.allocator = allocator;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(tableSize(initialCapacity), allocator.getSizeClassCount());
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * @return 因为内存不足被淘汰的值的数量.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return 重新分配给其他大小级别的页数.
+     */
+    public long getPageMoves() {
+        return pageMoves.get();
+    }
+
+    /**
+     * @return 保存的key数量,包括已经过期但尚未回收的key.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param key key的字节.
+     * @param now 当前时间,毫秒.
+     * @return 值的副本,不存在或者已经过期时返回null.
+     */
+    public byte[] get(byte[] key, long now) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int index = findLive(segment, key, hash, now);
+            return index < 0 ? null : readValue(address(segment.table[index]));
+        }
+    }
+
+    public boolean contains(byte[] key, long now) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return findLive(segment, key, hash, now) >= 0;
+        }
+    }
+
+    /**
+     * 写入值,覆盖原有的值和过期时间.
+     * @param key key的字节.
+     * @param value 值的字节.
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     * @throws IllegalStateException 淘汰后仍然没有足够的内存.
+     */
+    public void put(byte[] key, byte[] value, long expireAt) {
+        checkKey(key);
+        int address = allocate(HEADER_SIZE + key.length + value.length, System.currentTimeMillis());
+        write(address, key, value, expireAt);
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            link(segment, key, hash, address);
+        }
+    }
+
+    /**
+     * @return true删除成功,false不存在.
+     */
+    public boolean remove(byte[] key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int index = find(segment, key, hash);
+            if (index < 0) {
+                return false;
+            }
+            unlink(segment, index);
+            return true;
+        }
+    }
+
+    /**
+     * 修改过期时间,不改变值.
+     * @param expireAt 新的过期时间,毫秒,0表示不过期.
+     * @return true修改成功,false不存在或者已经过期.
+     */
+    public boolean expire(byte[] key, long expireAt, long now) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int index = findLive(segment, key, hash, now);
+            if (index < 0) {
+                return false;
+            }
+            int address = address(segment.table[index]);
+            allocator.page(address).putLong(allocator.offset(address) + EXPIRE_OFFSET, expireAt);
+            return true;
+        }
+    }
+
+    /**
+     * 原子的加减以十进制字符串保存的计数器,保留原有的过期时间.
+     * 计数器能放进原来的块时原地改写,否则在段锁外分配新块后重试.
+     * @return 新的值.
+     * @throws IllegalStateException 原有的值不是整数,或者结果溢出.
+     */
+    public long add(byte[] key, long delta, long now) {
+        checkKey(key);
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int spare = -1;
+        try {
+            while (true) {
+                synchronized (segment) {
+                    int index = findLive(segment, key, hash, now);
+                    int address = index < 0 ? -1 : address(segment.table[index]);
+                    long current = address < 0 ? 0 : parse(readValue(address));
+                    long value = current + delta;
+                    if (((current ^ value) & (delta ^ value)) < 0) {
+                        throw new IllegalStateException("Increment or decrement would overflow.");
+                    }
+                    byte[] digits = String.valueOf(value).getBytes(ASCII);
+                    if (address >= 0 && HEADER_SIZE + key.length + digits.length <= allocator.chunkSize(address)) {
+                        writeValue(address, key.length, digits);
+                        return value;
+                    }
+                    if (spare >= 0) {
+                        write(spare, key, digits, address < 0 ? 0 : expireAt(address));
+                        link(segment, key, hash, spare);
+                        spare = -1;
+                        return value;
+                    }
+                }
+                spare = allocate(HEADER_SIZE + key.length + COUNTER_DIGITS, now);
+            }
+        } finally {
+            if (spare >= 0) {
+                allocator.free(spare);
+            }
+        }
+    }
+
+    /**
+     * 逐段回收已经过期的值.
+     * @param now 当前时间,毫秒.
+     * @return 回收的数量.
+     */
+    public int reclaim(long now) {
+        int reclaimed = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                long[] table = segment.table;
+                for (int i = 0; i < table.length; i++) {
+                    if (isLive(table[i]) && isExpired(address(table[i]), now)) {
+                        unlink(segment, i);
+                        reclaimed++;
+                    }
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 删除全部的值,块回到分配器中,已经申请的直接内存不会归还.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (long entry : segment.table) {
+                    if (isLive(entry)) {
+                        allocator.free(address(entry));
+                    }
+                }
+                segment.table = new long[tableSize(MIN_CAPACITY)];
+                segment.size = 0;
+                segment.used = 0;
+                segment.evictionIndex = 0;
+                Arrays.fill(segment.classCounts, 0);
+            }
+        }
+    }
+
+    private int allocate(int size, long now) {
+        int sizeClass = allocator.sizeClass(size);
+        for (int i = 0; i < MAX_EVICTIONS; i++) {
+            int address = allocator.allocate(size);
+            if (address >= 0) {
+                return address;
+            }
+            if (!evict(sizeClass, now, EVICTION_PROBES) && !movePage(sizeClass)
+                    && !evict(sizeClass, now, Integer.MAX_VALUE)) {
+                break;
+            }
+        }
+        throw new IllegalStateException("Off-heap store is full, can not allocate " + size + " bytes.");
+    }
+
+    /**
+     * 从下一个段开始抽样同一大小级别的值,遇到已经过期的值直接回收,
+     * 否则淘汰样本中最先过期的一个.没有这个级别的值的段直接跳过.
+     * @param maxProbes 在所有段中最多检查的槽数.
+     * @return true释放了一个块,false检查了maxProbes个槽或者所有的段都没有找到这个大小级别的值.
+     */
+    private boolean evict(int sizeClass, long now, int maxProbes) {
+        int start = evictionCursor.getAndIncrement();
+        int budget = maxProbes;
+        for (int n = 0; n < segments.length && budget > 0; n++) {
+            Segment segment = segments[(start + n) & (segments.length - 1)];
+            synchronized (segment) {
+                if (segment.classCounts[sizeClass] == 0) {
+                    continue;
+                }
+                long[] table = segment.table;
+                int victim = -1;
+                long victimExpireAt = Long.MAX_VALUE;
+                int samples = 0;
+                int i = segment.evictionIndex;
+                for (int probes = 0; probes < table.length && samples < EVICTION_SAMPLES && budget > 0; probes++) {
+                    budget--;
+                    i = (i + 1) & (table.length - 1);
+                    if (!isLive(table[i]) || allocator.sizeClassOf(address(table[i])) != sizeClass) {
+                        continue;
+                    }
+                    long expireAt = expireAt(address(table[i]));
+                    if (expireAt > 0 && expireAt <= now) {
+                        segment.evictionIndex = i;
+                        unlink(segment, i);
+                        return true;
+                    }
+                    samples++;
+                    if (victim < 0 || (expireAt > 0 ? expireAt : Long.MAX_VALUE) < victimExpireAt) {
+                        victim = i;
+                        victimExpireAt = expireAt > 0 ? expireAt : Long.MAX_VALUE;
+                    }
+                }
+                segment.evictionIndex = i;
+                if (victim >= 0) {
+                    unlink(segment, victim);
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把其他级别的一页交给sizeClass.淘汰页中所有的值,页中还有刚刚分配尚未登记的块时,
+     * 等待它登记(再淘汰)或者释放.
+     * @return false没有其他级别的页.
+     */
+    private boolean movePage(int sizeClass) {
+        int page = allocator.drainPage(sizeClass);
+        if (page < 0) {
+            return false;
+        }
+        while (true) {
+            evictPage(page);
+            if (allocator.releasePage(page, sizeClass)) {
+                pageMoves.incrementAndGet();
+                return true;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 按页中的块读出key,找到登记它的段后淘汰.块的内容在段锁外读取,可能是空闲块中的旧数据,
+     * 也可能正在写入,只有段中登记的正是这个块时才淘汰;漏掉的块由movePage重试.
+     */
+    private void evictPage(int page) {
+        for (int address : allocator.chunks(page)) {
+            byte[] key = readKey(address);
+            if (key == null) {
+                continue;
+            }
+            int hash = hash(key);
+            Segment segment = segmentFor(hash);
+            synchronized (segment) {
+                int index = find(segment, key, hash);
+                if (index >= 0 && address(segment.table[index]) == address) {
+                    unlink(segment, index);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 块中的key,块头中的长度超出块时返回null.
+     */
+    private byte[] readKey(int address) {
+        ByteBuffer buffer = allocator.page(address).duplicate();
+        int offset = allocator.offset(address);
+        int keyLength = buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xFFFF;
+        if (HEADER_SIZE + keyLength > allocator.chunkSize(address)) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        buffer.position(offset + HEADER_SIZE);
+        buffer.get(key);
+        return key;
+    }
+
+    private int find(Segment segment, byte[] key, int hash) {
+        long[] table = segment.table;
+        int mask = table.length - 1;
+        for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            long entry = table[i];
+            if (isLive(entry) && (int) (entry >>> 32) == hash && keyEquals(address(entry), key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查找未过期的值,遇到已经过期的值时顺便回收.
+     */
+    private int findLive(Segment segment, byte[] key, int hash, long now) {
+        int index = find(segment, key, hash);
+        if (index >= 0 && isExpired(address(segment.table[index]), now)) {
+            unlink(segment, index);
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * 在段中登记块,释放被替换的块.
+     */
+    private void link(Segment segment, byte[] key, int hash, int address) {
+        long entry = ((long) hash << 32) | (address + 1L);
+        int index = find(segment, key, hash);
+        if (index >= 0) {
+            int old = address(segment.table[index]);
+            segment.table[index] = entry;
+            segment.classCounts[allocator.sizeClassOf(old)]--;
+            segment.classCounts[allocator.sizeClassOf(address)]++;
+            allocator.free(old);
+            return;
+        }
+        if ((segment.used + 1) * 4L > segment.table.length * 3L) {
+            rehash(segment);
+        }
+        long[] table = segment.table;
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (isLive(table[i])) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == 0) {
+            segment.used++;
+        }
+        table[i] = entry;
+        segment.size++;
+        segment.classCounts[allocator.sizeClassOf(address)]++;
+    }
+
+    private void unlink(Segment segment, int index) {
+        int address = address(segment.table[index]);
+        segment.classCounts[allocator.sizeClassOf(address)]--;
+        allocator.free(address);
+        segment.table[index] = TOMBSTONE;
+        segment.size--;
+    }
+
+    /**
+     * 按存活的数量重建索引并清除删除标记,存活的值不超过一半的槽.
+     */
+    private void rehash(Segment segment) {
+        long[] table = new long[tableSize(segment.size * 2 + 2)];
+        int mask = table.length - 1;
+        for (long entry : segment.table) {
+            if (isLive(entry)) {
+                int i = (int) (entry >>> 32) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = entry;
+            }
+        }
+        segment.table = table;
+        segment.used = segment.size;
+        segment.evictionIndex = 0;
+    }
+
+    private void write(int address, byte[] key, byte[] value, long expireAt) {
+        ByteBuffer buffer = allocator.page(address).duplicate();
+        buffer.position(allocator.offset(address));
+        buffer.putLong(expireAt);
+        buffer.putShort((short) key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+    }
+
+    private void writeValue(int address, int keyLength, byte[] value) {
+        ByteBuffer buffer = allocator.page(address).duplicate();
+        int offset = allocator.offset(address);
+        buffer.putInt(offset + VALUE_LENGTH_OFFSET, value.length);
+        buffer.position(offset + HEADER_SIZE + keyLength);
+        buffer.put(value);
+    }
+
+    private byte[] readValue(int address) {
+        ByteBuffer buffer = allocator.page(address).duplicate();
+        int offset = allocator.offset(address);
+        int keyLength = buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xFFFF;
+        byte[] value = new byte[buffer.getInt(offset + VALUE_LENGTH_OFFSET)];
+        buffer.position(offset + HEADER_SIZE + keyLength);
+        buffer.get(value);
+        return value;
+    }
+
+    private boolean keyEquals(int address, byte[] key) {
+        ByteBuffer buffer = allocator.page(address);
+        int offset = allocator.offset(address);
+        if ((buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xFFFF) != key.length) {
+            return false;
+        }
+        offset += HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long expireAt(int address) {
+        return allocator.page(address).getLong(allocator.offset(address) + EXPIRE_OFFSET);
+    }
+
+    private boolean isExpired(int address, long now) {
+        long expireAt = expireAt(address);
+        return expireAt > 0 && expireAt <= now;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key of " + key.length + " bytes is too long.");
+        }
+    }
+
+    private static long parse(byte[] value) {
+        try {
+            return Long.parseLong(new String(value, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value is not an integer.", e);
+        }
+    }
+
+    private static boolean isLive(long entry) {
+        return (int) entry != 0;
+    }
+
+    private static int address(long entry) {
+        return (int) entry - 1;
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int tableSize(int capacity) {
+        int size = MIN_CAPACITY;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * 索引的一段.
+     */
+    private static final class Segment {
+
+        long[] table;
+        // 存活的值的数量
+        int size;
+        // 存活的值加上删除标记的数量
+        int used;
+        int evictionIndex;
+        // 每个大小级别存活的值的数量
+        final int[] classCounts;
+
+        Segment(int capacity, int sizeClasses) {
+            this.table = new long[capacity];
+            this.classCounts = new int[sizeClasses];
+        }
+    }
+}
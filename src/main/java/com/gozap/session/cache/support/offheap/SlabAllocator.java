@@ -0,0 +1,319 @@
+package com.gozap.session.cache.support.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 直接内存上的slab分配器.内存按页(默认1M)向系统申请,每页只切分成一种大小的块,
+ * 块的大小从64字节开始按1.25倍递增到页的大小.释放的块进入所属大小的空闲栈,
+ * 下次同样大小的分配直接复用,申请的页总数不超过最大内存.
+ *
+ * 块地址是以8字节为单位的int,最多寻址16G内存.页在分配器的锁中创建,
+ * 读写块内容不需要持有分配器的锁,由调用者保证块在读写期间没有被释放.
+ *
+ * 页的大小级别可以重新分配:drainPage选出一页停止从中分配,调用者释放页中所有的块后,
+ * releasePage把整页切分给新的大小级别.这样值的大小分布变化后内存不会一直属于原来的级别.
+ *
+ * @version 1.00 2015-8-15
+ * @since 1.6
+ */
+public class SlabAllocator {
+
+    /**
+     * 最小的块字节数.
+     */
+    public static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int ALIGN_SHIFT = 3;
+    private static final long MAX_MEMORY = (long) Integer.MAX_VALUE << ALIGN_SHIFT;
+
+    private final int pageSize;
+    private final int[] chunkSizes;
+    private final ByteBuffer[] pages;
+    private final int[] pageClasses;
+    private int pageCount;
+    private final int[][] freeChunks;
+    private final int[] freeCounts;
+    private final int[] carvePages;
+    private final int[] carveOffsets;
+    // 每页已经分配出去的块数
+    private final int[] pageChunks;
+    // 正在重新分配的页,其中释放的块不再进入空闲栈
+    private final boolean[] draining;
+    // 每个大小级别的页数
+    private final int[] classPages;
+    private long usedBytes;
+
+    /**
+     * @param maxMemory 最多申请的直接内存字节数.
+     * @param pageSize 每页的字节数,必须是8的倍数并且不小于MIN_CHUNK_SIZE.
+     */
+    public SlabAllocator(long maxMemory, int pageSize) {
+        if (pageSize < MIN_CHUNK_SIZE || (pageSize & ((1 << ALIGN_SHIFT) - 1)) != 0) {
+            throw new IllegalArgumentException("Page size must be a multiple of 8 and at least "
+                    + MIN_CHUNK_SIZE + ".");
+        }
+        if (maxMemory < pageSize || maxMemory > MAX_MEMORY) {
+            throw new IllegalArgumentException("Max memory must be between page size and " + MAX_MEMORY + ".");
+        }
+        this.pageSize = pageSize;
+        this.pages = new ByteBuffer[(int) (maxMemory / pageSize)];
+        this.pageClasses = new int[pages.length];
+        this.pageChunks = new int[pages.length];
+        this.draining = new boolean[pages.length];
+        int[] sizes = new int[64];
+        int count = 0;
+        int size = MIN_CHUNK_SIZE;
+        while (size < pageSize && count < sizes.length - 1) {
+            sizes[count++] = size;
+            size = align((int) Math.ceil(size * GROWTH_FACTOR));
+        }
+        sizes[count++] = pageSize;
+        this.chunkSizes = Arrays.copyOf(sizes, count);
+        this.freeChunks = new int[count][];
+        for (int i = 0; i < count; i++) {
+            freeChunks[i] = new int[16];
+        }
+        this.freeCounts = new int[count];
+        this.carvePages = new int[count];
+        Arrays.fill(carvePages, -1);
+        this.carveOffsets = new int[count];
+        this.classPages = new int[count];
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return 大小级别的数量,级别的序号从0开始.
+     */
+    public int getSizeClassCount() {
+        return chunkSizes.length;
+    }
+
+    /**
+     * @return 最多可以申请的直接内存字节数.
+     */
+    public long getMaxMemory() {
+        return (long) pages.length * pageSize;
+    }
+
+    /**
+     * @return 已经申请的直接内存字节数.
+     */
+    public synchronized long getAllocatedMemory() {
+        return (long) pageCount * pageSize;
+    }
+
+    /**
+     * @return 已经分配出去的块的字节数.
+     */
+    public synchronized long getUsedMemory() {
+        return usedBytes;
+    }
+
+    /**
+     * 分配一个不小于size字节的块.
+     * @param size 需要的字节数.
+     * @return 块地址,没有空闲的块并且不能再申请新页时返回-1.
+     * @throws IllegalArgumentException size大于页的大小.
+     */
+    public synchronized int allocate(int size) {
+        int sizeClass = sizeClass(size);
+        int address;
+        if (freeCounts[sizeClass] > 0) {
+            address = freeChunks[sizeClass][--freeCounts[sizeClass]];
+        } else {
+            int chunkSize = chunkSizes[sizeClass];
+            int page = carvePages[sizeClass];
+            if (page < 0 || carveOffsets[sizeClass] + chunkSize > pageSize) {
+                if (pageCount == pages.length) {
+                    return -1;
+                }
+                page = pageCount;
+                pages[page] = ByteBuffer.allocateDirect(pageSize);
+                pageClasses[page] = sizeClass;
+                classPages[sizeClass]++;
+                pageCount++;
+                carvePages[sizeClass] = page;
+                carveOffsets[sizeClass] = 0;
+            }
+            address = (int) (((long) page * pageSize + carveOffsets[sizeClass]) >>> ALIGN_SHIFT);
+            carveOffsets[sizeClass] += chunkSize;
+        }
+        pageChunks[pageIndex(address)]++;
+        usedBytes += chunkSizes[sizeClass];
+        return address;
+    }
+
+    /**
+     * 释放块,块回到所属大小的空闲栈.
+     * @param address 块地址.
+     */
+    public synchronized void free(int address) {
+        int page = pageIndex(address);
+        int sizeClass = pageClasses[page];
+        pageChunks[page]--;
+        usedBytes -= chunkSizes[sizeClass];
+        if (draining[page]) {
+            return;
+        }
+        push(sizeClass, address);
+    }
+
+    /**
+     * 选出一页准备重新分配给sizeClass,之后不再从这一页分配块.
+     * 优先选择页数多于一页的级别中使用率最低的页,都只有一页时在所有级别中选择.
+     * @param sizeClass 需要页的大小级别.
+     * @return 页号,没有其他级别的页时返回-1.
+     */
+    public synchronized int drainPage(int sizeClass) {
+        int victim = -1;
+        boolean victimShared = false;
+        long victimUsed = Long.MAX_VALUE;
+        for (int page = 0; page < pageCount; page++) {
+            int owner = pageClasses[page];
+            if (owner == sizeClass || draining[page]) {
+                continue;
+            }
+            boolean shared = classPages[owner] > 1;
+            long used = (long) pageChunks[page] * chunkSizes[owner];
+            if (victim < 0 || (shared && !victimShared) || (shared == victimShared && used < victimUsed)) {
+                victim = page;
+                victimShared = shared;
+                victimUsed = used;
+            }
+        }
+        if (victim < 0) {
+            return -1;
+        }
+        int owner = pageClasses[victim];
+        draining[victim] = true;
+        if (carvePages[owner] == victim) {
+            carvePages[owner] = -1;
+        }
+        int[] stack = freeChunks[owner];
+        int kept = 0;
+        for (int i = 0; i < freeCounts[owner]; i++) {
+            if (pageIndex(stack[i]) != victim) {
+                stack[kept++] = stack[i];
+            }
+        }
+        freeCounts[owner] = kept;
+        return victim;
+    }
+
+    /**
+     * 页中的块都已经释放时,把整页切分成sizeClass的块放入空闲栈.
+     * @param page drainPage返回的页号.
+     * @param sizeClass 新的大小级别.
+     * @return false页中还有没有释放的块,比如刚刚分配还没有登记的块,调用者释放后重试.
+     */
+    public synchronized boolean releasePage(int page, int sizeClass) {
+        if (!draining[page]) {
+            throw new IllegalStateException("Page " + page + " is not draining.");
+        }
+        if (pageChunks[page] > 0) {
+            return false;
+        }
+        classPages[pageClasses[page]]--;
+        pageClasses[page] = sizeClass;
+        classPages[sizeClass]++;
+        draining[page] = false;
+        int chunkSize = chunkSizes[sizeClass];
+        long base = (long) page * pageSize;
+        for (int offset = 0; offset + chunkSize <= pageSize; offset += chunkSize) {
+            push(sizeClass, (int) ((base + offset) >>> ALIGN_SHIFT));
+        }
+        return true;
+    }
+
+    /**
+     * 按页当前的大小级别列出页中所有块的地址,包括空闲和尚未切分出去的块.
+     * @param page 页号.
+     * @return 块地址,页还没有申请时为空.
+     */
+    public synchronized int[] chunks(int page) {
+        if (page >= pageCount) {
+            return new int[0];
+        }
+        int chunkSize = chunkSizes[pageClasses[page]];
+        int[] chunks = new int[pageSize / chunkSize];
+        long base = (long) page * pageSize;
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = (int) ((base + (long) i * chunkSize) >>> ALIGN_SHIFT);
+        }
+        return chunks;
+    }
+
+    private void push(int sizeClass, int address) {
+        int[] stack = freeChunks[sizeClass];
+        if (freeCounts[sizeClass] == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            freeChunks[sizeClass] = stack;
+        }
+        stack[freeCounts[sizeClass]++] = address;
+    }
+
+    /**
+     * @param size 需要的字节数.
+     * @return 能容纳size字节的最小块所属的大小级别.
+     */
+    public int sizeClass(int size) {
+        if (size > pageSize) {
+            throw new IllegalArgumentException("Chunk of " + size + " bytes is larger than page size " + pageSize + ".");
+        }
+        int index = Arrays.binarySearch(chunkSizes, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * @param address 块地址.
+     * @return 块所属的大小级别.
+     */
+    public int sizeClassOf(int address) {
+        return pageClasses[pageIndex(address)];
+    }
+
+    /**
+     * @param address 块地址.
+     * @return 块的字节数.
+     */
+    public int chunkSize(int address) {
+        return chunkSizes[pageClasses[pageIndex(address)]];
+    }
+
+    /**
+     * @param address 块地址.
+     * @return 块所在的页,只能使用绝对位置的读写方法.
+     */
+    public ByteBuffer page(int address) {
+        return pages[pageIndex(address)];
+    }
+
+    /**
+     * @param address 块地址.
+     * @return 块在页中的起始位置.
+     */
+    public int offset(int address) {
+        return (int) (((long) address << ALIGN_SHIFT) % pageSize);
+    }
+
+    /**
+     * @param address 块地址.
+     * @return 块所在的页号.
+     */
+    public int pageOf(int address) {
+        return pageIndex(address);
+    }
+
+    private int pageIndex(int address) {
+        return (int) (((long) address << ALIGN_SHIFT) / pageSize);
+    }
+
+    private static int align(int size) {
+        int mask = (1 << ALIGN_SHIFT) - 1;
+        return (size + mask) & ~mask;
+    }
+}
@@ -0,0 +1,88 @@
+package com.gozap.session.cache.support.peer;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 一致性哈希环.每个节点在环上有若干个虚拟节点,key顺时针找到的第一个虚拟节点所属的节点负责这个key,
+ * 节点加入或者离开时只有相邻区间的key改变归属.
+ * key中有{}时只使用其中的内容计算哈希,开启keyHashTagEnable后同一会话的头信息和属性归属同一个节点.
+ * 创建之后不会改变,成员变化时创建新的环.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+public class HashRing {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * @param nodes 节点id.
+     * @param virtualNodes 每个节点的虚拟节点数.
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return 负责key的节点id,环为空时返回null.
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(routingKey(key)));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * @return 环上的节点id.
+     */
+    public Collection<String> getNodes() {
+        return Collections.unmodifiableCollection(new TreeSet<String>(ring.values()));
+    }
+
+    /**
+     * @return key中第一个{}中的内容,没有时为key本身.
+     */
+    static String routingKey(String key) {
+        int start = key.indexOf('{');
+        if (start >= 0) {
+            int end = key.indexOf('}', start + 1);
+            if (end > start + 1) {
+                return key.substring(start + 1, end);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * MD5的前8字节.
+     */
+    private static long hash(String value) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(value.getBytes(UTF8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (bytes[i] & 0xFF);
+        }
+        return hash;
+    }
+}
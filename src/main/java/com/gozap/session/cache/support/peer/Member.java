@@ -0,0 +1,71 @@
+package com.gozap.session.cache.support.peer;
+
+/**
+ * 集群中的一个节点.id为节点监听的主机和端口(host:port).
+ * 心跳由节点自己递增并通过gossip传播,本节点最后一次看到心跳增加的时间超过失效时间后认为它已经下线.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+public class Member {
+
+    private final String id;
+    private final String host;
+    private final int port;
+    private volatile long heartbeat;
+    private volatile long updatedAt;
+
+    public Member(String host, int port, long heartbeat, long updatedAt) {
+        this.id = host + ":" + port;
+        this.host = host;
+        this.port = port;
+        this.heartbeat = heartbeat;
+        this.updatedAt = updatedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @return 本节点最后一次看到心跳增加的时间,毫秒.
+     */
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * 心跳比已知的大时更新.
+     * @return 是否更新.
+     */
+    synchronized boolean update(long newHeartbeat, long now) {
+        if (newHeartbeat <= heartbeat) {
+            return false;
+        }
+        heartbeat = newHeartbeat;
+        updatedAt = now;
+        return true;
+    }
+
+    synchronized void beat(long now) {
+        heartbeat++;
+        updatedAt = now;
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
@@ -0,0 +1,195 @@
+package com.gozap.session.cache.support.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 与另一个节点之间的一条TCP连接,主动建立和被动接受的连接使用相同的处理方式.
+ * 发送的帧先放入有界队列,由写线程批量写出,队列为空时才flush,调用方不会阻塞在网络上.
+ * 读线程读到的帧交给Handler处理,回复从收到请求的连接发回.
+ * 读写出错,对方关闭或者队列满时关闭连接,之后不能再使用.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+final class PeerConnection {
+
+    private static final Log LOGGER = LogFactory.getLog(PeerConnection.class);
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 收到的帧和连接关闭的回调.
+     */
+    interface Handler {
+
+        void handle(PeerConnection connection, PeerProtocol.Frame frame) throws IOException;
+
+        void closed(PeerConnection connection);
+    }
+
+    private final String name;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Handler handler;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(QUEUE_CAPACITY);
+    private volatile boolean closed;
+    private Thread reader;
+    private Thread writer;
+
+    PeerConnection(String name, Socket socket, Handler handler) throws IOException {
+        this.name = name;
+        this.socket = socket;
+        this.handler = handler;
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * 连接到另一个节点并启动读写线程.
+     * @param timeout 连接超时,毫秒.
+     */
+    static PeerConnection connect(String name, String host, int port, int timeout, Handler handler)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            PeerConnection connection = new PeerConnection(name, socket, handler);
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 连接另一端的节点id,被动接受的连接为对方的地址.
+     */
+    String getName() {
+        return name;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void start() {
+        if (reader != null) {
+            return;
+        }
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "peer-cache-reader-" + name);
+        reader.setDaemon(true);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "peer-cache-writer-" + name);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * 把帧放入发送队列.
+     * @param timeout 队列满时等待的时间,毫秒,0表示不等待.
+     * @return false连接已经关闭或者队列一直是满的,后一种情况会关闭连接.
+     */
+    boolean send(byte[] frame, long timeout) {
+        if (closed) {
+            return false;
+        }
+        boolean queued;
+        try {
+            queued = timeout > 0 ? queue.offer(frame, timeout, TimeUnit.MILLISECONDS) : queue.offer(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!queued) {
+            LOGGER.warn("Send queue to " + name + " is full, close the connection.");
+            close();
+        }
+        return queued;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Close connection to " + name + " failed.", e);
+        }
+        if (writer != null) {
+            writer.interrupt();
+        }
+        queue.clear();
+        handler.closed(this);
+    }
+
+    private void read() {
+        try {
+            while (!closed) {
+                handler.handle(this, PeerProtocol.read(in));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.debug("Connection to " + name + " is broken.", e);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Handle frame from " + name + " failed.", e);
+        } finally {
+            close();
+        }
+    }
+
+    private void write() {
+        try {
+            while (!closed) {
+                byte[] frame = queue.take();
+                do {
+                    out.write(frame);
+                    frame = queue.poll();
+                } while (frame != null);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // 关闭连接
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.debug("Connection to " + name + " is broken.", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,694 @@
+package com.gozap.session.cache.support.peer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 点对点复制的一个节点.每个节点在本地PeerStore中保存全部的值,读取不经过网络.
+ *
+ * 写入在本地分配版本后写入本地,再发给所有在线的节点.同步复制时等待所有节点确认,
+ * 超过syncTimeout记录警告后返回,异步复制时放入发送队列后立即返回.
+ * 版本为混合时钟:高位是不小于当前毫秒并且单调增加的计数,收到其他节点的版本时向前推进,
+ * 低12位是节点id的哈希,同一时刻不同节点的写入也能确定先后.
+ *
+ * 成员通过gossip维护:每个gossipInterval递增自己的心跳,把已知的成员表发给一个随机的在线节点
+ * 和一个随机的离线节点或者未知的种子节点,超过failureTimeout没有看到心跳增加的节点认为已经离线.
+ * 在线节点组成一致性哈希环,负责一个key的节点执行这个key的计数器加减,保证加减不会丢失.
+ * 一个节点上线(包括本节点启动)时双方互相请求对方负责的值,补齐离线期间的写入.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+public class PeerNode {
+
+    private static final Log LOGGER = LogFactory.getLog(PeerNode.class);
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int NODE_BITS = 12;
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final Member self;
+    private final Collection<String> seeds;
+    private final long nodeBits;
+    private final PeerStore store = new PeerStore();
+    private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+    private final ConcurrentMap<String, PeerConnection> connections = new ConcurrentHashMap<String, PeerConnection>();
+    private final ConcurrentMap<String, Object> connectLocks = new ConcurrentHashMap<String, Object>();
+    private final Set<PeerConnection> accepted =
+            Collections.newSetFromMap(new ConcurrentHashMap<PeerConnection, Boolean>());
+    private final ConcurrentMap<Long, Pending> pending = new ConcurrentHashMap<Long, Pending>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Random random = new Random();
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private final PeerConnection.Handler handler = new PeerConnection.Handler() {
+        public void handle(PeerConnection connection, PeerProtocol.Frame frame) throws IOException {
+            PeerNode.this.handle(connection, frame);
+        }
+
+        public void closed(PeerConnection connection) {
+            if (!connections.remove(connection.getName(), connection)) {
+                accepted.remove(connection);
+            }
+        }
+    };
+
+    private boolean syncReplication;
+    private int syncTimeout = 1000;
+    private int gossipInterval = 500;
+    private int failureTimeout = 3000;
+    private int virtualNodes = 64;
+    private long tombstoneTtl = TimeUnit.SECONDS.toMillis(60);
+    private volatile Set<String> alive;
+    private volatile HashRing ring;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param host 监听和向其他节点通告的地址.
+     * @param port 监听的端口.
+     * @param seeds 启动时联系的节点,host:port,可以包含本节点.
+     */
+    public PeerNode(String host, int port, Collection<String> seeds) {
+        this.self = new Member(host, port, 0, System.currentTimeMillis());
+        this.seeds = new ArrayList<String>(seeds);
+        this.seeds.remove(self.getId());
+        this.nodeBits = self.getId().hashCode() & ((1 << NODE_BITS) - 1);
+        this.alive = Collections.singleton(self.getId());
+        this.ring = new HashRing(alive, virtualNodes);
+    }
+
+    public String getId() {
+        return self.getId();
+    }
+
+    public PeerStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return 在线的节点id,包括本节点.
+     */
+    public Set<String> getAliveMembers() {
+        return alive;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @param syncReplication true等待其他节点确认写入.
+     */
+    public void setSyncReplication(boolean syncReplication) {
+        this.syncReplication = syncReplication;
+    }
+
+    /**
+     * @param syncTimeout 同步复制,计数器加减和建立连接的超时,毫秒.
+     */
+    public void setSyncTimeout(int syncTimeout) {
+        this.syncTimeout = syncTimeout;
+    }
+
+    public void setGossipInterval(int gossipInterval) {
+        this.gossipInterval = gossipInterval;
+    }
+
+    public int getFailureTimeout() {
+        return failureTimeout;
+    }
+
+    public void setFailureTimeout(int failureTimeout) {
+        this.failureTimeout = failureTimeout;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        this.ring = new HashRing(alive, virtualNodes);
+    }
+
+    /**
+     * @param tombstoneTtl 删除的墓碑保留的时间,毫秒,需要大于写入在节点之间传播的时间.
+     */
+    public void setTombstoneTtl(long tombstoneTtl) {
+        this.tombstoneTtl = tombstoneTtl;
+    }
+
+    /**
+     * 开始监听并加入集群.
+     * @throws IOException 无法监听端口.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(self.getHost()), self.getPort()));
+        running = true;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "peer-cache-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "peer-cache-gossip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    gossip();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Peer gossip failed.", e);
+                }
+            }
+        }, 0, gossipInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                int reclaimed = store.reclaim(System.currentTimeMillis());
+                if (reclaimed > 0 && LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Peer store reclaimed " + reclaimed + " keys.");
+                }
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        if (seeds.isEmpty()) {
+            joined.countDown();
+        }
+    }
+
+    /**
+     * 等待从第一个上线的节点收到它负责的值,没有其他种子节点时立即返回.
+     * @return 是否在超时之前收到.
+     */
+    public boolean awaitJoin(long timeout) throws InterruptedException {
+        return joined.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        scheduler.shutdownNow();
+        scheduler = null;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Close peer server socket failed.", e);
+        }
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        for (PeerConnection connection : accepted) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return 值,不存在或者已经过期时返回null.
+     */
+    public byte[] get(String key, long now) {
+        return store.get(key, now);
+    }
+
+    public boolean contains(String key, long now) {
+        return store.contains(key, now);
+    }
+
+    /**
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     */
+    public void put(String key, byte[] data, long expireAt) {
+        long version = nextVersion();
+        store.apply(key, version, expireAt, data);
+        replicate(PeerProtocol.put(requestId(), key, version, expireAt, data));
+    }
+
+    /**
+     * @return true删除成功,false不存在.
+     */
+    public boolean delete(String key) {
+        long now = System.currentTimeMillis();
+        boolean existed = store.contains(key, now);
+        long version = nextVersion();
+        store.apply(key, version, now + tombstoneTtl, null);
+        replicate(PeerProtocol.put(requestId(), key, version, now + tombstoneTtl, null));
+        return existed;
+    }
+
+    /**
+     * @param expireAt 过期时间,毫秒,0表示不过期.
+     * @return true修改成功,false不存在或者已经过期.
+     */
+    public boolean touch(String key, long expireAt, long now) {
+        long version = nextVersion();
+        if (!store.touch(key, version, expireAt, now)) {
+            return false;
+        }
+        replicate(PeerProtocol.touch(requestId(), key, version, expireAt));
+        return true;
+    }
+
+    /**
+     * 由负责key的节点执行加减,结果复制到所有节点,本节点立即写入结果.
+     * @return 新的值.
+     * @throws IllegalStateException 值不是整数,溢出或者负责的节点无法访问.
+     */
+    public long add(String key, long delta, long now) {
+        String owner = ring.owner(key);
+        if (owner == null || owner.equals(self.getId())) {
+            return addLocal(key, delta, now)[0];
+        }
+        PeerConnection connection = connection(owner);
+        long requestId = requestIds.incrementAndGet();
+        Pending reply = new Pending(1);
+        pending.put(requestId, reply);
+        try {
+            if (connection == null || !connection.send(PeerProtocol.add(requestId, key, delta), syncTimeout)
+                    || !reply.latch.await(syncTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Owner " + owner + " of " + key + " is not reachable.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + owner + ".", e);
+        } finally {
+            pending.remove(requestId);
+        }
+        if (reply.error != null) {
+            throw new IllegalStateException(reply.error);
+        }
+        long[] result = reply.result;
+        observe(result[1]);
+        store.apply(key, result[1], result[2], String.valueOf(result[0]).getBytes(ASCII));
+        return result[0];
+    }
+
+    public void clear() {
+        store.clear();
+    }
+
+    /**
+     * @return 新的值,版本和过期时间.
+     */
+    private long[] addLocal(String key, long delta, long now) {
+        long version = nextVersion();
+        long[] result = store.add(key, delta, version, now);
+        replicate(PeerProtocol.put(requestId(), key, version, result[1],
+                String.valueOf(result[0]).getBytes(ASCII)));
+        return new long[] {result[0], version, result[1]};
+    }
+
+    /**
+     * 发给所有在线的节点,同步复制时等待确认.
+     */
+    private void replicate(byte[] frame) {
+        List<PeerConnection> targets = new ArrayList<PeerConnection>();
+        for (String id : alive) {
+            if (!id.equals(self.getId())) {
+                PeerConnection connection = connection(id);
+                if (connection != null) {
+                    targets.add(connection);
+                }
+            }
+        }
+        if (!syncReplication) {
+            for (PeerConnection connection : targets) {
+                connection.send(frame, 0);
+            }
+            return;
+        }
+        long requestId = readRequestId(frame);
+        Pending acks = new Pending(targets.size());
+        pending.put(requestId, acks);
+        try {
+            for (PeerConnection connection : targets) {
+                if (!connection.send(frame, syncTimeout)) {
+                    acks.latch.countDown();
+                }
+            }
+            if (!acks.latch.await(syncTimeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn(acks.latch.getCount() + " peers did not acknowledge a write in " + syncTimeout + "ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * @return 同步复制时的请求id,异步复制时为0,对方不回复确认.
+     */
+    private long requestId() {
+        return syncReplication ? requestIds.incrementAndGet() : 0;
+    }
+
+    /**
+     * PUT和TOUCH的请求id在类型之后.
+     */
+    private static long readRequestId(byte[] frame) {
+        long id = 0;
+        for (int i = 5; i < 13; i++) {
+            id = (id << 8) | (frame[i] & 0xFF);
+        }
+        return id;
+    }
+
+    private long nextVersion() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            long last = clock.get();
+            long next = Math.max(last + 1, now);
+            if (clock.compareAndSet(last, next)) {
+                return (next << NODE_BITS) | nodeBits;
+            }
+        }
+    }
+
+    /**
+     * 收到其他节点的版本时推进时钟,之后本节点的写入排在它之后.
+     */
+    private void observe(long version) {
+        long time = version >>> NODE_BITS;
+        while (true) {
+            long last = clock.get();
+            if (last >= time || clock.compareAndSet(last, time)) {
+                return;
+            }
+        }
+    }
+
+    private void handle(PeerConnection connection, PeerProtocol.Frame frame) throws IOException {
+        DataInputStream in = frame.in;
+        long now = System.currentTimeMillis();
+        switch (frame.type) {
+        case PeerProtocol.GOSSIP:
+            merge(in, now);
+            break;
+        case PeerProtocol.PUT: {
+            long requestId = in.readLong();
+            String key = in.readUTF();
+            long version = in.readLong();
+            long expireAt = in.readLong();
+            byte[] data = PeerProtocol.readData(in);
+            observe(version);
+            store.apply(key, version, expireAt, data);
+            if (requestId != 0) {
+                connection.send(PeerProtocol.ack(requestId), 0);
+            }
+            break;
+        }
+        case PeerProtocol.TOUCH: {
+            long requestId = in.readLong();
+            String key = in.readUTF();
+            long version = in.readLong();
+            long expireAt = in.readLong();
+            observe(version);
+            store.touch(key, version, expireAt, now);
+            if (requestId != 0) {
+                connection.send(PeerProtocol.ack(requestId), 0);
+            }
+            break;
+        }
+        case PeerProtocol.ACK: {
+            Pending acks = pending.get(in.readLong());
+            if (acks != null) {
+                acks.latch.countDown();
+            }
+            break;
+        }
+        case PeerProtocol.ADD: {
+            long requestId = in.readLong();
+            String key = in.readUTF();
+            long delta = in.readLong();
+            byte[] reply;
+            try {
+                long[] result = addLocal(key, delta, now);
+                reply = PeerProtocol.addReply(requestId, result[0], result[1], result[2], null);
+            } catch (IllegalStateException e) {
+                reply = PeerProtocol.addReply(requestId, 0, 0, 0, e.getMessage());
+            }
+            connection.send(reply, syncTimeout);
+            break;
+        }
+        case PeerProtocol.ADD_REPLY: {
+            Pending reply = pending.get(in.readLong());
+            boolean ok = in.readBoolean();
+            long value = in.readLong();
+            long version = in.readLong();
+            long expireAt = in.readLong();
+            String error = in.readUTF();
+            if (reply != null) {
+                if (ok) {
+                    reply.result = new long[] {value, version, expireAt};
+                } else {
+                    reply.error = error;
+                }
+                reply.latch.countDown();
+            }
+            break;
+        }
+        case PeerProtocol.SYNC_REQUEST:
+            transfer(connection, in.readUTF());
+            break;
+        case PeerProtocol.SYNC_DONE:
+            LOGGER.info("Received " + in.readInt() + " keys from " + connection.getName() + ".");
+            joined.countDown();
+            break;
+        default:
+            throw new IOException("Unknown frame type " + frame.type + " from " + connection.getName() + ".");
+        }
+    }
+
+    /**
+     * 把本节点负责的值发给请求者.负责的范围按不含请求者的环计算,
+     * 即请求者离线期间由本节点负责的值,每个值只由一个节点发送.
+     */
+    private void transfer(final PeerConnection connection, String requesterId) {
+        Set<String> nodes = new TreeSet<String>(alive);
+        nodes.remove(requesterId);
+        nodes.add(self.getId());
+        final HashRing previous = new HashRing(nodes, virtualNodes);
+        final String selfId = self.getId();
+        final int[] count = new int[1];
+        store.forEach(new PeerStore.Visitor() {
+            public void visit(String key, long version, long expireAt, byte[] data) {
+                if (selfId.equals(previous.owner(key))
+                        && connection.send(PeerProtocol.put(0, key, version, expireAt, data), syncTimeout)) {
+                    count[0]++;
+                }
+            }
+        });
+        connection.send(PeerProtocol.syncDone(count[0]), syncTimeout);
+        LOGGER.info("Sent " + count[0] + " keys to " + requesterId + ".");
+    }
+
+    /**
+     * 合并收到的成员表.直接从成员自己收到的心跳立即认为在线,从其他节点转述的新成员
+     * 要等到心跳增加后才认为在线,避免已经离线的成员被重新加入.
+     */
+    private void merge(DataInputStream in, long now) throws IOException {
+        String senderId = in.readUTF();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            String host = in.readUTF();
+            int port = in.readInt();
+            long heartbeat = in.readLong();
+            if (id.equals(self.getId())) {
+                continue;
+            }
+            Member member = members.get(id);
+            if (member == null) {
+                member = new Member(host, port, heartbeat, id.equals(senderId) ? now : 0);
+                Member existing = members.putIfAbsent(id, member);
+                if (existing != null) {
+                    existing.update(heartbeat, now);
+                }
+            } else {
+                member.update(heartbeat, now);
+            }
+        }
+        updateMembership(now);
+    }
+
+    private void gossip() {
+        long now = System.currentTimeMillis();
+        self.beat(now);
+        updateMembership(now);
+        List<Member> known = new ArrayList<Member>(members.values());
+        known.add(self);
+        byte[] frame = PeerProtocol.gossip(self.getId(), known);
+        List<String> online = new ArrayList<String>();
+        List<String> offline = new ArrayList<String>();
+        for (Member member : members.values()) {
+            (alive.contains(member.getId()) ? online : offline).add(member.getId());
+        }
+        for (String seed : seeds) {
+            if (!members.containsKey(seed)) {
+                offline.add(seed);
+            }
+        }
+        sendGossip(online, frame);
+        sendGossip(offline, frame);
+    }
+
+    private void sendGossip(List<String> candidates, byte[] frame) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        PeerConnection connection = connection(candidates.get(random.nextInt(candidates.size())));
+        if (connection != null) {
+            connection.send(frame, 0);
+        }
+    }
+
+    /**
+     * 成员在线状态变化时重建环,关闭离线节点的连接,与新上线的节点交换值.
+     */
+    private synchronized void updateMembership(long now) {
+        Set<String> current = new TreeSet<String>();
+        current.add(self.getId());
+        for (Member member : members.values()) {
+            if (now - member.getUpdatedAt() < failureTimeout) {
+                current.add(member.getId());
+            }
+        }
+        Set<String> previous = alive;
+        if (current.equals(previous)) {
+            return;
+        }
+        ring = new HashRing(current, virtualNodes);
+        alive = Collections.unmodifiableSet(current);
+        LOGGER.info("Peer members changed to " + current + ".");
+        for (String id : previous) {
+            if (!current.contains(id)) {
+                PeerConnection connection = connections.get(id);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+        for (String id : current) {
+            if (!previous.contains(id)) {
+                PeerConnection connection = connection(id);
+                if (connection != null) {
+                    connection.send(PeerProtocol.syncRequest(self.getId()), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 到节点的连接,不存在时建立,无法连接时返回null.
+     */
+    private PeerConnection connection(String id) {
+        PeerConnection connection = connections.get(id);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        if (!running) {
+            return null;
+        }
+        Object lock = connectLocks.get(id);
+        if (lock == null) {
+            Object created = new Object();
+            lock = connectLocks.putIfAbsent(id, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        synchronized (lock) {
+            connection = connections.get(id);
+            if (connection != null && !connection.isClosed()) {
+                return connection;
+            }
+            Member member = members.get(id);
+            int separator = id.lastIndexOf(':');
+            String host = member != null ? member.getHost() : id.substring(0, separator);
+            int port = member != null ? member.getPort() : Integer.parseInt(id.substring(separator + 1));
+            try {
+                connection = PeerConnection.connect(id, host, port, syncTimeout, handler);
+            } catch (IOException e) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Can not connect to " + id + ".", e);
+                }
+                return null;
+            }
+            connections.put(id, connection);
+            return connection;
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.error("Accept peer connection failed.", e);
+                }
+                continue;
+            }
+            try {
+                PeerConnection connection = new PeerConnection(
+                        String.valueOf(socket.getRemoteSocketAddress()), socket, handler);
+                accepted.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                LOGGER.warn("Can not set up peer connection from " + socket.getRemoteSocketAddress() + ".", e);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // 已经出错
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待中的确认或者计数器回复.
+     */
+    private static final class Pending {
+
+        private final CountDownLatch latch;
+        private volatile long[] result;
+        private volatile String error;
+
+        Pending(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+    }
+}
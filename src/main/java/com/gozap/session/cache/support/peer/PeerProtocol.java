@@ -0,0 +1,222 @@
+package com.gozap.session.cache.support.peer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * 节点之间的消息格式.每个消息是一帧:4字节的长度(不含自身),1字节的类型,然后是按类型排列的字段,
+ * 字段以DataOutputStream编码,字符串为writeUTF.
+ *
+ * GOSSIP:发送者id,成员数,每个成员的id,主机,端口,心跳.
+ * PUT:请求id(0表示不需要确认),key,版本,过期时间,值长度(-1表示删除),值.
+ * TOUCH:请求id,key,版本,过期时间.
+ * ACK:请求id.
+ * ADD:请求id,key,增量.
+ * ADD_REPLY:请求id,是否成功,新的值,版本,过期时间,错误信息.
+ * SYNC_REQUEST:请求者id,收到的节点把自己负责的值以PUT发回,最后是SYNC_DONE.
+ * SYNC_DONE:发送的值数量.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+final class PeerProtocol {
+
+    static final byte GOSSIP = 1;
+    static final byte PUT = 2;
+    static final byte TOUCH = 3;
+    static final byte ACK = 4;
+    static final byte ADD = 5;
+    static final byte ADD_REPLY = 6;
+    static final byte SYNC_REQUEST = 7;
+    static final byte SYNC_DONE = 8;
+
+    private static final int MAX_FRAME_SIZE = 64 << 20;
+
+    private PeerProtocol() {
+    }
+
+    static byte[] gossip(String senderId, Collection<Member> members) {
+        FrameBuilder frame = new FrameBuilder(GOSSIP);
+        try {
+            frame.out.writeUTF(senderId);
+            frame.out.writeInt(members.size());
+            for (Member member : members) {
+                frame.out.writeUTF(member.getId());
+                frame.out.writeUTF(member.getHost());
+                frame.out.writeInt(member.getPort());
+                frame.out.writeLong(member.getHeartbeat());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    /**
+     * @param data 值,null表示删除.
+     */
+    static byte[] put(long requestId, String key, long version, long expireAt, byte[] data) {
+        FrameBuilder frame = new FrameBuilder(PUT);
+        try {
+            frame.out.writeLong(requestId);
+            frame.out.writeUTF(key);
+            frame.out.writeLong(version);
+            frame.out.writeLong(expireAt);
+            if (data == null) {
+                frame.out.writeInt(-1);
+            } else {
+                frame.out.writeInt(data.length);
+                frame.out.write(data);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    static byte[] touch(long requestId, String key, long version, long expireAt) {
+        FrameBuilder frame = new FrameBuilder(TOUCH);
+        try {
+            frame.out.writeLong(requestId);
+            frame.out.writeUTF(key);
+            frame.out.writeLong(version);
+            frame.out.writeLong(expireAt);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    static byte[] ack(long requestId) {
+        FrameBuilder frame = new FrameBuilder(ACK);
+        try {
+            frame.out.writeLong(requestId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    static byte[] add(long requestId, String key, long delta) {
+        FrameBuilder frame = new FrameBuilder(ADD);
+        try {
+            frame.out.writeLong(requestId);
+            frame.out.writeUTF(key);
+            frame.out.writeLong(delta);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    /**
+     * @param error 错误信息,成功时为null.
+     */
+    static byte[] addReply(long requestId, long value, long version, long expireAt, String error) {
+        FrameBuilder frame = new FrameBuilder(ADD_REPLY);
+        try {
+            frame.out.writeLong(requestId);
+            frame.out.writeBoolean(error == null);
+            frame.out.writeLong(value);
+            frame.out.writeLong(version);
+            frame.out.writeLong(expireAt);
+            frame.out.writeUTF(error == null ? "" : error);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    static byte[] syncRequest(String requesterId) {
+        FrameBuilder frame = new FrameBuilder(SYNC_REQUEST);
+        try {
+            frame.out.writeUTF(requesterId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    static byte[] syncDone(int count) {
+        FrameBuilder frame = new FrameBuilder(SYNC_DONE);
+        try {
+            frame.out.writeInt(count);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    /**
+     * 读取一帧,阻塞直到读完.
+     * @throws IOException 连接断开或者帧的长度不合法.
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Bad frame length " + length + ".");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new Frame(bytes[0], new DataInputStream(new ByteArrayInputStream(bytes, 1, length - 1)));
+    }
+
+    /**
+     * 读取PUT中的值,-1表示删除返回null.
+     */
+    static byte[] readData(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * 收到的一帧.
+     */
+    static final class Frame {
+
+        final byte type;
+        final DataInputStream in;
+
+        Frame(byte type, DataInputStream in) {
+            this.type = type;
+            this.in = in;
+        }
+    }
+
+    /**
+     * 先写入长度的占位,完成时回填.
+     */
+    private static final class FrameBuilder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        FrameBuilder(byte type) {
+            try {
+                out.writeInt(0);
+                out.writeByte(type);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] toFrame() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+}
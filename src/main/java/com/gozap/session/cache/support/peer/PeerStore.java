@@ -0,0 +1,174 @@
+package com.gozap.session.cache.support.peer;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 节点本地保存全部值的表.每个值带有写入时分配的版本,本地和其他节点的写入都只在版本更大时生效
+ * (最后写入者胜出),同一个写入重复到达或者乱序到达不会覆盖更新的值.
+ * 删除保存为带版本的墓碑,在tombstoneTtl之后回收,之前到达的旧写入不会让值复活.
+ *
+ * @version 1.00 2015-8-20
+ * @since 1.6
+ */
+public class PeerStore {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ConcurrentMap<String, Versioned> values = new ConcurrentHashMap<String, Versioned>();
+
+    /**
+     * @return 保存的key数量,包括墓碑和已经过期但尚未回收的值.
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return 值,不存在,已经删除或者已经过期时返回null.
+     */
+    public byte[] get(String key, long now) {
+        Versioned value = values.get(key);
+        return value == null || !value.isLive(now) ? null : value.data;
+    }
+
+    public boolean contains(String key, long now) {
+        Versioned value = values.get(key);
+        return value != null && value.isLive(now);
+    }
+
+    /**
+     * 版本大于已有的版本时写入.
+     * @param data 值,null表示删除.
+     * @param expireAt 过期时间,毫秒,0表示不过期;删除时是墓碑的回收时间.
+     * @return 是否写入.
+     */
+    public boolean apply(String key, long version, long expireAt, byte[] data) {
+        Versioned update = new Versioned(data, version, expireAt);
+        while (true) {
+            Versioned current = values.get(key);
+            if (current == null) {
+                if (values.putIfAbsent(key, update) == null) {
+                    return true;
+                }
+            } else if (current.version >= version) {
+                return false;
+            } else if (values.replace(key, current, update)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 修改存在的值的过期时间,不改变版本.
+     * @param version 修改的版本,小于值的版本时说明之后有新的写入,不修改.
+     * @return 是否修改.
+     */
+    public boolean touch(String key, long version, long expireAt, long now) {
+        while (true) {
+            Versioned current = values.get(key);
+            if (current == null || !current.isLive(now) || current.version > version) {
+                return false;
+            }
+            if (values.replace(key, current, new Versioned(current.data, current.version, expireAt))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 原子的加减以十进制字符串保存的计数器,不存在时从0开始,保留原有的过期时间.
+     * @return 新的值以及写入的过期时间.
+     */
+    public long[] add(String key, long delta, long version, long now) {
+        while (true) {
+            Versioned current = values.get(key);
+            long value = 0;
+            long expireAt = 0;
+            if (current != null && current.isLive(now)) {
+                value = parse(current.data);
+                expireAt = current.expireAt;
+            }
+            long result = value + delta;
+            if (((value ^ result) & (delta ^ result)) < 0) {
+                throw new IllegalStateException("Increment or decrement would overflow.");
+            }
+            Versioned update = new Versioned(String.valueOf(result).getBytes(ASCII), version, expireAt);
+            boolean done = current == null ? values.putIfAbsent(key, update) == null
+                    : values.replace(key, current, update);
+            if (done) {
+                return new long[] {result, expireAt};
+            }
+        }
+    }
+
+    /**
+     * 回收过期的值和过期的墓碑.
+     * @return 回收的数量.
+     */
+    public int reclaim(long now) {
+        int reclaimed = 0;
+        for (Map.Entry<String, Versioned> entry : values.entrySet()) {
+            Versioned value = entry.getValue();
+            if (value.expireAt != 0 && value.expireAt <= now && values.remove(entry.getKey(), value)) {
+                reclaimed++;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 遍历所有的值和墓碑,用于向新加入的节点传送.
+     */
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<String, Versioned> entry : values.entrySet()) {
+            Versioned value = entry.getValue();
+            visitor.visit(entry.getKey(), value.version, value.expireAt, value.data);
+        }
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    private static long parse(byte[] value) {
+        try {
+            return Long.parseLong(new String(value, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value is not an integer.", e);
+        }
+    }
+
+    /**
+     * forEach的回调.
+     */
+    public interface Visitor {
+
+        /**
+         * @param data 值,墓碑为null.
+         */
+        void visit(String key, long version, long expireAt, byte[] data);
+    }
+
+    /**
+     * 带版本的值,data为null时是墓碑.
+     */
+    private static final class Versioned {
+
+        private final byte[] data;
+        private final long version;
+        private final long expireAt;
+
+        Versioned(byte[] data, long version, long expireAt) {
+            this.data = data;
+            this.version = version;
+            this.expireAt = expireAt;
+        }
+
+        boolean isLive(long now) {
+            return data != null && (expireAt == 0 || expireAt > now);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.gozap.session.cache.support.resp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.util.SafeEncoder;
+
+import com.gozap.session.util.ByteBufferPool;
+
+/**
+ * 在少量RespConnection上复用所有线程的redis客户端.
+ * 带有路由key的命令总是发往同一个连接,同一个key上的命令按提交的顺序执行;
+ * 没有路由key的命令轮流使用各个连接.断开的连接在下一次使用时重新建立.
+ *
+ * @version 1.00 2015-8-5
+ * @since 1.6
+ */
+public class RespClient {
+
+    private static final byte[] AUTH = SafeEncoder.encode("AUTH");
+    private static final byte[] SELECT = SafeEncoder.encode("SELECT");
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final String password;
+    private final int database;
+    private final ByteBufferPool bufferPool;
+    private final RespConnection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * @param host 主机.
+     * @param port 端口.
+     * @param connectionCount 连接数量.
+     * @param timeout 连接以及同步等待回复的超时毫秒数.
+     * @param password 密码,为null表示不需要认证.
+     * @param database 数据库编号.
+     * @param bufferSize 每个读写缓冲区的字节数.
+     */
+    public RespClient(String host, int port, int connectionCount, int timeout,
+            String password, int database, int bufferSize) {
+        if (connectionCount <= 0) {
+            throw new IllegalArgumentException("Connection count must be positive.");
+        }
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.password = password;
+        this.database = database;
+        this.connections = new RespConnection[connectionCount];
+        // 每个连接一个读缓冲区一个写缓冲区
+        this.bufferPool = new ByteBufferPool(bufferSize, connectionCount * 2);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 提交一条命令,不会等待回复.
+     * @param routeKey 路由key,为null时使用任意一个连接.
+     * @param command 命令名称和参数.
+     * @return 命令的回复.
+     */
+    public RespFuture send(String routeKey, byte[]... command) {
+        int index;
+        if (routeKey == null) {
+            index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        } else {
+            index = (routeKey.hashCode() & Integer.MAX_VALUE) % connections.length;
+        }
+        return connection(index).send(command);
+    }
+
+    /**
+     * 提交一条命令并同步等待回复.
+     * @param routeKey 路由key,为null时使用任意一个连接.
+     * @param command 命令名称和参数.
+     * @return 回复.
+     */
+    public Object execute(String routeKey, byte[]... command) {
+        return send(routeKey, command).getReply(timeout);
+    }
+
+    /**
+     * 关闭所有的连接.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+
+    private RespConnection connection(int index) {
+        RespConnection connection = connections[index];
+        if (connection != null && !connection.isBroken()) {
+            return connection;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new RespException("Client is closed.");
+            }
+            connection = connections[index];
+            if (connection == null || connection.isBroken()) {
+                connection = connect();
+                connections[index] = connection;
+            }
+            return connection;
+        }
+    }
+
+    private RespConnection connect() {
+        RespConnection connection;
+        try {
+            connection = new RespConnection(host, port, timeout, bufferPool);
+        } catch (IOException e) {
+            throw new RespException("Can not connect to " + host + ":" + port + ".", e);
+        }
+        try {
+            if (password != null) {
+                connection.send(AUTH, SafeEncoder.encode(password)).getReply(timeout);
+            }
+            if (database != 0) {
+                connection.send(SELECT, SafeEncoder.encode(String.valueOf(database))).getReply(timeout);
+            }
+        } catch (RespException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,392 @@
+package com.gozap.session.cache.support.resp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gozap.session.util.ByteBufferPool;
+
+/**
+ * 一个到redis的RESP连接,由任意多个线程共享.
+ * 连接只使用一个IO线程,通过Selector以非阻塞方式读写:每次把队列中等待的命令尽量编码到
+ * 同一个直接内存缓冲区后写出,并发的命令自动成为管道;收到的回复按写出的顺序通知对应的RespFuture.
+ *
+ * 每条命令在提交后timeout毫秒内没有收到回复时,连接视为已经断开,
+ * 所有未完成的命令以RespException结束,RespFuture.get()因此总会返回.
+ * 连接断开后不会重连,由RespClient建立新的连接.
+ *
+ * @version 1.00 2015-8-5
+ * @since 1.6
+ */
+public class RespConnection {
+
+    private static final Log LOGGER = LogFactory.getLog(RespConnection.class);
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+    // 回复还没有完整收到
+    private static final Object INCOMPLETE = new Object();
+    // 写出一个类型和长度至少需要的字节数
+    private static final int HEADER_SIZE = 16;
+
+    private final String name;
+    private final long timeoutNanos;
+    private final ByteBufferPool bufferPool;
+    private final Queue<RespFuture> queue = new ConcurrentLinkedQueue<RespFuture>();
+    // 已经开始写出等待回复的命令,顺序与写出的顺序一致
+    private final Queue<RespFuture> pending = new ConcurrentLinkedQueue<RespFuture>();
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final Thread worker;
+    private volatile boolean broken = false;
+
+    // 以下只由IO线程访问.正在编码的命令,参数的序号(-1表示数组头)和参数已经写入的字节数(-1表示参数头)
+    private RespFuture encoding;
+    private int argIndex;
+    private int argOffset;
+    // 接收缓冲区,处于写入模式;一个回复超过缓冲区大小时换成更大的堆内缓冲区
+    private ByteBuffer in;
+
+    /**
+     * 建立连接并启动IO线程.
+     * @param host 主机.
+     * @param port 端口.
+     * @param timeout 连接以及等待回复的超时毫秒数.
+     * @param bufferPool 读写缓冲区池,缓冲区不能小于16字节.
+     * @throws IOException 连接失败.
+     */
+    public RespConnection(String host, int port, int timeout, ByteBufferPool bufferPool)
+            throws IOException {
+        if (bufferPool.getBufferSize() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + HEADER_SIZE + " bytes.");
+        }
+        this.name = host + ":" + port;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.bufferPool = bufferPool;
+        this.channel = SocketChannel.open();
+        Selector opened = null;
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+            channel.configureBlocking(false);
+            opened = Selector.open();
+            channel.register(opened, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            if (opened != null) {
+                opened.close();
+            }
+            channel.close();
+            throw e;
+        }
+        this.selector = opened;
+        worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, "resp-io-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 提交一条命令,不会阻塞.
+     * @param command 命令名称和参数.
+     * @return 命令的回复.
+     */
+    public RespFuture send(byte[]... command) {
+        RespFuture future = new RespFuture(command, System.nanoTime() + timeoutNanos);
+        if (broken) {
+            future.fail(new RespException("Connection " + name + " is broken."));
+            return future;
+        }
+        queue.offer(future);
+        if (broken) {
+            failAll(new RespException("Connection " + name + " is broken."));
+        } else {
+            selector.wakeup();
+        }
+        return future;
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * 关闭连接,未完成的命令以RespException结束.
+     */
+    public void close() {
+        shutdown(new RespException("Connection " + name + " is closed."));
+    }
+
+    private void shutdown(RespException cause) {
+        broken = true;
+        selector.wakeup();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Close connection " + name + " failed.", e);
+        }
+        failAll(cause);
+    }
+
+    private void failAll(RespException cause) {
+        RespFuture future;
+        while ((future = pending.poll()) != null) {
+            future.fail(cause);
+        }
+        while ((future = queue.poll()) != null) {
+            future.fail(cause);
+        }
+    }
+
+    private void work() {
+        ByteBuffer out = bufferPool.acquire();
+        in = bufferPool.acquire();
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            while (!broken) {
+                boolean flushed = write(out);
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                long wait = checkTimeout();
+                if (wait < 0) {
+                    break;
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            }
+        } catch (IOException e) {
+            if (!broken) {
+                LOGGER.warn("IO on " + name + " failed.", e);
+                shutdown(new RespException("IO on " + name + " failed.", e));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("IO on " + name + " failed.", e);
+            shutdown(new RespException("IO on " + name + " failed.", e));
+        } finally {
+            failAll(new RespException("Connection " + name + " is broken."));
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.debug("Close selector of " + name + " failed.", e);
+            }
+            bufferPool.release(out);
+            bufferPool.release(in);
+        }
+    }
+
+    /**
+     * 最早写出的命令超过期限时断开连接.回复按顺序到达,超时的命令不能单独跳过.
+     * @return 距离最早的期限的毫秒数,0表示没有等待回复的命令,小于0表示已经断开.
+     */
+    private long checkTimeout() {
+        RespFuture oldest = pending.peek();
+        if (oldest == null) {
+            return 0;
+        }
+        long remaining = oldest.getDeadline() - System.nanoTime();
+        if (remaining <= 0) {
+            LOGGER.warn("Reply from " + name + " timeout, close the connection.");
+            shutdown(new RespException("Wait for the reply from " + name + " timeout after "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms."));
+            return -1;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * 编码并写出等待的命令,直到没有命令或者socket的发送缓冲区已满.
+     * @return true全部写出,false还有数据等待写出.
+     */
+    private boolean write(ByteBuffer out) throws IOException {
+        while (true) {
+            encode(out);
+            if (out.position() == 0) {
+                return true;
+            }
+            out.flip();
+            channel.write(out);
+            boolean drained = !out.hasRemaining();
+            out.compact();
+            if (!drained) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 把等待的命令编码到缓冲区,缓冲区满时记住编码到的位置,下次继续.
+     * 大于缓冲区的值分段写入,不会为大值分配新的缓冲区.
+     */
+    private void encode(ByteBuffer out) {
+        while (true) {
+            if (encoding == null) {
+                encoding = queue.poll();
+                if (encoding == null) {
+                    return;
+                }
+                // 必须在写出之前登记,回复可能马上到达
+                pending.offer(encoding);
+                argIndex = -1;
+            }
+            byte[][] command = encoding.getCommand();
+            if (argIndex < 0) {
+                if (out.remaining() < HEADER_SIZE) {
+                    return;
+                }
+                putHeader(out, (byte) '*', command.length);
+                argIndex = 0;
+                argOffset = -1;
+            }
+            while (argIndex < command.length) {
+                byte[] arg = command[argIndex];
+                if (argOffset < 0) {
+                    if (out.remaining() < HEADER_SIZE) {
+                        return;
+                    }
+                    putHeader(out, (byte) '$', arg.length);
+                    argOffset = 0;
+                }
+                int length = Math.min(out.remaining(), arg.length - argOffset);
+                out.put(arg, argOffset, length);
+                argOffset += length;
+                if (argOffset < arg.length || out.remaining() < CRLF.length) {
+                    return;
+                }
+                out.put(CRLF);
+                argIndex++;
+                argOffset = -1;
+            }
+            encoding = null;
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte type, int length) {
+        buffer.put(type);
+        String digits = Integer.toString(length);
+        for (int i = 0; i < digits.length(); i++) {
+            buffer.put((byte) digits.charAt(i));
+        }
+        buffer.put(CRLF);
+    }
+
+    /**
+     * 读取可以读取的数据,并解析出所有完整的回复.
+     */
+    private void read() throws IOException {
+        int read = channel.read(in);
+        if (read < 0) {
+            throw new EOFException("Connection " + name + " closed by server.");
+        }
+        in.flip();
+        while (true) {
+            int start = in.position();
+            Object reply = readReply();
+            if (reply == INCOMPLETE) {
+                in.position(start);
+                break;
+            }
+            RespFuture future = pending.poll();
+            if (future == null) {
+                throw new IOException("Unexpected reply from " + name + ".");
+            }
+            future.complete(reply);
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            // 一个回复比缓冲区还大
+            ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            larger.put(in);
+            bufferPool.release(in);
+            in = larger;
+        } else if (in.position() == 0 && !in.isDirect()) {
+            in = bufferPool.acquire();
+        }
+    }
+
+    /**
+     * 从接收缓冲区中解析一个回复.
+     * @return 回复,数据不完整时返回INCOMPLETE.
+     */
+    private Object readReply() throws IOException {
+        if (!in.hasRemaining()) {
+            return INCOMPLETE;
+        }
+        byte type = in.get();
+        String line = readLine();
+        if (line == null) {
+            return INCOMPLETE;
+        }
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                return new RespException(line);
+            case ':':
+                return Long.valueOf(Long.parseLong(line));
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                if (in.remaining() < length + CRLF.length) {
+                    return INCOMPLETE;
+                }
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                in.position(in.position() + CRLF.length);
+                return bytes;
+            }
+            case '*': {
+                int count = Integer.parseInt(line);
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> replies = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    Object reply = readReply();
+                    if (reply == INCOMPLETE) {
+                        return INCOMPLETE;
+                    }
+                    replies.add(reply);
+                }
+                return replies;
+            }
+            default:
+                throw new IOException("Unknown reply type " + (char) type + " from " + name + ".");
+        }
+    }
+
+    /**
+     * @return 以CRLF结束的一行,不包括CRLF;数据不完整时返回null.
+     */
+    private String readLine() {
+        int limit = in.limit();
+        for (int i = in.position(); i + 1 < limit; i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                StringBuilder line = new StringBuilder(i - in.position());
+                while (in.position() < i) {
+                    line.append((char) in.get());
+                }
+                in.position(i + CRLF.length);
+                return line.toString();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.gozap.session.cache.support.resp;
+
+/**
+ * RESP客户端的异常,包括服务器返回的错误,连接失败以及等待回复超时.
+ *
+ * @version 1.00 2015-8-5
+ * @since 1.6
+ */
+public class RespException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RespException(String message) {
+        super(message);
+    }
+
+    public RespException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,109 @@
+package com.gozap.session.cache.support.resp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一条已经提交的命令以及它的回复.回复的类型与RESP对应:
+ * 简单字符串为String,整数为Long,批量字符串为byte[],数组为List,空值为null.
+ * 服务器返回的错误以RespException结束.命令不能取消.
+ * 连接保证在提交后的超时时间内结束每条命令,所以没有期限的get()也总会返回.
+ *
+ * @version 1.00 2015-8-5
+ * @since 1.6
+ */
+public class RespFuture implements Future<Object> {
+
+    private final byte[][] command;
+    // 等待回复的期限,System.nanoTime()
+    private final long deadline;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Object reply;
+    private volatile RespException error;
+
+    RespFuture(byte[][] command, long deadline) {
+        this.command = command;
+        this.deadline = deadline;
+    }
+
+    byte[][] getCommand() {
+        return command;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    void complete(Object value) {
+        if (value instanceof RespException) {
+            fail((RespException) value);
+        } else if (completed.compareAndSet(false, true)) {
+            reply = value;
+            latch.countDown();
+        }
+    }
+
+    void fail(RespException cause) {
+        if (completed.compareAndSet(false, true)) {
+            error = cause;
+            latch.countDown();
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    public Object get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    /**
+     * 同步等待回复,所有的失败都以RespException抛出.
+     * @param timeoutMillis 最长等待的毫秒数.
+     * @return 回复.
+     */
+    public Object getReply(long timeoutMillis) {
+        try {
+            if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new RespException("Wait for the reply timeout after " + timeoutMillis + "ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RespException("Interrupted while waiting for the reply.", e);
+        }
+        if (error != null) {
+            throw new RespException(error.getMessage(), error);
+        }
+        return reply;
+    }
+
+    private Object result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,221 @@
+package com.gozap.session.serialize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.gozap.session.util.Lz4;
+
+/**
+ * 压缩的序列化策略,装饰另一个序列化策略.
+ * 序列化后不小于阈值的数据进行压缩,并在前面加上格式头:
+ * 两个魔数字节0xC5 0x5A,一个压缩算法字节,四个字节的原始长度(大端).
+ * 小于阈值或者压缩后没有变小的数据原样保存,所以旧版本写入的未压缩数据仍然可以读取.
+ * FastJson输出的是UTF-8文本,JDK序列化以0xAC 0xED开头,都不会以魔数开头.
+ *
+ * 默认使用LZ4,也可以指定GZIP以较多的CPU换取更高的压缩率.
+ * 无参数构造时装饰FastJsonSerializeStrategy,阈值为2048字节.
+ * 缓存引擎通过configure在配置了compressThreshold或compressCodec时装饰serializeStrategy指定的策略.
+ *
+ * @version 1.00 2015-8-11
+ * @since 1.6
+ */
+public class CompressSerializeStrategy implements SerializeStrategy {
+
+    /**
+     * 压缩算法.
+     */
+    public static enum Codec {
+        LZ4(1), GZIP(2);
+
+        private final byte id;
+
+        private Codec(int id) {
+            this.id = (byte) id;
+        }
+
+        /**
+         * 根据名称查找算法,忽略大小写.
+         * @param name 算法名称.
+         * @return 压缩算法.
+         */
+        public static Codec of(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+
+        private static Codec of(byte id) {
+            for (Codec codec : values()) {
+                if (codec.id == id) {
+                    return codec;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 压缩阈值配置,字节.
+     */
+    public static final String COMPRESS_THRESHOLD = "compressThreshold";
+    /**
+     * 压缩算法配置,LZ4或GZIP.
+     */
+    public static final String COMPRESS_CODEC = "compressCodec";
+    /**
+     * 默认的压缩阈值,字节.
+     */
+    public static final int DEFAULT_THRESHOLD = 2048;
+
+    private static final byte MAGIC_0 = (byte) 0xC5;
+    private static final byte MAGIC_1 = (byte) 0x5A;
+    private static final int HEADER_LENGTH = 7;
+
+    private final SerializeStrategy strategy;
+    private final int threshold;
+    private final Codec codec;
+
+    public CompressSerializeStrategy() {
+        this(new FastJsonSerializeStrategy(), DEFAULT_THRESHOLD, Codec.LZ4);
+    }
+
+    /**
+     * 构造一个压缩的序列化策略.
+     * @param strategy 被装饰的序列化策略.
+     * @param threshold 压缩阈值,序列化后小于此长度的数据不压缩.
+     * @param codec 压缩算法.
+     */
+    public CompressSerializeStrategy(SerializeStrategy strategy, int threshold, Codec codec) {
+        if (strategy == null || codec == null) {
+            throw new IllegalArgumentException("Strategy and codec must not be null.");
+        }
+        this.strategy = strategy;
+        this.threshold = threshold;
+        this.codec = codec;
+    }
+
+    /**
+     * 根据配置中的compressThreshold和compressCodec装饰序列化策略,两者都没有配置时原样返回.
+     * 已经是压缩策略时装饰其内部的策略,不会压缩两次.
+     * @param strategy 缓存引擎配置的序列化策略.
+     * @param prop 缓存引擎的配置,可以为null.
+     * @return 压缩的或者原来的序列化策略.
+     */
+    public static SerializeStrategy configure(SerializeStrategy strategy, Properties prop) {
+        if (prop == null) {
+            return strategy;
+        }
+        String threshold = prop.getProperty(COMPRESS_THRESHOLD);
+        String codec = prop.getProperty(COMPRESS_CODEC);
+        boolean hasThreshold = threshold != null && !threshold.trim().isEmpty();
+        boolean hasCodec = codec != null && !codec.trim().isEmpty();
+        if (!hasThreshold && !hasCodec) {
+            return strategy;
+        }
+        if (strategy instanceof CompressSerializeStrategy) {
+            strategy = ((CompressSerializeStrategy) strategy).getStrategy();
+        }
+        return new CompressSerializeStrategy(strategy,
+                hasThreshold ? Integer.parseInt(threshold.trim()) : DEFAULT_THRESHOLD,
+                hasCodec ? Codec.of(codec) : Codec.LZ4);
+    }
+
+    /**
+     * @return 被装饰的序列化策略.
+     */
+    public SerializeStrategy getStrategy() {
+        return strategy;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public byte[] serialize(Object source) throws CanNotBeSerializedException {
+        byte[] datas = strategy.serialize(source);
+        if (datas == null || datas.length < threshold) {
+            return datas;
+        }
+        byte[] compressed;
+        try {
+            compressed = compress(datas);
+        } catch (IOException ex) {
+            throw new CanNotBeSerializedException(ex.getMessage(), ex);
+        }
+        if (compressed.length + HEADER_LENGTH >= datas.length) {
+            return datas;
+        }
+        byte[] result = new byte[HEADER_LENGTH + compressed.length];
+        result[0] = MAGIC_0;
+        result[1] = MAGIC_1;
+        result[2] = codec.id;
+        result[3] = (byte) (datas.length >>> 24);
+        result[4] = (byte) (datas.length >>> 16);
+        result[5] = (byte) (datas.length >>> 8);
+        result[6] = (byte) datas.length;
+        System.arraycopy(compressed, 0, result, HEADER_LENGTH, compressed.length);
+        return result;
+    }
+
+    public Object deserialize(byte[] datas) throws CanNotBeUnSerializedException {
+        if (datas == null || datas.length < HEADER_LENGTH
+                || datas[0] != MAGIC_0 || datas[1] != MAGIC_1) {
+            return strategy.deserialize(datas);
+        }
+        Codec dataCodec = Codec.of(datas[2]);
+        if (dataCodec == null) {
+            throw new CanNotBeUnSerializedException("Unknown compression codec " + datas[2]);
+        }
+        int length = ((datas[3] & 0xFF) << 24) | ((datas[4] & 0xFF) << 16)
+                | ((datas[5] & 0xFF) << 8) | (datas[6] & 0xFF);
+        byte[] original;
+        try {
+            original = decompress(dataCodec, datas, length);
+        } catch (Exception ex) {
+            throw new CanNotBeUnSerializedException(ex.getMessage(), ex);
+        }
+        return strategy.deserialize(original);
+    }
+
+    private byte[] compress(byte[] datas) throws IOException {
+        if (codec == Codec.LZ4) {
+            return Lz4.compress(datas);
+        }
+        ByteArrayOutputStream buff = new ByteArrayOutputStream(datas.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(buff);
+        out.write(datas);
+        out.close();
+        return buff.toByteArray();
+    }
+
+    private static byte[] decompress(Codec codec, byte[] datas, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Bad original length " + length);
+        }
+        if (codec == Codec.LZ4) {
+            return Lz4.decompress(datas, HEADER_LENGTH, datas.length - HEADER_LENGTH, length);
+        }
+        byte[] original = new byte[length];
+        GZIPInputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(datas, HEADER_LENGTH, datas.length - HEADER_LENGTH));
+        try {
+            int read = 0;
+            while (read < length) {
+                int count = in.read(original, read, length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated gzip data, expected " + length + " bytes.");
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return original;
+    }
+}
@@ -0,0 +1,67 @@
+package com.gozap.session.serialize;
+
+import java.util.Properties;
+
+/**
+ * 缓存引擎共用的序列化方法:按配置创建序列化策略,以及把序列化异常转换为运行时异常.
+ *
+ * @version 1.00 2015-8-24
+ * @since 1.6
+ */
+public final class SerializeUtil {
+
+    /**
+     * 序列化策略的类名配置,类需要提供无参的构造方法.
+     */
+    public static final String SERIALIZE_STRATEGY = "serializeStrategy";
+
+    private SerializeUtil() {
+    }
+
+    /**
+     * 创建配置中serializeStrategy指定的序列化策略,再由CompressSerializeStrategy.configure
+     * 按compressThreshold和compressCodec决定是否压缩.
+     * @param strategy 没有配置serializeStrategy时使用的策略.
+     * @param prop 缓存引擎的配置,可以为null.
+     * @return 序列化策略.
+     */
+    public static SerializeStrategy load(SerializeStrategy strategy, Properties prop) {
+        if (prop == null) {
+            return strategy;
+        }
+        String temp = prop.getProperty(SERIALIZE_STRATEGY);
+        if (temp != null && !temp.trim().isEmpty()) {
+            try {
+                strategy = (SerializeStrategy) Class.forName(temp.trim()).newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Can not instantiate serialize strategy " + temp, e);
+            }
+        }
+        return CompressSerializeStrategy.configure(strategy, prop);
+    }
+
+    /**
+     * 序列化,失败时抛出以CanNotBeSerializedException为原因的RuntimeException.
+     */
+    public static byte[] serialize(SerializeStrategy strategy, Object value) {
+        try {
+            return strategy.serialize(value);
+        } catch (CanNotBeSerializedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 反序列化,data为null时返回null,失败时抛出以CanNotBeUnSerializedException为原因的RuntimeException.
+     */
+    public static Object deserialize(SerializeStrategy strategy, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return strategy.deserialize(data);
+        } catch (CanNotBeUnSerializedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -16,12 +16,16 @@ import javax.servlet.http.HttpSessionListener;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.gozap.session.cache.AsyncCacheEngine;
+import com.gozap.session.cache.AsyncCacheEngineAdapter;
 import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.HashCacheEngine;
 import com.gozap.session.servlet.filter.BaseFilter;
 import com.gozap.session.servlet.listener.cache.CacheEngineLoadListener;
 import com.gozap.session.servlet.session.CacheHttpSession;
 import com.gozap.session.servlet.util.WebUtil;
 import com.gozap.session.servlet.wrapper.CacheSessionHttpServletRequest;
+import com.gozap.session.util.RecentKeys;
 
 /**
  * 包含原始的请求，将原始的HttpServletRequest使用CacheSessionHttpServeltRequest进行包装。
@@ -30,6 +34,15 @@ import com.gozap.session.servlet.wrapper.CacheSessionHttpServletRequest;
  * maxInactiveInterval为缓存的最大不活动时间，单位秒。默认为0，不过期。
  * cookieDomain为存放cookie的域设置。
  * cookieContextPath为存放cookie的路径。如果不设置将使用默认的contextPath.
+ * touchInterval为最后访问时间写回缓存的最小间隔，单位秒。默认为0，每次请求都写回。
+ * 间隔内没有修改属性的请求将不会写缓存。
+ * attrHashEnable为true时每个会话的属性以哈希保存，每个属性一个字段，只写入改变过的属性。
+ * 需要缓存引擎实现HashCacheEngine，默认为false。
+ * keyHashTagEnable为true时会话在缓存中的key以{id}作为redis cluster的hash tag，
+ * 同一会话的key在同一个slot中。使用RedisClusterCacheEngine时需要开启，默认为false。
+ * prefetchEnable为true时在请求进入后续过滤器之前异步读取cookie对应的会话，
+ * 与应用的处理重叠，需要缓存引擎实现AsyncCacheEngine，属性以哈希保存时不会预读，默认为false。
+ * 只有最近用到过会话的请求路径才会预读，静态资源等不访问会话的请求不占用异步线程。
  *
  * sessionAttributeListeners 为HttpSessionAttributeListener监听器实现类全限定名,多个名称以","分隔.
  * sessionListeners 为HttpSessionListener监听器实现类的全限定名,多个名称以","分隔.
@@ -49,6 +62,13 @@ public class CacheSessionFilter extends BaseFilter {
     public static final String COOKIE_CONTEXT_PATH = "cookieContextPath";
     public static final String TOP_LEVEL_DOMAIN_ENABLE = "tldEnable";
     public static final String SYN_ATTR_REAL_TIME = "synRealTime";
+    public static final String TOUCH_INTERVAL = "touchInterval";
+    public static final String ATTR_HASH_ENABLE = "attrHashEnable";
+    public static final String KEY_HASH_TAG_ENABLE = "keyHashTagEnable";
+    public static final String PREFETCH_ENABLE = "prefetchEnable";
+
+    // 请求路径用到会话后在此时间内的请求会预读会话,毫秒
+    private static final long PREFETCH_PATH_WINDOW = 10 * 60 * 1000L;
 
     public static String DEFAULT_SESSION_ID_NAME = "SESSIONID";
     public static String DEFAULT_SESSION_CACHE_KEY_PREFIX = "session";
@@ -57,11 +77,19 @@ public class CacheSessionFilter extends BaseFilter {
     private String cookieDomain = null;
     private boolean tldEnable = false; // use top level domain for cookie
     private boolean synRealTime = false; //if true syn attr at set/get attr, or syn attr after chain.doFilter
+    private boolean attrHashEnable = false; //if true store each attr as a hash field
+    private boolean keyHashTagEnable = false; //if true use {id} as the hash tag of session keys
+    private boolean prefetchEnable = false; //if true load the session asynchronously before chain.doFilter
+    private RecentKeys sessionPaths; //request paths which used the session recently, only they are prefetched
     private String cookieContextPath = null;
     /**
      * session过期时间, 单位为秒
      */
     private int maxInactiveInterval = 8 * 60 * 60;
+    /**
+     * 最后访问时间写回缓存的最小间隔, 单位为秒
+     */
+    private int touchInterval = 0;
     /**
      * 会话在缓存中的KEY前辍
      */
@@ -130,12 +158,25 @@ public class CacheSessionFilter extends BaseFilter {
         cacheRequest.setSessionListeners(sessionListeners);
         cacheRequest.setTldEnable(tldEnable);
         cacheRequest.setSynRealTime(synRealTime);
+        cacheRequest.setTouchInterval(touchInterval);
+        cacheRequest.setAttrHashEnable(attrHashEnable);
+        cacheRequest.setKeyHashTagEnable(keyHashTagEnable);
+        String path = null;
+        if (prefetchEnable) {
+            path = httpRequest.getRequestURI();
+            if (sessionPaths.contains(path, System.currentTimeMillis())) {
+                cacheRequest.prefetchSession();
+            }
+        }
 
         chain.doFilter(cacheRequest, httpResponse);
 
         //如果创建了Session，那么进行缓存同步。
         CacheHttpSession cacheSession = cacheRequest.currentSession();
         if (cacheSession != null) {
+            if (path != null) {
+                sessionPaths.add(path, System.currentTimeMillis());
+            }
         	// session过期则移除cookie
             if (!cacheSession.synchronizationCache()) {
                 WebUtil.setCookieNull(
@@ -163,6 +204,11 @@ public class CacheSessionFilter extends BaseFilter {
         	maxInactiveInterval = Integer.valueOf(temp);
         }
 
+        temp = filterConfig.getInitParameter(TOUCH_INTERVAL);
+        if (null != temp) {
+            touchInterval = Integer.valueOf(temp);
+        }
+
         temp = filterConfig.getInitParameter(COOKIE_DOMAIN);
         cookieDomain = temp;
 
@@ -178,8 +224,29 @@ public class CacheSessionFilter extends BaseFilter {
         temp = filterConfig.getInitParameter(SYN_ATTR_REAL_TIME);
         synRealTime = (temp!=null && temp.trim().equalsIgnoreCase("true"))? true : false;
 
-        LOGGER.info("CacheSessionFilter (sessionCookieName={"+sessionCookieName+"}, maxInactiveInterval={"+maxInactiveInterval+"}, " +
-                        "cookieDomain={"+cookieDomain+"}, sessionCacheKeyPrefix={"+sessionCacheKeyPrefix+"})");
+        temp = filterConfig.getInitParameter(KEY_HASH_TAG_ENABLE);
+        keyHashTagEnable = (temp!=null && temp.trim().equalsIgnoreCase("true"))? true : false;
+
+        temp = filterConfig.getInitParameter(ATTR_HASH_ENABLE);
+        attrHashEnable = (temp!=null && temp.trim().equalsIgnoreCase("true"))? true : false;
+        if (attrHashEnable && (!(cache instanceof HashCacheEngine)
+                || (cache instanceof AsyncCacheEngineAdapter && !((AsyncCacheEngineAdapter) cache).isHashSupported()))) {
+            LOGGER.warn("Cache engine {"+cache.getClass().getName()+"} does not support hash, attrHashEnable is ignored.");
+            attrHashEnable = false;
+        }
+
+        temp = filterConfig.getInitParameter(PREFETCH_ENABLE);
+        prefetchEnable = (temp!=null && temp.trim().equalsIgnoreCase("true"))? true : false;
+        if (prefetchEnable && !(cache instanceof AsyncCacheEngine)) {
+            LOGGER.warn("Cache engine {"+cache.getClass().getName()+"} does not support async, prefetchEnable is ignored.");
+            prefetchEnable = false;
+        }
+        if (prefetchEnable) {
+            sessionPaths = new RecentKeys(PREFETCH_PATH_WINDOW);
+        }
+
+        LOGGER.info("CacheSessionFilter (sessionCookieName={"+sessionCookieName+"}, maxInactiveInterval={"+maxInactiveInterval+"}, touchInterval={"+touchInterval+"}, " +
+                        "cookieDomain={"+cookieDomain+"}, sessionCacheKeyPrefix={"+sessionCacheKeyPrefix+"}, attrHashEnable={"+attrHashEnable+"}, keyHashTagEnable={"+keyHashTagEnable+"}, prefetchEnable={"+prefetchEnable+"})");
 
         initListener();
     }
@@ -60,6 +60,7 @@ public class CacheEngineLoadListener implements javax.servlet.ServletContextList
                 }
             }
             engine.init(properties, event.getServletContext());
+            engine.start();
         } catch (Exception ex) {
             log.error(ex.getMessage(), ex);
         } finally {
@@ -6,9 +6,14 @@ import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -19,7 +24,11 @@ import javax.servlet.http.HttpSessionContext;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
+import com.gozap.session.cache.AsyncCacheEngine;
 import com.gozap.session.cache.CacheEngine;
+import com.gozap.session.cache.HashCacheEngine;
+import com.gozap.session.cache.ReplicaCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
 import com.gozap.session.servlet.listener.cache.CacheEngineLoadListener;
 import com.gozap.session.util.CheckUtil;
 import org.apache.commons.logging.Log;
@@ -33,6 +42,7 @@ import org.apache.commons.logging.LogFactory;
  *
  * 现在底层将Session的信息和储存在Session中的信息分别进行储存。只有当Session中的键值
  * 对属性被改变时才会进行缓存的同步。
+ * 如果属性以哈希保存，每个属性对应一个字段，同步时只写入本次请求中设置或者删除过的属性。
  *
  * @author Mike
  * @version 2.1 2011-04-07
@@ -41,11 +51,17 @@ import org.apache.commons.logging.LogFactory;
 public class CacheHttpSession implements HttpSession {
 	
 	public static final Log LOGGER = LogFactory.getLog(CacheHttpSession.class);
+    // 等待预读结果的最长毫秒数，超过后放弃预读重新同步读取
+    private static final long PREFETCH_TIMEOUT = 2000L;
 
     private String id;
     private CacheEngine cache;
     // 会话过期时间，单位秒，默认8小时
     private int maxInactiveInterval;
+    // 最后访问时间写回缓存的最小间隔，单位秒，小于等于0表示每次同步都写回
+    private int touchInterval;
+    // 缓存中头信息所记录的最后访问时间
+    private long syncedAccessTime;
     // session在缓存中的key的前缀
     private String sessionCacheKeyPrefix;
     private ServletContext context;
@@ -53,12 +69,20 @@ public class CacheHttpSession implements HttpSession {
     private final String sessionCacheKeyHeader;
     // session缓存的属性信息在缓存的key
     private final String sessionCacheKeyAttribute;
+    // 属性是否以哈希保存，每个属性一个字段
+    private final boolean attrHashEnable;
+    // 本次请求中设置或者删除过的属性名称，只在属性以哈希保存时使用
+    private final Set<String> dirtyAttributeNames = new LinkedHashSet<String>();
+    // 提前开始的异步读取，init时使用
+    private Future<Map<String, Object>> remoteSessionFuture;
     // session缓存的头信息及session本身的信息
     private CacheSessionHeader sessionHeader;
     // session缓存的属性信息
     private CacheSessionAttribute sessionAttribute;
     // session是否合法标示
     private boolean invalid = false;
+    // 缓存中的session是否已经删除,失效后只需要删除一次
+    private boolean remoteRemoved = false;
     private boolean synRealTime = false;
     //是否需同步缓存（只有改变Session中的键值对才会进行同步）
     private boolean update = false;
@@ -72,12 +96,41 @@ public class CacheHttpSession implements HttpSession {
      * @param sessionCacheKeyPrefix
      */
     public CacheHttpSession(ServletContext servletContext, String id, String sessionCacheKeyPrefix) {
+        this(servletContext, id, sessionCacheKeyPrefix, false);
+    }
+
+    /**
+     * 初始化时必须指定一个id字符串和缓存引擎实现，以及缓存的key前缀
+     * @param servletContext
+     * @param id
+     * @param sessionCacheKeyPrefix
+     * @param attrHashEnable 属性是否以哈希保存，缓存引擎必须实现HashCacheEngine.
+     */
+    public CacheHttpSession(ServletContext servletContext, String id, String sessionCacheKeyPrefix,
+            boolean attrHashEnable) {
+        this(servletContext, id, sessionCacheKeyPrefix, attrHashEnable, false);
+    }
+
+    /**
+     * 初始化时必须指定一个id字符串和缓存引擎实现，以及缓存的key前缀
+     * @param servletContext
+     * @param id
+     * @param sessionCacheKeyPrefix
+     * @param attrHashEnable 属性是否以哈希保存，缓存引擎必须实现HashCacheEngine.
+     * @param keyHashTagEnable 是否以{id}作为key的hash tag，同一会话的key在redis cluster的同一个slot中.
+     */
+    public CacheHttpSession(ServletContext servletContext, String id, String sessionCacheKeyPrefix,
+            boolean attrHashEnable, boolean keyHashTagEnable) {
         this.sessionCacheKeyPrefix = sessionCacheKeyPrefix;
         this.id = id;
         this.cache = (CacheEngine) servletContext.getAttribute(CacheEngineLoadListener.CACHE_USE_HOST_DOMAIN_KEY);
         this.context = servletContext;
-        sessionCacheKeyHeader = this.sessionCacheKeyPrefix + "-" + this.id + ".hd";
-        sessionCacheKeyAttribute = this.sessionCacheKeyPrefix + "-" + this.id + ".attr";
+        this.attrHashEnable = attrHashEnable;
+        String keyId = keyHashTagEnable ? "{" + this.id + "}" : this.id;
+        sessionCacheKeyHeader = this.sessionCacheKeyPrefix + "-" + keyId + ".hd";
+        //两种储存方式使用不同的key，切换时不会读到另一种类型的值
+        sessionCacheKeyAttribute = this.sessionCacheKeyPrefix + "-" + keyId
+                + (attrHashEnable ? ".fields" : ".attr");
     }
 
     /**
@@ -162,6 +215,22 @@ public class CacheHttpSession implements HttpSession {
         return maxInactiveInterval;
     }
 
+    /**
+     * 设定最后访问时间写回缓存的最小间隔(秒）。间隔内没有属性修改的同步将不写缓存。
+     * @param touchInterval 最小间隔，小于等于0表示每次同步都写回。
+     */
+    public void setTouchInterval(int touchInterval) {
+        this.touchInterval = touchInterval;
+    }
+
+    /**
+     * 获取最后访问时间写回缓存的最小间隔(秒）。
+     * @return 最小间隔。
+     */
+    public int getTouchInterval() {
+        return touchInterval;
+    }
+
     public String getSessionCacheKeyPrefix() {
         return sessionCacheKeyPrefix;
     }
@@ -206,6 +275,7 @@ public class CacheHttpSession implements HttpSession {
         Object oldValue = findCacheSessionAttribute().getAttribute(attributeName);
 
         findCacheSessionAttribute().putAttribute(attributeName, attributeValue);
+        dirtyAttributeNames.add(attributeName);
         update = true;
 
         doHttpSessionBindingListener(attributeName, attributeValue,
@@ -230,6 +300,7 @@ public class CacheHttpSession implements HttpSession {
     public void removeAttribute(String attributeName) {
         checkSessionInvalild();
         Object value = findCacheSessionAttribute().removeAttribute(attributeName);
+        dirtyAttributeNames.add(attributeName);
         update = true;
 
         doHttpSessionBindingListener(attributeName, value,
@@ -248,8 +319,7 @@ public class CacheHttpSession implements HttpSession {
     public void invalidate() {
         LOGGER.debug("invalidate Session {"+id+"}.");
         doHttpSessionListener(AccessType.REMOVE_ATTRIBUTE);
-        cache.del(this.sessionCacheKeyHeader);
-        cache.del(this.sessionCacheKeyAttribute);
+        removeRemoteSessionForCache();
         invalid = true;
         if (synRealTime) {
             synchronizationCache();
@@ -415,19 +485,41 @@ public class CacheHttpSession implements HttpSession {
      */
     public boolean synchronizationCache() {
         if (invalid) {
-            removeRemoteSessionForCache();
+            if (!remoteRemoved) {
+                removeRemoteSessionForCache();
+            }
             LOGGER.debug("Session [{"+id+"}] has failed and empty the cache.");
             return false;
-        } else {
-            //头信息每次都需要同步
-            updateCacheSessionHeader(sessionHeader);
+        } else if (update) {
             //属性键值对只有当改变时才更新。
-            if (update) {
-                updateCacheSessionAttribute(sessionAttribute);
-                LOGGER.debug("Session[{" + id + "}] information to the cache synchronization.");
-            }
+            updateCacheSession(true);
+            LOGGER.debug("Session[{" + id + "}] information to the cache synchronization.");
             update = false;
             return true;
+        } else {
+            //只读请求在间隔内不写缓存，超过间隔后写回最后访问时间并顺延属性的过期时间。
+            if (touchInterval <= 0
+                    || sessionHeader.getLastAccessTime() - syncedAccessTime >= touchInterval * 1000L) {
+                updateCacheSession(false);
+                LOGGER.debug("Session[{" + id + "}] last access time to the cache synchronization.");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 在初始化之前开始异步读取头信息和属性,init时等待读取的结果.
+     * 只有缓存引擎实现了AsyncCacheEngine并且属性不以哈希保存时才会预读.
+     */
+    public void prefetch() {
+        if (remoteSessionFuture != null || attrHashEnable || !(cache instanceof AsyncCacheEngine)) {
+            return;
+        }
+        try {
+            remoteSessionFuture = ((AsyncCacheEngine) cache).getAsync(
+                    new String[]{sessionCacheKeyHeader, sessionCacheKeyAttribute});
+        } catch (RuntimeException e) {
+            LOGGER.warn("Can not prefetch session {"+id+"}.", e);
         }
     }
 
@@ -436,17 +528,23 @@ public class CacheHttpSession implements HttpSession {
      * 初始化日志记录器。
      * 初始化缓存中的属性容器。
      * 如果缓存中没有相就内容即新建并设定创建时间和最后访问时间为当前时间和为新的会话。
+     *
+     * 头信息和属性键值对通过一次批量读取同时获得,头信息不存在即视为会话不存在.
      */
     public void init() {
-        if (!cache.containsKey(sessionCacheKeyHeader)) {
+        Map<String, Object> remoteSession = findRemoteSession();
+        CacheSessionHeader header = (CacheSessionHeader) remoteSession.get(sessionCacheKeyHeader);
+        if (header == null) {
             LOGGER.debug("Cache {"+sessionCacheKeyHeader+"} does not exist in the specified session container, so a creation.");
             initCacheSessionHeader(true);
             //新键需要同步缓存
             update = true;
         } else {
             LOGGER.debug("{"+sessionCacheKeyHeader+"} exists in the cache specified in the session container to update the attribute (isNew = false).");
-            sessionHeader = findCacheSessionHeader();
+            sessionHeader = header;
             sessionHeader.setNewbuild(false);
+            syncedAccessTime = header.getLastAccessTime();
+            sessionAttribute = buildCacheSessionAttribute(remoteSession.get(sessionCacheKeyAttribute));
             //不需要同步缓存,除非有属性更新。
             update = false;
         }
@@ -584,25 +682,52 @@ public class CacheHttpSession implements HttpSession {
     }
 
     /**
-     * 查找缓存中的会话属性容器。如果缓存是失效的将会抛出IllegalStateException异常。
-     * @return 会话属性容器。
+     * 一次读取缓存中的头信息和属性键值对。
+     * 本节点在replicaLag之内写入过的key由引擎直接从主库读取，不需要额外的往返。
+     * 从库上没有头信息时会话可能是其他节点刚刚创建的，还没有复制到从库，此时从主库重新读取，
+     * 只有不存在或者已经过期的会话多一次往返。
+     * @return 缓存key和值的哈希映射表，不存在的key不包含在其中。
      */
-    private CacheSessionHeader findCacheSessionHeader() throws
-            IllegalStateException {
-        CacheSessionHeader header = null;
-        try {
-            header = (CacheSessionHeader) cache.get(sessionCacheKeyHeader);
-            if (null == header) {
-            	//应该找到的远程容器没有找到，所以重新构造一个。原有属性将丢失。
-                LOGGER.warn("SessionCacheKey["+sessionCacheKeyHeader+"] is not found.");
-                initCacheSessionHeader(false);
-                header = sessionHeader;
+    private Map<String, Object> findRemoteSession() {
+        Map<String, Object> remoteSession = readRemoteSession();
+        if (cache instanceof ReplicaCacheEngine && ((ReplicaCacheEngine) cache).getReplicaLag() > 0
+                && remoteSession.get(sessionCacheKeyHeader) == null) {
+            ReplicaCacheEngine engine = (ReplicaCacheEngine) cache;
+            LOGGER.debug("Session {"+id+"} is not found on replica, read it from primary.");
+            if (attrHashEnable) {
+                return engine.getWithFieldsFromPrimary(new String[]{sessionCacheKeyHeader}, sessionCacheKeyAttribute);
+            } else {
+                return engine.getFromPrimary(new String[]{sessionCacheKeyHeader, sessionCacheKeyAttribute});
             }
-        } catch (Exception e) {
-        	LOGGER.error("Cache engine is error!", e);
         }
+        return remoteSession;
+    }
 
-        return header;
+    /**
+     * 读取会话，优先使用预读的结果。
+     */
+    private Map<String, Object> readRemoteSession() {
+        Future<Map<String, Object>> future = remoteSessionFuture;
+        remoteSessionFuture = null;
+        if (future != null) {
+            try {
+                return future.get(PREFETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Prefetch session {"+id+"} is interrupted, load it again.");
+            } catch (ExecutionException e) {
+                LOGGER.warn("Prefetch session {"+id+"} failed, load it again.", e.getCause());
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                LOGGER.warn("Prefetch session {"+id+"} is not finished in " + PREFETCH_TIMEOUT + "ms, load it again.");
+            }
+        }
+        if (attrHashEnable) {
+            return ((HashCacheEngine) cache).getWithFields(
+                    new String[]{sessionCacheKeyHeader}, sessionCacheKeyAttribute);
+        } else {
+            return cache.get(new String[]{sessionCacheKeyHeader, sessionCacheKeyAttribute});
+        }
     }
 
     /**
@@ -615,17 +740,9 @@ public class CacheHttpSession implements HttpSession {
             return attribute;
         }
         try {
-        	@SuppressWarnings("unchecked")
-			Map<String, Object> attrs = (Map<String, Object>)cache.get(sessionCacheKeyAttribute);
-            if (null == attrs) {
-            	//应该找到的远程容器没有找到，所以重新构造一个。原有属性将丢失。
-                LOGGER.warn("SessionCacheKey[sessionCacheKeyAttribute] is not found.");
-                attribute = new CacheSessionAttribute();
-            } else {
-            	attribute = new CacheSessionAttribute();
-            	attribute.setAttributes(attrs);
-            }
-            
+            attribute = buildCacheSessionAttribute(attrHashEnable
+                    ? ((HashCacheEngine) cache).getFields(sessionCacheKeyAttribute)
+                    : cache.get(sessionCacheKeyAttribute));
         } catch (Exception e) {
         	LOGGER.error("Cache engine is error!", e);
         }
@@ -634,12 +751,64 @@ public class CacheHttpSession implements HttpSession {
         return attribute;
     }
 
+    /**
+     * 根据缓存中读取到的属性键值对构造属性储存bean.
+     * @param remoteAttributes 缓存中的属性键值对,可能为null.
+     * @return 用户Session属性键键值对储存bean.
+     */
+    @SuppressWarnings("unchecked")
+    private CacheSessionAttribute buildCacheSessionAttribute(Object remoteAttributes) {
+        CacheSessionAttribute attribute = new CacheSessionAttribute();
+        if (null == remoteAttributes) {
+            //应该找到的远程容器没有找到，所以重新构造一个。原有属性将丢失。
+            LOGGER.warn("SessionCacheKey["+sessionCacheKeyAttribute+"] is not found.");
+        } else {
+            attribute.setAttributes((Map<String, Object>) remoteAttributes);
+        }
+        return attribute;
+    }
+
+    /**
+     * 同步头信息至缓存，并根据参数写入属性或者只顺延属性的过期时间。
+     * 如果缓存引擎实现了SessionCacheEngine，头信息、属性和两者的过期时间将在一次操作中原子的完成。
+     * @param withAttributes true写入属性，false只顺延属性的过期时间。
+     */
+    private void updateCacheSession(boolean withAttributes) {
+        sessionHeader.setLastSyncTime(System.currentTimeMillis());
+        if (cache instanceof SessionCacheEngine) {
+            SessionCacheEngine engine = (SessionCacheEngine) cache;
+            if (!withAttributes) {
+                engine.synchronize(sessionCacheKeyHeader, sessionHeader,
+                        sessionCacheKeyAttribute, null, this.maxInactiveInterval);
+            } else if (attrHashEnable) {
+                List<String> removedFields = new ArrayList<String>();
+                Map<String, Object> fields = findDirtyAttributes(sessionAttribute, removedFields);
+                ((HashCacheEngine) cache).synchronizeFields(sessionCacheKeyHeader, sessionHeader,
+                        sessionCacheKeyAttribute, fields, removedFields, this.maxInactiveInterval);
+                dirtyAttributeNames.clear();
+            } else {
+                engine.synchronize(sessionCacheKeyHeader, sessionHeader,
+                        sessionCacheKeyAttribute, sessionAttribute.getAttributes(), this.maxInactiveInterval);
+            }
+            syncedAccessTime = sessionHeader.getLastAccessTime();
+        } else {
+            updateCacheSessionHeader(sessionHeader);
+            if (withAttributes) {
+                updateCacheSessionAttribute(sessionAttribute);
+            } else if (touchInterval > 0) {
+                cache.expire(sessionCacheKeyAttribute, this.maxInactiveInterval);
+            }
+        }
+    }
+
     /**
      * 更新缓存中的Session属性。
      * @param header Session属性。
      */
     private void updateCacheSessionHeader(CacheSessionHeader header) {
+        header.setLastSyncTime(System.currentTimeMillis());
         cache.put(sessionCacheKeyHeader, header, this.maxInactiveInterval);
+        syncedAccessTime = header.getLastAccessTime();
     }
 
     /**
@@ -647,15 +816,42 @@ public class CacheHttpSession implements HttpSession {
      * @param attribute Session中的键值对。
      */
     private void updateCacheSessionAttribute(CacheSessionAttribute attribute) {
-        cache.put(sessionCacheKeyAttribute, attribute.getAttributes(), this.maxInactiveInterval);
+        if (attrHashEnable) {
+            List<String> removedFields = new ArrayList<String>();
+            Map<String, Object> fields = findDirtyAttributes(attribute, removedFields);
+            ((HashCacheEngine) cache).putFields(sessionCacheKeyAttribute, fields, removedFields,
+                    this.maxInactiveInterval);
+            dirtyAttributeNames.clear();
+        } else {
+            cache.put(sessionCacheKeyAttribute, attribute.getAttributes(), this.maxInactiveInterval);
+        }
+    }
+
+    /**
+     * 找出本次请求中设置过的属性，删除过的属性名称放入removedNames中。
+     * @param attribute Session中的键值对。
+     * @param removedNames 删除过的属性名称。
+     * @return 设置过的属性。
+     */
+    private Map<String, Object> findDirtyAttributes(CacheSessionAttribute attribute, List<String> removedNames) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        for (String name : dirtyAttributeNames) {
+            Object value = attribute.getAttributes().get(name);
+            if (value == null) {
+                removedNames.add(name);
+            } else {
+                fields.put(name, value);
+            }
+        }
+        return fields;
     }
 
     /**
-     * 移除缓存中的属性容器。
+     * 移除缓存中的头信息和属性容器,两个key在一次操作中删除。
      */
     private void removeRemoteSessionForCache() {
-        cache.remove(sessionCacheKeyHeader);
-        cache.remove(sessionCacheKeyAttribute);
+        cache.del(new String[]{sessionCacheKeyHeader, sessionCacheKeyAttribute});
+        remoteRemoved = true;
     }
 
     /**
@@ -686,6 +882,8 @@ public class CacheHttpSession implements HttpSession {
         private boolean newbuild;
         private long lastAccessTime;
         private long createTime;
+        // 最后一次写入缓存的时间,旧版本写入的头信息中为0
+        private long lastSyncTime;
 
         //用以序列化的构造方法
         public CacheSessionHeader() {
@@ -711,6 +909,14 @@ public class CacheHttpSession implements HttpSession {
             this.lastAccessTime = lastAccessTime;
         }
 
+        public long getLastSyncTime() {
+            return lastSyncTime;
+        }
+
+        public void setLastSyncTime(long lastSyncTime) {
+            this.lastSyncTime = lastSyncTime;
+        }
+
         public boolean isNewbuild() {
             return newbuild;
         }
@@ -725,6 +931,7 @@ public class CacheHttpSession implements HttpSession {
             buff.append("CacheSessionHeader{").append("newbuild=").append(newbuild);
             buff.append(",lastAccessTime=").append(lastAccessTime);
             buff.append(",createTime=").append(createTime);
+            buff.append(",lastSyncTime=").append(lastSyncTime);
             buff.append("}");
             return buff.toString();
         }
@@ -747,6 +954,9 @@ public class CacheHttpSession implements HttpSession {
             if (this.createTime != other.createTime) {
                 return false;
             }
+            if (this.lastSyncTime != other.lastSyncTime) {
+                return false;
+            }
             return true;
         }
 
@@ -756,6 +966,7 @@ public class CacheHttpSession implements HttpSession {
             hash = 29 * hash + (newbuild ? 1 : 0);
             hash = 29 * hash + (int) (lastAccessTime ^ (lastAccessTime >>> 32));
             hash = 29 * hash + (int) (createTime ^ (createTime >>> 32));
+            hash = 29 * hash + (int) (lastSyncTime ^ (lastSyncTime >>> 32));
             return hash;
         }
     }
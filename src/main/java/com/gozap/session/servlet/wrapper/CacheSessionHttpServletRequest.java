@@ -40,13 +40,19 @@ public class CacheSessionHttpServletRequest extends HttpServletRequestWrapper {
     private ServletContext context;
     // 会话过期时间seconds
     private int maxInactiveInterval;
+    // 最后访问时间写回缓存的最小间隔seconds
+    private int touchInterval;
     private CacheHttpSession cacheSession;
+    // 已经开始异步读取但还没有初始化的会话
+    private CacheHttpSession prefetchedSession;
     private String sessionCookieName;
     private String cookieDomain;
     private String cookieContextPath;
     private String sessionCacheKeyPrefix;
     private boolean tldEnable = false;
     private boolean synRealTime = false;
+    private boolean attrHashEnable = false;
+    private boolean keyHashTagEnable = false;
     private HttpServletResponse response;
     private HttpSessionAttributeListener[] sessionAttributeListeners;
     private HttpSessionListener[] sessionListeners;
@@ -76,6 +82,29 @@ public class CacheSessionHttpServletRequest extends HttpServletRequestWrapper {
         this.synRealTime = synRealTime;
     }
 
+    public void setAttrHashEnable(boolean attrHashEnable) {
+        this.attrHashEnable = attrHashEnable;
+    }
+
+    public void setKeyHashTagEnable(boolean keyHashTagEnable) {
+        this.keyHashTagEnable = keyHashTagEnable;
+    }
+
+    /**
+     * 根据cookie中的会话id提前开始异步读取缓存中的会话，
+     * 之后第一次获取会话时直接使用读取的结果。cookie中没有会话id时不做任何事。
+     */
+    public void prefetchSession() {
+        if (cacheSession != null || prefetchedSession != null) {
+            return;
+        }
+        Cookie cookie = WebUtil.findLastCookie(this, getSessionCookieName());
+        if (cookie != null) {
+            prefetchedSession = newCacheHttpSession(cookie.getValue());
+            prefetchedSession.prefetch();
+        }
+    }
+
     /**
      * 获取会话实例，如果不存在则创建。
      * @return 会话实例。
@@ -159,6 +188,22 @@ public class CacheSessionHttpServletRequest extends HttpServletRequestWrapper {
         this.maxInactiveInterval = maxInactiveInterval;
     }
 
+    /**
+     * 最后访问时间写回缓存的最小间隔。单位秒。
+     * @return 最小间隔。
+     */
+    public int getTouchInterval() {
+        return touchInterval;
+    }
+
+    /**
+     * 设置最后访问时间写回缓存的最小间隔。单位秒，小于等于0表示每次请求都写回。
+     * @param touchInterval 最小间隔。
+     */
+    public void setTouchInterval(int touchInterval) {
+        this.touchInterval = touchInterval;
+    }
+
     public String getSessionCacheKeyPrefix() {
         return sessionCacheKeyPrefix;
     }
@@ -258,11 +303,11 @@ public class CacheSessionHttpServletRequest extends HttpServletRequestWrapper {
      */
     private CacheHttpSession buildCacheHttpSession(String sessionId,
             boolean cookie) {
-        CacheHttpSession session = new CacheHttpSession(context, sessionId, sessionCacheKeyPrefix);
-        session.setMaxInactiveInterval(maxInactiveInterval);
-        session.setSessionAttributeListeners(sessionAttributeListeners);
-        session.setSessionListeners(sessionListeners);
-        session.setSynRealTime(synRealTime);
+        CacheHttpSession session = prefetchedSession;
+        prefetchedSession = null;
+        if (session == null || !session.getId().equals(sessionId)) {
+            session = newCacheHttpSession(sessionId);
+        }
         session.init();
 
         if (cookie) {
@@ -280,6 +325,22 @@ public class CacheSessionHttpServletRequest extends HttpServletRequestWrapper {
         return session;
     }
 
+    /**
+     * 构造一个还没有初始化的会话实例。
+     * @param sessionId 会话id.
+     * @return 会话实例。
+     */
+    private CacheHttpSession newCacheHttpSession(String sessionId) {
+        CacheHttpSession session = new CacheHttpSession(context, sessionId, sessionCacheKeyPrefix,
+                attrHashEnable, keyHashTagEnable);
+        session.setMaxInactiveInterval(maxInactiveInterval);
+        session.setTouchInterval(touchInterval);
+        session.setSessionAttributeListeners(sessionAttributeListeners);
+        session.setSessionListeners(sessionListeners);
+        session.setSynRealTime(synRealTime);
+        return session;
+    }
+
     /**
      * 以UUID的方式构造一个会话实例。如果create为false则返回null.
      * @param create false方法调用返回null.
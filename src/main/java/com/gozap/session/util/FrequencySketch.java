@@ -0,0 +1,99 @@
+package com.gozap.session.util;
+
+import java.util.Arrays;
+
+/**
+ * 估计key访问频率的计数最小(count-min)草图.4行计数器,每行以不同的种子哈希到一个计数器,
+ * 估计值取4个计数器中的最小值,只会高估不会低估.每个计数器最大15,
+ * 记录的访问次数达到宽度的10倍时所有计数器减半,使频率反映的是最近的访问.
+ * 占用的内存只与宽度有关,与出现过的key数量无关.所有方法都是线程安全的.
+ *
+ * @version 1.00 2015-8-19
+ * @since 1.6
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 64;
+    private static final int RESET_MULTIPLIER = 10;
+    private static final int[] SEEDS = {0x97CB3127, 0x5BD1E995, 0x2F0B3CB1, 0xC2B2AE35};
+
+    private final byte[] counters;
+    private final int width;
+    private final int mask;
+    private final int resetSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys 需要区分的热点key数量,宽度为不小于它的2的幂.
+     */
+    public FrequencySketch(int expectedKeys) {
+        int size = MIN_WIDTH;
+        while (size < expectedKeys && size < (1 << 28)) {
+            size <<= 1;
+        }
+        this.width = size;
+        this.mask = size - 1;
+        this.counters = new byte[DEPTH * size];
+        this.resetSize = RESET_MULTIPLIER * size;
+    }
+
+    /**
+     * 记录一次访问.
+     * @return 记录之后的估计频率.
+     */
+    public synchronized int increment(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * width + indexOf(hash, i);
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+            }
+            min = Math.min(min, counters[index]);
+        }
+        if (++additions >= resetSize) {
+            reset();
+        }
+        return min;
+    }
+
+    /**
+     * @return 估计频率,不记录访问.
+     */
+    public synchronized int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i * width + indexOf(hash, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * 清空全部计数.
+     */
+    public synchronized void clear() {
+        Arrays.fill(counters, (byte) 0);
+        additions = 0;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+}
@@ -0,0 +1,103 @@
+package com.gozap.session.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的延迟直方图,以微秒为单位按2的幂分桶.第i个桶记录[2^(i-1), 2^i)微秒的样本,
+ * 百分位数返回所在桶的上界,误差在一倍以内,足够发现数量级上的变化.
+ *
+ * @version 1.00 2015-8-7
+ * @since 1.6
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个样本.
+     * @param nanos 延迟纳秒数.
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0L));
+        int index = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(index);
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return 平均延迟微秒数.
+     */
+    public long getMean() {
+        long samples = count.get();
+        return samples == 0 ? 0 : total.get() / samples;
+    }
+
+    /**
+     * @return 最大延迟微秒数.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 百分位数的近似值.
+     * @param percent 0到100之间的百分比.
+     * @return 样本所在桶的上界微秒数.
+     */
+    public long getPercentile(double percent) {
+        long samples = count.get();
+        if (samples == 0) {
+            return 0;
+        }
+        long[] counts = new long[BUCKETS];
+        addTo(counts);
+        return percentile(counts, samples, getMax(), percent);
+    }
+
+    /**
+     * 把各个桶的样本数加到counts中.
+     */
+    void addTo(long[] counts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += buckets.get(i);
+        }
+    }
+
+    /**
+     * 根据各个桶的样本数计算百分位数的近似值.
+     */
+    static long percentile(long[] counts, long samples, long max, double percent) {
+        long rank = (long) Math.ceil(samples * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMean() + "us, p50=" + getPercentile(50)
+                + "us, p99=" + getPercentile(99) + "us, p999=" + getPercentile(99.9)
+                + "us, max=" + getMax() + "us";
+    }
+}
@@ -0,0 +1,200 @@
+package com.gozap.session.util;
+
+/**
+ * LZ4块格式的纯java实现.只做贪心的单次哈希匹配,压缩率略低于官方实现,
+ * 但速度在同一量级,输出可以被任何标准的LZ4块解压器解开.
+ * 块格式本身不记录原始长度,需要调用方自己保存.
+ *
+ * @version 1.00 2015-8-11
+ * @since 1.6
+ */
+public class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {
+    }
+
+    /**
+     * 压缩结果可能的最大长度.
+     * @param length 原始长度.
+     * @return 最大长度.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * 压缩指定的字节.
+     * @param src 原始字节.
+     * @return 压缩后的LZ4块.
+     */
+    public static byte[] compress(byte[] src) {
+        int length = src.length;
+        byte[] dest = new byte[maxCompressedLength(length)];
+        int op = 0;
+        int anchor = 0;
+        if (length >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];
+            int limit = length - MF_LIMIT;
+            int matchLimit = length - LAST_LITERALS;
+            int ip = 0;
+            while (ip < limit) {
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = table[hash] - 1;
+                table[hash] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dest, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        op = writeLastLiterals(src, anchor, length - anchor, dest, op);
+        byte[] result = new byte[op];
+        System.arraycopy(dest, 0, result, 0, op);
+        return result;
+    }
+
+    /**
+     * 解压一个LZ4块.
+     * @param src 压缩数据.
+     * @param offset 压缩数据在src中的起始位置.
+     * @param length 压缩数据的长度.
+     * @param originalLength 原始长度.
+     * @return 原始字节.
+     * @throws IllegalArgumentException 数据不是合法的LZ4块或者长度不符.
+     */
+    public static byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+        byte[] dest = new byte[originalLength];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (ip + literalLength > end || op + literalLength > originalLength) {
+                    throw new IllegalArgumentException("Malformed lz4 block, literals overflow.");
+                }
+                System.arraycopy(src, ip, dest, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == end) {
+                    break;
+                }
+                int matchOffset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (matchOffset == 0 || matchOffset > op) {
+                    throw new IllegalArgumentException("Malformed lz4 block, bad offset " + matchOffset);
+                }
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (op + matchLength > originalLength) {
+                    throw new IllegalArgumentException("Malformed lz4 block, match overflow.");
+                }
+                int ref = op - matchOffset;
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(dest, ref, dest, op, matchLength);
+                    op += matchLength;
+                } else {
+                    for (int i = 0; i < matchLength; i++) {
+                        dest[op++] = dest[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Malformed lz4 block, truncated.", ex);
+        }
+        if (op != originalLength) {
+            throw new IllegalArgumentException("Malformed lz4 block, expected "
+                    + originalLength + " bytes but was " + op);
+        }
+        return dest;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength,
+            int matchOffset, int matchLength, byte[] dest, int op) {
+        int tokenPos = op++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(literalLength - 15, dest, op);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        op += literalLength;
+        dest[op++] = (byte) matchOffset;
+        dest[op++] = (byte) (matchOffset >>> 8);
+        int rest = matchLength - MIN_MATCH;
+        if (rest >= 15) {
+            token |= 15;
+            op = writeLength(rest - 15, dest, op);
+        } else {
+            token |= rest;
+        }
+        dest[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literalLength,
+            byte[] dest, int op) {
+        if (literalLength >= 15) {
+            dest[op++] = (byte) (15 << 4);
+            op = writeLength(literalLength - 15, dest, op);
+        } else {
+            dest[op++] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dest, int op) {
+        while (length >= 255) {
+            dest[op++] = (byte) 255;
+            length -= 255;
+        }
+        dest[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | ((src[offset + 1] & 0xFF) << 8)
+                | ((src[offset + 2] & 0xFF) << 16) | ((src[offset + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
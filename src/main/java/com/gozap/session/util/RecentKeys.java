@@ -0,0 +1,76 @@
+package com.gozap.session.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录最近一段时间内出现过的key.key按时间分为两代,每过window毫秒当前代变为上一代,
+ * 原来的上一代整体丢弃,加入的key至少在window毫秒内可以查到,最多保留2倍的window.
+ * 加入和查询都是O(1),不需要扫描过期的key,占用的内存只与两代时间内加入的key数量有关.
+ * 所有方法都是线程安全的.
+ *
+ * @version 1.00 2015-8-21
+ * @since 1.6
+ */
+public class RecentKeys {
+
+    private final long window;
+    private volatile Generation current;
+    private volatile Set<String> previous = Collections.emptySet();
+
+    /**
+     * @param window key至少保留的时间,毫秒.
+     */
+    public RecentKeys(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window + ".");
+        }
+        this.window = window;
+        this.current = new Generation(System.currentTimeMillis());
+    }
+
+    public void add(String key, long now) {
+        rotate(now).keys.add(key);
+    }
+
+    /**
+     * @return key是否在最近的window毫秒内加入过,也可能是最近2倍window毫秒内.
+     */
+    public boolean contains(String key, long now) {
+        Generation generation = rotate(now);
+        return generation.keys.contains(key) || previous.contains(key);
+    }
+
+    /**
+     * 当前代开始超过window时换代,超过2倍window时当前代中的key也都已经过期,一起丢弃.
+     */
+    private Generation rotate(long now) {
+        Generation generation = current;
+        if (now - generation.start < window) {
+            return generation;
+        }
+        synchronized (this) {
+            generation = current;
+            if (now - generation.start >= window) {
+                previous = now - generation.start >= 2 * window ? Collections.<String>emptySet() : generation.keys;
+                generation = new Generation(now);
+                current = generation;
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * 同一时间段内加入的key.
+     */
+    private static final class Generation {
+
+        private final long start;
+        private final Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Generation(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.gozap.session.util;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按key的哈希分段的LRU表.每段是一个按访问顺序排列的LinkedHashMap,由段自己的锁保护,
+ * 不同段上的读写互不阻塞.每段最多保存容量除以段数(向上取整)个值,淘汰在段内按最近访问进行,
+ * 整体上是近似的LRU.
+ *
+ * 每段另有一个供调用者使用的修改锁(见lock),用于把同一段上的多个操作以及段之外的操作
+ * 组合成原子的修改;表自身的方法不使用修改锁,持有修改锁时get不会被阻塞.
+ * 被淘汰的值与写入的值总在同一段,持有写入key的修改锁时也就持有了被淘汰key的修改锁.
+ * 所有方法都是线程安全的.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class StripedLruMap<K, V> {
+
+    private final Segment<K, V>[] segments;
+    private final Object[] locks;
+
+    /**
+     * @param capacity 总容量,小于等于0时写入的值立即被淘汰.
+     * @param stripes 段数,不会超过容量.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLruMap(int capacity, int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Invalid stripes " + stripes + ".");
+        }
+        int count = Math.max(1, Math.min(stripes, capacity));
+        int segmentCapacity = capacity <= 0 ? 0 : (capacity + count - 1) / count;
+        segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(segmentCapacity);
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return 段数.
+     */
+    public int getStripes() {
+        return segments.length;
+    }
+
+    /**
+     * @return key所在段的序号.
+     */
+    public int stripe(Object key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % segments.length;
+    }
+
+    /**
+     * @return key所在段的修改锁.
+     */
+    public Object lock(Object key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * @return 序号为stripe的段的修改锁.
+     */
+    public Object stripeLock(int stripe) {
+        return locks[stripe];
+    }
+
+    /**
+     * 读取值并标记为最近访问.
+     */
+    public V get(K key) {
+        return segments[stripe(key)].get(key);
+    }
+
+    /**
+     * 写入值,段内超过容量时淘汰最久没有访问的值.
+     * @return 被淘汰的key和值,没有淘汰时为null.
+     */
+    public Map.Entry<K, V> put(K key, V value) {
+        return segments[stripe(key)].put(key, value);
+    }
+
+    public V remove(K key) {
+        return segments[stripe(key)].remove(key);
+    }
+
+    /**
+     * 只有key当前对应的是value(同一个对象)时才移除.
+     * @return 是否移除.
+     */
+    public boolean remove(K key, V value) {
+        return segments[stripe(key)].remove(key, value);
+    }
+
+    /**
+     * 依次清空每段,不是原子的.
+     */
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return 各段值数量之和.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 一段,由自身作为锁.
+     */
+    private static final class Segment<K, V> {
+
+        private final int capacity;
+        private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized V get(K key) {
+            return map.get(key);
+        }
+
+        synchronized Map.Entry<K, V> put(K key, V value) {
+            map.put(key, value);
+            if (map.size() <= capacity) {
+                return null;
+            }
+            Iterator<Map.Entry<K, V>> eldest = map.entrySet().iterator();
+            Map.Entry<K, V> evicted = new AbstractMap.SimpleImmutableEntry<K, V>(eldest.next());
+            eldest.remove();
+            return evicted;
+        }
+
+        synchronized V remove(K key) {
+            return map.remove(key);
+        }
+
+        synchronized boolean remove(K key, V value) {
+            if (map.get(key) != value) {
+                return false;
+            }
+            map.remove(key);
+            return true;
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
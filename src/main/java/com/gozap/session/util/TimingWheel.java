@@ -0,0 +1,194 @@
+package com.gozap.session.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分层时间轮.每层64个槽,第0层每槽一个tick,第n层每槽64^n个tick.
+ * 定时项先放入能容纳其到期时间的最低一层,所在的高层槽轮到时整体下移一层,
+ * 最终在第0层的槽轮到时到期.登记和取消都是O(1),推进的代价只与到期和下移的定时项数量有关,
+ * 与登记的定时项总数无关.超出最高层范围的定时项先放在最高层最远的槽中,轮到时再重新放置.
+ * 所有方法都是线程安全的.
+ *
+ * @version 1.00 2015-8-14
+ * @since 1.6
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final int levels;
+    private final Timeout<T>[][] wheels;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis 每个tick的毫秒数.
+     * @param levels 层数,tick为100毫秒时5层可以覆盖3年.
+     * @param startMillis 开始的时间,毫秒.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int levels, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be greater than 0.");
+        }
+        if (levels < 1 || levels * SLOT_BITS > 62) {
+            throw new IllegalArgumentException("Levels must be between 1 and " + 62 / SLOT_BITS + ".");
+        }
+        this.tickMillis = tickMillis;
+        this.levels = levels;
+        this.wheels = (Timeout<T>[][]) new Timeout<?>[levels][SLOTS];
+        for (Timeout<T>[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Timeout<T>(null, 0, 0);
+            }
+        }
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * 登记一个定时项,已经过去的到期时间在下一个tick到期.
+     * @param payload 定时项携带的对象.
+     * @param deadline 到期时间,毫秒.
+     * @return 可以用来取消的定时项.
+     */
+    public synchronized Timeout<T> schedule(T payload, long deadline) {
+        Timeout<T> timeout = new Timeout<T>(payload, deadline, (deadline + tickMillis - 1) / tickMillis);
+        place(timeout, currentTick + 1);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * 取消定时项.
+     * @param timeout 定时项.
+     * @return true取消成功,false已经到期或者已经取消.
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout.next == null) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * 推进到指定的时间,返回期间到期的定时项.
+     * @param now 当前时间,毫秒.
+     * @return 到期的定时项,没有时为空列表.
+     */
+    public synchronized List<Timeout<T>> advance(long now) {
+        long target = now / tickMillis;
+        List<Timeout<T>> expired = null;
+        while (currentTick < target) {
+            currentTick++;
+            int level = 0;
+            while (level + 1 < levels && (currentTick & ((1L << SLOT_BITS * (level + 1)) - 1)) == 0) {
+                level++;
+            }
+            for (; level > 0; level--) {
+                cascade(wheels[level][index(currentTick, level)]);
+            }
+            Timeout<T> head = wheels[0][index(currentTick, 0)];
+            while (head.next != head) {
+                Timeout<T> timeout = head.next;
+                unlink(timeout);
+                if (timeout.tick > currentTick) {
+                    // 只有一层时超出范围的定时项放在第0层最远的槽中,轮到时还没有到期
+                    place(timeout, currentTick);
+                    continue;
+                }
+                size--;
+                if (expired == null) {
+                    expired = new ArrayList<Timeout<T>>();
+                }
+                expired.add(timeout);
+            }
+        }
+        if (expired == null) {
+            return Collections.emptyList();
+        }
+        return expired;
+    }
+
+    /**
+     * @return 尚未到期的定时项数量.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void cascade(Timeout<T> head) {
+        while (head.next != head) {
+            Timeout<T> timeout = head.next;
+            unlink(timeout);
+            place(timeout, currentTick);
+        }
+    }
+
+    private void place(Timeout<T> timeout, long minTick) {
+        long tick = Math.max(timeout.tick, minTick);
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level + 1 < levels && delta >= 1L << SLOT_BITS * (level + 1)) {
+            level++;
+        }
+        long span = 1L << SLOT_BITS * levels;
+        if (delta >= span) {
+            tick = currentTick + span - 1;
+        }
+        Timeout<T> head = wheels[level][index(tick, level)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) (tick >>> SLOT_BITS * level) & SLOT_MASK;
+    }
+
+    private static <T> void unlink(Timeout<T> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * 时间轮中的一个定时项,同时也是所在槽的双向链表节点.
+     */
+    public static final class Timeout<T> {
+
+        private final T payload;
+        private final long deadline;
+        private final long tick;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        Timeout(T payload, long deadline, long tick) {
+            this.payload = payload;
+            this.deadline = deadline;
+            this.tick = tick;
+            this.prev = this;
+            this.next = this;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
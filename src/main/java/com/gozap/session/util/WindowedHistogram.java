@@ -0,0 +1,93 @@
+package com.gozap.session.util;
+
+/**
+ * 只反映最近一段时间的延迟直方图.样本按时间分为两代,每过window毫秒当前代变为上一代,
+ * 原来的上一代整体丢弃,统计只包括这两代,即最近window到2倍window毫秒内的样本.
+ * 与LatencyHistogram一样按2的幂分桶,适合根据近期的延迟做决定,比如对冲读取的等待时间.
+ *
+ * @version 1.00 2015-8-22
+ * @since 1.6
+ */
+public class WindowedHistogram {
+
+    private final long window;
+    private volatile Generation current;
+    private volatile LatencyHistogram previous = new LatencyHistogram();
+
+    /**
+     * @param window 每一代的时间,毫秒.
+     */
+    public WindowedHistogram(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window + ".");
+        }
+        this.window = window;
+        this.current = new Generation(System.currentTimeMillis());
+    }
+
+    /**
+     * 记录一个样本.
+     * @param nanos 延迟纳秒数.
+     */
+    public void record(long nanos) {
+        rotate(System.currentTimeMillis()).histogram.record(nanos);
+    }
+
+    /**
+     * @return 两代中的样本数.
+     */
+    public long getCount() {
+        LatencyHistogram latest = rotate(System.currentTimeMillis()).histogram;
+        return latest.getCount() + previous.getCount();
+    }
+
+    /**
+     * 两代样本合并后的百分位数的近似值.
+     * @param percent 0到100之间的百分比.
+     * @return 样本所在桶的上界微秒数.
+     */
+    public long getPercentile(double percent) {
+        LatencyHistogram latest = rotate(System.currentTimeMillis()).histogram;
+        LatencyHistogram older = previous;
+        long samples = latest.getCount() + older.getCount();
+        if (samples == 0) {
+            return 0;
+        }
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        latest.addTo(counts);
+        older.addTo(counts);
+        return LatencyHistogram.percentile(counts, samples, Math.max(latest.getMax(), older.getMax()), percent);
+    }
+
+    /**
+     * 当前代开始超过window时换代,超过2倍window时当前代中的样本也都已经过时,一起丢弃.
+     */
+    private Generation rotate(long now) {
+        Generation generation = current;
+        if (now - generation.start < window) {
+            return generation;
+        }
+        synchronized (this) {
+            generation = current;
+            if (now - generation.start >= window) {
+                previous = now - generation.start >= 2 * window ? new LatencyHistogram() : generation.histogram;
+                generation = new Generation(now);
+                current = generation;
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * 同一时间段内的样本.
+     */
+    private static final class Generation {
+
+        private final long start;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Generation(long start) {
+            this.start = start;
+        }
+    }
+}
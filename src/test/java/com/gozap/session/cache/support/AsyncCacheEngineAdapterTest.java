@@ -0,0 +1,159 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.gozap.session.cache.AsyncCacheEngineAdapter;
+import com.gozap.session.cache.HashCacheEngine;
+import com.gozap.session.cache.SessionCacheEngine;
+
+/**
+ * 检查AsyncCacheEngineAdapter停止后拒绝异步调用,以及会话和哈希方法按被装饰引擎的能力委托.
+ *
+ * @version 1.00 2015-8-25
+ * @since 1.6
+ */
+public class AsyncCacheEngineAdapterTest {
+
+    @Test
+    public void asyncCallsRunOnDelegate() throws Exception {
+        FlakyCacheEngine delegate = new FlakyCacheEngine();
+        AsyncCacheEngineAdapter adapter = start(delegate);
+        try {
+            adapter.putAsync("k", "v", 60).get(1, TimeUnit.SECONDS);
+            assertEquals("v", delegate.peek("k"));
+            assertEquals("v", adapter.getAsync("k").get(1, TimeUnit.SECONDS));
+            assertEquals(Long.valueOf(3), adapter.increaseAsync("n", 3).get(1, TimeUnit.SECONDS));
+        } finally {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void asyncCallsAfterStopAreRejected() {
+        AsyncCacheEngineAdapter adapter = start(new FlakyCacheEngine());
+        adapter.stop();
+        try {
+            adapter.getAsync(new String[] {"a", "b"});
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        try {
+            adapter.delAsync("a");
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+    }
+
+    @Test
+    public void synchronizeWritesKeysSeparatelyWithoutSessionDelegate() {
+        FlakyCacheEngine delegate = new FlakyCacheEngine();
+        AsyncCacheEngineAdapter adapter = start(delegate);
+        try {
+            adapter.synchronize("s.hd", "header", "s.at", "attributes", 60);
+            assertEquals("header", delegate.peek("s.hd"));
+            assertEquals("attributes", delegate.peek("s.at"));
+
+            adapter.synchronize("s.hd", "header2", "s.at", null, 120);
+            assertEquals("header2", delegate.peek("s.hd"));
+            assertEquals("attributes", delegate.peek("s.at"));
+            assertEquals(Integer.valueOf(120), delegate.ttl("s.at"));
+        } finally {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void hashCallsFailWithoutHashDelegate() {
+        AsyncCacheEngineAdapter adapter = start(new FlakyCacheEngine());
+        try {
+            assertFalse(adapter.isHashSupported());
+            adapter.getFields("s.at");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // 期望的异常
+        } finally {
+            adapter.stop();
+        }
+    }
+
+    @Test
+    public void sessionAndHashCallsAreForwarded() {
+        RecordingCacheEngine delegate = new RecordingCacheEngine();
+        AsyncCacheEngineAdapter adapter = start(delegate);
+        try {
+            assertTrue(adapter.isHashSupported());
+            adapter.synchronize("s.hd", "header", "s.at", null, 60);
+            adapter.synchronizeFields("s.hd", "header", "s.at",
+                    Collections.<String, Object>emptyMap(), Collections.<String>emptyList(), 60);
+            assertNull(adapter.getFields("s.at"));
+            assertEquals(3, delegate.calls.size());
+            assertEquals("synchronize", delegate.calls.get(0));
+            assertEquals("synchronizeFields", delegate.calls.get(1));
+            assertEquals("getFields", delegate.calls.get(2));
+            // 没有拆分为普通的写入
+            assertEquals(0, delegate.getWrites());
+        } finally {
+            adapter.stop();
+        }
+    }
+
+    private static AsyncCacheEngineAdapter start(FlakyCacheEngine delegate) {
+        Properties properties = new Properties();
+        properties.setProperty(AsyncCacheEngineAdapter.ASYNC_THREADS, "2");
+        AsyncCacheEngineAdapter adapter = new AsyncCacheEngineAdapter(delegate);
+        adapter.init(properties, null);
+        adapter.start();
+        return adapter;
+    }
+
+    /**
+     * 记录会话和哈希方法调用的引擎.
+     */
+    private static class RecordingCacheEngine extends FlakyCacheEngine
+            implements SessionCacheEngine, HashCacheEngine {
+
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        public void synchronize(String headerKey, Object header,
+                String attributeKey, Object attributes, int seconds) {
+            calls.add("synchronize");
+        }
+
+        public Map<String, Object> getFields(String key) {
+            calls.add("getFields");
+            return null;
+        }
+
+        public Map<String, Object> getWithFields(String[] keys, String fieldsKey) {
+            calls.add("getWithFields");
+            return Collections.emptyMap();
+        }
+
+        public void putFields(String key, Map<String, Object> fields,
+                Collection<String> removedFields, int seconds) {
+            calls.add("putFields");
+        }
+
+        public void synchronizeFields(String headerKey, Object header,
+                String fieldsKey, Map<String, Object> fields,
+                Collection<String> removedFields, int seconds) {
+            calls.add("synchronizeFields");
+        }
+    }
+}
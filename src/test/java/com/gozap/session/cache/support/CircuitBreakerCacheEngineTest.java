@@ -0,0 +1,192 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 以FlakyCacheEngine模拟redis不可用,检查熔断期间的本地写入如何写回:
+ * 替身写入不覆盖已有的会话,删除不会被本地表淘汰,停止时写回本地的写入.
+ *
+ * @version 1.00 2015-8-24
+ * @since 1.6
+ */
+public class CircuitBreakerCacheEngineTest {
+
+    private static final long OPEN_TIME = 100L;
+    private static final long WAIT_MILLIS = 5000L;
+
+    private FlakyCacheEngine redis;
+    private CircuitBreakerCacheEngine engine;
+
+    @Before
+    public void startEngine() {
+        redis = new FlakyCacheEngine();
+        Properties properties = new Properties();
+        // 一次出错就打开熔断
+        properties.setProperty(CircuitBreakerCacheEngine.CIRCUIT_WINDOW_SIZE, "1");
+        properties.setProperty(CircuitBreakerCacheEngine.CIRCUIT_FAILURE_RATE, "100");
+        properties.setProperty(CircuitBreakerCacheEngine.CIRCUIT_SLOW_CALL, "10000");
+        properties.setProperty(CircuitBreakerCacheEngine.CIRCUIT_OPEN_TIME, String.valueOf(OPEN_TIME));
+        properties.setProperty(CircuitBreakerCacheEngine.CIRCUIT_LOCAL_SIZE, "2");
+        engine = new CircuitBreakerCacheEngine(redis);
+        engine.init(properties, null);
+        engine.start();
+    }
+
+    @After
+    public void stopEngine() {
+        engine.stop();
+    }
+
+    @Test
+    public void standInDoesNotOverwriteExistingSession() throws Exception {
+        redis.put("s.hd", "real");
+        redis.setDown(true);
+
+        // 读取失败,应用以为会话不存在,写入一个空会话
+        assertNull(engine.get("s.hd"));
+        assertEquals(CircuitBreakerCacheEngine.State.OPEN, engine.getState());
+        engine.put("s.hd", "empty", 60);
+        assertEquals("empty", engine.get("s.hd"));
+
+        recover();
+        awaitTrue("stand-in skipped", new Condition() {
+            public boolean met() {
+                return engine.getSkippedWrites() == 1;
+            }
+        });
+        assertEquals("real", redis.peek("s.hd"));
+        // 跳过的替身在计数之后才从本地表中删除
+        awaitTrue("local stand-in removed", new Condition() {
+            public boolean met() {
+                return "real".equals(engine.get("s.hd"));
+            }
+        });
+    }
+
+    @Test
+    public void standInAfterSingleFailureIsNotWrittenOver() throws Exception {
+        redis.put("s.hd", "real");
+        redis.setDown(true);
+        assertNull(engine.get("s.hd"));
+        redis.setDown(false);
+        Thread.sleep(OPEN_TIME);
+
+        // 熔断已经可以关闭,但这次写入仍然基于读取失败的空值
+        engine.containsKey("probe");
+        assertEquals(CircuitBreakerCacheEngine.State.CLOSED, engine.getState());
+        engine.put("s.hd", "empty", 60);
+        awaitTrue("stand-in skipped", new Condition() {
+            public boolean met() {
+                return engine.getSkippedWrites() == 1;
+            }
+        });
+        assertEquals("real", redis.peek("s.hd"));
+    }
+
+    @Test
+    public void standInIsWrittenWhenCacheHasNoValue() throws Exception {
+        redis.setDown(true);
+        assertNull(engine.get("s.hd"));
+        engine.put("s.hd", "new", 60);
+
+        recover();
+        awaitValue("new", "s.hd");
+        assertEquals(Integer.valueOf(60), redis.ttl("s.hd"));
+        assertEquals(0, engine.getSkippedWrites());
+    }
+
+    @Test
+    public void writesWithoutFailedReadAreWrittenBack() throws Exception {
+        redis.put("s.hd", "old");
+        redis.setDown(true);
+        // 打开熔断
+        assertFalse(engine.containsKey("other"));
+        engine.put("s.hd", "new");
+
+        recover();
+        awaitValue("new", "s.hd");
+    }
+
+    @Test
+    public void deletesSurviveLocalEviction() throws Exception {
+        redis.put("s.hd", "real");
+        redis.setDown(true);
+        assertFalse(engine.containsKey("other"));
+        engine.del("s.hd");
+        // 本地表只能保存2个值
+        for (int i = 0; i < 5; i++) {
+            engine.put("k" + i, "v" + i);
+        }
+        assertEquals(3, engine.getDroppedWrites());
+        assertNull(engine.get("s.hd"));
+
+        recover();
+        awaitValue("v4", "k4");
+        awaitValue(null, "s.hd");
+        assertNull(redis.peek("k0"));
+    }
+
+    @Test
+    public void stopWritesBackLocalWrites() {
+        redis.put("d.hd", "old");
+        redis.setDown(true);
+        assertFalse(engine.containsKey("other"));
+        engine.put("n.hd", "new");
+        engine.del("d.hd");
+
+        redis.setDown(false);
+        engine.stop();
+        assertEquals("new", redis.peek("n.hd"));
+        assertNull(redis.peek("d.hd"));
+    }
+
+    @Test
+    public void stopWithCacheDownDoesNotHang() {
+        redis.setDown(true);
+        assertFalse(engine.containsKey("other"));
+        engine.put("n.hd", "new");
+        engine.stop();
+        assertNull(redis.peek("n.hd"));
+    }
+
+    /**
+     * 恢复redis,等待熔断可以探测后发出一次探测调用关闭熔断.
+     */
+    private void recover() throws InterruptedException {
+        redis.setDown(false);
+        Thread.sleep(OPEN_TIME);
+        engine.containsKey("probe");
+        assertEquals(CircuitBreakerCacheEngine.State.CLOSED, engine.getState());
+    }
+
+    private void awaitValue(final Object expected, final String key) throws InterruptedException {
+        awaitTrue(key + " is " + expected, new Condition() {
+            public boolean met() {
+                Object value = redis.peek(key);
+                return expected == null ? value == null : expected.equals(value);
+            }
+        });
+    }
+
+    private static void awaitTrue(String message, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.met() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(message, condition.met());
+    }
+
+    private interface Condition {
+
+        boolean met();
+    }
+}
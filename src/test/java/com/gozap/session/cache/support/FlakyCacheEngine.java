@@ -0,0 +1,177 @@
+package com.gozap.session.cache.support;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import com.gozap.session.cache.AbstractCacheEngine;
+
+/**
+ * 测试用的内存缓存引擎,setDown(true)之后所有调用都抛出异常,用来模拟redis不可用.
+ * 值不序列化,过期时间只记录不生效.
+ *
+ * @version 1.00 2015-8-24
+ * @since 1.6
+ */
+class FlakyCacheEngine extends AbstractCacheEngine {
+
+    private final Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+    private final Map<String, Integer> ttls = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+    private final AtomicInteger writes = new AtomicInteger();
+    private volatile boolean down = false;
+
+    void setDown(boolean down) {
+        this.down = down;
+    }
+
+    /**
+     * @return 不检查是否可用,直接读取保存的值.
+     */
+    Object peek(String key) {
+        return values.get(key);
+    }
+
+    Integer ttl(String key) {
+        return ttls.get(key);
+    }
+
+    /**
+     * @return 成功的写入,删除和过期时间修改的次数.
+     */
+    int getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    protected void doInit(Properties prop, ServletContext servletContext) {
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    public boolean containsKey(String key) {
+        check();
+        return values.containsKey(key);
+    }
+
+    public void put(String key, Object value) {
+        check();
+        values.put(key, value);
+        ttls.remove(key);
+        writes.incrementAndGet();
+    }
+
+    public void put(String key, Object value, int seconds) {
+        check();
+        values.put(key, value);
+        ttls.put(key, seconds);
+        writes.incrementAndGet();
+    }
+
+    public void put(String key, Object value, String[] group) {
+        put(key, value);
+        synchronized (groups) {
+            for (String name : group) {
+                Set<String> members = groups.get(name);
+                if (members == null) {
+                    members = new LinkedHashSet<String>();
+                    groups.put(name, members);
+                }
+                members.add(key);
+            }
+        }
+    }
+
+    public boolean expire(String key, int seconds) {
+        check();
+        if (!values.containsKey(key)) {
+            return false;
+        }
+        if (seconds <= 0) {
+            values.remove(key);
+        } else {
+            ttls.put(key, seconds);
+        }
+        writes.incrementAndGet();
+        return true;
+    }
+
+    public void del(String key) {
+        check();
+        values.remove(key);
+        ttls.remove(key);
+        writes.incrementAndGet();
+    }
+
+    public void del(String[] keys) {
+        for (String key : keys) {
+            del(key);
+        }
+    }
+
+    public void remove(String key) {
+        del(key);
+    }
+
+    public Object get(String key) {
+        check();
+        return values.get(key);
+    }
+
+    public Map<String, Object> get(String[] keys) {
+        check();
+        Map<String, Object> found = new HashMap<String, Object>();
+        for (String key : keys) {
+            Object value = values.get(key);
+            if (value != null) {
+                found.put(key, value);
+            }
+        }
+        return found;
+    }
+
+    public long increase(String key, long magnitude) {
+        check();
+        synchronized (values) {
+            Object value = values.get(key);
+            long result = (value == null ? 0 : (Long) value) + magnitude;
+            values.put(key, result);
+            return result;
+        }
+    }
+
+    public long decrease(String key, long magnitude) {
+        return increase(key, -magnitude);
+    }
+
+    public void flushGroup(String group) {
+        check();
+        Set<String> members;
+        synchronized (groups) {
+            members = groups.remove(group);
+        }
+        if (members != null) {
+            for (String key : members) {
+                del(key);
+            }
+        }
+    }
+
+    private void check() {
+        if (down) {
+            throw new IllegalStateException("Cache is down.");
+        }
+    }
+}
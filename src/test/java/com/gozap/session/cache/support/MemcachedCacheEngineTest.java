@@ -0,0 +1,172 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gozap.session.cache.support.memcached.MemcachedFuture;
+
+/**
+ * 以MemcachedStandIn代替memcached,检查批量请求以静默命令加一个NOOP写出,以及计数器的语义.
+ * 只使用一个连接,服务器记录的请求顺序就是引擎写出的顺序.
+ *
+ * @version 1.00 2015-8-23
+ * @since 1.6
+ */
+public class MemcachedCacheEngineTest {
+
+    private MemcachedStandIn server;
+    private MemcachedCacheEngine engine;
+
+    @Before
+    public void startEngine() throws Exception {
+        server = new MemcachedStandIn();
+        Properties properties = new Properties();
+        properties.setProperty(MemcachedCacheEngine.MEMCACHED_HOST, "127.0.0.1");
+        properties.setProperty(MemcachedCacheEngine.MEMCACHED_PORT, String.valueOf(server.getPort()));
+        properties.setProperty(MemcachedCacheEngine.MEMCACHED_CONNECTIONS, "1");
+        engine = new MemcachedCacheEngine();
+        engine.init(properties, null);
+        engine.start();
+    }
+
+    @After
+    public void stopEngine() {
+        engine.stop();
+        server.close();
+    }
+
+    @Test
+    public void multiGetSendsQuietReadsAndOneNoop() {
+        engine.put("a", "1");
+        engine.put("c", "3");
+        server.reset();
+
+        Map<String, Object> values = engine.get(new String[] {"a", "b", "c"});
+
+        assertEquals(2, values.size());
+        assertEquals("1", values.get("a"));
+        assertEquals("3", values.get("c"));
+        assertFalse(values.containsKey("b"));
+        assertOpcodes(MemcachedFuture.GETQ, MemcachedFuture.GETQ, MemcachedFuture.GETQ, MemcachedFuture.NOOP);
+        // 两个命中和NOOP,未命中的b没有回复
+        assertEquals(3, server.getReplies());
+    }
+
+    @Test
+    public void synchronizeSendsQuietWritesAndOneNoop() {
+        engine.synchronize("s.hd", "header", "s.at", "attributes", 60);
+
+        assertOpcodes(MemcachedFuture.SETQ, MemcachedFuture.SETQ, MemcachedFuture.NOOP);
+        assertEquals(1, server.getReplies());
+        assertEquals("header", engine.get("s.hd"));
+        assertEquals("attributes", engine.get("s.at"));
+    }
+
+    @Test
+    public void synchronizeTouchesUnchangedAttributes() {
+        engine.synchronize("s.hd", "header", "missing.at", null, 60);
+
+        assertOpcodes(MemcachedFuture.TOUCH, MemcachedFuture.SETQ, MemcachedFuture.NOOP);
+        // TOUCH不是静默请求,未找到的属性也只是一个回复
+        assertEquals(2, server.getReplies());
+        assertEquals("header", engine.get("s.hd"));
+    }
+
+    @Test
+    public void groupWritesAreBatchedAndFlushed() {
+        engine.put("k1", "v1", new String[] {"g"});
+        assertOpcodes(MemcachedFuture.SETQ, MemcachedFuture.ADDQ, MemcachedFuture.APPENDQ, MemcachedFuture.NOOP);
+        assertEquals(1, server.getReplies());
+
+        server.reset();
+        engine.put("k2", "v2", new String[] {"g"});
+        // 组已经存在,ADDQ返回错误
+        assertEquals(2, server.getReplies());
+
+        server.reset();
+        engine.flushGroup("g");
+        assertOpcodes(MemcachedFuture.GET, MemcachedFuture.DELETEQ, MemcachedFuture.DELETEQ,
+                MemcachedFuture.DELETEQ, MemcachedFuture.NOOP);
+        assertNull(engine.get("k1"));
+        assertNull(engine.get("k2"));
+        assertFalse(engine.containsKey("group-g"));
+    }
+
+    @Test
+    public void multiDeleteSendsQuietDeletesAndOneNoop() {
+        engine.put("a", "1");
+        server.reset();
+
+        engine.del(new String[] {"a", "b"});
+
+        assertOpcodes(MemcachedFuture.DELETEQ, MemcachedFuture.DELETEQ, MemcachedFuture.NOOP);
+        // 删除不存在的b返回错误,a没有回复
+        assertEquals(2, server.getReplies());
+        assertFalse(engine.containsKey("a"));
+    }
+
+    @Test
+    public void countersAcceptSignedDeltas() {
+        assertEquals(5, engine.increase("n", 5));
+        assertEquals(8, engine.increase("n", 3));
+        server.reset();
+        assertEquals(6, engine.increase("n", -2));
+        assertOpcodes(MemcachedFuture.DECREMENT);
+        server.reset();
+        assertEquals(10, engine.decrease("n", -4));
+        assertOpcodes(MemcachedFuture.INCREMENT);
+    }
+
+    @Test
+    public void decrementStopsAtZero() {
+        assertEquals(3, engine.increase("n", 3));
+        assertEquals(0, engine.decrease("n", 10));
+        assertEquals(0, engine.decrease("n", 1));
+        // 不存在的key减少时以0作为初始值
+        assertEquals(0, engine.decrease("m", 4));
+        assertEquals(2, engine.increase("m", 2));
+    }
+
+    @Test
+    public void minValueDeltaIsRejected() {
+        try {
+            engine.increase("n", Long.MIN_VALUE);
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        try {
+            engine.decrease("n", Long.MIN_VALUE);
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        assertTrue(server.getOpcodes().isEmpty());
+    }
+
+    @Test
+    public void expireTouchesOrDeletes() {
+        engine.put("k", "v");
+        assertTrue(engine.expire("k", 60));
+        assertFalse(engine.expire("missing", 60));
+        assertTrue(engine.expire("k", 0));
+        assertNull(engine.get("k"));
+    }
+
+    private void assertOpcodes(Integer... expected) {
+        List<Integer> opcodes = server.getOpcodes();
+        assertEquals(Arrays.asList(expected), opcodes);
+    }
+}
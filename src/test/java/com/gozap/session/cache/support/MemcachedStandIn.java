@@ -0,0 +1,342 @@
+package com.gozap.session.cache.support;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gozap.session.cache.support.memcached.MemcachedFuture;
+
+/**
+ * 测试用的memcached二进制协议服务器,只实现MemcachedCacheEngine用到的命令:
+ * GET,SET,ADD,DELETE,INCREMENT,DECREMENT,APPEND,TOUCH,NOOP以及它们的静默版本.
+ * 与memcached一样,静默请求成功(GETQ未命中)时不回复,计数器以十进制字符串保存,减少时不小于0.
+ * 每个连接一个线程,记录收到的请求和发出的回复数量,供测试检查请求是否合并.
+ *
+ * @version 1.00 2015-8-23
+ * @since 1.6
+ */
+final class MemcachedStandIn {
+
+    private static final int HEADER_LENGTH = 24;
+    private static final byte RESPONSE_MAGIC = (byte) 0x81;
+    private static final int STATUS_NOT_STORED = 5;
+    private static final int STATUS_NON_NUMERIC = 6;
+    private static final int STATUS_UNKNOWN_COMMAND = 0x81;
+    private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ServerSocket server;
+    private final Map<String, Item> items = new HashMap<String, Item>();
+    private final List<Integer> opcodes = new CopyOnWriteArrayList<Integer>();
+    private final AtomicInteger replies = new AtomicInteger();
+    private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+    private volatile boolean running = true;
+
+    MemcachedStandIn() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "memcached-stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return 按收到的顺序排列的请求命令.
+     */
+    List<Integer> getOpcodes() {
+        return new ArrayList<Integer>(opcodes);
+    }
+
+    int getReplies() {
+        return replies.get();
+    }
+
+    /**
+     * 清空记录的请求和回复数量,保留已经保存的值.
+     */
+    void reset() {
+        opcodes.clear();
+        replies.set(0);
+    }
+
+    void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // 已经关闭
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = server.accept();
+                connections.add(socket);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "memcached-stand-in-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] header = new byte[HEADER_LENGTH];
+            while (running) {
+                in.readFully(header);
+                ByteBuffer view = ByteBuffer.wrap(header);
+                int opcode = view.get(1) & 0xff;
+                int keyLength = view.getShort(2) & 0xffff;
+                int extrasLength = view.get(4) & 0xff;
+                int bodyLength = view.getInt(8);
+                int opaque = view.getInt(12);
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                ByteBuffer extras = ByteBuffer.wrap(body, 0, extrasLength);
+                String key = new String(body, extrasLength, keyLength, UTF8);
+                byte[] value = new byte[bodyLength - extrasLength - keyLength];
+                System.arraycopy(body, extrasLength + keyLength, value, 0, value.length);
+                opcodes.add(opcode);
+
+                Reply reply = execute(opcode, key, extras, value);
+                boolean quiet = isQuiet(opcode);
+                boolean silent = quiet && (opcode == MemcachedFuture.GETQ
+                        ? reply.status == MemcachedFuture.STATUS_KEY_NOT_FOUND
+                        : reply.status == MemcachedFuture.STATUS_OK);
+                if (!silent) {
+                    write(out, opcode, opaque, reply);
+                    replies.incrementAndGet();
+                }
+                // 与memcached一样,静默请求的回复留在缓冲区中直到下一个非静默请求
+                if (!quiet) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // 客户端关闭了连接
+        } catch (IOException e) {
+            // 服务器已经关闭
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private Reply execute(int opcode, String key, ByteBuffer extras, byte[] value) {
+        long now = System.currentTimeMillis();
+        synchronized (items) {
+            Item item = items.get(key);
+            if (item != null && item.expireAt > 0 && item.expireAt <= now) {
+                items.remove(key);
+                item = null;
+            }
+            switch (opcode) {
+            case MemcachedFuture.GET:
+            case MemcachedFuture.GETQ:
+                if (item == null) {
+                    return Reply.error(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+                }
+                return new Reply(MemcachedFuture.STATUS_OK, new byte[4], item.value);
+            case MemcachedFuture.SET:
+            case MemcachedFuture.SETQ:
+            case MemcachedFuture.ADD:
+            case MemcachedFuture.ADDQ:
+                extras.getInt();
+                int exptime = extras.getInt();
+                if (item != null && (opcode == MemcachedFuture.ADD || opcode == MemcachedFuture.ADDQ)) {
+                    return Reply.error(MemcachedFuture.STATUS_KEY_EXISTS);
+                }
+                items.put(key, new Item(value, expireAt(exptime, now)));
+                return Reply.OK;
+            case MemcachedFuture.DELETE:
+            case MemcachedFuture.DELETEQ:
+                if (item == null) {
+                    return Reply.error(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+                }
+                items.remove(key);
+                return Reply.OK;
+            case MemcachedFuture.APPEND:
+            case MemcachedFuture.APPENDQ:
+                if (item == null) {
+                    return Reply.error(STATUS_NOT_STORED);
+                }
+                byte[] appended = new byte[item.value.length + value.length];
+                System.arraycopy(item.value, 0, appended, 0, item.value.length);
+                System.arraycopy(value, 0, appended, item.value.length, value.length);
+                item.value = appended;
+                return Reply.OK;
+            case MemcachedFuture.TOUCH:
+                if (item == null) {
+                    return Reply.error(MemcachedFuture.STATUS_KEY_NOT_FOUND);
+                }
+                item.expireAt = expireAt(extras.getInt(), now);
+                return Reply.OK;
+            case MemcachedFuture.INCREMENT:
+            case MemcachedFuture.DECREMENT:
+                return counter(opcode, key, item, extras, now);
+            case MemcachedFuture.NOOP:
+                return Reply.OK;
+            default:
+                return Reply.error(STATUS_UNKNOWN_COMMAND);
+            }
+        }
+    }
+
+    /**
+     * 计数器是无符号的64位整数,增加时溢出回绕,减少时不小于0.
+     */
+    private Reply counter(int opcode, String key, Item item, ByteBuffer extras, long now) {
+        long delta = extras.getLong();
+        long initial = extras.getLong();
+        int exptime = extras.getInt();
+        long counter;
+        if (item == null) {
+            counter = initial;
+            items.put(key, new Item(encode(counter), expireAt(exptime, now)));
+        } else {
+            try {
+                counter = parse(new String(item.value, UTF8));
+            } catch (NumberFormatException e) {
+                return Reply.error(STATUS_NON_NUMERIC);
+            }
+            if (opcode == MemcachedFuture.INCREMENT) {
+                counter += delta;
+            } else {
+                // 无符号比较
+                counter = counter + Long.MIN_VALUE < delta + Long.MIN_VALUE ? 0 : counter - delta;
+            }
+            item.value = encode(counter);
+        }
+        return new Reply(MemcachedFuture.STATUS_OK, null, ByteBuffer.allocate(8).putLong(counter).array());
+    }
+
+    private static boolean isQuiet(int opcode) {
+        return opcode == MemcachedFuture.GETQ || opcode == MemcachedFuture.SETQ || opcode == MemcachedFuture.ADDQ
+                || opcode == MemcachedFuture.DELETEQ || opcode == MemcachedFuture.APPENDQ;
+    }
+
+    private static long expireAt(int exptime, long now) {
+        if (exptime == 0) {
+            return 0;
+        }
+        if (exptime > MAX_RELATIVE_EXPIRATION) {
+            return exptime * 1000L;
+        }
+        return now + exptime * 1000L;
+    }
+
+    private static byte[] encode(long counter) {
+        // 以无符号十进制保存
+        String text = counter >= 0 ? Long.toString(counter)
+                : Long.toString((counter >>> 1) / 5) + Long.toString(counter - ((counter >>> 1) / 5) * 10);
+        return text.getBytes(UTF8);
+    }
+
+    private static long parse(String text) {
+        if (text.length() < 19) {
+            return Long.parseLong(text);
+        }
+        long head = Long.parseLong(text.substring(0, text.length() - 1));
+        int last = Character.digit(text.charAt(text.length() - 1), 10);
+        if (last < 0) {
+            throw new NumberFormatException(text);
+        }
+        return head * 10 + last;
+    }
+
+    private static void write(DataOutputStream out, int opcode, int opaque, Reply reply) throws IOException {
+        int extrasLength = reply.extras == null ? 0 : reply.extras.length;
+        int valueLength = reply.value == null ? 0 : reply.value.length;
+        out.writeByte(RESPONSE_MAGIC);
+        out.writeByte(opcode);
+        out.writeShort(0);
+        out.writeByte(extrasLength);
+        out.writeByte(0);
+        out.writeShort(reply.status);
+        out.writeInt(extrasLength + valueLength);
+        out.writeInt(opaque);
+        out.writeLong(0L);
+        if (extrasLength > 0) {
+            out.write(reply.extras);
+        }
+        if (valueLength > 0) {
+            out.write(reply.value);
+        }
+    }
+
+    /**
+     * 保存的值和过期的毫秒时间,0表示不过期.
+     */
+    private static final class Item {
+
+        private byte[] value;
+        private long expireAt;
+
+        Item(byte[] value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 一个请求的回复.
+     */
+    private static final class Reply {
+
+        private static final Reply OK = new Reply(MemcachedFuture.STATUS_OK, null, null);
+
+        private final int status;
+        private final byte[] extras;
+        private final byte[] value;
+
+        Reply(int status, byte[] extras, byte[] value) {
+            this.status = status;
+            this.extras = extras;
+            this.value = value;
+        }
+
+        static Reply error(int status) {
+            return new Reply(status, null, ("Error " + status).getBytes(UTF8));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 以FlakyCacheEngine代替redis,检查本地值的保存时间不超过远端的过期时间.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class NearCacheEngineTest {
+
+    private TtlFlakyCacheEngine redis;
+    private NearCacheEngine engine;
+
+    @Before
+    public void startEngine() {
+        redis = new TtlFlakyCacheEngine();
+        Properties properties = new Properties();
+        properties.setProperty(NearCacheEngine.NEAR_CACHE_MAX_SIZE, "100");
+        properties.setProperty(NearCacheEngine.NEAR_CACHE_TTL, "60");
+        engine = new NearCacheEngine(redis);
+        engine.init(properties, null);
+        engine.start();
+    }
+
+    @After
+    public void stopEngine() {
+        engine.stop();
+    }
+
+    @Test
+    public void loadedValueIsCappedAtRemoteTtl() throws Exception {
+        redis.put("k", "v1");
+        redis.setRemaining("k", 100L);
+        assertEquals("v1", engine.get("k"));
+        // 其他节点的写入,没有通知
+        redis.put("k", "v2");
+        assertEquals("v1", engine.get("k"));
+
+        Thread.sleep(200);
+        assertEquals("v2", engine.get("k"));
+    }
+
+    @Test
+    public void loadedValueWithoutRemoteTtlKeepsNearCacheTtl() throws Exception {
+        redis.put("k", "v1");
+        assertEquals("v1", engine.get(new String[] {"k"}).get("k"));
+        redis.put("k", "v2");
+
+        Thread.sleep(200);
+        assertEquals("v1", engine.get("k"));
+        assertEquals(1, engine.getMisses());
+    }
+
+    @Test
+    public void expireShortensLocalValue() throws Exception {
+        engine.put("k", "v1", 60);
+        assertTrue(engine.expire("k", 1));
+        redis.put("k", "v2");
+        assertEquals("v1", engine.get("k"));
+
+        Thread.sleep(1100);
+        assertEquals("v2", engine.get("k"));
+    }
+}
@@ -0,0 +1,241 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 在本机的回环地址上以独立的JVM启动多个PeerCacheEngine节点(见PeerProcess),
+ * 检查复制,同步复制的读己之写,计数器,节点离开以及新节点补齐数据.
+ *
+ * @version 1.00 2015-8-22
+ * @since 1.6
+ */
+public class PeerCacheEngineLoopbackTest {
+
+    private static final long WAIT_MILLIS = 10000L;
+
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private int[] ports;
+
+    @After
+    public void stopPeers() {
+        for (Peer peer : peers) {
+            peer.destroy();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void replicatesWritesAndDeletes() throws Exception {
+        String seeds = seeds(3);
+        Peer a = start(0, seeds, "async");
+        Peer b = start(1, seeds, "async");
+        Peer c = start(2, seeds, "async");
+        awaitMembers(3, a, b, c);
+
+        assertEquals("ok", a.call("put {s1}.hd hello"));
+        awaitValue("hello", "get {s1}.hd", b, c);
+        assertEquals("ok", b.call("del {s1}.hd"));
+        awaitValue("null", "get {s1}.hd", a, c);
+
+        assertEquals("ok", a.call("bulk k 500"));
+        awaitValue("500", "count k 500", b, c);
+    }
+
+    @Test(timeout = 60000)
+    public void syncReplicationReadsOwnWrites() throws Exception {
+        String seeds = seeds(2);
+        Peer a = start(0, seeds, "sync");
+        Peer b = start(1, seeds, "sync");
+        awaitMembers(2, a, b);
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals("ok", a.call("put x" + i + " v" + i));
+            assertEquals("v" + i, b.call("get x" + i));
+        }
+        assertEquals("ok", a.call("putx t v 30"));
+        assertEquals("true", b.call("expire t 60"));
+        assertEquals("v", a.call("get t"));
+    }
+
+    @Test(timeout = 60000)
+    public void countersAreAppliedOnce() throws Exception {
+        String seeds = seeds(3);
+        final Peer a = start(0, seeds, "async");
+        final Peer b = start(1, seeds, "async");
+        final Peer c = start(2, seeds, "async");
+        awaitMembers(3, a, b, c);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final Peer peer : new Peer[] {a, b, c}) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return peer.call("incr cnt 300");
+                    }
+                }));
+            }
+            long max = 0;
+            for (Future<String> result : results) {
+                max = Math.max(max, Long.parseLong(result.get()));
+            }
+            assertEquals(900, max);
+        } finally {
+            executor.shutdown();
+        }
+        awaitValue("900", "get cnt", a, b, c);
+    }
+
+    @Test(timeout = 60000)
+    public void rejoiningNodeCatchesUp() throws Exception {
+        String seeds = seeds(3);
+        Peer a = start(0, seeds, "async");
+        Peer b = start(1, seeds, "async");
+        Peer c = start(2, seeds, "async");
+        awaitMembers(3, a, b, c);
+
+        assertEquals("ok", a.call("bulk k 300"));
+        awaitValue("300", "count k 300", c);
+        assertEquals("bye", c.call("quit"));
+        c.destroy();
+        awaitMembers(2, a, b);
+
+        assertEquals("ok", b.call("bulk m 200"));
+        assertEquals("ok", a.call("del k0"));
+        Peer joined = start(2, seeds, "async");
+        awaitValue("200", "count m 200", joined);
+        awaitValue("299", "count k 300", joined);
+        assertEquals("null", joined.call("get k0"));
+    }
+
+    private Peer start(int index, String seeds, String replication) throws IOException {
+        Peer peer = new Peer(ports[index], seeds, replication);
+        peers.add(peer);
+        return peer;
+    }
+
+    /**
+     * 选择n个空闲的端口,返回逗号分隔的种子节点.
+     */
+    private String seeds(int n) throws IOException {
+        ports = new int[n];
+        StringBuilder seeds = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            ServerSocket socket = new ServerSocket(0);
+            try {
+                ports[i] = socket.getLocalPort();
+            } finally {
+                socket.close();
+            }
+            if (seeds.length() > 0) {
+                seeds.append(',');
+            }
+            seeds.append("127.0.0.1:").append(ports[i]);
+        }
+        return seeds.toString();
+    }
+
+    private static void awaitMembers(int count, Peer... nodes) throws Exception {
+        awaitValue(String.valueOf(count), "members", nodes);
+    }
+
+    /**
+     * 复制是异步的,在每个节点上重复执行命令直到回复等于期望的值.
+     */
+    private static void awaitValue(String expected, String command, Peer... nodes) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        for (Peer node : nodes) {
+            String reply = node.call(command);
+            while (!expected.equals(reply) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                reply = node.call(command);
+            }
+            assertEquals(command + " on " + node, expected, reply);
+        }
+    }
+
+    /**
+     * 一个PeerProcess子进程.
+     */
+    private static final class Peer {
+
+        private final int port;
+        private final Process process;
+        private final Writer in;
+        private final BufferedReader out;
+
+        Peer(int port, String seeds, String replication) throws IOException {
+            this.port = port;
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+            process = new ProcessBuilder(java, "-cp", classpath,
+                    "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog",
+                    PeerProcess.class.getName(), String.valueOf(port), seeds, replication).start();
+            drain(process.getErrorStream());
+            in = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            out = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String ready = out.readLine();
+            assertTrue("peer on port " + port + " did not start: " + ready, "ready".equals(ready));
+        }
+
+        synchronized String call(String command) throws IOException {
+            in.write(command);
+            in.write('\n');
+            in.flush();
+            String reply = out.readLine();
+            if (reply == null) {
+                throw new IOException("peer on port " + port + " exited.");
+            }
+            return reply;
+        }
+
+        void destroy() {
+            process.destroy();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void drain(final InputStream stream) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        while (stream.read(buffer) >= 0) {
+                            // 丢弃子进程的错误输出
+                        }
+                    } catch (IOException e) {
+                        // 子进程已经退出
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public String toString() {
+            return "127.0.0.1:" + port;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.gozap.session.cache.support;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+/**
+ * 在单独的JVM中运行一个PeerCacheEngine,从标准输入逐行读取命令,每个命令在标准输出回复一行,
+ * 供PeerCacheEngineLoopbackTest在本机启动多个节点.
+ * 参数:监听端口,种子节点,复制方式(async或sync).
+ *
+ * @version 1.00 2015-8-22
+ * @since 1.6
+ */
+public class PeerProcess {
+
+    public static void main(String[] args) throws Exception {
+        Properties prop = new Properties();
+        prop.setProperty(PeerCacheEngine.PEER_PORT, args[0]);
+        prop.setProperty(PeerCacheEngine.PEER_SEEDS, args[1]);
+        prop.setProperty(PeerCacheEngine.PEER_REPLICATION, args[2]);
+        prop.setProperty(PeerCacheEngine.PEER_GOSSIP_INTERVAL, "200");
+        prop.setProperty(PeerCacheEngine.PEER_FAILURE_TIMEOUT, "1500");
+        PeerCacheEngine engine = new PeerCacheEngine();
+        engine.init(prop, null);
+        engine.start();
+        System.out.println("ready");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] command = line.split(" ");
+            Object reply;
+            try {
+                reply = execute(engine, command);
+            } catch (RuntimeException e) {
+                reply = "ERR " + e;
+            }
+            System.out.println(reply);
+            if ("quit".equals(command[0])) {
+                return;
+            }
+        }
+    }
+
+    private static Object execute(PeerCacheEngine engine, String[] command) {
+        String name = command[0];
+        if ("put".equals(name)) {
+            engine.put(command[1], command[2]);
+            return "ok";
+        } else if ("putx".equals(name)) {
+            engine.put(command[1], command[2], Integer.parseInt(command[3]));
+            return "ok";
+        } else if ("get".equals(name)) {
+            return engine.get(command[1]);
+        } else if ("del".equals(name)) {
+            engine.del(command[1]);
+            return "ok";
+        } else if ("expire".equals(name)) {
+            return engine.expire(command[1], Integer.parseInt(command[2]));
+        } else if ("incr".equals(name)) {
+            long value = 0;
+            for (int i = Integer.parseInt(command[2]); i > 0; i--) {
+                value = engine.increase(command[1], 1);
+            }
+            return value;
+        } else if ("bulk".equals(name)) {
+            for (int i = Integer.parseInt(command[2]) - 1; i >= 0; i--) {
+                engine.put(command[1] + i, "v" + i);
+            }
+            return "ok";
+        } else if ("count".equals(name)) {
+            int count = 0;
+            for (int i = Integer.parseInt(command[2]) - 1; i >= 0; i--) {
+                if (engine.containsKey(command[1] + i)) {
+                    count++;
+                }
+            }
+            return count;
+        } else if ("members".equals(name)) {
+            return engine.getNode().getAliveMembers().size();
+        } else if ("quit".equals(name)) {
+            engine.stop();
+            return "bye";
+        }
+        return "ERR unknown command " + name;
+    }
+}
@@ -0,0 +1,146 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.util.SafeEncoder;
+
+import com.gozap.session.cache.support.resp.RespConnection;
+import com.gozap.session.cache.support.resp.RespException;
+import com.gozap.session.cache.support.resp.RespFuture;
+import com.gozap.session.util.ByteBufferPool;
+
+/**
+ * 以RespStandIn代替redis,检查RespConnection的管道,大于缓冲区的值的分段读写,
+ * 以及回复超时时断开连接并结束所有等待的命令.
+ *
+ * @version 1.00 2015-8-25
+ * @since 1.6
+ */
+public class RespConnectionTest {
+
+    private static final int TIMEOUT = 300;
+    // 很小的缓冲区,命令和回复都需要分段
+    private static final int BUFFER_SIZE = 64;
+
+    private RespStandIn server;
+    private RespConnection connection;
+
+    @Before
+    public void connect() throws Exception {
+        server = new RespStandIn();
+        connection = new RespConnection("127.0.0.1", server.getPort(), TIMEOUT,
+                new ByteBufferPool(BUFFER_SIZE, 2));
+    }
+
+    @After
+    public void close() {
+        connection.close();
+        server.close();
+    }
+
+    @Test
+    public void pipelinedRepliesMatchCommands() {
+        List<RespFuture> futures = new ArrayList<RespFuture>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(connection.send(bytes("SET"), bytes("k" + i), bytes("v" + i)));
+            futures.add(connection.send(bytes("GET"), bytes("k" + i)));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("OK", futures.get(i * 2).getReply(TIMEOUT));
+            assertArrayEquals(bytes("v" + i), (byte[]) futures.get(i * 2 + 1).getReply(TIMEOUT));
+        }
+    }
+
+    @Test
+    public void valuesLargerThanBufferRoundTrip() {
+        byte[] large = new byte[BUFFER_SIZE * 100 + 7];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        assertEquals("OK", connection.send(bytes("SET"), bytes("a"), large).getReply(TIMEOUT));
+        assertEquals("OK", connection.send(bytes("SET"), bytes("b"), bytes("small")).getReply(TIMEOUT));
+
+        List<?> values = (List<?>) connection.send(bytes("MGET"), bytes("a"), bytes("missing"), bytes("b"))
+                .getReply(TIMEOUT);
+        assertEquals(3, values.size());
+        assertArrayEquals(large, (byte[]) values.get(0));
+        assertNull(values.get(1));
+        assertArrayEquals(bytes("small"), (byte[]) values.get(2));
+        // 缓冲区恢复之后继续使用
+        assertEquals("PONG", connection.send(bytes("PING")).getReply(TIMEOUT));
+    }
+
+    @Test
+    public void errorReplyFailsOnlyItsCommand() {
+        try {
+            connection.send(bytes("NOPE")).getReply(TIMEOUT);
+            fail();
+        } catch (RespException e) {
+            assertTrue(e.getMessage().startsWith("ERR"));
+        }
+        assertFalse(connection.isBroken());
+        assertEquals(Long.valueOf(0), connection.send(bytes("DEL"), bytes("x")).getReply(TIMEOUT));
+    }
+
+    @Test
+    public void pendingCommandsFailAfterTimeout() throws Exception {
+        assertEquals("PONG", connection.send(bytes("PING")).getReply(TIMEOUT));
+        server.setPaused(true);
+        RespFuture first = connection.send(bytes("GET"), bytes("k"));
+        RespFuture second = connection.send(bytes("GET"), bytes("k"));
+
+        long start = System.currentTimeMillis();
+        try {
+            // 没有期限的get也会在连接超时后结束
+            first.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RespException);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("waited " + elapsed + "ms", elapsed >= TIMEOUT / 2 && elapsed < TIMEOUT * 10);
+        try {
+            second.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RespException);
+        }
+        assertTrue(connection.isBroken());
+        try {
+            connection.send(bytes("PING")).getReply(TIMEOUT);
+            fail();
+        } catch (RespException e) {
+            // 期望的异常
+        }
+    }
+
+    @Test
+    public void closeFailsPendingCommands() throws Exception {
+        server.setPaused(true);
+        RespFuture future = connection.send(bytes("GET"), bytes("k"));
+        connection.close();
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RespException);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return SafeEncoder.encode(value);
+    }
+}
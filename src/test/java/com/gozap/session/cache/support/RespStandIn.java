@@ -0,0 +1,259 @@
+package com.gozap.session.cache.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的RESP服务器,只实现GET,SET,MGET,DEL,PING,SCRIPT LOAD和EVALSHA,其他命令回复错误.
+ * setPaused(true)之后不再回复请求,用来模拟没有响应的redis.
+ * EVALSHA不执行脚本,只记录第一个key并回复1;没有加载过的脚本回复NOSCRIPT,
+ * 第一个key在failEvalKey设置的key中时回复错误.
+ *
+ * @version 1.00 2015-8-25
+ * @since 1.6
+ */
+final class RespStandIn {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ServerSocket server;
+    private final Map<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+    private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+    private volatile boolean running = true;
+    private volatile boolean paused = false;
+    private final Set<String> scripts =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> failingEvalKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<String> evalKeys = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger scriptLoads = new AtomicInteger();
+
+    RespStandIn() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "resp-stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * 之后第一个key为key的EVALSHA回复错误.
+     */
+    void failEvalKey(String key) {
+        failingEvalKeys.add(key);
+    }
+
+    /**
+     * 清空加载过的脚本,与SCRIPT FLUSH一样.
+     */
+    void flushScripts() {
+        scripts.clear();
+    }
+
+    /**
+     * @return 执行成功的EVALSHA的第一个key,按执行顺序.
+     */
+    List<String> getEvalKeys() {
+        return evalKeys;
+    }
+
+    /**
+     * @return SCRIPT LOAD的次数.
+     */
+    int getScriptLoads() {
+        return scriptLoads.get();
+    }
+
+    void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // 已经关闭
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = server.accept();
+                connections.add(socket);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "resp-stand-in-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (running) {
+                List<byte[]> command = readCommand(in);
+                while (paused && running) {
+                    Thread.sleep(10);
+                }
+                execute(command, out);
+                // 与redis一样,管道中的请求读完之后才写出回复
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // 客户端关闭了连接
+        } catch (IOException e) {
+            // 服务器已经关闭
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 已经关闭
+            }
+        }
+    }
+
+    private void execute(List<byte[]> command, OutputStream out) throws IOException {
+        String name = new String(command.get(0), UTF8).toUpperCase();
+        if ("PING".equals(name)) {
+            writeLine(out, '+', "PONG");
+        } else if ("SET".equals(name)) {
+            values.put(key(command, 1), command.get(2));
+            writeLine(out, '+', "OK");
+        } else if ("GET".equals(name)) {
+            writeBulk(out, values.get(key(command, 1)));
+        } else if ("MGET".equals(name)) {
+            writeLine(out, '*', String.valueOf(command.size() - 1));
+            for (int i = 1; i < command.size(); i++) {
+                writeBulk(out, values.get(key(command, i)));
+            }
+        } else if ("DEL".equals(name)) {
+            long removed = 0;
+            for (int i = 1; i < command.size(); i++) {
+                if (values.remove(key(command, i)) != null) {
+                    removed++;
+                }
+            }
+            writeLine(out, ':', String.valueOf(removed));
+        } else if ("SCRIPT".equals(name) && "LOAD".equalsIgnoreCase(key(command, 1))) {
+            String sha = new RedisScript(key(command, 2)).getSha();
+            scripts.add(sha);
+            scriptLoads.incrementAndGet();
+            writeBulk(out, sha.getBytes(UTF8));
+        } else if ("EVALSHA".equals(name)) {
+            String key = key(command, 3);
+            if (!scripts.contains(key(command, 1))) {
+                writeLine(out, '-', "NOSCRIPT No matching script. Please use EVAL.");
+            } else if (failingEvalKeys.contains(key)) {
+                writeLine(out, '-', "ERR failed on " + key);
+            } else {
+                evalKeys.add(key);
+                writeLine(out, ':', "1");
+            }
+        } else {
+            writeLine(out, '-', "ERR unknown command '" + name + "'");
+        }
+    }
+
+    private static String key(List<byte[]> command, int index) {
+        return new String(command.get(index), UTF8);
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header.charAt(0) != '*') {
+            throw new IOException("Not a command: " + header);
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> command = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            String length = readLine(in);
+            byte[] arg = new byte[Integer.parseInt(length.substring(1))];
+            int offset = 0;
+            while (offset < arg.length) {
+                int read = in.read(arg, offset, arg.length - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            readLine(in);
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            line.append((char) b);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    private static void writeLine(OutputStream out, char type, String line) throws IOException {
+        out.write(type);
+        out.write(line.getBytes(UTF8));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            writeLine(out, '$', "-1");
+            return;
+        }
+        writeLine(out, '$', String.valueOf(value.length));
+        out.write(value);
+        out.write('\r');
+        out.write('\n');
+    }
+}
@@ -0,0 +1,179 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import com.gozap.session.util.LatencyHistogram;
+
+/**
+ * 以RespStandIn代替redis,检查合并的会话写入按批发送,一批中失败的写入只影响自己,
+ * 整批发送失败时唤醒所有等待的写入线程,以及集群引擎不合并写入.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class SessionWriteCoalescerTest {
+
+    private static final int WRITES = 32;
+    private static final int TIMEOUT = 500;
+
+    private RespStandIn server;
+    private RedisCacheEngine engine;
+    private ExecutorService writers;
+
+    @Before
+    public void startEngine() throws Exception {
+        server = new RespStandIn();
+        engine = new RedisCacheEngine();
+        engine.setJedisPool(new JedisPool(new JedisPoolConfig(), "127.0.0.1", server.getPort(), TIMEOUT));
+        Properties properties = new Properties();
+        properties.setProperty(RedisCacheEngine.WRITE_COALESCE_WINDOW, "20000");
+        properties.setProperty(RedisCacheEngine.WRITE_COALESCE_BATCH_SIZE, "64");
+        engine.init(properties, null);
+        engine.start();
+        writers = Executors.newFixedThreadPool(WRITES);
+    }
+
+    @After
+    public void stopEngine() {
+        writers.shutdownNow();
+        engine.stop();
+        server.close();
+    }
+
+    @Test
+    public void concurrentWritesShareBatches() throws Exception {
+        List<Future<Void>> futures = writeConcurrently("s");
+        for (Future<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(WRITES, server.getEvalKeys().size());
+        assertTrue(batchCount() < WRITES);
+        // 没有退回到逐个执行
+        assertNull(engine.getMetrics().getCommand("EVALSHA"));
+    }
+
+    @Test
+    public void failedWriteFailsOnlyItsCaller() throws Exception {
+        server.failEvalKey("h:s3");
+        List<Future<Void>> futures = writeConcurrently("s");
+        for (int i = 0; i < WRITES; i++) {
+            try {
+                futures.get(i).get(5, TimeUnit.SECONDS);
+                if (i == 3) {
+                    fail();
+                }
+            } catch (ExecutionException e) {
+                assertEquals(3, i);
+                assertTrue(e.getCause() instanceof JedisDataException);
+            }
+        }
+        assertEquals(WRITES - 1, server.getEvalKeys().size());
+        write("after");
+        assertTrue(server.getEvalKeys().contains("h:after"));
+    }
+
+    @Test
+    public void missingScriptIsReloaded() {
+        int loads = server.getScriptLoads();
+        server.flushScripts();
+        write("s");
+        assertEquals(loads + 1, server.getScriptLoads());
+        assertEquals(Collections.singletonList("h:s"), server.getEvalKeys());
+    }
+
+    @Test
+    public void flushFailureWakesEveryWriter() throws Exception {
+        server.setPaused(true);
+        List<Future<Void>> futures = writeConcurrently("s");
+        for (Future<Void> future : futures) {
+            try {
+                // 每批在读取超时后失败,不会一直等待
+                future.get(WRITES * TIMEOUT * 2, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof JedisConnectionException);
+            }
+        }
+
+        server.setPaused(false);
+        write("after");
+        assertTrue(server.getEvalKeys().contains("h:after"));
+    }
+
+    @Test
+    public void clusterEngineDoesNotCoalesce() throws IOException {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        RedisClusterCacheEngine cluster = new RedisClusterCacheEngine();
+        Properties properties = new Properties();
+        properties.setProperty(RedisClusterCacheEngine.CLUSTER_NODES, "127.0.0.1:" + port);
+        properties.setProperty(RedisCacheEngine.WRITE_COALESCE_WINDOW, "20000");
+        cluster.init(properties, null);
+        assertEquals(0, cluster.writeCoalesceWindow);
+        cluster.stopAsync();
+    }
+
+    /**
+     * 写入线程在批次的回调中被唤醒,批次的延迟在回调返回后才记录,等待第一批记录完成.
+     */
+    private long batchCount() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        LatencyHistogram batches;
+        while ((batches = engine.getMetrics().getCommand("EVALSHA_BATCH")) == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(batches);
+        return batches.getCount();
+    }
+
+    private List<Future<Void>> writeConcurrently(String prefix) {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(WRITES);
+        for (int i = 0; i < WRITES; i++) {
+            final String id = prefix + i;
+            futures.add(writers.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    write(id);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        return futures;
+    }
+
+    private void write(String id) {
+        engine.synchronize("h:" + id, "a:" + id, Collections.<byte[]>emptyList());
+    }
+}
@@ -0,0 +1,96 @@
+package com.gozap.session.cache.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 以FlakyCacheEngine代替redis,检查热层淘汰的值降级到温层,晋升,
+ * 以及本地值的保存时间不超过冷层的过期时间.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class TieredCacheEngineTest {
+
+    private static final int HOT_SIZE = 16;
+    private static final int KEYS = 200;
+
+    private TtlFlakyCacheEngine redis;
+    private TieredCacheEngine engine;
+
+    @Before
+    public void startEngine() {
+        redis = new TtlFlakyCacheEngine();
+        Properties properties = new Properties();
+        properties.setProperty(TieredCacheEngine.TIER_HOT_SIZE, String.valueOf(HOT_SIZE));
+        properties.setProperty(TieredCacheEngine.TIER_WARM_MAX_MEMORY, "1m");
+        properties.setProperty(TieredCacheEngine.TIER_WARM_PAGE_SIZE, "64k");
+        properties.setProperty(TieredCacheEngine.TIER_TTL, "60");
+        properties.setProperty(TieredCacheEngine.TIER_ADMISSION, "always");
+        properties.setProperty(TieredCacheEngine.TIER_STICKY_SESSIONS, "true");
+        engine = new TieredCacheEngine(redis);
+        engine.init(properties, null);
+        engine.start();
+    }
+
+    @After
+    public void stopEngine() {
+        engine.stop();
+    }
+
+    @Test
+    public void evictedHotValuesAreDemotedToWarm() {
+        for (int i = 0; i < KEYS; i++) {
+            engine.put("k" + i, "v" + i);
+        }
+        assertTrue(engine.getHotSize() <= HOT_SIZE);
+        assertTrue(engine.getDemotions() >= KEYS - HOT_SIZE);
+
+        // 冷层没有之后仍然从本地两层读到
+        for (int i = 0; i < KEYS; i++) {
+            redis.del("k" + i);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("v" + i, engine.get("k" + i));
+        }
+        assertEquals(0, engine.getMisses());
+        assertTrue(engine.getWarmHits() > 0);
+        assertTrue(engine.getPromotions() > 0);
+        assertTrue(engine.getHotSize() <= HOT_SIZE);
+    }
+
+    @Test
+    public void loadedValueIsCappedAtRemoteTtl() throws Exception {
+        redis.put("k", "v1");
+        redis.setRemaining("k", 100L);
+        assertEquals("v1", engine.get("k"));
+        redis.put("k", "v2");
+        assertEquals("v1", engine.get("k"));
+
+        Thread.sleep(200);
+        assertEquals("v2", engine.get("k"));
+        assertEquals(2, engine.getMisses());
+    }
+
+    @Test
+    public void removeDropsBothTiers() {
+        for (int i = 0; i < KEYS; i++) {
+            engine.put("k" + i, "v" + i);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            engine.del("k" + i);
+        }
+        assertEquals(0, engine.getHotSize());
+        for (int i = 0; i < KEYS; i++) {
+            assertNull(engine.get("k" + i));
+        }
+        assertEquals(KEYS, engine.getMisses());
+    }
+}
@@ -0,0 +1,31 @@
+package com.gozap.session.cache.support;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gozap.session.cache.TtlCacheEngine;
+
+/**
+ * 可以设置剩余过期毫秒数的FlakyCacheEngine,用来检查本地缓存的保存时间.
+ * 没有设置的key没有过期时间,设置的剩余时间不会随时间减少.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+class TtlFlakyCacheEngine extends FlakyCacheEngine implements TtlCacheEngine {
+
+    private final Map<String, Long> remaining = new ConcurrentHashMap<String, Long>();
+
+    void setRemaining(String key, long millis) {
+        remaining.put(key, millis);
+    }
+
+    public Map<String, Object> getWithTtl(String[] keys, long[] ttls) {
+        Map<String, Object> values = get(keys);
+        for (int i = 0; i < keys.length; i++) {
+            Long ttl = remaining.get(keys[i]);
+            ttls[i] = ttl == null ? NO_TTL : ttl;
+        }
+        return values;
+    }
+}
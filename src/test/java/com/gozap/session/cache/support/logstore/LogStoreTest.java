@@ -0,0 +1,190 @@
+package com.gozap.session.cache.support.logstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 检查重新打开时按段重放记录,段末尾不完整或者校验失败的记录被截掉,以及压缩后只留下有效的记录.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class LogStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long SEGMENT_SIZE = 512;
+    private static final int VALUE_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private LogStore store;
+
+    @Before
+    public void openStore() throws IOException {
+        directory = new File(folder.getRoot(), "sessions");
+        store = new LogStore(directory, SEGMENT_SIZE, false);
+    }
+
+    @After
+    public void closeStore() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void recordsAreReplayedAfterReopen() throws IOException {
+        long now = System.currentTimeMillis();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i), value(round, i), 0);
+            }
+        }
+        assertTrue(store.remove(key(0)));
+        store.put(bytes("b"), bytes("2"), now + 1000);
+        assertTrue(store.expire(bytes("b"), now + 5000, now));
+        assertEquals(5, store.add(bytes("n"), 5, now));
+        int segments = store.getSegmentCount();
+        long diskSize = store.getDiskSize();
+        assertTrue(segments > 1);
+        reopen();
+
+        assertEquals(segments, store.getSegmentCount());
+        assertEquals(diskSize, store.getDiskSize());
+        assertEquals(11, store.size());
+        assertNull(store.get(key(0), now));
+        for (int i = 1; i < 10; i++) {
+            assertArrayEquals(value(2, i), store.get(key(i), now));
+        }
+        // 修改过期时间的记录也被重放
+        assertArrayEquals(bytes("2"), store.get(bytes("b"), now + 2000));
+        assertNull(store.get(bytes("b"), now + 5000));
+        assertEquals(6, store.add(bytes("n"), 1, now));
+    }
+
+    @Test
+    public void incompleteTailIsTruncated() throws IOException {
+        long now = System.currentTimeMillis();
+        store.put(bytes("a"), bytes("1"), 0);
+        store.put(bytes("b"), bytes("2"), 0);
+        long diskSize = store.getDiskSize();
+        store.close();
+
+        // 写到一半的记录
+        FileOutputStream out = new FileOutputStream(lastSegment(), true);
+        try {
+            out.write(new byte[] {1, 2, 3, 4, 1, 0, 0, 0});
+        } finally {
+            out.close();
+        }
+        store = new LogStore(directory, SEGMENT_SIZE, false);
+        assertEquals(diskSize, store.getDiskSize());
+        assertEquals(diskSize, lastSegment().length());
+        assertArrayEquals(bytes("1"), store.get(bytes("a"), now));
+        assertArrayEquals(bytes("2"), store.get(bytes("b"), now));
+
+        // 之后的写入接在截断的位置,再次打开仍然可以读取
+        store.put(bytes("c"), bytes("3"), 0);
+        reopen();
+        assertEquals(3, store.size());
+        assertArrayEquals(bytes("3"), store.get(bytes("c"), now));
+    }
+
+    @Test
+    public void corruptedTailIsTruncated() throws IOException {
+        long now = System.currentTimeMillis();
+        store.put(bytes("a"), bytes("1"), 0);
+        long diskSize = store.getDiskSize();
+        store.put(bytes("b"), bytes("2"), 0);
+        store.close();
+
+        // 改写最后一条记录的值,校验失败
+        RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+        try {
+            file.seek(file.length() - 1);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+        store = new LogStore(directory, SEGMENT_SIZE, false);
+        assertEquals(diskSize, store.getDiskSize());
+        assertArrayEquals(bytes("1"), store.get(bytes("a"), now));
+        assertNull(store.get(bytes("b"), now));
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveRecords() throws IOException {
+        long now = System.currentTimeMillis();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i), value(round, i), 0);
+            }
+        }
+        assertTrue(store.remove(key(0)));
+        store.put(bytes("expired"), bytes("x"), now + 10);
+        store.put(bytes("retimed"), bytes("r"), now + 10);
+        assertTrue(store.expire(bytes("retimed"), 0, now));
+        assertFalse(store.maintain(now + 20, 0.99, 0));
+
+        long diskSize = store.getDiskSize();
+        assertTrue(store.maintain(now + 20, 0.5, 0));
+        assertEquals(1, store.getCompactions());
+        assertEquals(10, store.getCopied());
+        assertTrue(store.getDiskSize() < diskSize / 3);
+        // 旧段的文件已经删除
+        assertEquals(store.getSegmentCount(), directory.list().length);
+        assertNull(store.get(bytes("expired"), now));
+        assertArrayEquals(bytes("r"), store.get(bytes("retimed"), now + 20));
+
+        // 删除的记录和被删除的值都已丢弃,重新打开后不会重新出现
+        reopen();
+        assertEquals(10, store.size());
+        assertNull(store.get(key(0), now));
+        for (int i = 1; i < 10; i++) {
+            assertArrayEquals(value(4, i), store.get(key(i), now));
+        }
+        assertArrayEquals(bytes("r"), store.get(bytes("retimed"), now + 20));
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new LogStore(directory, SEGMENT_SIZE, false);
+    }
+
+    private File lastSegment() {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return new File(directory, names[names.length - 1]);
+    }
+
+    private static byte[] key(int i) {
+        return bytes("k" + i);
+    }
+
+    private static byte[] value(int round, int i) {
+        byte[] value = new byte[VALUE_SIZE];
+        value[0] = (byte) round;
+        value[1] = (byte) i;
+        return value;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF8);
+    }
+}
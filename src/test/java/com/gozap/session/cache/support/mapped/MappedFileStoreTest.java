@@ -0,0 +1,183 @@
+package com.gozap.session.cache.support.mapped;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 检查重新打开文件后数据不丢失,数据区和索引写满时的压缩,以及空间不足和错误文件的处理.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class MappedFileStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SLOTS = 64;
+    private static final int DATA_SIZE = 4096;
+    private static final int VALUE_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MappedFileStore store;
+
+    @Before
+    public void openStore() throws IOException {
+        file = new File(folder.getRoot(), "sessions.map");
+        store = new MappedFileStore(file, SLOTS, DATA_SIZE);
+    }
+
+    @After
+    public void closeStore() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void valuesSurviveReopen() throws IOException {
+        long now = System.currentTimeMillis();
+        store.put(bytes("a"), bytes("1"), 0);
+        store.put(bytes("b"), bytes("2"), now + 1000);
+        store.put(bytes("c"), bytes("3"), 0);
+        assertTrue(store.remove(bytes("c")));
+        assertEquals(5, store.add(bytes("n"), 5, now));
+        int appended = store.getAppended();
+        store.close();
+
+        // 已有文件的大小以文件头为准
+        store = new MappedFileStore(file, SLOTS * 4, DATA_SIZE * 4);
+        assertEquals(SLOTS, store.getSlotCount());
+        assertEquals(DATA_SIZE, store.getDataSize());
+        assertEquals(appended, store.getAppended());
+        assertEquals(3, store.size());
+        assertArrayEquals(bytes("1"), store.get(bytes("a"), now));
+        assertArrayEquals(bytes("2"), store.get(bytes("b"), now));
+        assertNull(store.get(bytes("b"), now + 1000));
+        assertNull(store.get(bytes("c"), now));
+        assertEquals(6, store.add(bytes("n"), 1, now));
+
+        // 重新打开后的写入追加在原来的记录之后
+        store.put(bytes("d"), bytes("4"), 0);
+        assertTrue(store.getAppended() > appended);
+        assertArrayEquals(bytes("1"), store.get(bytes("a"), now));
+    }
+
+    @Test
+    public void overwritesAreCompacted() throws IOException {
+        long now = System.currentTimeMillis();
+        store.put(bytes("expired"), new byte[VALUE_SIZE], 1);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i), value(round, i), 0);
+            }
+        }
+        assertTrue(store.getCompactions() > 0);
+        assertFalse(new File(file.getPath() + ".compact").exists());
+        // 过期的记录在压缩时被丢弃
+        assertEquals(10, store.size());
+        assertTrue(store.getAppended() < DATA_SIZE);
+        store.close();
+
+        store = new MappedFileStore(file, SLOTS, DATA_SIZE);
+        assertEquals(10, store.size());
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(value(19, i), store.get(key(i), now));
+        }
+    }
+
+    @Test
+    public void deletedSlotsAreCompacted() {
+        long now = System.currentTimeMillis();
+        // 删除只标记槽,不断写入新的key会用完索引
+        for (int i = 0; i < SLOTS * 4; i++) {
+            store.put(key(i), bytes("v"), 0);
+            assertTrue(store.remove(key(i)));
+        }
+        assertTrue(store.getCompactions() > 0);
+        assertEquals(0, store.size());
+
+        // 索引最多使用四分之三的槽
+        for (int i = 0; i < SLOTS * 3 / 4; i++) {
+            store.put(key(i), bytes("v"), 0);
+        }
+        try {
+            store.put(bytes("one more"), bytes("v"), 0);
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        assertArrayEquals(bytes("v"), store.get(key(0), now));
+    }
+
+    @Test
+    public void fullDataRaisesIllegalState() {
+        long now = System.currentTimeMillis();
+        try {
+            store.put(bytes("large"), new byte[DATA_SIZE], 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+        int stored = 0;
+        try {
+            while (true) {
+                store.put(key(stored), value(0, stored), 0);
+                stored++;
+            }
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        assertTrue(stored > 0);
+        assertEquals(stored, store.size());
+        for (int i = 0; i < stored; i++) {
+            assertArrayEquals(value(0, i), store.get(key(i), now));
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File other = new File(folder.getRoot(), "other.map");
+        FileOutputStream out = new FileOutputStream(other);
+        try {
+            out.write(new byte[256]);
+        } finally {
+            out.close();
+        }
+        try {
+            new MappedFileStore(other, SLOTS, DATA_SIZE);
+            fail();
+        } catch (IOException e) {
+            // 期望的异常
+        }
+    }
+
+    private static byte[] key(int i) {
+        return bytes("k" + i);
+    }
+
+    private static byte[] value(int round, int i) {
+        byte[] value = new byte[VALUE_SIZE];
+        value[0] = (byte) round;
+        value[1] = (byte) i;
+        return value;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF8);
+    }
+}
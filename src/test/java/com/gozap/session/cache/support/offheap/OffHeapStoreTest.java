@@ -0,0 +1,155 @@
+package com.gozap.session.cache.support.offheap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 检查OffHeapStore的读写,过期,计数器,内存不足时的淘汰以及页的移动.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class OffHeapStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGES = 4;
+    // 加上块头和key正好放进最小的块
+    private static final int SMALL_VALUE_SIZE = 40;
+
+    private SlabAllocator allocator;
+    private OffHeapStore store;
+
+    @Before
+    public void createStore() {
+        allocator = new SlabAllocator(PAGE_SIZE * PAGES, PAGE_SIZE);
+        store = new OffHeapStore(allocator, 4, 16);
+    }
+
+    @Test
+    public void valuesRoundTrip() {
+        long now = System.currentTimeMillis();
+        store.put(bytes("a"), bytes("1"), 0);
+        store.put(bytes("b"), new byte[1000], now + 60000);
+        assertArrayEquals(bytes("1"), store.get(bytes("a"), now));
+        assertEquals(1000, store.get(bytes("b"), now).length);
+
+        // 覆盖写入换成另一个大小级别的块
+        store.put(bytes("a"), new byte[500], 0);
+        assertEquals(500, store.get(bytes("a"), now).length);
+        assertEquals(2, store.size());
+
+        assertTrue(store.remove(bytes("a")));
+        assertFalse(store.remove(bytes("a")));
+        assertNull(store.get(bytes("a"), now));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void expiredValuesAreNotReturned() {
+        long now = System.currentTimeMillis();
+        store.put(bytes("a"), bytes("1"), now + 1000);
+        assertTrue(store.contains(bytes("a"), now + 999));
+        assertNull(store.get(bytes("a"), now + 1000));
+
+        store.put(bytes("b"), bytes("2"), now + 1000);
+        store.put(bytes("c"), bytes("3"), 0);
+        assertTrue(store.expire(bytes("b"), 0, now));
+        assertTrue(store.expire(bytes("c"), now + 10, now));
+        assertEquals(1, store.reclaim(now + 2000));
+        assertArrayEquals(bytes("2"), store.get(bytes("b"), now + 2000));
+        assertEquals(1, store.size());
+        assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void countersAddInPlace() {
+        long now = System.currentTimeMillis();
+        assertEquals(5, store.add(bytes("n"), 5, now));
+        assertEquals(-95, store.add(bytes("n"), -100, now));
+        assertEquals(Long.MAX_VALUE - 95, store.add(bytes("n"), Long.MAX_VALUE, now));
+        try {
+            store.add(bytes("n"), 100, now);
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+        // 计数器一直在原来的块中改写
+        assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.getUsedMemory());
+        store.put(bytes("s"), bytes("x"), 0);
+        try {
+            store.add(bytes("s"), 1, now);
+            fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+    }
+
+    @Test
+    public void fullStoreEvictsWithinSizeClass() {
+        long now = System.currentTimeMillis();
+        int capacity = PAGE_SIZE * PAGES / SlabAllocator.MIN_CHUNK_SIZE;
+        for (int i = 0; i < capacity * 3; i++) {
+            store.put(key(i), new byte[SMALL_VALUE_SIZE], now + 60000 + i);
+        }
+        assertEquals(capacity, store.size());
+        assertEquals(capacity * 2, store.getEvictions());
+        assertEquals(0, store.getPageMoves());
+        assertNotNull(store.get(key(capacity * 3 - 1), now));
+    }
+
+    @Test
+    public void newSizeClassTakesOnePageFromAnother() {
+        long now = System.currentTimeMillis();
+        int capacity = PAGE_SIZE * PAGES / SlabAllocator.MIN_CHUNK_SIZE;
+        for (int i = 0; i < capacity; i++) {
+            store.put(key(i), new byte[SMALL_VALUE_SIZE], 0);
+        }
+        assertEquals(capacity, store.size());
+
+        store.put(bytes("large"), new byte[2000], 0);
+        assertEquals(1, store.getPageMoves());
+        // 只淘汰了被移动的一页中的值
+        assertEquals(PAGE_SIZE / SlabAllocator.MIN_CHUNK_SIZE, store.getEvictions());
+        assertEquals(capacity - PAGE_SIZE / SlabAllocator.MIN_CHUNK_SIZE + 1, store.size());
+        assertEquals(2000, store.get(bytes("large"), now).length);
+
+        // 其他页中的值仍然可以读取
+        int found = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (store.get(key(i), now) != null) {
+                found++;
+            }
+        }
+        assertEquals(capacity - PAGE_SIZE / SlabAllocator.MIN_CHUNK_SIZE, found);
+    }
+
+    @Test
+    public void valueLargerThanPageIsRejected() {
+        try {
+            store.put(bytes("a"), new byte[PAGE_SIZE], 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+        assertEquals(0, store.size());
+    }
+
+    private static byte[] key(int i) {
+        return bytes("k" + (1000 + i));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF8);
+    }
+}
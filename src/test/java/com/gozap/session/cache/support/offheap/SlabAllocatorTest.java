@@ -0,0 +1,93 @@
+package com.gozap.session.cache.support.offheap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * 检查块的大小级别,空闲块的复用,最大内存,以及页在大小级别之间的移动.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class SlabAllocatorTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    @Test
+    public void sizeClassesRoundUp() {
+        SlabAllocator allocator = new SlabAllocator(PAGE_SIZE * 4, PAGE_SIZE);
+        assertEquals(0, allocator.sizeClass(1));
+        assertEquals(0, allocator.sizeClass(SlabAllocator.MIN_CHUNK_SIZE));
+        assertEquals(1, allocator.sizeClass(SlabAllocator.MIN_CHUNK_SIZE + 1));
+        assertEquals(allocator.getSizeClassCount() - 1, allocator.sizeClass(PAGE_SIZE));
+        int address = allocator.allocate(SlabAllocator.MIN_CHUNK_SIZE + 1);
+        assertTrue(allocator.chunkSize(address) > SlabAllocator.MIN_CHUNK_SIZE);
+        assertEquals(0, allocator.chunkSize(address) % 8);
+        try {
+            allocator.sizeClass(PAGE_SIZE + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+    }
+
+    @Test
+    public void freedChunkIsReused() {
+        SlabAllocator allocator = new SlabAllocator(PAGE_SIZE * 4, PAGE_SIZE);
+        int address = allocator.allocate(60);
+        assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.getUsedMemory());
+        allocator.free(address);
+        assertEquals(0, allocator.getUsedMemory());
+        assertEquals(address, allocator.allocate(50));
+        assertEquals(PAGE_SIZE, allocator.getAllocatedMemory());
+    }
+
+    @Test
+    public void allocationStopsAtMaxMemory() {
+        SlabAllocator allocator = new SlabAllocator(PAGE_SIZE * 2, PAGE_SIZE);
+        int first = allocator.allocate(PAGE_SIZE);
+        int second = allocator.allocate(PAGE_SIZE);
+        assertTrue(allocator.pageOf(first) != allocator.pageOf(second));
+        assertEquals(-1, allocator.allocate(PAGE_SIZE));
+        assertEquals(-1, allocator.allocate(1));
+        assertEquals(allocator.getMaxMemory(), allocator.getAllocatedMemory());
+    }
+
+    @Test
+    public void drainedPageMovesToAnotherSizeClass() {
+        SlabAllocator allocator = new SlabAllocator(PAGE_SIZE * 2, PAGE_SIZE);
+        int small = allocator.sizeClass(SlabAllocator.MIN_CHUNK_SIZE);
+        allocator.allocate(SlabAllocator.MIN_CHUNK_SIZE);
+        int large = allocator.allocate(PAGE_SIZE);
+
+        int page = allocator.drainPage(small);
+        assertEquals(allocator.pageOf(large), page);
+        // 页中还有没有释放的块
+        assertFalse(allocator.releasePage(page, small));
+        allocator.free(large);
+        assertTrue(allocator.releasePage(page, small));
+
+        int[] chunks = allocator.chunks(page);
+        assertEquals(PAGE_SIZE / SlabAllocator.MIN_CHUNK_SIZE, chunks.length);
+        for (int chunk : chunks) {
+            assertEquals(page, allocator.pageOf(chunk));
+            assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.chunkSize(chunk));
+        }
+
+        // 两页都属于最小的级别,除了第一次分配的块都可以分配
+        Set<Integer> addresses = new HashSet<Integer>();
+        int address;
+        while ((address = allocator.allocate(SlabAllocator.MIN_CHUNK_SIZE)) >= 0) {
+            assertTrue(addresses.add(address));
+        }
+        assertEquals(PAGE_SIZE * 2 / SlabAllocator.MIN_CHUNK_SIZE - 1, addresses.size());
+        assertEquals(-1, allocator.drainPage(small));
+    }
+}
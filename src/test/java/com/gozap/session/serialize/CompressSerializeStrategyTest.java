@@ -0,0 +1,154 @@
+package com.gozap.session.serialize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 以原样返回字节的序列化策略作为被装饰的策略,检查压缩数据的头部,两种算法的往返,
+ * 不压缩的回退以及对旧数据的兼容.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class CompressSerializeStrategyTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int THRESHOLD = 64;
+
+    @Test
+    public void lz4RoundTripWritesHeader() throws Exception {
+        CompressSerializeStrategy strategy = new CompressSerializeStrategy(
+                new BytesStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.LZ4);
+        byte[] datas = repetitive(5000);
+        byte[] compressed = strategy.serialize(datas);
+        assertTrue(compressed.length < datas.length);
+        assertEquals((byte) 0xC5, compressed[0]);
+        assertEquals((byte) 0x5A, compressed[1]);
+        assertEquals(1, compressed[2]);
+        // 原始长度,大端
+        assertEquals(0, compressed[3]);
+        assertEquals(0, compressed[4]);
+        assertEquals((byte) (5000 >>> 8), compressed[5]);
+        assertEquals((byte) 5000, compressed[6]);
+        assertArrayEquals(datas, (byte[]) strategy.deserialize(compressed));
+    }
+
+    @Test
+    public void gzipRoundTrip() throws Exception {
+        CompressSerializeStrategy strategy = new CompressSerializeStrategy(
+                new BytesStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.GZIP);
+        byte[] datas = repetitive(5000);
+        byte[] compressed = strategy.serialize(datas);
+        assertEquals(2, compressed[2]);
+        assertArrayEquals(datas, (byte[]) strategy.deserialize(compressed));
+
+        // 读取由另一种算法压缩的数据按头部的算法解压
+        CompressSerializeStrategy lz4 = new CompressSerializeStrategy(
+                new BytesStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.LZ4);
+        assertArrayEquals(datas, (byte[]) lz4.deserialize(compressed));
+    }
+
+    @Test
+    public void smallOrIncompressibleDataIsNotCompressed() throws Exception {
+        CompressSerializeStrategy strategy = new CompressSerializeStrategy(
+                new BytesStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.LZ4);
+        byte[] small = repetitive(THRESHOLD - 1);
+        assertSame(small, strategy.serialize(small));
+
+        byte[] random = new byte[5000];
+        new Random(7).nextBytes(random);
+        random[0] = 1;
+        assertSame(random, strategy.serialize(random));
+        assertSame(random, strategy.deserialize(random));
+    }
+
+    @Test
+    public void uncompressedDataIsStillReadable() throws Exception {
+        CompressSerializeStrategy strategy = new CompressSerializeStrategy(
+                new FastJsonSerializeStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.LZ4);
+        byte[] legacy = new FastJsonSerializeStrategy().serialize("value");
+        assertEquals("value", strategy.deserialize(legacy));
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            builder.append("value");
+        }
+        String value = builder.toString();
+        assertEquals(value, strategy.deserialize(strategy.serialize(value)));
+    }
+
+    @Test
+    public void unknownCodecIsRejected() throws Exception {
+        CompressSerializeStrategy strategy = new CompressSerializeStrategy(
+                new BytesStrategy(), THRESHOLD, CompressSerializeStrategy.Codec.LZ4);
+        byte[] compressed = strategy.serialize(repetitive(5000));
+        compressed[2] = 9;
+        try {
+            strategy.deserialize(compressed);
+            fail();
+        } catch (CanNotBeUnSerializedException e) {
+            // 期望的异常
+        }
+        compressed[2] = 1;
+        compressed[6]++;
+        try {
+            strategy.deserialize(compressed);
+            fail();
+        } catch (CanNotBeUnSerializedException e) {
+            // 期望的异常
+        }
+    }
+
+    @Test
+    public void configureWrapsOnlyWhenConfigured() {
+        SerializeStrategy plain = new FastJsonSerializeStrategy();
+        assertSame(plain, CompressSerializeStrategy.configure(plain, null));
+        assertSame(plain, CompressSerializeStrategy.configure(plain, new Properties()));
+
+        Properties properties = new Properties();
+        properties.setProperty(CompressSerializeStrategy.COMPRESS_CODEC, " gzip ");
+        CompressSerializeStrategy wrapped = (CompressSerializeStrategy)
+                CompressSerializeStrategy.configure(plain, properties);
+        assertSame(plain, wrapped.getStrategy());
+        assertEquals(CompressSerializeStrategy.DEFAULT_THRESHOLD, wrapped.getThreshold());
+        assertEquals(CompressSerializeStrategy.Codec.GZIP, wrapped.getCodec());
+
+        properties.setProperty(CompressSerializeStrategy.COMPRESS_THRESHOLD, "512");
+        CompressSerializeStrategy rewrapped = (CompressSerializeStrategy)
+                CompressSerializeStrategy.configure(wrapped, properties);
+        assertSame(plain, rewrapped.getStrategy());
+        assertEquals(512, rewrapped.getThreshold());
+    }
+
+    private static byte[] repetitive(int length) {
+        byte[] pattern = "{\"cart\":[1,2,3]}".getBytes(UTF8);
+        byte[] datas = new byte[length];
+        for (int i = 0; i < length; i++) {
+            datas[i] = pattern[i % pattern.length];
+        }
+        return datas;
+    }
+
+    /**
+     * 原样返回字节的序列化策略.
+     */
+    private static final class BytesStrategy implements SerializeStrategy {
+
+        public byte[] serialize(Object source) throws CanNotBeSerializedException {
+            return (byte[]) source;
+        }
+
+        public Object deserialize(byte[] datas) throws CanNotBeUnSerializedException {
+            return datas;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.gozap.session.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 检查Lz4块格式的压缩和解压,以及对损坏数据的拒绝.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class Lz4Test {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void repetitiveDataRoundTrips() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append("{\"user\":\"u").append(i % 37).append("\",\"cart\":[1,2,3]}");
+        }
+        byte[] datas = builder.toString().getBytes(UTF8);
+        byte[] compressed = Lz4.compress(datas);
+        assertTrue(compressed.length < datas.length / 4);
+        assertArrayEquals(datas, Lz4.decompress(compressed, 0, compressed.length, datas.length));
+    }
+
+    @Test
+    public void overlappingMatchRoundTrips() {
+        // 偏移小于匹配长度,解压时需要逐字节复制
+        byte[] datas = new byte[5000];
+        for (int i = 0; i < datas.length; i++) {
+            datas[i] = (byte) (i % 3);
+        }
+        byte[] compressed = Lz4.compress(datas);
+        assertArrayEquals(datas, Lz4.decompress(compressed, 0, compressed.length, datas.length));
+    }
+
+    @Test
+    public void randomAndShortDataRoundTrips() {
+        Random random = new Random(42);
+        int[] lengths = {0, 1, 5, 12, 13, 100, 70000};
+        for (int length : lengths) {
+            byte[] datas = new byte[length];
+            random.nextBytes(datas);
+            byte[] compressed = Lz4.compress(datas);
+            assertTrue(compressed.length <= Lz4.maxCompressedLength(length));
+            assertArrayEquals(datas, Lz4.decompress(compressed, 0, compressed.length, length));
+        }
+    }
+
+    @Test
+    public void decompressHonoursOffset() {
+        byte[] datas = "abcabcabcabcabcabcabcabcabcabc".getBytes(UTF8);
+        byte[] compressed = Lz4.compress(datas);
+        byte[] framed = new byte[compressed.length + 3];
+        System.arraycopy(compressed, 0, framed, 3, compressed.length);
+        assertArrayEquals(datas, Lz4.decompress(framed, 3, compressed.length, datas.length));
+    }
+
+    @Test
+    public void malformedDataIsRejected() {
+        byte[] datas = new byte[1000];
+        byte[] compressed = Lz4.compress(datas);
+        try {
+            Lz4.decompress(compressed, 0, compressed.length, datas.length + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+        try {
+            Lz4.decompress(compressed, 0, compressed.length - 1, datas.length);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+        try {
+            // 第一个序列就引用了之前没有的数据
+            Lz4.decompress(new byte[] {0x0F, 0x01, 0x00, 0x00}, 0, 4, 100);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.gozap.session.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 检查定时项在各层之间下移后准时到期,超出最高层范围的定时项,已经过去的到期时间以及取消.
+ *
+ * @version 1.00 2015-8-26
+ * @since 1.6
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    @Test
+    public void cascadedTimeoutsExpireInTheirTick() {
+        // 开始时间不在tick和槽的边界上
+        long start = 1439000000123L;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, 3, start);
+        Random random = new Random(19);
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            // 覆盖全部三层
+            long deadline = start + 1 + (long) (random.nextDouble() * 64 * 64 * 64 * TICK);
+            wheel.schedule(deadline, deadline);
+        }
+        assertEquals(count, wheel.size());
+
+        long previous = start;
+        int expired = 0;
+        while (wheel.size() > 0) {
+            long now = previous + 1 + random.nextInt(5000);
+            for (TimingWheel.Timeout<Long> timeout : wheel.advance(now)) {
+                long due = (timeout.getDeadline() + TICK - 1) / TICK * TICK;
+                assertTrue(due > previous);
+                assertTrue(due <= now);
+                assertEquals(timeout.getDeadline(), timeout.getPayload().longValue());
+                expired++;
+            }
+            previous = now;
+        }
+        assertEquals(count, expired);
+    }
+
+    @Test
+    public void everyTickIsVisited() {
+        // 每次只推进一个tick,检查下移后的定时项恰好在到期的tick返回
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, 2, 0);
+        int count = 64 * 64 + 200;
+        for (long deadline = 1; deadline <= count; deadline++) {
+            wheel.schedule(deadline, deadline);
+        }
+        for (long now = 1; now <= count; now++) {
+            List<TimingWheel.Timeout<Long>> expired = wheel.advance(now);
+            assertEquals(1, expired.size());
+            assertEquals(now, expired.get(0).getDeadline());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void timeoutBeyondSpanIsPlacedAgain() {
+        // 一层只能覆盖64个tick
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 1, 0);
+        wheel.schedule("far", 1000);
+        for (long now = 100; now < 1000; now += 100) {
+            assertTrue(wheel.advance(now).isEmpty());
+        }
+        assertTrue(wheel.advance(999).isEmpty());
+        assertEquals("far", wheel.advance(1000).get(0).getPayload());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<String>(TICK, 2, 1000);
+        wheel.schedule("late", 500);
+        assertTrue(wheel.advance(1009).isEmpty());
+        assertEquals(1, wheel.advance(1010).size());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverExpires() {
+        TimingWheel<String> wheel = new TimingWheel<String>(TICK, 2, 0);
+        TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 5000);
+        TimingWheel.Timeout<String> kept = wheel.schedule("kept", 5000);
+        // 先下移一次再取消
+        wheel.advance(1000);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(1, wheel.size());
+
+        List<TimingWheel.Timeout<String>> expired = wheel.advance(5000);
+        assertEquals(1, expired.size());
+        assertEquals("kept", expired.get(0).getPayload());
+        assertFalse(wheel.cancel(kept));
+        assertEquals(0, wheel.size());
+    }
+}